@@ -1,5 +1,6 @@
 plugins {
 	id("qupath-conventions")
+	id("me.champeau.jmh") version "0.7.2"
 }
 
 qupathExtension {
@@ -20,3 +21,29 @@ dependencies {
 	testImplementation(libs.junit)
 
 }
+
+// Benchmarks are in src/jmh/java, and can be run with ./gradlew jmh
+// Use -PjmhIncludes=<regex> to run a subset, e.g. -PjmhIncludes=TransformROIBenchmark
+jmh {
+	jmhVersion = "1.37"
+	// Synthetic images are shared with the tests
+	includeTests = true
+	profilers = listOf("gc")
+	resultFormat = "JSON"
+	val jmhIncludes = findProperty("jmhIncludes") as String?
+	if (jmhIncludes != null)
+		includes = listOf(jmhIncludes)
+}
+
+// Registration accuracy tests are slower than the others, and can be skipped with -PskipRegistrationTests
+// Use -Pregistration.<key>=<value> to change the image size, budgets etc. (see TestRegistrationAccuracy)
+tasks.test {
+	useJUnitPlatform {
+		if (project.hasProperty("skipRegistrationTests"))
+			excludeTags("registration")
+	}
+	systemProperty("java.awt.headless", "true")
+	project.properties
+		.filterKeys { it.startsWith("registration.") }
+		.forEach { (key, value) -> systemProperty(key, value.toString()) }
+}
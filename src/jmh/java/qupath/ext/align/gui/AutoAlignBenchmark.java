@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javafx.scene.transform.Affine;
+import qupath.ext.align.gui.ImageAlignmentPane.AlignmentMethod;
+import qupath.ext.align.gui.ImageAlignmentPane.RegistrationType;
+import qupath.lib.images.servers.ImageServer;
+
+/**
+ * Benchmark for intensity-based auto-alignment, including reading and converting the images.
+ * <p>
+ * The overlay is created by applying a known transform to the base image, and each invocation starts
+ * from the same (slightly wrong) initial transform.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AutoAlignBenchmark {
+
+	private static final double PIXEL_SIZE_MICRONS = 0.5;
+
+	@Param({"2048", "8192"})
+	public int size;
+
+	@Param({"4", "16"})
+	public double requestedPixelSizeMicrons;
+
+	@Param({"INTENSITY", "MUTUAL_INFORMATION"})
+	public AlignmentMethod method;
+
+	@Param({"RIGID", "AFFINE"})
+	public RegistrationType registrationType;
+
+	private ImageServer<BufferedImage> serverBase;
+	private ImageServer<BufferedImage> serverOverlay;
+	private AffineTransform initial;
+
+	@Setup
+	public void setup() {
+		var imgBase = SyntheticImages.createTissue(size, size, 1L);
+		var transform = AffineTransform.getRotateInstance(Math.toRadians(2), size/2.0, size/2.0);
+		transform.translate(size * 0.02, -size * 0.01);
+		var imgOverlay = SyntheticImages.transform(imgBase, transform, size, size);
+		serverBase = SyntheticImages.createServer("Base", imgBase, PIXEL_SIZE_MICRONS);
+		serverOverlay = SyntheticImages.createServer("Overlay", imgOverlay, PIXEL_SIZE_MICRONS);
+		// Start from the translation only, so that the rotation must be found
+		initial = AffineTransform.getTranslateInstance(size * 0.02, -size * 0.01);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		serverBase.close();
+		serverOverlay.close();
+	}
+
+	@Benchmark
+	public AlignmentQuality autoAlign() throws IOException {
+		var affine = new Affine();
+		TransformTools.setAffine(initial, affine);
+		var preprocessor = RegistrationPreprocessor.getDefault();
+		return ImageAlignmentPane.autoAlign(serverBase, serverOverlay, preprocessor, preprocessor,
+				method, registrationType, affine, RegistrationResolution.pixelSize(requestedPixelSizeMicrons), null);
+	}
+
+}
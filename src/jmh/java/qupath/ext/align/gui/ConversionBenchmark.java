@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import qupath.lib.geom.Point2;
+
+/**
+ * Benchmarks for converting images and points into the forms needed by OpenCV.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+	/**
+	 * Images for grayscale conversion.
+	 */
+	@State(Scope.Benchmark)
+	public static class ImageState {
+
+		@Param({"512", "2048"})
+		public int size;
+
+		BufferedImage img;
+
+		@Setup
+		public void setup() {
+			img = SyntheticImages.createTissue(size, size, 1L);
+		}
+
+	}
+
+	/**
+	 * Point lists for conversion to a Mat.
+	 */
+	@State(Scope.Benchmark)
+	public static class PointsState {
+
+		@Param({"1000", "10000", "100000", "1000000"})
+		public int nPoints;
+
+		List<Point2> points;
+
+		@Setup
+		public void setup() {
+			points = SyntheticImages.createPoints(nPoints, 10_000, 10_000, 1L);
+		}
+
+	}
+
+	@Benchmark
+	public void ensureGrayScale(ImageState state, Blackhole bh) {
+		bh.consume(ImageAlignmentPane.ensureGrayScale(state.img));
+	}
+
+	@Benchmark
+	public void pointsToMat(PointsState state, Blackhole bh) {
+		var mat = ImageAlignmentPane.pointsToMat(state.points);
+		bh.consume(mat.rows());
+		mat.release();
+	}
+
+}
@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Benchmarks for transforming ROIs and objects when propagating annotations between images.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransformROIBenchmark {
+
+	/**
+	 * Type of ROI to transform.
+	 */
+	public static enum RoiType { POLYGON, POINTS }
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int nVertices;
+
+	@Param({"POLYGON", "POINTS"})
+	public RoiType roiType;
+
+	private ROI roi;
+	private PathObject pathObject;
+	private AffineTransform transform;
+
+	@Setup
+	public void setup() {
+		double size = 50_000;
+		if (roiType == RoiType.POLYGON)
+			roi = SyntheticImages.createPolygon(nVertices, size/2, size/2, size/3, 1L);
+		else
+			roi = SyntheticImages.createPointsROI(nVertices, size, size, 1L);
+		pathObject = PathObjects.createAnnotationObject(roi);
+		transform = AffineTransform.getRotateInstance(Math.toRadians(5), size/2, size/2);
+		transform.translate(120, -80);
+	}
+
+	@Benchmark
+	public ROI transformROI() {
+		return ImageServerOverlay.transformROI(roi, transform);
+	}
+
+	@Benchmark
+	public PathObject transformObject() {
+		return ImageServerOverlay.transformObject(pathObject, transform, null);
+	}
+
+}
@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+
+import qupath.ext.align.gui.ImageAlignmentPane.RegistrationType;
+
+/**
+ * Accumulate weighted point correspondences, and solve for the transform that best maps source points to target points
+ * in the least-squares sense.
+ * <p>
+ * Only sums are stored, so correspondences can be added (or removed, with a negative weight) without keeping the points.
+ * Coordinates are accumulated relative to an origin close to the points, to avoid losing precision
+ * when large coordinates are squared.
+ */
+class AffineLeastSquares {
+
+	private final double originX;
+	private final double originY;
+
+	private int n;
+	private double sw;
+	private double sx, sy, sxx, sxy, syy;
+	private double su, sv, sxu, syu, sxv, syv;
+
+	/**
+	 * Constructor.
+	 * @param originX x-coordinate subtracted from all source and target points before accumulating
+	 * @param originY y-coordinate subtracted from all source and target points before accumulating
+	 */
+	AffineLeastSquares(double originX, double originY) {
+		this.originX = originX;
+		this.originY = originY;
+	}
+
+	/**
+	 * Add a correspondence.
+	 * @param x source x-coordinate
+	 * @param y source y-coordinate
+	 * @param u target x-coordinate
+	 * @param v target y-coordinate
+	 * @param weight weight of the correspondence; use a negative weight to remove a correspondence that was previously added
+	 */
+	void add(double x, double y, double u, double v, double weight) {
+		x -= originX;
+		y -= originY;
+		u -= originX;
+		v -= originY;
+		n += weight < 0 ? -1 : 1;
+		sw += weight;
+		sx += weight * x;
+		sy += weight * y;
+		sxx += weight * x * x;
+		sxy += weight * x * y;
+		syy += weight * y * y;
+		su += weight * u;
+		sv += weight * v;
+		sxu += weight * x * u;
+		syu += weight * y * u;
+		sxv += weight * x * v;
+		syv += weight * y * v;
+	}
+
+	/**
+	 * Get the number of correspondences.
+	 * @return
+	 */
+	int size() {
+		return n;
+	}
+
+	/**
+	 * Solve for a transform.
+	 * @param type {@link RegistrationType#RIGID} for rotation, uniform scaling and translation (as for rigid point alignment),
+	 *             otherwise a full affine transform
+	 * @return the transform, or null if there are too few correspondences (or they are degenerate)
+	 */
+	AffineTransform solve(RegistrationType type) {
+		var transform = type == RegistrationType.RIGID ? solveSimilarity() : solveAffine();
+		if (transform == null)
+			return null;
+		// Convert from coordinates relative to the origin: T = Tr(o) * T' * Tr(-o)
+		transform.preConcatenate(AffineTransform.getTranslateInstance(originX, originY));
+		transform.concatenate(AffineTransform.getTranslateInstance(-originX, -originY));
+		return transform;
+	}
+
+	private AffineTransform solveSimilarity() {
+		if (n < 2 || sw <= 0)
+			return null;
+		double cx = sx / sw, cy = sy / sw;
+		double cu = su / sw, cv = sv / sw;
+		// Centered cross-covariance terms
+		double cxu = sxu - sw * cx * cu;
+		double cyv = syv - sw * cy * cv;
+		double cxv = sxv - sw * cx * cv;
+		double cyu = syu - sw * cy * cu;
+		// Centered source variance, used to estimate the scale
+		double varSource = (sxx - sw * cx * cx) + (syy - sw * cy * cy);
+		if (!(varSource > 0))
+			return null;
+		// Similarity transform with rotation theta and scale s, where s * (cos, sin) = (a, b) / varSource
+		double a = cxu + cyv;
+		double b = cxv - cyu;
+		double cos = a / varSource, sin = b / varSource;
+		double tx = cu - (cos * cx - sin * cy);
+		double ty = cv - (sin * cx + cos * cy);
+		return new AffineTransform(cos, sin, -sin, cos, tx, ty);
+	}
+
+	private AffineTransform solveAffine() {
+		if (n < 3 || sw <= 0)
+			return null;
+		// Normal equations, shared by both rows of the transform
+		double[][] m = {
+				{sxx, sxy, sx},
+				{sxy, syy, sy},
+				{sx, sy, sw}
+		};
+		double det = det3(m);
+		if (!(Math.abs(det) > 1e-12 * Math.max(1, sxx * syy * sw)))
+			return null;
+		double[] row1 = solve3(m, det, sxu, syu, su);
+		double[] row2 = solve3(m, det, sxv, syv, sv);
+		return new AffineTransform(row1[0], row2[0], row1[1], row2[1], row1[2], row2[2]);
+	}
+
+	private static double det3(double[][] m) {
+		return m[0][0] * (m[1][1] * m[2][2] - m[1][2] * m[2][1])
+				- m[0][1] * (m[1][0] * m[2][2] - m[1][2] * m[2][0])
+				+ m[0][2] * (m[1][0] * m[2][1] - m[1][1] * m[2][0]);
+	}
+
+	/**
+	 * Solve a 3x3 system by Cramer's rule.
+	 */
+	private static double[] solve3(double[][] m, double det, double b0, double b1, double b2) {
+		double[] result = new double[3];
+		double[] b = {b0, b1, b2};
+		for (int c = 0; c < 3; c++) {
+			double[][] mc = {m[0].clone(), m[1].clone(), m[2].clone()};
+			for (int r = 0; r < 3; r++)
+				mc[r][c] = b[r];
+			result[c] = det3(mc) / det;
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,257 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import qupath.lib.io.GsonTools;
+
+/**
+ * Timing, convergence and memory metrics for a single alignment run.
+ * <p>
+ * Metrics are designed to be cheap to collect, so that they can be recorded for every run and exported
+ * (as JSON or CSV) to compare settings across batches of images.
+ */
+public class AlignmentMetrics {
+
+	private static final String DELIMITER = ",";
+
+	private final String timestamp = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+	private final String baseImage;
+	private final String overlayImage;
+	private final String method;
+	private String registrationType;
+
+	private Double downsample;
+	private final Map<String, Double> timingsMillis = new LinkedHashMap<>();
+	private Integer iterations;
+	private Integer convergedIteration;
+	private Double finalEpsilon;
+	private Double correlation;
+	private final Map<String, String> matSizes = new LinkedHashMap<>();
+	private long matBytes;
+	private long peakNativeBytes;
+	private long peakPhysicalBytes;
+
+	private final transient boolean trackConvergence;
+
+	/**
+	 * Constructor.
+	 * @param baseImage name of the base image
+	 * @param overlayImage name of the overlay image
+	 * @param method alignment method
+	 * @param registrationType registration type
+	 * @param trackConvergence if true, iterative methods should report per-iteration convergence (which may be slower)
+	 */
+	AlignmentMetrics(String baseImage, String overlayImage, Object method, Object registrationType, boolean trackConvergence) {
+		this.baseImage = baseImage;
+		this.overlayImage = overlayImage;
+		this.method = String.valueOf(method);
+		this.registrationType = String.valueOf(registrationType);
+		this.trackConvergence = trackConvergence;
+		sampleNativeMemory();
+	}
+
+	/**
+	 * Query whether iterative methods should track convergence for each iteration.
+	 * @return
+	 */
+	boolean isTrackConvergence() {
+		return trackConvergence;
+	}
+
+	/**
+	 * Record the time elapsed since a start time, and sample the native memory in use.
+	 * If the same name is used more than once, times are summed.
+	 * @param name name of the step
+	 * @param startNanos start time, from {@link System#nanoTime()}
+	 */
+	void addTiming(String name, long startNanos) {
+		double millis = (System.nanoTime() - startNanos) / 1e6;
+		timingsMillis.merge(name, millis, Double::sum);
+		sampleNativeMemory();
+	}
+
+	/**
+	 * Record the registration type, if it differs from the type that was requested.
+	 * @param registrationType
+	 */
+	void setRegistrationType(Object registrationType) {
+		this.registrationType = String.valueOf(registrationType);
+	}
+
+	/**
+	 * Record the downsample used for registration.
+	 * @param downsample
+	 */
+	void setDownsample(double downsample) {
+		this.downsample = downsample;
+	}
+
+	/**
+	 * Record the size of a Mat used in the alignment.
+	 * @param name
+	 * @param mat
+	 */
+	void addMat(String name, Mat mat) {
+		long bytes = mat.total() * mat.elemSize();
+		matSizes.put(name, mat.cols() + "x" + mat.rows() + "x" + mat.channels() + " (" + bytes + " bytes)");
+		matBytes += bytes;
+		sampleNativeMemory();
+	}
+
+	/**
+	 * Record the convergence of an iterative method.
+	 * @param iterations number of iterations (or function evaluations) performed
+	 * @param convergedIteration first iteration at which the convergence criterion was met, or -1 if unknown or not met
+	 * @param finalEpsilon change in the objective at the last iteration, or NaN if unknown
+	 * @param correlation final value of the objective, or NaN if unknown
+	 */
+	void setConvergence(int iterations, int convergedIteration, double finalEpsilon, double correlation) {
+		this.iterations = iterations < 0 ? null : iterations;
+		this.convergedIteration = convergedIteration < 0 ? null : convergedIteration;
+		this.finalEpsilon = Double.isFinite(finalEpsilon) ? finalEpsilon : null;
+		this.correlation = Double.isFinite(correlation) ? correlation : null;
+	}
+
+	/**
+	 * Update the peak native memory, as tracked by JavaCPP.
+	 */
+	void sampleNativeMemory() {
+		peakNativeBytes = Math.max(peakNativeBytes, Pointer.totalBytes());
+		peakPhysicalBytes = Math.max(peakPhysicalBytes, Pointer.physicalBytes());
+	}
+
+	/**
+	 * Get the recorded timings, in milliseconds.
+	 * @return
+	 */
+	public Map<String, Double> getTimings() {
+		return new LinkedHashMap<>(timingsMillis);
+	}
+
+	/**
+	 * Get a multi-line, human-readable summary of the metrics.
+	 * @return
+	 */
+	public String getSummary() {
+		var sb = new StringBuilder();
+		sb.append(overlayImage).append(" -> ").append(baseImage).append("\n");
+		sb.append(method).append(", ").append(registrationType);
+		if (downsample != null)
+			sb.append(String.format(", downsample %.2f", downsample));
+		sb.append("\n");
+		for (var entry : timingsMillis.entrySet())
+			sb.append(String.format("%s: %.1f ms%n", entry.getKey(), entry.getValue()));
+		if (iterations != null) {
+			sb.append("Iterations: ").append(iterations);
+			if (convergedIteration != null)
+				sb.append(" (converged at ").append(convergedIteration).append(")");
+			sb.append("\n");
+		}
+		if (finalEpsilon != null)
+			sb.append(String.format("Final epsilon: %.3g%n", finalEpsilon));
+		if (correlation != null)
+			sb.append(String.format("Final correlation: %.4f%n", correlation));
+		for (var entry : matSizes.entrySet())
+			sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+		sb.append(String.format("Peak native memory: %.1f MB (physical %.1f MB)", peakNativeBytes / 1e6, peakPhysicalBytes / 1e6));
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "AlignmentMetrics [" + overlayImage + " -> " + baseImage + ", " + timingsMillis + "]";
+	}
+
+	/**
+	 * Convert metrics to JSON.
+	 * @param metrics
+	 * @return
+	 */
+	static String toJSON(Collection<AlignmentMetrics> metrics) {
+		return GsonTools.getInstance(true).toJson(metrics);
+	}
+
+	/**
+	 * Convert metrics to CSV, with one row per alignment run.
+	 * Timing columns are the union of all timings recorded across runs.
+	 * @param metrics
+	 * @return
+	 */
+	static String toCSV(Collection<AlignmentMetrics> metrics) {
+		Set<String> timingNames = new LinkedHashSet<>();
+		Set<String> matNames = new LinkedHashSet<>();
+		for (var m : metrics) {
+			timingNames.addAll(m.timingsMillis.keySet());
+			matNames.addAll(m.matSizes.keySet());
+		}
+		List<String> header = new ArrayList<>(List.of("Timestamp", "Base image", "Overlay image", "Method", "Registration type",
+				"Downsample", "Iterations", "Converged iteration", "Final epsilon", "Correlation", "Mat bytes", "Peak native bytes", "Peak physical bytes"));
+		for (var name : timingNames)
+			header.add(name + " (ms)");
+		header.addAll(matNames);
+
+		var sb = new StringBuilder();
+		sb.append(String.join(DELIMITER, header)).append("\n");
+		for (var m : metrics) {
+			List<Object> row = new ArrayList<>(List.of(m.timestamp, escape(m.baseImage), escape(m.overlayImage), escape(m.method), escape(m.registrationType),
+					format(m.downsample), format(m.iterations), format(m.convergedIteration), format(m.finalEpsilon), format(m.correlation),
+					m.matBytes, m.peakNativeBytes, m.peakPhysicalBytes));
+			for (var name : timingNames)
+				row.add(format(m.timingsMillis.get(name)));
+			for (var name : matNames)
+				row.add(escape(m.matSizes.get(name)));
+			for (int i = 0; i < row.size(); i++) {
+				if (i > 0)
+					sb.append(DELIMITER);
+				sb.append(row.get(i));
+			}
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+
+	private static String format(Object value) {
+		return value == null ? "" : value.toString();
+	}
+
+	private static String escape(String value) {
+		if (value == null)
+			return "";
+		if (value.contains(DELIMITER) || value.contains("\"") || value.contains("\n"))
+			return "\"" + value.replace("\"", "\"\"") + "\"";
+		return value;
+	}
+
+}
@@ -0,0 +1,369 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.util.stream.IntStream;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+
+/**
+ * Quality scores for an alignment, computed globally and for a regular grid of tiles.
+ * <p>
+ * Scores are normalized cross-correlation (NCC, between -1 and 1) and mutual information (MI, in bits),
+ * computed between the base image and the overlay image warped into the base image space.
+ * Only pixels where the images overlap contribute.
+ * <p>
+ * Scores are computed from the images that were already used for registration, in a single pass that accumulates
+ * sums and joint histograms per tile; global scores are derived by merging the tile accumulators.
+ * Tiles have far fewer pixels than the whole image, so their joint histograms use coarser bins to limit the bias in
+ * MI caused by sparsely populated histograms; the global MI uses a separate, finer histogram.
+ */
+public class AlignmentQuality {
+
+	private static final int N_BINS = 32;
+	private static final int BIN_SHIFT = 3; // 256 / N_BINS = 2^3
+
+	private static final int N_TILE_BINS = 8;
+	private static final int TILE_BIN_SHIFT = 5; // 256 / N_TILE_BINS = 2^5
+
+	/**
+	 * Minimum number of overlapping pixels for a tile NCC to be calculated.
+	 */
+	private static final int MIN_PIXELS = 16;
+
+	/**
+	 * Minimum number of overlapping pixels for a tile MI to be calculated (on average 10 per histogram bin).
+	 */
+	private static final int MIN_PIXELS_MI = 10 * N_TILE_BINS * N_TILE_BINS;
+
+	private final AffineTransform transform;
+	private final double eccCorrelation;
+	private final double tileSize;
+	private final int nCols;
+	private final int nRows;
+	private final double[] ncc;
+	private final double[] mi;
+	private final double globalNCC;
+	private final double globalMI;
+
+	private AlignmentQuality(AffineTransform transform, double eccCorrelation, double tileSize, int nCols, int nRows, Accumulator[] tiles, int[] globalHist) {
+		this.transform = new AffineTransform(transform);
+		this.eccCorrelation = eccCorrelation;
+		this.tileSize = tileSize;
+		this.nCols = nCols;
+		this.nRows = nRows;
+		this.ncc = new double[tiles.length];
+		this.mi = new double[tiles.length];
+		var global = new Accumulator();
+		for (int i = 0; i < tiles.length; i++) {
+			ncc[i] = tiles[i].ncc();
+			mi[i] = tiles[i].mutualInformation();
+			global.add(tiles[i]);
+		}
+		this.globalNCC = global.ncc();
+		this.globalMI = global.n < MIN_PIXELS ? Double.NaN : mutualInformation(globalHist, N_BINS, global.n);
+	}
+
+	/**
+	 * Compute quality scores for a registration.
+	 *
+	 * @param matBase the base image used for registration
+	 * @param matOverlay the overlay image used for registration
+	 * @param matTransform 2x3 transform mapping base pixel coordinates to overlay pixel coordinates (as used by {@code findTransformECC})
+	 * @param downsample the downsample at which both images were read
+	 * @param tileSize the tile size for local scores, in pixels of {@code matBase}
+	 * @param eccCorrelation the correlation coefficient reported by ECC, or NaN if unavailable
+	 * @return the quality scores
+	 */
+	static AlignmentQuality compute(Mat matBase, Mat matOverlay, Mat matTransform, double downsample, int tileSize, double eccCorrelation) {
+		int width = matBase.cols();
+		int height = matBase.rows();
+		int nCols = Math.max(1, (width + tileSize - 1) / tileSize);
+		int nRows = Math.max(1, (height + tileSize - 1) / tileSize);
+
+		Mat mat8Base = to8Bit(matBase);
+		Mat mat8Overlay = to8Bit(matOverlay);
+		Mat matWarped = new Mat();
+		Mat matMask = new Mat();
+		Mat matOnes = new Mat(mat8Overlay.size(), opencv_core.CV_8UC1, Scalar.all(255));
+		opencv_imgproc.warpAffine(mat8Overlay, matWarped, matTransform, mat8Base.size(),
+				opencv_imgproc.INTER_LINEAR | opencv_imgproc.WARP_INVERSE_MAP, opencv_core.BORDER_CONSTANT, Scalar.all(0));
+		opencv_imgproc.warpAffine(matOnes, matMask, matTransform, mat8Base.size(),
+				opencv_imgproc.INTER_NEAREST | opencv_imgproc.WARP_INVERSE_MAP, opencv_core.BORDER_CONSTANT, Scalar.all(0));
+
+		byte[] base = toBytes(mat8Base);
+		byte[] warped = toBytes(matWarped);
+		byte[] mask = toBytes(matMask);
+		if (mat8Base != matBase)
+			mat8Base.release();
+		if (mat8Overlay != matOverlay)
+			mat8Overlay.release();
+		matWarped.release();
+		matMask.release();
+		matOnes.release();
+
+		var tiles = new Accumulator[nCols * nRows];
+		for (int i = 0; i < tiles.length; i++)
+			tiles[i] = new Accumulator();
+		int[][] rowHists = new int[nRows][];
+
+		// Each row of tiles is independent, so can be accumulated in parallel
+		IntStream.range(0, nRows).parallel().forEach(r -> {
+			int[] hist = new int[N_BINS * N_BINS];
+			int yEnd = Math.min(height, (r + 1) * tileSize);
+			for (int y = r * tileSize; y < yEnd; y++) {
+				int offset = y * width;
+				for (int x = 0; x < width; x++) {
+					int ind = offset + x;
+					if (mask[ind] == 0)
+						continue;
+					int a = base[ind] & 0xFF;
+					int b = warped[ind] & 0xFF;
+					tiles[r * nCols + x / tileSize].add(a, b);
+					hist[(a >> BIN_SHIFT) * N_BINS + (b >> BIN_SHIFT)]++;
+				}
+			}
+			rowHists[r] = hist;
+		});
+		int[] globalHist = new int[N_BINS * N_BINS];
+		for (int[] hist : rowHists) {
+			for (int i = 0; i < hist.length; i++)
+				globalHist[i] += hist[i];
+		}
+
+		var transform = TransformTools.fromRegionTransform(TransformTools.toAffineTransform(matTransform), downsample, 0, 0, 0, 0);
+		return new AlignmentQuality(transform, eccCorrelation, tileSize * downsample, nCols, nRows, tiles, globalHist);
+	}
+
+	private static Mat to8Bit(Mat mat) {
+		if (mat.depth() == opencv_core.CV_8U && mat.channels() == 1)
+			return mat;
+		Mat mat8 = new Mat();
+		opencv_core.normalize(mat, mat8, 0, 255, opencv_core.NORM_MINMAX, opencv_core.CV_8U, null);
+		return mat8;
+	}
+
+	private static byte[] toBytes(Mat mat) {
+		Mat matContinuous = mat.isContinuous() ? mat : mat.clone();
+		byte[] bytes = new byte[(int)matContinuous.total()];
+		matContinuous.data().get(bytes);
+		if (matContinuous != mat)
+			matContinuous.release();
+		return bytes;
+	}
+
+	/**
+	 * Get the transform (from base to overlay, at full resolution) for which these scores were computed.
+	 * @return
+	 */
+	public AffineTransform getTransform() {
+		return new AffineTransform(transform);
+	}
+
+	/**
+	 * Get the final correlation coefficient reported by ECC, if available.
+	 * @return the correlation coefficient, or NaN if ECC was not used
+	 */
+	public double getEccCorrelation() {
+		return eccCorrelation;
+	}
+
+	/**
+	 * Get the normalized cross-correlation across all overlapping pixels.
+	 * @return
+	 */
+	public double getNCC() {
+		return globalNCC;
+	}
+
+	/**
+	 * Get the mutual information (in bits) across all overlapping pixels.
+	 * @return
+	 */
+	public double getMutualInformation() {
+		return globalMI;
+	}
+
+	/**
+	 * Get the number of tile columns.
+	 * @return
+	 */
+	public int getNumColumns() {
+		return nCols;
+	}
+
+	/**
+	 * Get the number of tile rows.
+	 * @return
+	 */
+	public int getNumRows() {
+		return nRows;
+	}
+
+	/**
+	 * Get the normalized cross-correlation for a single tile.
+	 * @param col
+	 * @param row
+	 * @return the NCC, or NaN if the tile has too few overlapping pixels
+	 */
+	public double getNCC(int col, int row) {
+		return ncc[row * nCols + col];
+	}
+
+	/**
+	 * Get the mutual information (in bits) for a single tile.
+	 * This uses a coarser histogram than the global MI, so the values are lower and shouldn't be compared directly.
+	 * @param col
+	 * @param row
+	 * @return the MI, or NaN if the tile has too few overlapping pixels
+	 */
+	public double getMutualInformation(int col, int row) {
+		return mi[row * nCols + col];
+	}
+
+	/**
+	 * Get the bounds of a tile, in full-resolution base image coordinates.
+	 * @param col
+	 * @param row
+	 * @return
+	 */
+	public Rectangle2D getTileBounds(int col, int row) {
+		return new Rectangle2D.Double(col * tileSize, row * tileSize, tileSize, tileSize);
+	}
+
+	/**
+	 * Get a short, human-readable summary of the global scores.
+	 * @return
+	 */
+	public String getSummary() {
+		if (Double.isNaN(eccCorrelation))
+			return String.format("NCC: %.3f, MI: %.3f bits", globalNCC, globalMI);
+		return String.format("NCC: %.3f, MI: %.3f bits, ECC: %.3f", globalNCC, globalMI, eccCorrelation);
+	}
+
+	@Override
+	public String toString() {
+		return "AlignmentQuality [" + getSummary() + ", tiles=" + nCols + "x" + nRows + "]";
+	}
+
+
+	/**
+	 * Accumulate sums and a coarse joint histogram for computing NCC and MI for a tile.
+	 */
+	private static class Accumulator {
+
+		private long n;
+		private double sumA, sumB, sumAA, sumBB, sumAB;
+		private final int[] hist = new int[N_TILE_BINS * N_TILE_BINS];
+
+		void add(int a, int b) {
+			n++;
+			sumA += a;
+			sumB += b;
+			sumAA += a * a;
+			sumBB += b * b;
+			sumAB += a * b;
+			hist[(a >> TILE_BIN_SHIFT) * N_TILE_BINS + (b >> TILE_BIN_SHIFT)]++;
+		}
+
+		void add(Accumulator other) {
+			n += other.n;
+			sumA += other.sumA;
+			sumB += other.sumB;
+			sumAA += other.sumAA;
+			sumBB += other.sumBB;
+			sumAB += other.sumAB;
+			for (int i = 0; i < hist.length; i++)
+				hist[i] += other.hist[i];
+		}
+
+		double ncc() {
+			if (n < MIN_PIXELS)
+				return Double.NaN;
+			double cov = n * sumAB - sumA * sumB;
+			double varA = n * sumAA - sumA * sumA;
+			double varB = n * sumBB - sumB * sumB;
+			if (varA <= 0 || varB <= 0)
+				return 0;
+			return cov / Math.sqrt(varA * varB);
+		}
+
+		double mutualInformation() {
+			if (n < MIN_PIXELS_MI)
+				return Double.NaN;
+			return AlignmentQuality.mutualInformation(hist, N_TILE_BINS, n);
+		}
+
+	}
+
+	/**
+	 * Compute mutual information (in bits) from a joint histogram.
+	 * @param hist joint histogram, with {@code nBins} rows (first image) and columns (second image)
+	 * @param nBins number of bins per image
+	 * @param n total count in the histogram
+	 * @return
+	 */
+	static double mutualInformation(int[] hist, int nBins, long n) {
+		double[] counts = new double[hist.length];
+		for (int i = 0; i < hist.length; i++)
+			counts[i] = hist[i];
+		return mutualInformation(counts, nBins, n);
+	}
+
+	/**
+	 * Compute mutual information (in bits) from a joint histogram with (possibly fractional) counts.
+	 * @param hist joint histogram, with {@code nBins} rows (first image) and columns (second image)
+	 * @param nBins number of bins per image
+	 * @param n total count in the histogram
+	 * @return
+	 */
+	static double mutualInformation(double[] hist, int nBins, double n) {
+		if (n <= 0)
+			return Double.NaN;
+		double[] pA = new double[nBins];
+		double[] pB = new double[nBins];
+		for (int a = 0; a < nBins; a++) {
+			for (int b = 0; b < nBins; b++) {
+				double p = hist[a * nBins + b] / n;
+				pA[a] += p;
+				pB[b] += p;
+			}
+		}
+		double mi = 0;
+		for (int a = 0; a < nBins; a++) {
+			for (int b = 0; b < nBins; b++) {
+				double count = hist[a * nBins + b];
+				if (count <= 0)
+					continue;
+				double p = count / n;
+				mi += p * Math.log(p / (pA[a] * pB[b]));
+			}
+		}
+		return mi / Math.log(2);
+	}
+
+}
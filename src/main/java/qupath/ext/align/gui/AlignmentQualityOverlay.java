@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
+import qupath.lib.images.ImageData;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * Overlay showing per-tile alignment quality as a heatmap.
+ * <p>
+ * Tiles are colored according to their normalized cross-correlation, from red (poorly aligned)
+ * to green (well aligned). Tiles without enough overlap are not painted.
+ */
+public class AlignmentQualityOverlay extends AbstractOverlay {
+
+	private static final float HEATMAP_ALPHA = 0.4f;
+
+	private AlignmentQuality quality;
+
+	/**
+	 * Constructor.
+	 * @param viewer viewer to which the overlay should be added
+	 */
+	public AlignmentQualityOverlay(final QuPathViewer viewer) {
+		super(viewer.getOverlayOptions());
+	}
+
+	/**
+	 * Set the quality scores to display.
+	 * @param quality the quality scores, or null if nothing should be displayed
+	 */
+	public void setQuality(AlignmentQuality quality) {
+		this.quality = quality;
+	}
+
+	/**
+	 * Get the quality scores being displayed.
+	 * @return
+	 */
+	public AlignmentQuality getQuality() {
+		return quality;
+	}
+
+	@Override
+	public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor, ImageData<BufferedImage> imageData, boolean paintCompletely) {
+		var quality = this.quality;
+		if (quality == null)
+			return;
+
+		Graphics2D gCopy = (Graphics2D)g2d.create();
+		var composite = getAlphaComposite();
+		float alpha = HEATMAP_ALPHA * (composite == null ? 1f : composite.getAlpha());
+		gCopy.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha));
+		for (int r = 0; r < quality.getNumRows(); r++) {
+			for (int c = 0; c < quality.getNumColumns(); c++) {
+				double ncc = quality.getNCC(c, r);
+				if (Double.isNaN(ncc))
+					continue;
+				var bounds = quality.getTileBounds(c, r);
+				if (!bounds.intersects(imageRegion.getX(), imageRegion.getY(), imageRegion.getWidth(), imageRegion.getHeight()))
+					continue;
+				gCopy.setColor(getColor(ncc));
+				gCopy.fill(bounds);
+			}
+		}
+		gCopy.dispose();
+	}
+
+	/**
+	 * Map a correlation value to a color, from red (&le; 0) through yellow to green (1).
+	 */
+	private static Color getColor(double ncc) {
+		float v = (float)Math.max(0, Math.min(1, ncc));
+		// Hue from 0 (red) to 1/3 (green)
+		return Color.getHSBColor(v / 3f, 1f, 1f);
+	}
+
+}
@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.bytedeco.javacpp.indexer.IntIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+
+/**
+ * Rasterize annotations directly into a single-channel image at the registration resolution,
+ * for area-based alignment.
+ * <p>
+ * Polygons are filled with OpenCV (with sub-pixel vertex precision), so no tiles or intermediate
+ * {@code BufferedImage} are needed. The labels can optionally be converted into a signed distance map,
+ * which varies smoothly across annotation boundaries rather than changing in a single step;
+ * this gives ECC useful gradients further from the boundaries, so it generally converges in fewer iterations.
+ */
+class AnnotationRasterizer {
+
+	/**
+	 * Number of fractional bits used for vertex coordinates by fillPoly.
+	 */
+	private static final int SHIFT = 4;
+
+	/**
+	 * Default maximum absolute value of a signed distance map, in pixels at the registration resolution.
+	 * Clipping avoids distances far from any boundary dominating the registration.
+	 */
+	static final double DEFAULT_DISTANCE_CLIP = 32;
+
+	/**
+	 * Rasterize the area annotations on one plane.
+	 * Larger annotations are filled first, so that smaller annotations nested inside them remain visible.
+	 *
+	 * @param annotations the annotations; objects without an area ROI, or on a different plane, are ignored
+	 * @param labels labels for each classification; unclassified annotations use the label for {@link PathClass#NULL_CLASS}
+	 * @param width full-resolution image width
+	 * @param height full-resolution image height
+	 * @param downsample downsample at which to rasterize
+	 * @param plane z-slice and timepoint of the annotations to include
+	 * @return a CV_32F image with 0 for background and the annotation labels elsewhere
+	 */
+	static Mat rasterize(Collection<? extends PathObject> annotations, Map<PathClass, Integer> labels,
+			int width, int height, double downsample, ImagePlane plane) {
+		int w = Math.max(1, (int)Math.ceil(width / downsample));
+		int h = Math.max(1, (int)Math.ceil(height / downsample));
+		Mat mat = new Mat(h, w, opencv_core.CV_8UC1, Scalar.all(0));
+
+		List<PathObject> sorted = new ArrayList<>();
+		for (var annotation : annotations) {
+			var roi = annotation.getROI();
+			if (roi != null && roi.isArea() && roi.getZ() == plane.getZ() && roi.getT() == plane.getT())
+				sorted.add(annotation);
+		}
+		sorted.sort(Comparator.comparingDouble((PathObject p) -> p.getROI().getArea()).reversed());
+
+		double scale = (1 << SHIFT) / downsample;
+		var offset = new Point(0, 0);
+		for (var annotation : sorted) {
+			var pathClass = annotation.getPathClass();
+			Integer label = labels.get(pathClass == null ? PathClass.NULL_CLASS : pathClass);
+			if (label == null || label <= 0)
+				continue;
+			var scalar = Scalar.all(Math.min(label, 255));
+			var geometry = annotation.getROI().getGeometry();
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				Geometry part = geometry.getGeometryN(i);
+				if (!(part instanceof Polygon polygon))
+					continue;
+				// Interior rings are holes: fillPoly fills the region bounded by all contours
+				try (var contours = new MatVector()) {
+					contours.push_back(toContour(polygon.getExteriorRing(), scale));
+					for (int r = 0; r < polygon.getNumInteriorRing(); r++)
+						contours.push_back(toContour(polygon.getInteriorRingN(r), scale));
+					opencv_imgproc.fillPoly(mat, contours, scalar, opencv_imgproc.LINE_8, SHIFT, offset);
+				}
+			}
+		}
+		offset.close();
+
+		Mat matFloat = new Mat();
+		mat.convertTo(matFloat, opencv_core.CV_32F);
+		mat.release();
+		return matFloat;
+	}
+
+	private static Mat toContour(LineString ring, double scale) {
+		var coords = ring.getCoordinates();
+		Mat contour = new Mat(coords.length, 1, opencv_core.CV_32SC2);
+		try (IntIndexer idx = contour.createIndexer()) {
+			for (int i = 0; i < coords.length; i++) {
+				idx.put(i, 0, 0, (int)Math.round(coords[i].x * scale));
+				idx.put(i, 0, 1, (int)Math.round(coords[i].y * scale));
+			}
+		}
+		return contour;
+	}
+
+	/**
+	 * Convert a label image into a signed distance map for the union of all labelled regions.
+	 * Values are positive inside, negative outside and clipped to {@code [-clip, clip]}.
+	 * Differences between labels are not retained.
+	 *
+	 * @param labels label image (any depth), with 0 for background; this is not modified
+	 * @param clip maximum absolute distance, in pixels
+	 * @return a CV_32F signed distance map
+	 */
+	static Mat toSignedDistance(Mat labels, double clip) {
+		Mat binary = new Mat();
+		opencv_imgproc.threshold(labels, binary, 0, 255, opencv_imgproc.THRESH_BINARY);
+		Mat inside = new Mat();
+		binary.convertTo(inside, opencv_core.CV_8U);
+		binary.release();
+		Mat outside = new Mat();
+		opencv_core.bitwise_not(inside, outside);
+
+		Mat distInside = new Mat();
+		Mat distOutside = new Mat();
+		opencv_imgproc.distanceTransform(inside, distInside, opencv_imgproc.DIST_L2, opencv_imgproc.DIST_MASK_PRECISE);
+		opencv_imgproc.distanceTransform(outside, distOutside, opencv_imgproc.DIST_L2, opencv_imgproc.DIST_MASK_PRECISE);
+		inside.release();
+		outside.release();
+
+		// Clip both distances before combining, so the result is in [-clip, clip]
+		opencv_imgproc.threshold(distInside, distInside, clip, clip, opencv_imgproc.THRESH_TRUNC);
+		opencv_imgproc.threshold(distOutside, distOutside, clip, clip, opencv_imgproc.THRESH_TRUNC);
+		Mat result = new Mat();
+		opencv_core.subtract(distInside, distOutside, result);
+		distInside.release();
+		distOutside.release();
+		return result;
+	}
+
+}
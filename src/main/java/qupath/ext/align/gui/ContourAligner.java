@@ -0,0 +1,344 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.align.gui.ImageAlignmentPane.RegistrationType;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+
+/**
+ * Align area annotations using only their outlines, without rasterizing anything.
+ * <p>
+ * Annotation boundaries are resampled at a regular spacing, chosen so that the number of points is bounded
+ * regardless of the image size. The translation is first corrected by matching the centroids of annotations with the
+ * same classification, then refined by iterative closest point (ICP): each base point is paired with the nearest
+ * overlay point with the same classification (found with a k-d tree), distant pairs are discarded as outliers, and the
+ * transform is re-estimated by least squares.
+ */
+class ContourAligner {
+
+	private static final Logger logger = LoggerFactory.getLogger(ContourAligner.class);
+
+	/**
+	 * Maximum number of boundary points sampled from each image.
+	 */
+	private static final int MAX_POINTS = 5000;
+
+	private static final int MAX_ITERATIONS = 100;
+
+	/**
+	 * Pairs further apart than this multiple of the median distance are treated as outliers.
+	 */
+	private static final double OUTLIER_FACTOR = 3.0;
+
+	private final RegistrationType registrationType;
+
+	private int iterations;
+	private double rmsError = Double.NaN;
+	private double lastChange = Double.NaN;
+	private boolean converged;
+
+	/**
+	 * Constructor.
+	 * @param registrationType type of transform to estimate
+	 */
+	ContourAligner(RegistrationType registrationType) {
+		this.registrationType = registrationType;
+	}
+
+	/**
+	 * Align annotations in two images.
+	 * @param annotationsBase annotations in the base image
+	 * @param annotationsOverlay annotations in the overlay image
+	 * @param initial initial transform from base to overlay coordinates
+	 * @param plane z-slice and timepoint of the annotations to use; the overlay uses the same plane
+	 * @return the transform from base to overlay coordinates, or null if the annotations could not be aligned
+	 */
+	AffineTransform align(Collection<? extends PathObject> annotationsBase, Collection<? extends PathObject> annotationsOverlay,
+			AffineTransform initial, ImagePlane plane) {
+		iterations = 0;
+		rmsError = Double.NaN;
+		lastChange = Double.NaN;
+		converged = false;
+
+		double spacing = Math.max(getSpacing(annotationsBase, plane), getSpacing(annotationsOverlay, plane));
+		var contoursBase = sampleContours(annotationsBase, plane, spacing);
+		var contoursOverlay = sampleContours(annotationsOverlay, plane, spacing);
+		contoursBase.keySet().retainAll(contoursOverlay.keySet());
+		if (contoursBase.isEmpty()) {
+			logger.warn("No area annotations with matching classifications found");
+			return null;
+		}
+
+		Map<PathClass, KdTree2D> trees = new LinkedHashMap<>();
+		double originX = 0, originY = 0;
+		int nBase = 0;
+		for (var entry : contoursBase.entrySet()) {
+			var overlay = contoursOverlay.get(entry.getKey());
+			trees.put(entry.getKey(), new KdTree2D(overlay.xy, overlay.n));
+			var base = entry.getValue();
+			for (int i = 0; i < base.n; i++) {
+				originX += base.xy[i*2];
+				originY += base.xy[i*2+1];
+			}
+			nBase += base.n;
+		}
+		originX /= nBase;
+		originY /= nBase;
+
+		var transform = matchCentroids(annotationsBase, annotationsOverlay, plane, initial);
+		double[] pBase = new double[nBase * 2];
+		double[] pTransformed = new double[nBase * 2];
+		double[] pNearest = new double[nBase * 2];
+		double[] dist2 = new double[nBase];
+		double[] nearest = new double[2];
+		double tolerance = spacing * 0.01;
+		int k = 0;
+		for (var base : contoursBase.values()) {
+			System.arraycopy(base.xy, 0, pBase, k * 2, base.n * 2);
+			k += base.n;
+		}
+
+		while (iterations < MAX_ITERATIONS) {
+			iterations++;
+			transform.transform(pBase, 0, pTransformed, 0, nBase);
+			k = 0;
+			for (var entry : contoursBase.entrySet()) {
+				var tree = trees.get(entry.getKey());
+				var overlay = contoursOverlay.get(entry.getKey());
+				for (int i = 0; i < entry.getValue().n; i++) {
+					tree.nearest(pTransformed[k*2], pTransformed[k*2+1], nearest);
+					int ind = (int)nearest[0];
+					pNearest[k*2] = overlay.xy[ind*2];
+					pNearest[k*2+1] = overlay.xy[ind*2+1];
+					dist2[k] = nearest[1];
+					k++;
+				}
+			}
+			double threshold = Math.max(OUTLIER_FACTOR * OUTLIER_FACTOR * median(dist2), spacing * spacing);
+			var lsq = new AffineLeastSquares(originX, originY);
+			double sumDist2 = 0;
+			for (int i = 0; i < nBase; i++) {
+				if (dist2[i] <= threshold) {
+					lsq.add(pBase[i*2], pBase[i*2+1], pNearest[i*2], pNearest[i*2+1], 1.0);
+					sumDist2 += dist2[i];
+				}
+			}
+			rmsError = Math.sqrt(sumDist2 / Math.max(1, lsq.size()));
+			var next = lsq.solve(registrationType);
+			if (next == null) {
+				logger.warn("Unable to estimate transform from {} contour points", lsq.size());
+				return null;
+			}
+			lastChange = PointSetAligner.maxDisplacement(transform, next, pBase, nBase);
+			transform = next;
+			if (lastChange < tolerance) {
+				converged = true;
+				break;
+			}
+		}
+		logger.debug("Contour alignment: {} points, {} iterations, RMS error {}, spacing {}", nBase, iterations, rmsError, spacing);
+		return transform;
+	}
+
+	/**
+	 * Get the number of ICP iterations used in the last alignment.
+	 * @return
+	 */
+	int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Query whether the last alignment converged before the maximum number of iterations.
+	 * @return
+	 */
+	boolean isConverged() {
+		return converged;
+	}
+
+	/**
+	 * Get the maximum displacement of any base point in the final iteration of the last alignment, in pixels.
+	 * @return
+	 */
+	double getLastChange() {
+		return lastChange;
+	}
+
+	/**
+	 * Get the root-mean-square distance between inlier point pairs in the final iteration of the last alignment, in pixels.
+	 * @return
+	 */
+	double getRMSError() {
+		return rmsError;
+	}
+
+	/**
+	 * Adjust the translation of the initial transform so that the area-weighted centroids of annotations with
+	 * the same classification coincide, on average.
+	 */
+	private static AffineTransform matchCentroids(Collection<? extends PathObject> annotationsBase, Collection<? extends PathObject> annotationsOverlay,
+			ImagePlane plane, AffineTransform initial) {
+		var centroidsBase = computeCentroids(annotationsBase, plane);
+		var centroidsOverlay = computeCentroids(annotationsOverlay, plane);
+		double dx = 0, dy = 0, sumWeights = 0;
+		double[] p = new double[2];
+		for (var entry : centroidsBase.entrySet()) {
+			var other = centroidsOverlay.get(entry.getKey());
+			if (other == null)
+				continue;
+			var c = entry.getValue();
+			initial.transform(c, 0, p, 0, 1);
+			double weight = Math.min(c[2], other[2]);
+			dx += (other[0] - p[0]) * weight;
+			dy += (other[1] - p[1]) * weight;
+			sumWeights += weight;
+		}
+		var transform = new AffineTransform(initial);
+		if (sumWeights > 0)
+			transform.preConcatenate(AffineTransform.getTranslateInstance(dx / sumWeights, dy / sumWeights));
+		return transform;
+	}
+
+	/**
+	 * Compute the area-weighted centroid (x, y, area) of the annotations for each classification.
+	 */
+	private static Map<PathClass, double[]> computeCentroids(Collection<? extends PathObject> annotations, ImagePlane plane) {
+		Map<PathClass, double[]> centroids = new LinkedHashMap<>();
+		for (var annotation : annotations) {
+			var roi = annotation.getROI();
+			if (!isIncluded(annotation, plane))
+				continue;
+			double area = roi.getArea();
+			var c = centroids.computeIfAbsent(getPathClass(annotation), p -> new double[3]);
+			c[0] += roi.getCentroidX() * area;
+			c[1] += roi.getCentroidY() * area;
+			c[2] += area;
+		}
+		for (var c : centroids.values()) {
+			if (c[2] > 0) {
+				c[0] /= c[2];
+				c[1] /= c[2];
+			}
+		}
+		return centroids;
+	}
+
+	/**
+	 * Choose the spacing between sampled points, so that there are at most {@link #MAX_POINTS} points.
+	 */
+	private static double getSpacing(Collection<? extends PathObject> annotations, ImagePlane plane) {
+		double perimeter = 0;
+		for (var annotation : annotations) {
+			if (isIncluded(annotation, plane))
+				perimeter += annotation.getROI().getGeometry().getLength();
+		}
+		return Math.max(1.0, perimeter / MAX_POINTS);
+	}
+
+	/**
+	 * Sample points along the boundaries (including holes) of the annotations for each classification.
+	 */
+	private static Map<PathClass, Points> sampleContours(Collection<? extends PathObject> annotations, ImagePlane plane, double spacing) {
+		Map<PathClass, Points> contours = new LinkedHashMap<>();
+		for (var annotation : annotations) {
+			if (!isIncluded(annotation, plane))
+				continue;
+			var points = contours.computeIfAbsent(getPathClass(annotation), p -> new Points());
+			var geometry = annotation.getROI().getGeometry();
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				if (!(geometry.getGeometryN(i) instanceof Polygon polygon))
+					continue;
+				sampleRing(polygon.getExteriorRing(), spacing, points);
+				for (int r = 0; r < polygon.getNumInteriorRing(); r++)
+					sampleRing(polygon.getInteriorRingN(r), spacing, points);
+			}
+		}
+		contours.values().removeIf(p -> p.n == 0);
+		return contours;
+	}
+
+	private static void sampleRing(LineString ring, double spacing, Points points) {
+		Coordinate[] coords = ring.getCoordinates();
+		double remaining = 0;
+		for (int i = 1; i < coords.length; i++) {
+			double x0 = coords[i-1].x, y0 = coords[i-1].y;
+			double dx = coords[i].x - x0, dy = coords[i].y - y0;
+			double length = Math.sqrt(dx*dx + dy*dy);
+			double pos = remaining;
+			while (pos < length) {
+				double f = pos / length;
+				points.add(x0 + dx * f, y0 + dy * f);
+				pos += spacing;
+			}
+			remaining = pos - length;
+		}
+	}
+
+	private static boolean isIncluded(PathObject annotation, ImagePlane plane) {
+		var roi = annotation.getROI();
+		return roi != null && roi.isArea() && roi.getZ() == plane.getZ() && roi.getT() == plane.getT();
+	}
+
+	private static PathClass getPathClass(PathObject annotation) {
+		var pathClass = annotation.getPathClass();
+		return pathClass == null ? PathClass.NULL_CLASS : pathClass;
+	}
+
+	private static double median(double[] values) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	/**
+	 * Growable array of interleaved point coordinates.
+	 */
+	private static class Points {
+
+		private double[] xy = new double[256];
+		private int n;
+
+		void add(double x, double y) {
+			if (n * 2 >= xy.length)
+				xy = Arrays.copyOf(xy, xy.length * 2);
+			xy[n*2] = x;
+			xy[n*2+1] = y;
+			n++;
+		}
+
+	}
+
+}
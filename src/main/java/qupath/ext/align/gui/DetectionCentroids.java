@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.util.Arrays;
+
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+
+/**
+ * Centroids of all detections in an image, stored compactly in primitive arrays.
+ * <p>
+ * This allows detections to be used for alignment without keeping the detection objects themselves,
+ * which can take a lot of memory for images with millions of cells.
+ */
+class DetectionCentroids {
+
+	private final double[] xy;
+	private final int[] z;
+	private final int[] t;
+	private final int n;
+
+	private DetectionCentroids(double[] xy, int[] z, int[] t, int n) {
+		this.xy = xy;
+		this.z = z;
+		this.t = t;
+		this.n = n;
+	}
+
+	/**
+	 * Extract the centroids of all detections (including cells and tiles) in a hierarchy.
+	 * @param hierarchy
+	 * @return
+	 */
+	static DetectionCentroids fromHierarchy(PathObjectHierarchy hierarchy) {
+		var detections = hierarchy.getDetectionObjects();
+		int n = detections.size();
+		double[] xy = new double[n * 2];
+		int[] z = new int[n];
+		int[] t = new int[n];
+		int i = 0;
+		for (var detection : detections) {
+			var roi = detection.getROI();
+			if (roi == null)
+				continue;
+			xy[i*2] = roi.getCentroidX();
+			xy[i*2+1] = roi.getCentroidY();
+			z[i] = roi.getZ();
+			t[i] = roi.getT();
+			i++;
+		}
+		return new DetectionCentroids(xy, z, t, i);
+	}
+
+	/**
+	 * Get the total number of centroids, on all planes.
+	 * @return
+	 */
+	int size() {
+		return n;
+	}
+
+	/**
+	 * Get the centroids on one plane.
+	 * @param plane
+	 * @return interleaved coordinates (x0, y0, x1, y1, ...), with length twice the number of centroids on the plane
+	 */
+	double[] getCoordinates(ImagePlane plane) {
+		double[] result = new double[n * 2];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (z[i] == plane.getZ() && t[i] == plane.getT()) {
+				result[count*2] = xy[i*2];
+				result[count*2+1] = xy[i*2+1];
+				count++;
+			}
+		}
+		return count == n ? result : Arrays.copyOf(result, count * 2);
+	}
+
+	@Override
+	public String toString() {
+		return "DetectionCentroids [n=" + n + "]";
+	}
+
+}
@@ -0,0 +1,358 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.ServerTools;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Virtual image server that combines the channels of a base image and any number of aligned overlays.
+ * <p>
+ * Nothing is written to disk: each tile is created on request by reading the corresponding regions of all images
+ * concurrently, and resampling the overlays through their transforms with bilinear interpolation.
+ * Fused tiles, and tiles read from the images themselves, are stored in QuPath's shared (bounded) tile cache.
+ * When tiles are accessed sequentially (e.g. while panning or processing an image tile by tile), the next tiles
+ * along the direction of access are prefetched in the background.
+ */
+class FusedImageServer extends AbstractTileableImageServer {
+
+	private static final Logger logger = LoggerFactory.getLogger(FusedImageServer.class);
+
+	/**
+	 * Threads used to read regions from each image.
+	 * These tasks never wait for other tasks, so they can't deadlock when tiles are requested from many threads.
+	 */
+	private static final ExecutorService fetchPool = Executors.newFixedThreadPool(
+			Math.max(2, Runtime.getRuntime().availableProcessors()),
+			ThreadTools.createThreadFactory("image-alignment-fusion-", true));
+
+	/**
+	 * Maximum number of queued prefetch requests; when exceeded, the oldest requests are dropped
+	 * since they are least likely to still be useful.
+	 */
+	private static final int MAX_PREFETCH = 16;
+
+	private static final ThreadPoolExecutor prefetchPool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<>(MAX_PREFETCH), ThreadTools.createThreadFactory("image-alignment-prefetch-", true),
+			(r, executor) -> {
+				if (executor.isShutdown())
+					return;
+				if (executor.getQueue().poll() instanceof PrefetchTask dropped)
+					dropped.server.pending.remove(dropped.request);
+				executor.execute(r);
+			});
+
+	private final List<Source> sources;
+	private final ImageServerMetadata metadata;
+	private final int dataType;
+	private final String id = UUID.randomUUID().toString();
+
+	private final Set<RegionRequest> pending = ConcurrentHashMap.newKeySet();
+	private volatile RegionRequest lastRequest;
+
+	/**
+	 * An image providing channels, with the transform from base to image pixel coordinates (or null for the base image).
+	 */
+	private record Source(ImageServer<BufferedImage> server, AffineTransform transform) {}
+
+	private record PrefetchTask(FusedImageServer server, RegionRequest request) implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				server.readRegionWithoutPrefetch(request);
+			} catch (IOException e) {
+				logger.debug("Unable to prefetch {}: {}", request, e.getLocalizedMessage());
+			} finally {
+				server.pending.remove(request);
+			}
+		}
+
+	}
+
+	private FusedImageServer(List<Source> sources) {
+		this.sources = List.copyOf(sources);
+		var base = sources.get(0).server;
+		var pixelType = base.getPixelType();
+		this.dataType = getDataType(pixelType);
+		List<ImageChannel> channels = new ArrayList<>(base.getMetadata().getChannels());
+		for (var source : sources.subList(1, sources.size())) {
+			if (source.server.getPixelType() != pixelType)
+				throw new IllegalArgumentException("All images must have the same pixel type, but found " + pixelType + " and " + source.server.getPixelType());
+			String name = ServerTools.getDisplayableImageName(source.server);
+			for (var channel : source.server.getMetadata().getChannels())
+				channels.add(ImageChannel.getInstance(channel.getName() + " (" + name + ")", channel.getColor()));
+		}
+		this.metadata = new ImageServerMetadata.Builder(base.getMetadata())
+				.name("Fused " + base.getMetadata().getName())
+				.rgb(false)
+				.pixelType(pixelType)
+				.channels(channels)
+				.build();
+	}
+
+	private static int getDataType(PixelType pixelType) {
+		switch (pixelType) {
+		case UINT8:
+			return DataBuffer.TYPE_BYTE;
+		case UINT16:
+			return DataBuffer.TYPE_USHORT;
+		case INT16:
+			return DataBuffer.TYPE_SHORT;
+		case INT32:
+			return DataBuffer.TYPE_INT;
+		case FLOAT32:
+			return DataBuffer.TYPE_FLOAT;
+		case FLOAT64:
+			return DataBuffer.TYPE_DOUBLE;
+		default:
+			throw new IllegalArgumentException("Unsupported pixel type " + pixelType);
+		}
+	}
+
+	@Override
+	public Collection<URI> getURIs() {
+		Set<URI> uris = new LinkedHashSet<>();
+		for (var source : sources)
+			uris.addAll(source.server.getURIs());
+		return uris;
+	}
+
+	@Override
+	public String getServerType() {
+		return "Fused image server";
+	}
+
+	@Override
+	public ImageServerMetadata getOriginalMetadata() {
+		return metadata;
+	}
+
+	@Override
+	protected ServerBuilder<BufferedImage> createServerBuilder() {
+		// Transforms aren't stored with the server, so it can't be recreated from a project
+		return null;
+	}
+
+	@Override
+	protected String createID() {
+		return getClass().getName() + ": " + sources + " " + id;
+	}
+
+	@Override
+	public BufferedImage readRegion(RegionRequest request) throws IOException {
+		prefetchNext(request);
+		return super.readRegion(request);
+	}
+
+	private BufferedImage readRegionWithoutPrefetch(RegionRequest request) throws IOException {
+		return super.readRegion(request);
+	}
+
+	/**
+	 * If the request is adjacent to the last one, queue the tiles beyond it in the same direction.
+	 */
+	private void prefetchNext(RegionRequest request) {
+		var last = lastRequest;
+		lastRequest = request;
+		if (last == null || last.getDownsample() != request.getDownsample() ||
+				last.getZ() != request.getZ() || last.getT() != request.getT())
+			return;
+		int dx = request.getX() - last.getX();
+		int dy = request.getY() - last.getY();
+		if ((dx == 0 && dy == 0) || Math.abs(dx) > last.getWidth() || Math.abs(dy) > last.getHeight())
+			return;
+		int x = request.getX() + Integer.signum(dx) * request.getWidth();
+		int y = request.getY() + Integer.signum(dy) * request.getHeight();
+		int x2 = Math.min(getWidth(), x + request.getWidth());
+		int y2 = Math.min(getHeight(), y + request.getHeight());
+		x = Math.max(0, x);
+		y = Math.max(0, y);
+		if (x2 <= x || y2 <= y)
+			return;
+		var next = RegionRequest.createInstance(getPath(), request.getDownsample(), x, y, x2 - x, y2 - y, request.getZ(), request.getT());
+		for (var tile : getTileRequestManager().getTileRequests(next)) {
+			var tileRequest = tile.getRegionRequest();
+			if (pending.add(tileRequest))
+				prefetchPool.execute(new PrefetchTask(this, tileRequest));
+		}
+	}
+
+	@Override
+	protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+		var request = tileRequest.getRegionRequest();
+		int width = tileRequest.getTileWidth();
+		int height = tileRequest.getTileHeight();
+		int nChannels = nChannels();
+		WritableRaster raster = Raster.createWritableRaster(new BandedSampleModel(dataType, width, height, nChannels), null);
+
+		// Read all images concurrently, each writing to its own bands
+		List<Callable<Void>> tasks = new ArrayList<>();
+		int band = 0;
+		for (var source : sources) {
+			int firstBand = band;
+			tasks.add(() -> {
+				if (source.transform == null)
+					copyBase(source.server, request, raster, firstBand);
+				else
+					resampleOverlay(source.server, source.transform, request, raster, firstBand);
+				return null;
+			});
+			band += source.server.nChannels();
+		}
+		try {
+			for (var future : fetchPool.invokeAll(tasks))
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Tile request interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException("Error reading tile", e.getCause());
+		}
+		var colorModel = ColorModelFactory.createColorModel(getPixelType(), getMetadata().getChannels());
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	private static void copyBase(ImageServer<BufferedImage> server, RegionRequest request, WritableRaster raster, int firstBand) throws IOException {
+		var rasterBase = server.readRegion(request.updatePath(server.getPath())).getRaster();
+		int w = Math.min(raster.getWidth(), rasterBase.getWidth());
+		int h = Math.min(raster.getHeight(), rasterBase.getHeight());
+		double[] samples = null;
+		for (int b = 0; b < server.nChannels(); b++) {
+			samples = rasterBase.getSamples(0, 0, w, h, b, samples);
+			raster.setSamples(0, 0, w, h, firstBand + b, samples);
+		}
+	}
+
+	private static void resampleOverlay(ImageServer<BufferedImage> server, AffineTransform transform, RegionRequest request,
+			WritableRaster raster, int firstBand) throws IOException {
+		var requestSource = WarpedLabelServer.getSourceRequest(request, transform, server);
+		if (requestSource == null)
+			return;
+		var rasterSource = server.readRegion(requestSource).getRaster();
+		double downsample = request.getDownsample();
+		int sw = rasterSource.getWidth();
+		int sh = rasterSource.getHeight();
+		int nBands = server.nChannels();
+		double dxCol = transform.getScaleX();
+		double dyCol = transform.getShearY();
+		double[] p = new double[2];
+		for (int y = 0; y < raster.getHeight(); y++) {
+			p[0] = request.getMinX() + 0.5 * downsample;
+			p[1] = request.getMinY() + (y + 0.5) * downsample;
+			transform.transform(p, 0, p, 0, 1);
+			// Position in source region pixels, relative to pixel centres
+			double px = (p[0] - requestSource.getX()) / downsample - 0.5;
+			double py = (p[1] - requestSource.getY()) / downsample - 0.5;
+			for (int x = 0; x < raster.getWidth(); x++, px += dxCol, py += dyCol) {
+				if (px < -0.5 || py < -0.5 || px > sw - 0.5 || py > sh - 0.5)
+					continue;
+				int x0 = Math.max(0, (int)Math.floor(px));
+				int y0 = Math.max(0, (int)Math.floor(py));
+				int x1 = Math.min(sw - 1, x0 + 1);
+				int y1 = Math.min(sh - 1, y0 + 1);
+				double fx = Math.min(1, Math.max(0, px - x0));
+				double fy = Math.min(1, Math.max(0, py - y0));
+				for (int b = 0; b < nBands; b++) {
+					double top = rasterSource.getSampleDouble(x0, y0, b) * (1 - fx) + rasterSource.getSampleDouble(x1, y0, b) * fx;
+					double bottom = rasterSource.getSampleDouble(x0, y1, b) * (1 - fx) + rasterSource.getSampleDouble(x1, y1, b) * fx;
+					raster.setSample(x, y, firstBand + b, top * (1 - fy) + bottom * fy);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builder to create a fused image server from a base image and aligned overlays.
+	 */
+	static class Builder {
+
+		private final List<Source> sources = new ArrayList<>();
+
+		/**
+		 * Constructor.
+		 * @param base the base image; this defines the size, resolution levels and pixel calibration of the fused image
+		 */
+		Builder(ImageServer<BufferedImage> base) {
+			sources.add(new Source(base, null));
+		}
+
+		/**
+		 * Add the channels of an overlay image.
+		 * @param server the overlay image
+		 * @param transform transform from base to overlay pixel coordinates
+		 * @return this builder
+		 */
+		Builder addOverlay(ImageServer<BufferedImage> server, AffineTransform transform) {
+			sources.add(new Source(server, new AffineTransform(transform)));
+			return this;
+		}
+
+		/**
+		 * Build the server.
+		 * @return
+		 * @throws IllegalArgumentException if the images have different pixel types, or the pixel type isn't supported
+		 */
+		FusedImageServer build() {
+			return new FusedImageServer(sources);
+		}
+
+	}
+
+}
@@ -0,0 +1,441 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.align.gui.SectionChain.PairwiseResult;
+
+/**
+ * Find consistent transforms from a reference section to every section, given (possibly redundant) pairwise registrations.
+ * <p>
+ * Each section {@code i} has an unknown affine transform {@code A_i} from the reference.
+ * A pairwise transform {@code T_ij} from section {@code i} to section {@code j} should satisfy {@code A_j = T_ij A_i},
+ * which is linear in the unknowns. This is enforced at a few control points spanning the reference image,
+ * so that the residuals are distances in pixels, and weighted by the quality score of each pair.
+ * The reference is fixed to the identity.
+ * <p>
+ * The normal equations are block-sparse (one 6x6 block per section, plus one per pair), and are solved with
+ * conjugate gradients using the diagonal blocks as a preconditioner. This scales to hundreds of sections.
+ */
+class GroupwiseSolver {
+
+	private static final Logger logger = LoggerFactory.getLogger(GroupwiseSolver.class);
+
+	/**
+	 * Minimum weight for a successful pair, so that pairs with low (or negative) correlation still contribute a little.
+	 */
+	private static final double MIN_WEIGHT = 0.05;
+
+	/**
+	 * Convergence threshold for the squared norm of the residual, relative to the squared norm of the right-hand side.
+	 */
+	private static final double TOLERANCE = 1e-16;
+
+	// Parameters of the identity transform, in the order (m00, m01, m02, m10, m11, m12)
+	private static final double[] IDENTITY = {1, 0, 0, 0, 1, 0};
+
+	private final double[] controlX;
+	private final double[] controlY;
+
+	/**
+	 * Constructor.
+	 * @param width width of the reference image, used to place control points
+	 * @param height height of the reference image, used to place control points
+	 */
+	GroupwiseSolver(double width, double height) {
+		// Corners and center
+		this.controlX = new double[] {0, width, width, 0, width/2};
+		this.controlY = new double[] {0, 0, height, height, height/2};
+	}
+
+	/**
+	 * Solve for the transform from the reference to every section.
+	 * @param nSections number of sections
+	 * @param pairs pairwise registration results; failed registrations are ignored
+	 * @param reference index of the reference section
+	 * @param initial initial estimates of the transforms from the reference (e.g. composed from adjacent pairs); may be null, or contain nulls
+	 * @return transforms from the reference section to each section; the reference has the identity transform,
+	 *         and sections that are not connected to the reference by successful pairs have null
+	 */
+	List<AffineTransform> solve(int nSections, List<PairwiseResult> pairs, int reference, List<AffineTransform> initial) {
+		List<PairwiseResult> successful = pairs.stream().filter(PairwiseResult::isSuccess).toList();
+
+		// Only sections that are connected to the reference can be solved
+		int[] variableIndex = new int[nSections];
+		Arrays.fill(variableIndex, -1);
+		int nVariables = 0;
+		for (int i : findConnected(nSections, successful, reference)) {
+			if (i != reference)
+				variableIndex[i] = nVariables++;
+		}
+
+		var system = new BlockSystem(nVariables);
+		for (var pair : successful)
+			addPair(system, pair, variableIndex);
+
+		double[] x = new double[nVariables * 6];
+		for (int i = 0; i < nSections; i++) {
+			int v = variableIndex[i];
+			if (v < 0)
+				continue;
+			var transform = initial == null ? null : initial.get(i);
+			System.arraycopy(transform == null ? IDENTITY : toParameters(transform), 0, x, v * 6, 6);
+		}
+		int iterations = system.solve(x);
+		logger.debug("Groupwise solution for {} sections and {} pairs found in {} iterations", nVariables + 1, successful.size(), iterations);
+
+		List<AffineTransform> transforms = new ArrayList<>();
+		for (int i = 0; i < nSections; i++) {
+			if (i == reference)
+				transforms.add(new AffineTransform());
+			else if (variableIndex[i] < 0)
+				transforms.add(null);
+			else
+				transforms.add(toTransform(x, variableIndex[i] * 6));
+		}
+		if (logger.isDebugEnabled()) {
+			for (var pair : successful) {
+				logger.debug("Section {} -> {}: residual {} pixels", pair.from(), pair.to(),
+						getResidual(pair, transforms.get(pair.from()), transforms.get(pair.to())));
+			}
+		}
+		return transforms;
+	}
+
+	/**
+	 * Get the root-mean-square distance between control points mapped by a pairwise transform, and by the transforms from the reference.
+	 * @param pair
+	 * @param fromReferenceFrom transform from the reference to section {@code pair.from()}
+	 * @param fromReferenceTo transform from the reference to section {@code pair.to()}
+	 * @return the residual in pixels, or NaN if any transform is missing
+	 */
+	double getResidual(PairwiseResult pair, AffineTransform fromReferenceFrom, AffineTransform fromReferenceTo) {
+		if (!pair.isSuccess() || fromReferenceFrom == null || fromReferenceTo == null)
+			return Double.NaN;
+		var composed = new AffineTransform(pair.transform());
+		composed.concatenate(fromReferenceFrom);
+		double[] p1 = new double[2];
+		double[] p2 = new double[2];
+		double sum = 0;
+		for (int k = 0; k < controlX.length; k++) {
+			double[] p = {controlX[k], controlY[k]};
+			composed.transform(p, 0, p1, 0, 1);
+			fromReferenceTo.transform(p, 0, p2, 0, 1);
+			sum += (p1[0] - p2[0]) * (p1[0] - p2[0]) + (p1[1] - p2[1]) * (p1[1] - p2[1]);
+		}
+		return Math.sqrt(sum / controlX.length);
+	}
+
+	/**
+	 * Add the residuals {@code A_j q - T_ij A_i q} for each control point {@code q}.
+	 */
+	private void addPair(BlockSystem system, PairwiseResult pair, int[] variableIndex) {
+		double score = pair.score();
+		double weight = Double.isFinite(score) ? Math.max(MIN_WEIGHT, Math.min(1.0, score)) : 1.0;
+		var t = pair.transform();
+		double t00 = t.getScaleX(), t01 = t.getShearX(), t02 = t.getTranslateX();
+		double t10 = t.getShearY(), t11 = t.getScaleY(), t12 = t.getTranslateY();
+		int vi = variableIndex[pair.from()];
+		int vj = variableIndex[pair.to()];
+		if (vi < 0 && vj < 0)
+			return;
+
+		double[] gi = new double[6];
+		double[] gj = new double[6];
+		for (int k = 0; k < controlX.length; k++) {
+			double qx = controlX[k], qy = controlY[k];
+			// x-component
+			fill(gj, qx, qy, 1, 0);
+			fill(gi, -t00 * qx, -t00 * qy, -t00, 0);
+			addTail(gi, -t01 * qx, -t01 * qy, -t01);
+			system.addRow(vi, gi, vj, gj, -t02, weight);
+			// y-component
+			fill(gj, qx, qy, 1, 3);
+			fill(gi, -t10 * qx, -t10 * qy, -t10, 0);
+			addTail(gi, -t11 * qx, -t11 * qy, -t11);
+			system.addRow(vi, gi, vj, gj, -t12, weight);
+		}
+	}
+
+	private static void fill(double[] g, double a, double b, double c, int offset) {
+		Arrays.fill(g, 0);
+		g[offset] = a;
+		g[offset+1] = b;
+		g[offset+2] = c;
+	}
+
+	private static void addTail(double[] g, double a, double b, double c) {
+		g[3] = a;
+		g[4] = b;
+		g[5] = c;
+	}
+
+	/**
+	 * Find all sections connected to the reference by successful pairs.
+	 */
+	private static List<Integer> findConnected(int nSections, List<PairwiseResult> pairs, int reference) {
+		List<List<Integer>> neighbours = new ArrayList<>();
+		for (int i = 0; i < nSections; i++)
+			neighbours.add(new ArrayList<>());
+		for (var pair : pairs) {
+			neighbours.get(pair.from()).add(pair.to());
+			neighbours.get(pair.to()).add(pair.from());
+		}
+		boolean[] visited = new boolean[nSections];
+		List<Integer> connected = new ArrayList<>();
+		var queue = new ArrayDeque<Integer>();
+		queue.add(reference);
+		visited[reference] = true;
+		while (!queue.isEmpty()) {
+			int i = queue.poll();
+			connected.add(i);
+			for (int j : neighbours.get(i)) {
+				if (!visited[j]) {
+					visited[j] = true;
+					queue.add(j);
+				}
+			}
+		}
+		if (connected.size() < nSections)
+			logger.warn("{}/{} sections are not connected to the reference by successful registrations", nSections - connected.size(), nSections);
+		return connected;
+	}
+
+	private static double[] toParameters(AffineTransform transform) {
+		return new double[] {
+				transform.getScaleX(), transform.getShearX(), transform.getTranslateX(),
+				transform.getShearY(), transform.getScaleY(), transform.getTranslateY()
+		};
+	}
+
+	private static AffineTransform toTransform(double[] x, int offset) {
+		return new AffineTransform(x[offset], x[offset+3], x[offset+1], x[offset+4], x[offset+2], x[offset+5]);
+	}
+
+
+	/**
+	 * Block-sparse symmetric normal equations {@code N x = b}, with 6x6 blocks.
+	 */
+	private static class BlockSystem {
+
+		private final int nBlocks;
+		private final List<Map<Integer, double[]>> rows = new ArrayList<>();
+		private final double[] rhs;
+
+		BlockSystem(int nBlocks) {
+			this.nBlocks = nBlocks;
+			for (int i = 0; i < nBlocks; i++)
+				rows.add(new HashMap<>());
+			this.rhs = new double[nBlocks * 6];
+		}
+
+		/**
+		 * Add a weighted residual {@code gi . x_i + gj . x_j + c}.
+		 * A block index &lt; 0 means that section is fixed to the identity, so it contributes to the constant instead.
+		 */
+		void addRow(int i, double[] gi, int j, double[] gj, double c, double weight) {
+			if (i < 0) {
+				c += dot(gi, IDENTITY);
+			}
+			if (j < 0) {
+				c += dot(gj, IDENTITY);
+			}
+			if (i >= 0) {
+				addOuter(i, i, gi, gi, weight);
+				addRhs(i, gi, -weight * c);
+			}
+			if (j >= 0) {
+				addOuter(j, j, gj, gj, weight);
+				addRhs(j, gj, -weight * c);
+			}
+			if (i >= 0 && j >= 0) {
+				addOuter(i, j, gi, gj, weight);
+				addOuter(j, i, gj, gi, weight);
+			}
+		}
+
+		private void addOuter(int row, int col, double[] a, double[] b, double weight) {
+			double[] block = rows.get(row).computeIfAbsent(col, k -> new double[36]);
+			for (int r = 0; r < 6; r++) {
+				double ar = a[r] * weight;
+				if (ar == 0)
+					continue;
+				for (int c = 0; c < 6; c++)
+					block[r * 6 + c] += ar * b[c];
+			}
+		}
+
+		private void addRhs(int row, double[] g, double value) {
+			for (int r = 0; r < 6; r++)
+				rhs[row * 6 + r] += g[r] * value;
+		}
+
+		private void multiply(double[] x, double[] result) {
+			Arrays.fill(result, 0);
+			for (int i = 0; i < nBlocks; i++) {
+				for (var entry : rows.get(i).entrySet()) {
+					double[] block = entry.getValue();
+					int j = entry.getKey();
+					for (int r = 0; r < 6; r++) {
+						double sum = 0;
+						for (int c = 0; c < 6; c++)
+							sum += block[r * 6 + c] * x[j * 6 + c];
+						result[i * 6 + r] += sum;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Solve using preconditioned conjugate gradients, starting from (and overwriting) x.
+		 * @return the number of iterations
+		 */
+		int solve(double[] x) {
+			int n = x.length;
+			if (n == 0)
+				return 0;
+			double[][] preconditioner = new double[nBlocks][];
+			for (int i = 0; i < nBlocks; i++)
+				preconditioner[i] = invert(rows.get(i).get(i));
+
+			double[] r = new double[n];
+			multiply(x, r);
+			for (int k = 0; k < n; k++)
+				r[k] = rhs[k] - r[k];
+			double[] z = new double[n];
+			applyPreconditioner(preconditioner, r, z);
+			double[] p = z.clone();
+			double[] np = new double[n];
+			double rz = dot(r, z);
+			double threshold = TOLERANCE * Math.max(dot(rhs, rhs), 1e-300);
+
+			int maxIterations = Math.max(100, n * 2);
+			int iter = 0;
+			while (iter < maxIterations && dot(r, r) > threshold) {
+				multiply(p, np);
+				double pnp = dot(p, np);
+				if (!(pnp > 0))
+					break;
+				double alpha = rz / pnp;
+				for (int k = 0; k < n; k++) {
+					x[k] += alpha * p[k];
+					r[k] -= alpha * np[k];
+				}
+				applyPreconditioner(preconditioner, r, z);
+				double rzNext = dot(r, z);
+				double beta = rzNext / rz;
+				rz = rzNext;
+				for (int k = 0; k < n; k++)
+					p[k] = z[k] + beta * p[k];
+				iter++;
+			}
+			return iter;
+		}
+
+		private static void applyPreconditioner(double[][] preconditioner, double[] r, double[] z) {
+			for (int i = 0; i < preconditioner.length; i++) {
+				double[] inv = preconditioner[i];
+				for (int row = 0; row < 6; row++) {
+					double sum = 0;
+					for (int c = 0; c < 6; c++)
+						sum += inv[row * 6 + c] * r[i * 6 + c];
+					z[i * 6 + row] = sum;
+				}
+			}
+		}
+
+		/**
+		 * Invert a 6x6 block using Gauss-Jordan elimination with partial pivoting.
+		 * If the block is singular, fall back to the inverse of its diagonal.
+		 */
+		private static double[] invert(double[] block) {
+			double[] a = block.clone();
+			double[] inv = new double[36];
+			for (int i = 0; i < 6; i++)
+				inv[i * 6 + i] = 1;
+			for (int col = 0; col < 6; col++) {
+				int pivot = col;
+				for (int row = col + 1; row < 6; row++) {
+					if (Math.abs(a[row * 6 + col]) > Math.abs(a[pivot * 6 + col]))
+						pivot = row;
+				}
+				double value = a[pivot * 6 + col];
+				if (Math.abs(value) < 1e-300)
+					return invertDiagonal(block);
+				swapRows(a, col, pivot);
+				swapRows(inv, col, pivot);
+				for (int c = 0; c < 6; c++) {
+					a[col * 6 + c] /= value;
+					inv[col * 6 + c] /= value;
+				}
+				for (int row = 0; row < 6; row++) {
+					double factor = a[row * 6 + col];
+					if (row == col || factor == 0)
+						continue;
+					for (int c = 0; c < 6; c++) {
+						a[row * 6 + c] -= factor * a[col * 6 + c];
+						inv[row * 6 + c] -= factor * inv[col * 6 + c];
+					}
+				}
+			}
+			return inv;
+		}
+
+		private static double[] invertDiagonal(double[] block) {
+			double[] inv = new double[36];
+			for (int i = 0; i < 6; i++) {
+				double d = block[i * 6 + i];
+				inv[i * 6 + i] = d == 0 ? 1 : 1.0 / d;
+			}
+			return inv;
+		}
+
+		private static void swapRows(double[] a, int r1, int r2) {
+			if (r1 == r2)
+				return;
+			for (int c = 0; c < 6; c++) {
+				double temp = a[r1 * 6 + c];
+				a[r1 * 6 + c] = a[r2 * 6 + c];
+				a[r2 * 6 + c] = temp;
+			}
+		}
+
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++)
+			sum += a[i] * b[i];
+		return sum;
+	}
+
+}
@@ -24,16 +24,23 @@ package qupath.ext.align.gui;
 import java.awt.Graphics2D;
 import java.awt.Transparency;
 import java.awt.color.ColorSpace;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ComponentColorModel;
 import java.awt.image.DataBuffer;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -44,6 +51,10 @@ import java.util.Set;
 import java.util.Iterator;
 import java.util.StringTokenizer;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.bytedeco.opencv.global.opencv_core;
@@ -57,12 +68,17 @@ import org.controlsfx.control.ListSelectionView;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javafx.animation.PauseTransition;
+import javafx.animation.Transition;
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.binding.BooleanBinding;
 import javafx.beans.binding.ObjectBinding;
+import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.FloatProperty;
 import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.StringProperty;
@@ -77,13 +93,17 @@ import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Dialog;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
+import javafx.scene.control.SelectionMode;
 import javafx.scene.control.Slider;
 import javafx.scene.control.SplitPane;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.scene.control.TitledPane;
@@ -91,6 +111,7 @@ import javafx.scene.control.Tooltip;
 import javafx.scene.image.Image;
 import javafx.scene.input.Clipboard;
 import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.KeyCode;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Priority;
@@ -100,8 +121,14 @@ import javafx.scene.transform.Affine;
 import javafx.scene.transform.MatrixType;
 import javafx.scene.transform.NonInvertibleTransformException;
 import javafx.scene.transform.TransformChangedEvent;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import javafx.stage.Window;
+import javafx.util.Duration;
 import qupath.fx.dialogs.Dialogs;
+import qupath.fx.dialogs.FileChoosers;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.geom.Point2;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.images.stores.ImageRenderer;
@@ -110,8 +137,6 @@ import qupath.lib.gui.tools.PaneTools;
 import qupath.lib.gui.viewer.QuPathViewer;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
-import qupath.lib.images.servers.LabeledImageServer;
-import qupath.lib.images.servers.PixelCalibration;
 import qupath.lib.images.servers.ServerTools;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.classes.PathClass;
@@ -119,9 +144,11 @@ import qupath.lib.objects.classes.PathClassFactory;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.ImagePlane;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.GeometryTools;
-import qupath.opencv.tools.OpenCVTools;
+import qupath.lib.roi.ROIs;
+import qupath.opencv.ml.pixel.PixelClassifierTools;
 import javafx.scene.image.ImageView;
 
 
@@ -147,9 +174,23 @@ public class ImageAlignmentPane {
 	private final StringProperty affineStringProperty;
 	private final StringProperty filterText = new SimpleStringProperty();
 	
-	private static enum RegistrationType {
+	static enum RegistrationType {
 		AFFINE, RIGID;
 
+		/**
+		 * Get the OpenCV motion type used by {@code findTransformECC} for this registration type.
+		 * @return
+		 */
+		int getMotionType() {
+			switch(this) {
+			case AFFINE:
+				return opencv_video.MOTION_AFFINE;
+			case RIGID:
+				return opencv_video.MOTION_EUCLIDEAN;
+			}
+			throw new IllegalArgumentException("Unknown registration type " + this);
+		}
+
 		@Override
 		public String toString() {
 			switch(this) {
@@ -164,18 +205,26 @@ public class ImageAlignmentPane {
 	
 	private final ObjectProperty<RegistrationType> registrationType = new SimpleObjectProperty<>(RegistrationType.AFFINE);
 	
-	private static enum AlignmentMethod {
-			INTENSITY, AREA_ANNOTATIONS, POINT_ANNOTATIONS;
+	static enum AlignmentMethod {
+			INTENSITY, MUTUAL_INFORMATION, AREA_ANNOTATIONS, AREA_CONTOURS, POINT_ANNOTATIONS, POINT_SETS, DETECTIONS;
 		
 		@Override
 		public String toString() {
 			switch(this) {
 			case INTENSITY:
 				return "Image intensity";
+			case MUTUAL_INFORMATION:
+				return "Image intensity (mutual information)";
 			case AREA_ANNOTATIONS:
 				return "Area annotations";
+			case AREA_CONTOURS:
+				return "Area annotations (contours)";
 			case POINT_ANNOTATIONS:
 				return "Point annotations";
+			case POINT_SETS:
+				return "Point annotations (unpaired)";
+			case DETECTIONS:
+				return "Detection centroids";
 			}
 			throw new IllegalArgumentException("Unknown alignment method " + this);
 		}
@@ -183,7 +232,57 @@ public class ImageAlignmentPane {
 	
 	private final ObjectProperty<AlignmentMethod> alignmentMethod = new SimpleObjectProperty<>(AlignmentMethod.INTENSITY);
 
+	private final ObjectProperty<RegistrationPreprocessor.Channel> preprocessingChannel = new SimpleObjectProperty<>(RegistrationPreprocessor.Channel.LUMINANCE);
+	private final DoubleProperty preprocessingSigma = new SimpleDoubleProperty(0);
+	private final BooleanProperty preprocessingNormalize = new SimpleBooleanProperty(false);
+	private final BooleanProperty areaDistanceTransform = new SimpleBooleanProperty(true);
+	private final ObjectProperty<PlaneAligner.Mode> planeMode = new SimpleObjectProperty<>(PlaneAligner.Mode.CURRENT_PLANE);
+	private final BooleanProperty chainGroupwise = new SimpleBooleanProperty(false);
+	private final BooleanProperty liveSnap = new SimpleBooleanProperty(false);
+	private final BooleanProperty searchOrientation = new SimpleBooleanProperty(false);
+
+	/**
+	 * Delay after the last drag event before a live snap is requested.
+	 */
+	private static final Duration LIVE_SNAP_DELAY = Duration.millis(250);
+
+	/**
+	 * Duration of the animation used to apply a live snap result.
+	 */
+	private static final Duration LIVE_SNAP_ANIMATION = Duration.millis(150);
+
+	private final BooleanProperty landmarkMode = new SimpleBooleanProperty(false);
+
+	/**
+	 * Landmark pairs for each overlay image, used in landmark mode.
+	 */
+	private final Map<ImageData<BufferedImage>, LandmarkPairs> mapLandmarks = new WeakHashMap<>();
+	private final LandmarkOverlay landmarkOverlay;
+	private final TableView<LandmarkPairs.Pair> tableLandmarks = new TableView<>();
+	private final StringProperty landmarkStatus = new SimpleStringProperty();
+
+	/**
+	 * Base point that has been placed in landmark mode, but does not yet have a corresponding overlay point.
+	 */
+	private Point2D pendingLandmark;
+
+	private final LiveSnapRefiner liveSnapRefiner = new LiveSnapRefiner();
+	private final PauseTransition liveSnapPause = new PauseTransition(LIVE_SNAP_DELAY);
+	private Transition liveSnapAnimation;
+
+	/**
+	 * Successful pairwise section registrations, keyed by the registration settings, image paths, stains and
+	 * initial transform, so that adding a section to a groupwise alignment only requires registering the new pairs.
+	 * This is cleared whenever the registration settings change.
+	 */
+	private final Map<String, SectionChain.PairwiseResult> pairwiseCache = new ConcurrentHashMap<>();
+
 	private final Map<ImageData<BufferedImage>, ImageServerOverlay> mapOverlays = new WeakHashMap<>();
+
+	/**
+	 * Detection centroids for overlay images read from the project, since their detections are removed to save memory.
+	 */
+	private final Map<ImageData<BufferedImage>, DetectionCentroids> mapDetectionCentroids = new WeakHashMap<>();
 	private final EventHandler<TransformChangedEvent> transformEventHandler = event -> affineTransformUpdated();
 	
 	private final RefineTransformMouseHandler mouseEventHandler = new RefineTransformMouseHandler();
@@ -194,6 +293,25 @@ public class ImageAlignmentPane {
 	
 	private BooleanBinding noOverlay = selectedOverlay.isNull();
 
+	/**
+	 * Tile size used when computing local quality scores, in pixels at the registration resolution.
+	 */
+	private static final int QUALITY_TILE_SIZE = 128;
+
+	/**
+	 * Text used to request that the pixel size for auto-alignment is chosen automatically.
+	 */
+	static final String AUTO_PIXEL_SIZE = "Auto";
+
+	private final StringProperty qualityStringProperty = new SimpleStringProperty();
+	private final BooleanProperty showQualityHeatmap = new SimpleBooleanProperty(false);
+	private final AlignmentQualityOverlay qualityOverlay;
+
+	private final ObservableList<AlignmentMetrics> metricsHistory = FXCollections.observableArrayList();
+	private final BooleanProperty trackConvergence = new SimpleBooleanProperty(false);
+
+	private final ExecutorService pool = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("image-alignment", true));
+
 
 	/**
 	 * Constructor.
@@ -206,6 +324,36 @@ public class ImageAlignmentPane {
 		
 		this.viewer.getView().addEventFilter(MouseEvent.ANY, mouseEventHandler);
 		filterText.set("");
+
+		liveSnapPause.setOnFinished(e -> requestLiveSnap());
+		liveSnap.addListener((v, o, n) -> {
+			if (!n)
+				cancelLiveSnap();
+		});
+		selectedImageData.addListener((v, o, n) -> cancelLiveSnap());
+
+		this.qualityOverlay = new AlignmentQualityOverlay(viewer);
+		this.landmarkOverlay = new LandmarkOverlay(viewer);
+		landmarkMode.addListener((v, o, n) -> {
+			pendingLandmark = null;
+			if (n)
+				viewer.getCustomOverlayLayers().add(landmarkOverlay);
+			else
+				viewer.getCustomOverlayLayers().remove(landmarkOverlay);
+			updateLandmarkDisplay();
+		});
+		registrationType.addListener((v, o, n) -> {
+			if (landmarkMode.get())
+				landmarksChanged();
+		});
+		for (var setting : List.of(alignmentMethod, registrationType, preprocessingChannel, preprocessingSigma, preprocessingNormalize))
+			setting.addListener((v, o, n) -> pairwiseCache.clear());
+		showQualityHeatmap.addListener((v, o, n) -> {
+			if (n)
+				viewer.getCustomOverlayLayers().add(qualityOverlay);
+			else
+				viewer.getCustomOverlayLayers().remove(qualityOverlay);
+		});
 		
 		// Create left-hand pane for list
 		CheckListView<ImageData<BufferedImage>> listImages = new CheckListView<>(images);
@@ -283,7 +431,85 @@ public class ImageAlignmentPane {
 		paneAlignment.add(tfRotationIncrement, col++, row);
 		paneAlignment.add(btnRotateLeft, col++, row);
 		paneAlignment.add(btnRotateRight, col++, row++);
+
+		CheckBox cbLiveSnap = new CheckBox("Live snap");
+		cbLiveSnap.selectedProperty().bindBidirectional(liveSnap);
+		cbLiveSnap.setTooltip(new Tooltip("When dragging pauses, refine the translation in the background using the region visible in the viewer.\n"
+				+ "This uses the current preprocessing settings and low-resolution copies of both images."));
+		paneAlignment.add(cbLiveSnap, 0, row, 2, 1);
+		Button btnOrientation = new Button("Find orientation");
+		btnOrientation.setMaxWidth(Double.MAX_VALUE);
+		btnOrientation.disableProperty().bind(noOverlay);
+		btnOrientation.setTooltip(new Tooltip("Find the rotation (and flip) that best matches the base image, using thumbnails of both images.\n"
+				+ "This is useful when sections were mounted rotated or flipped."));
+		btnOrientation.setOnAction(e -> findOrientation());
+		paneAlignment.add(btnOrientation, 2, row++, 2, 1);
 		TitledPane titledAlignment = new TitledPane("Interactive alignment", paneAlignment);
+
+		// Landmarks
+		CheckBox cbLandmarkMode = new CheckBox("Landmark mode");
+		cbLandmarkMode.selectedProperty().bindBidirectional(landmarkMode);
+		cbLandmarkMode.disableProperty().bind(noOverlay);
+		cbLandmarkMode.setTooltip(new Tooltip("Click a point in the base image, then the same point in the overlay, to add a landmark pair.\n"
+				+ "Drag existing points to move them. The transform is fitted to all pairs immediately."));
+		TableColumn<LandmarkPairs.Pair, String> colBase = new TableColumn<>("Base");
+		colBase.setCellValueFactory(c -> new SimpleStringProperty(
+				String.format("%.1f, %.1f", c.getValue().baseX(), c.getValue().baseY())));
+		TableColumn<LandmarkPairs.Pair, String> colOverlay = new TableColumn<>("Overlay");
+		colOverlay.setCellValueFactory(c -> new SimpleStringProperty(
+				String.format("%.1f, %.1f", c.getValue().overlayX(), c.getValue().overlayY())));
+		TableColumn<LandmarkPairs.Pair, String> colResidual = new TableColumn<>("Residual");
+		colResidual.setCellValueFactory(c -> {
+			var overlay = getSelectedOverlay();
+			return new SimpleStringProperty(overlay == null ? "" : String.format("%.2f", c.getValue().getResidual(overlay.getTransform())));
+		});
+		tableLandmarks.getColumns().add(colBase);
+		tableLandmarks.getColumns().add(colOverlay);
+		tableLandmarks.getColumns().add(colResidual);
+		tableLandmarks.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY_FLEX_LAST_COLUMN);
+		tableLandmarks.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+		tableLandmarks.setPrefHeight(150);
+		tableLandmarks.setPlaceholder(new Label("No landmarks"));
+		tableLandmarks.getSelectionModel().selectedItemProperty().addListener((v, o, n) -> {
+			landmarkOverlay.setSelected(n);
+			viewer.repaint();
+		});
+		tableLandmarks.setOnKeyPressed(e -> {
+			if (e.getCode() == KeyCode.DELETE || e.getCode() == KeyCode.BACK_SPACE)
+				deleteSelectedLandmarks();
+		});
+		Button btnDeleteLandmarks = new Button("Delete");
+		btnDeleteLandmarks.disableProperty().bind(tableLandmarks.getSelectionModel().selectedItemProperty().isNull());
+		btnDeleteLandmarks.setOnAction(e -> deleteSelectedLandmarks());
+		Button btnClearLandmarks = new Button("Clear");
+		btnClearLandmarks.disableProperty().bind(Bindings.isEmpty(tableLandmarks.getItems()).or(noOverlay));
+		btnClearLandmarks.setOnAction(e -> {
+			var landmarks = getSelectedLandmarks();
+			if (landmarks != null && Dialogs.showConfirmDialog("Landmarks", "Remove all " + landmarks.getPairs().size() + " landmark pairs?")) {
+				pendingLandmark = null;
+				landmarks.getPairs().clear();
+				landmarksChanged();
+			}
+		});
+		Label labelLandmarkStatus = new Label();
+		labelLandmarkStatus.textProperty().bind(landmarkStatus);
+		GridPane paneLandmarks = new GridPane();
+		row = 0;
+		paneLandmarks.add(cbLandmarkMode, 0, row++);
+		paneLandmarks.add(tableLandmarks, 0, row++);
+		paneLandmarks.add(labelLandmarkStatus, 0, row++);
+		paneLandmarks.add(PaneTools.createColumnGridControls(btnDeleteLandmarks, btnClearLandmarks), 0, row++);
+		PaneTools.setFillWidth(Boolean.TRUE, paneLandmarks.getChildren().toArray(Node[]::new));
+		PaneTools.setHGrowPriority(Priority.ALWAYS, paneLandmarks.getChildren().toArray(Node[]::new));
+		paneLandmarks.setVgap(5.0);
+		TitledPane titledLandmarks = new TitledPane("Landmarks", paneLandmarks);
+		titledLandmarks.setExpanded(false);
+		selectedImageData.addListener((v, o, n) -> {
+			pendingLandmark = null;
+			var landmarks = getSelectedLandmarks();
+			tableLandmarks.setItems(landmarks == null ? FXCollections.observableArrayList() : landmarks.getPairs());
+			updateLandmarkDisplay();
+		});
 		
 		// Auto-align
 		GridPane paneAutoAlign = new GridPane();
@@ -313,16 +539,79 @@ public class ImageAlignmentPane {
 		paneAutoAlign.add(comboAlign, 1, row++);
 		GridPane.setFillWidth(comboAlign, Boolean.TRUE);
 		
-		TextField tfRequestedPixelSizeMicrons = new TextField("20");
-		tfRequestedPixelSizeMicrons.setPrefColumnCount(6);
+		ComboBox<RegistrationPreprocessor.Channel> comboChannel = new ComboBox<>(
+				FXCollections.observableArrayList(RegistrationPreprocessor.Channel.values()));
+		comboChannel.setMaxWidth(Double.MAX_VALUE);
+		comboChannel.getSelectionModel().select(preprocessingChannel.get());
+		preprocessingChannel.bind(comboChannel.getSelectionModel().selectedItemProperty());
+		comboChannel.setTooltip(new Tooltip("Channel used for intensity-based alignment - stains use each image's color deconvolution stain vectors"));
+		Label labelChannel = new Label("Registration channel");
+		paneAutoAlign.add(labelChannel, 0, row);
+		paneAutoAlign.add(comboChannel, 1, row++);
+		GridPane.setFillWidth(comboChannel, Boolean.TRUE);
+
+		TextField tfSmoothing = new TextField("0");
+		tfSmoothing.setPrefColumnCount(6);
+		tfSmoothing.setTooltip(new Tooltip("Gaussian smoothing sigma applied before intensity-based alignment, in pixels at the registration resolution"));
+		tfSmoothing.textProperty().addListener((v, o, n) -> {
+			try {
+				preprocessingSigma.set(n.isBlank() ? 0 : Double.parseDouble(n));
+			} catch (NumberFormatException ignored) {}
+		});
+		Label labelSmoothing = new Label("Smoothing sigma");
+		labelSmoothing.setLabelFor(tfSmoothing);
+		paneAutoAlign.add(labelSmoothing, 0, row);
+		paneAutoAlign.add(tfSmoothing, 1, row++);
+
+		CheckBox cbNormalize = new CheckBox("Normalize contrast");
+		cbNormalize.selectedProperty().bindBidirectional(preprocessingNormalize);
+		cbNormalize.setTooltip(new Tooltip("Stretch the contrast of each image between its 1st and 99th percentiles before alignment"));
+		paneAutoAlign.add(cbNormalize, 0, row++, 2, 1);
+
+		CheckBox cbDistanceTransform = new CheckBox("Use distance transform");
+		cbDistanceTransform.selectedProperty().bindBidirectional(areaDistanceTransform);
+		cbDistanceTransform.disableProperty().bind(alignmentMethod.isNotEqualTo(AlignmentMethod.AREA_ANNOTATIONS));
+		cbDistanceTransform.setTooltip(new Tooltip("Align signed distance maps of the annotations rather than their labels (area annotations only).\n"
+				+ "This varies smoothly across annotation boundaries, which usually helps alignment converge."));
+		paneAutoAlign.add(cbDistanceTransform, 0, row++, 2, 1);
+
+		CheckBox cbSearchOrientation = new CheckBox("Search orientation first");
+		cbSearchOrientation.selectedProperty().bindBidirectional(searchOrientation);
+		cbSearchOrientation.disableProperty().bind(alignmentMethod.isNotEqualTo(AlignmentMethod.INTENSITY)
+				.and(alignmentMethod.isNotEqualTo(AlignmentMethod.MUTUAL_INFORMATION)));
+		cbSearchOrientation.setTooltip(new Tooltip("Test all 90 degree rotations & flips (with finer rotation steps) on thumbnails, "
+				+ "and start intensity-based alignment from the best one"));
+		paneAutoAlign.add(cbSearchOrientation, 0, row++, 2, 1);
+
+		ComboBox<String> comboRequestedPixelSizeMicrons = new ComboBox<>(
+				FXCollections.observableArrayList(AUTO_PIXEL_SIZE, "5", "10", "20", "50"));
+		comboRequestedPixelSizeMicrons.setEditable(true);
+		comboRequestedPixelSizeMicrons.setValue("20");
+		comboRequestedPixelSizeMicrons.setMaxWidth(Double.MAX_VALUE);
+		comboRequestedPixelSizeMicrons.setTooltip(new Tooltip("Pixel size for alignment in microns, or 'Auto' to choose the highest resolution pyramid level within the pixel budget"));
 		Label labelRequestedPixelSizeMicrons = new Label("Pixel size");
+		TextField tfMaxMegapixels = new TextField(Long.toString(RegistrationResolution.DEFAULT_MAX_PIXELS / 1_000_000));
+		tfMaxMegapixels.setPrefColumnCount(6);
+		tfMaxMegapixels.setTooltip(new Tooltip("Maximum number of pixels per image used for alignment, in millions - this is reduced automatically if memory is low"));
+		Label labelMaxMegapixels = new Label("Pixel budget (MP)");
+		labelMaxMegapixels.setLabelFor(tfMaxMegapixels);
 		Button btnAutoAlign = new Button("Estimate transform");
 		btnAutoAlign.setMaxWidth(Double.MAX_VALUE);
 		btnAutoAlign.disableProperty().bind(noOverlay);
 		btnAutoAlign.setOnAction(e -> {
-			double requestedPixelSizeMicrons = Double.parseDouble(tfRequestedPixelSizeMicrons.getText());
+			RegistrationResolution resolution;
+			try {
+				resolution = parseResolution(comboRequestedPixelSizeMicrons.getEditor().getText(), tfMaxMegapixels.getText());
+			} catch (IllegalArgumentException e2) {
+				Dialogs.showErrorMessage("Auto-alignment", e2.getLocalizedMessage());
+				return;
+			}
+			if (planeMode.get() != PlaneAligner.Mode.CURRENT_PLANE) {
+				alignPlanes(resolution, planeMode.get() == PlaneAligner.Mode.ALL_CHAINED);
+				return;
+			}
 			try {
-				autoAlign(requestedPixelSizeMicrons);
+				autoAlign(resolution);
 			} catch (IOException e2) {
 				Dialogs.showErrorMessage("Alignment error", "Error requesting image region: " + e2.getLocalizedMessage());
 				logger.error("Error in auto alignment", e2);
@@ -331,9 +620,65 @@ public class ImageAlignmentPane {
 //		var paramsAuto = new ParameterList()
 //				.addChoiceParameter("alignmentType", "Alignment type", alignmentType.get(), align);
 		paneAutoAlign.add(labelRequestedPixelSizeMicrons, 0, row);
-		paneAutoAlign.add(tfRequestedPixelSizeMicrons, 1, row++);
+		paneAutoAlign.add(comboRequestedPixelSizeMicrons, 1, row++);
+		paneAutoAlign.add(labelMaxMegapixels, 0, row);
+		paneAutoAlign.add(tfMaxMegapixels, 1, row++);
+
+		ComboBox<PlaneAligner.Mode> comboPlanes = new ComboBox<>(
+				FXCollections.observableArrayList(PlaneAligner.Mode.values()));
+		comboPlanes.setMaxWidth(Double.MAX_VALUE);
+		comboPlanes.getSelectionModel().select(planeMode.get());
+		planeMode.bind(comboPlanes.getSelectionModel().selectedItemProperty());
+		comboPlanes.setTooltip(new Tooltip("Align only the current z-slice & timepoint, or estimate separate transforms for all planes (chaining follows gradual drift)"));
+		Label labelPlanes = new Label("Planes");
+		paneAutoAlign.add(labelPlanes, 0, row);
+		paneAutoAlign.add(comboPlanes, 1, row++);
 		
 		paneAutoAlign.add(btnAutoAlign, 0, row++, 2, 1);
+
+		Button btnAlignChain = new Button("Align section chain");
+		btnAlignChain.setMaxWidth(Double.MAX_VALUE);
+		btnAlignChain.disableProperty().bind(Bindings.size(images).lessThan(2));
+		btnAlignChain.setTooltip(new Tooltip("Align serial sections by registering each image to its neighbour (ordered by name), "
+				+ "then composing the transforms to the base image"));
+		btnAlignChain.setOnAction(e -> {
+			try {
+				alignChain(parseResolution(comboRequestedPixelSizeMicrons.getEditor().getText(), tfMaxMegapixels.getText()));
+			} catch (IllegalArgumentException e2) {
+				Dialogs.showErrorMessage("Align section chain", e2.getLocalizedMessage());
+			}
+		});
+		paneAutoAlign.add(btnAlignChain, 0, row++, 2, 1);
+
+		CheckBox cbGroupwise = new CheckBox("Groupwise (include skip-one pairs)");
+		cbGroupwise.selectedProperty().bindBidirectional(chainGroupwise);
+		cbGroupwise.setTooltip(new Tooltip("Also register sections two apart, and solve for the transforms most consistent with all pairs.\n"
+				+ "This reduces drift along long chains. Pairwise results are cached, so adding a section only registers the new pairs."));
+		paneAutoAlign.add(cbGroupwise, 0, row++, 2, 1);
+
+		CheckBox cbShowQuality = new CheckBox("Show quality heatmap");
+		cbShowQuality.selectedProperty().bindBidirectional(showQualityHeatmap);
+		cbShowQuality.setTooltip(new Tooltip("Show the local alignment quality (normalized cross-correlation) after estimating the transform"));
+		paneAutoAlign.add(cbShowQuality, 0, row++, 2, 1);
+
+		TextField tfLocalPixelSizeMicrons = new TextField("2");
+		tfLocalPixelSizeMicrons.setPrefColumnCount(6);
+		Label labelLocalPixelSizeMicrons = new Label("Local pixel size");
+		labelLocalPixelSizeMicrons.setLabelFor(tfLocalPixelSizeMicrons);
+		Button btnRefineLocal = new Button("Refine locally");
+		btnRefineLocal.setMaxWidth(Double.MAX_VALUE);
+		btnRefineLocal.disableProperty().bind(noOverlay);
+		btnRefineLocal.setTooltip(new Tooltip("Refine the current transform by aligning overlapping tiles independently at the local pixel size"));
+		btnRefineLocal.setOnAction(e -> {
+			try {
+				refineLocally(Double.parseDouble(tfLocalPixelSizeMicrons.getText()));
+			} catch (NumberFormatException e2) {
+				Dialogs.showErrorMessage("Local refinement", "Unable to parse pixel size: " + tfLocalPixelSizeMicrons.getText());
+			}
+		});
+		paneAutoAlign.add(labelLocalPixelSizeMicrons, 0, row);
+		paneAutoAlign.add(tfLocalPixelSizeMicrons, 1, row++);
+		paneAutoAlign.add(btnRefineLocal, 0, row++, 2, 1);
 //		paneAutoAlign.add(btnAutoAlign, 0, 1, 3, 1);
 		paneAutoAlign.setVgap(5);
 		paneAutoAlign.setHgap(5);
@@ -348,6 +693,9 @@ public class ImageAlignmentPane {
 		row = 0;
 		paneTransform.add(new Label("Current affine transform being displayed"), 0, row++);
 		paneTransform.add(textArea, 0, row++, 2, 1);
+		Label labelQuality = new Label();
+		labelQuality.textProperty().bind(qualityStringProperty);
+		paneTransform.add(labelQuality, 0, row++, 2, 1);
 		Button btnUpdate = new Button("Update");
 		btnUpdate.setOnAction(e -> {
 			var overlay = getSelectedOverlay();
@@ -443,15 +791,12 @@ public class ImageAlignmentPane {
 			logger.info("Importing from "+imageDataBase.getServer().getPath());
 			//logger.info("Destination to "+selectedEntry.getImageName());
 
-			List<PathObject> newObjects = new ArrayList<>();
-			for (var pathObject : hierarchy.getAnnotationObjects() ) {
-				logger.info("Importing: "+pathObject.getName());
-				//Transform ROI (via conversion to Java AWT shape)
-				newObjects.add(overlay.transformObject(pathObject));
-
-				//otherHierarchy.addPathObject(pathObject);
-				//otherHierarchy.addPathObject(newObject);
-			}
+			// Drop or clip objects that fall outside the target image
+			var serverSelected = imageDataSelected.getServer();
+			var bounds = ROIs.createRectangleROI(0, 0, serverSelected.getWidth(), serverSelected.getHeight(), ImagePlane.getDefaultPlane()).getGeometry();
+			var annotations = hierarchy.getAnnotationObjects();
+			List<PathObject> newObjects = overlay.transformObjects(annotations, bounds);
+			logger.info("Propagating {} of {} annotations", newObjects.size(), annotations.size());
 			if (otherHierarchy != null) {
 				logger.info("Adding objects!");
 				otherHierarchy.addObjects(newObjects);
@@ -487,12 +832,67 @@ public class ImageAlignmentPane {
 		btnImport.setTooltip(new Tooltip("Propagate annotations from base image to selected"));
 		textArea.editableProperty().bind(noOverlay.not());
 		paneTransform.add(PaneTools.createColumnGridControls(btnUpdate, btnInvert, btnReset, btnCopy, btnImport), 0, row++);
+		Button btnImportTransforms = new Button("Import transforms");
+		btnImportTransforms.setTooltip(new Tooltip("Import transforms for many images from JSON, CSV, ITK or elastix files.\n"
+				+ "Transforms are matched to project images by ID or name, and stored with the project."));
+		btnImportTransforms.setOnAction(e -> importTransforms());
+		Button btnExportTransforms = new Button("Export transforms");
+		btnExportTransforms.setTooltip(new Tooltip("Export the transforms for all overlays, and any stored with the project, as JSON, CSV, ITK or elastix files"));
+		btnExportTransforms.setOnAction(e -> exportTransforms());
+		Button btnMeasure = new Button("Measure detections");
+		btnMeasure.disableProperty().bind(noOverlay);
+		btnMeasure.setTooltip(new Tooltip("Measure the intensities of the selected overlay inside all detections in the base image, "
+				+ "using the current transform"));
+		btnMeasure.setOnAction(e -> measureOverlayIntensities());
+		Button btnTransferLabels = new Button("Transfer labels");
+		btnTransferLabels.disableProperty().bind(noOverlay);
+		btnTransferLabels.setTooltip(new Tooltip("Warp labels from the selected overlay (either the image itself, or a project pixel classifier applied to it) "
+				+ "into the base image, and trace them as annotations"));
+		btnTransferLabels.setOnAction(e -> transferLabels());
+		Button btnFuse = new Button("Fuse channels");
+		btnFuse.disableProperty().bind(noOverlay);
+		btnFuse.setTooltip(new Tooltip("Open a virtual image combining the channels of the base image and all overlays, using the current transforms.\n"
+				+ "Nothing is written to disk, and the alignment window is closed."));
+		btnFuse.setOnAction(e -> openFusedImage(btnFuse.getScene().getWindow()));
+		paneTransform.add(PaneTools.createColumnGridControls(btnImportTransforms, btnExportTransforms, btnMeasure, btnTransferLabels, btnFuse), 0, row++);
 		PaneTools.setFillWidth(Boolean.TRUE, paneTransform.getChildren().toArray(Node[]::new));
 		PaneTools.setHGrowPriority(Priority.ALWAYS, paneTransform.getChildren().toArray(Node[]::new));
 		paneTransform.setVgap(5.0);
 		
 		TitledPane titledTransform = new TitledPane("Affine transform", paneTransform);
 
+		// Show metrics for the most recent alignment
+		TextArea textMetrics = new TextArea();
+		textMetrics.setEditable(false);
+		textMetrics.setPrefRowCount(8);
+		textMetrics.textProperty().bind(Bindings.createStringBinding(
+				() -> metricsHistory.isEmpty() ? "No alignment metrics available" : metricsHistory.get(metricsHistory.size()-1).getSummary(),
+				metricsHistory));
+		CheckBox cbTrackConvergence = new CheckBox("Track ECC convergence");
+		cbTrackConvergence.selectedProperty().bindBidirectional(trackConvergence);
+		cbTrackConvergence.setTooltip(new Tooltip("Record the iteration at which ECC converged and the final epsilon (this makes ECC slower)"));
+		Button btnExportJSON = new Button("Export JSON");
+		btnExportJSON.setOnAction(e -> exportMetrics(true));
+		Button btnExportCSV = new Button("Export CSV");
+		btnExportCSV.setOnAction(e -> exportMetrics(false));
+		Button btnClearMetrics = new Button("Clear");
+		btnClearMetrics.setOnAction(e -> metricsHistory.clear());
+		var noMetrics = Bindings.isEmpty(metricsHistory);
+		btnExportJSON.disableProperty().bind(noMetrics);
+		btnExportCSV.disableProperty().bind(noMetrics);
+		btnClearMetrics.disableProperty().bind(noMetrics);
+		GridPane paneMetrics = new GridPane();
+		row = 0;
+		paneMetrics.add(textMetrics, 0, row++);
+		paneMetrics.add(cbTrackConvergence, 0, row++);
+		paneMetrics.add(PaneTools.createColumnGridControls(btnExportJSON, btnExportCSV, btnClearMetrics), 0, row++);
+		PaneTools.setFillWidth(Boolean.TRUE, paneMetrics.getChildren().toArray(Node[]::new));
+		PaneTools.setHGrowPriority(Priority.ALWAYS, paneMetrics.getChildren().toArray(Node[]::new));
+		paneMetrics.setVgap(5.0);
+
+		TitledPane titledMetrics = new TitledPane("Metrics", paneMetrics);
+		titledMetrics.setExpanded(false);
+
 		
 		// Need to update transform text with image
 		selectedImageData.addListener((v, o, n) -> affineTransformUpdated());
@@ -504,7 +904,7 @@ public class ImageAlignmentPane {
 		titledAlignment.setCollapsible(false);
 		titledAutoAlign.setCollapsible(false);
 		titledTransform.setCollapsible(false);
-		VBox paneMain = new VBox(titledAlignment, titledAutoAlign, titledTransform);
+		VBox paneMain = new VBox(titledAlignment, titledLandmarks, titledAutoAlign, titledTransform, titledMetrics);
 
 		// Show only the current overlay on the viewer
 		selectedOverlay.addListener((v, o, n) -> {
@@ -543,6 +943,11 @@ public class ImageAlignmentPane {
 			// Remove event filter & any overlays we created
 			this.viewer.getView().removeEventFilter(MouseEvent.ANY, mouseEventHandler);
 			this.viewer.getCustomOverlayLayers().removeAll(mapOverlays.values());
+			this.viewer.getCustomOverlayLayers().remove(qualityOverlay);
+			this.viewer.getCustomOverlayLayers().remove(landmarkOverlay);
+			pool.shutdownNow();
+			cancelLiveSnap();
+			liveSnapRefiner.close();
 		});
 		
 	}
@@ -676,7 +1081,10 @@ public class ImageAlignmentPane {
 				if (imageData == null) {
 					if (temp.hasImageData()) {
 						imageData = temp.readImageData();
-						// Remove non-annotations to save memory
+						// Keep only the detection centroids for alignment, then remove non-annotations to save memory
+						var centroids = DetectionCentroids.fromHierarchy(imageData.getHierarchy());
+						if (centroids.size() > 0)
+							mapDetectionCentroids.put(imageData, centroids);
 						Collection<PathObject> pathObjects = imageData.getHierarchy().getObjects(null, null);
 						Set<PathObject> pathObjectsToRemove = pathObjects.stream().filter(p -> !p.isAnnotation()).collect(Collectors.toSet());
 						imageData.getHierarchy().removeObjects(pathObjectsToRemove, true);
@@ -691,6 +1099,17 @@ public class ImageAlignmentPane {
 			}
 			ImageServerOverlay overlay = new ImageServerOverlay(viewer, imageData.getServer());
 			overlay.setRenderer(renderer);
+			// Use any transform that was previously imported for this image
+			var storedTransform = TransformIO.getStoredTransform(temp);
+			var storedBase = TransformIO.getStoredBase(temp);
+			if (storedTransform != null && !matchesCurrentBase(storedBase)) {
+				logger.warn("Stored transform for {} is relative to {}, not the current image - it will not be used", temp.getImageName(), storedBase);
+				storedTransform = null;
+			}
+			if (storedTransform != null)
+				TransformTools.setAffine(storedTransform, overlay.getAffine());
+			else if (!overlay.hasPixelSizes())
+				estimateScale(imageData, overlay);
 			
 			overlay.getAffine().addEventHandler(TransformChangedEvent.ANY, transformEventHandler);
 			mapOverlays.put(imageData, overlay);
@@ -700,8 +1119,43 @@ public class ImageAlignmentPane {
 	}
 	
 	
+	/**
+	 * Estimate the scale of an overlay relative to the base image from the areas of their tissue, for images without pixel sizes.
+	 * This runs in a background thread; the transform is reset to use the estimated scale if it has not changed in the meantime.
+	 */
+	private void estimateScale(ImageData<BufferedImage> imageDataOverlay, ImageServerOverlay overlay) {
+		var imageDataBase = viewer.getImageData();
+		if (imageDataBase == null)
+			return;
+		var preprocessor = new RegistrationPreprocessor(preprocessingChannel.get(), preprocessingSigma.get(), preprocessingNormalize.get());
+		var preprocessorBase = preprocessor.withStains(imageDataBase.getColorDeconvolutionStains());
+		var preprocessorOverlay = preprocessor.withStains(imageDataOverlay.getColorDeconvolutionStains());
+		var initialTransform = new AffineTransform(overlay.getTransform());
+		String name = ServerTools.getDisplayableImageName(imageDataOverlay.getServer());
+		pool.submit(() -> {
+			try {
+				double scale = ScaleEstimator.estimateScale(imageDataBase.getServer(), imageDataOverlay.getServer(), preprocessorBase, preprocessorOverlay);
+				if (!Double.isFinite(scale)) {
+					logger.warn("Pixel sizes unavailable and unable to estimate scale for {} - will use 1", name);
+					return;
+				}
+				logger.info("Pixel sizes unavailable - estimated scale {} for {}", GeneralTools.formatNumber(scale, 3), name);
+				Platform.runLater(() -> {
+					overlay.setDefaultScale(scale);
+					if (initialTransform.equals(overlay.getTransform()))
+						overlay.resetAffine();
+				});
+			} catch (IOException e) {
+				logger.warn("Unable to estimate scale for {}: {}", name, e.getLocalizedMessage());
+			}
+		});
+	}
+
+
 	void addImageData(final ImageData<BufferedImage> imageData) {
 		ImageServerOverlay overlay = new ImageServerOverlay(viewer, imageData.getServer());
+		if (!overlay.hasPixelSizes())
+			estimateScale(imageData, overlay);
 		mapOverlays.put(imageData, overlay);
 		viewer.getCustomOverlayLayers().add(overlay);
 		images.add(0, imageData);
@@ -712,13 +1166,83 @@ public class ImageAlignmentPane {
 	private ImageServerOverlay getSelectedOverlay() {
 		return mapOverlays.get(selectedImageData.get());
 	}
+
+	/**
+	 * Get the landmark pairs for the selected overlay, creating them if necessary.
+	 * @return the landmarks, or null if no overlay is selected
+	 */
+	private LandmarkPairs getSelectedLandmarks() {
+		var imageData = selectedImageData.get();
+		var imageDataBase = viewer.getImageData();
+		if (imageData == null || !mapOverlays.containsKey(imageData))
+			return null;
+		var server = imageDataBase == null ? imageData.getServer() : imageDataBase.getServer();
+		return mapLandmarks.computeIfAbsent(imageData, d -> new LandmarkPairs(server.getWidth() / 2.0, server.getHeight() / 2.0));
+	}
+
+	/**
+	 * Refit the transform of the selected overlay to its landmarks, if there are enough pairs.
+	 */
+	private void landmarksChanged() {
+		var overlay = getSelectedOverlay();
+		var landmarks = getSelectedLandmarks();
+		if (overlay != null && landmarks != null) {
+			var transform = landmarks.solve(registrationType.get());
+			if (transform != null)
+				TransformTools.setAffine(transform, overlay.getAffine());
+		}
+		updateLandmarkDisplay();
+	}
+
+	private void deleteSelectedLandmarks() {
+		var landmarks = getSelectedLandmarks();
+		var selected = new ArrayList<>(tableLandmarks.getSelectionModel().getSelectedItems());
+		if (landmarks == null || selected.isEmpty())
+			return;
+		landmarks.getPairs().removeAll(selected);
+		landmarksChanged();
+	}
+
+	/**
+	 * Update the landmark overlay, table and status to reflect the current landmarks and transform.
+	 */
+	private void updateLandmarkDisplay() {
+		var overlay = getSelectedOverlay();
+		var landmarks = overlay == null ? null : getSelectedLandmarks();
+		landmarkOverlay.setPendingBase(pendingLandmark);
+		if (landmarks == null) {
+			landmarkOverlay.setLandmarks(null, null);
+			landmarkStatus.set("");
+		} else {
+			var transform = overlay.getTransform();
+			landmarkOverlay.setLandmarks(landmarks, transform);
+			int n = landmarks.getPairs().size();
+			int minPairs = LandmarkPairs.getMinPairs(registrationType.get());
+			if (pendingLandmark != null)
+				landmarkStatus.set("Click the corresponding point in the overlay");
+			else if (n < minPairs)
+				landmarkStatus.set(String.format("%d pairs (at least %d needed)", n, minPairs));
+			else
+				landmarkStatus.set(String.format("%d pairs, RMS residual %.2f pixels", n, landmarks.getRMSError(transform)));
+			tableLandmarks.refresh();
+		}
+		viewer.repaint();
+	}
 	
 	private void affineTransformUpdated() {
 		ImageServerOverlay overlay = getSelectedOverlay();
+		var quality = overlay == null ? null : overlay.getQuality();
+		qualityStringProperty.set(quality == null ? "" : quality.getSummary());
+		if (qualityOverlay.getQuality() != quality) {
+			qualityOverlay.setQuality(quality);
+			viewer.repaint();
+		}
 		if (overlay == null) {
 			affineStringProperty.set("No overlay selected");
 			return;
 		}
+		if (landmarkMode.get())
+			updateLandmarkDisplay();
 		Affine affine = overlay.getAffine();
 		affineStringProperty.set(
 				String.format(
@@ -755,13 +1279,42 @@ public class ImageAlignmentPane {
 		return imgGray;
 	}
 
+	/**
+	 * Parse the resolution for auto-alignment from user input.
+	 * @param pixelSize the requested pixel size in microns, or {@link #AUTO_PIXEL_SIZE}
+	 * @param maxMegapixels the maximum number of pixels per image, in millions
+	 * @return
+	 * @throws IllegalArgumentException if the input could not be parsed
+	 */
+	static RegistrationResolution parseResolution(String pixelSize, String maxMegapixels) throws IllegalArgumentException {
+		RegistrationResolution resolution;
+		pixelSize = pixelSize == null ? "" : pixelSize.strip();
+		if (pixelSize.isEmpty() || pixelSize.equalsIgnoreCase(AUTO_PIXEL_SIZE))
+			resolution = RegistrationResolution.auto();
+		else {
+			try {
+				resolution = RegistrationResolution.pixelSize(Double.parseDouble(pixelSize));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Unable to parse pixel size: " + pixelSize);
+			}
+		}
+		if (maxMegapixels != null && !maxMegapixels.isBlank()) {
+			try {
+				resolution = resolution.withMaxPixels(Math.round(Double.parseDouble(maxMegapixels) * 1_000_000));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Unable to parse pixel budget: " + maxMegapixels);
+			}
+		}
+		return resolution;
+	}
+
 	/**
 	 * Auto-align the selected image overlay with the base image in the viewer.
 	 * 
-	 * @param requestedPixelSizeMicrons The requested pixel size in microns.
+	 * @param resolution The resolution at which alignment should be performed.
 	 * @throws IOException 
 	 */
-	void autoAlign(double requestedPixelSizeMicrons) throws IOException {
+	void autoAlign(RegistrationResolution resolution) throws IOException {
 		ImageData<BufferedImage> imageDataBase = viewer.getImageData();
 		ImageData<BufferedImage> imageDataSelected = selectedImageData.get();
 		if (imageDataBase == null) {
@@ -780,12 +1333,9 @@ public class ImageAlignmentPane {
 		
 		var affine = overlay.getAffine();
 		
-		ImageServer<BufferedImage> serverBase, serverSelected;
 
-		if (alignmentMethod.get() == AlignmentMethod.POINT_ANNOTATIONS) {
+		if (alignmentMethod.get() == AlignmentMethod.POINT_ANNOTATIONS || alignmentMethod.get() == AlignmentMethod.POINT_SETS) {
 			logger.debug("Image alignment using point annotations");
-			logger.warn("Point annotation alignment not yet implemented!");
-			Mat transform;
 			List<Point2> pointsBase = new ArrayList<>();
 			List<Point2> pointsSelected = new ArrayList<>();
 			for (var annotation : imageDataBase.getHierarchy().getAnnotationObjects()) {
@@ -804,61 +1354,693 @@ public class ImageAlignmentPane {
 				Dialogs.showErrorMessage("Align images", "No points found for either image!");
 				return;
 			}
+			if (alignmentMethod.get() == AlignmentMethod.POINT_SETS) {
+				// Points don't need to correspond, but the current transform should be roughly right
+				var transform = new PointSetAligner(registrationType.get()).align(pointsBase, pointsSelected, TransformTools.toAffineTransform(affine));
+				if (transform == null)
+					Dialogs.showErrorMessage("Align images", "Unable to estimate transform from points!");
+				else
+					TransformTools.setAffine(transform, affine);
+				return;
+			}
 			if (pointsBase.size() != pointsSelected.size()) {
 				Dialogs.showErrorMessage("Align images", "Images have different numbers of annotated points (" + pointsBase.size() + " & " + pointsSelected.size() + ")");
 				return;				
 			}
-			Mat matBase = pointsToMat(pointsBase);
-			Mat matSelected = pointsToMat(pointsSelected);
-
-			// @deprecated Use cv::estimateAffine2D, cv::estimateAffinePartial2D instead. If you are using this function
-			// with images, extract points using cv::calcOpticalFlowPyrLK and then use the estimation functions.
-			transform = opencv_video.estimateRigidTransform(matBase, matSelected, registrationType.get() == RegistrationType.AFFINE);
-			matToAffine(transform, affine, 1.0);
+			if (!alignPoints(pointsBase, pointsSelected, registrationType.get(), affine))
+				Dialogs.showErrorMessage("Align images", "Unable to estimate transform from points!");
 			return;
 		}
 		
+		var metrics = new AlignmentMetrics(
+				ServerTools.getDisplayableImageName(imageDataBase.getServer()),
+				ServerTools.getDisplayableImageName(imageDataSelected.getServer()),
+				alignmentMethod.get(), registrationType.get(), trackConvergence.get());
+		var plane = ImagePlane.getPlane(viewer.getZPosition(), viewer.getTPosition());
+
+		if (alignmentMethod.get() == AlignmentMethod.DETECTIONS) {
+			alignDetections(imageDataBase, imageDataSelected, overlay, plane, metrics);
+			return;
+		}
+
+		if (alignmentMethod.get() == AlignmentMethod.AREA_CONTOURS) {
+			logger.debug("Image alignment using area annotation contours");
+			long startTime = System.nanoTime();
+			var aligner = new ContourAligner(registrationType.get());
+			var transform = aligner.align(imageDataBase.getHierarchy().getAnnotationObjects(), imageDataSelected.getHierarchy().getAnnotationObjects(),
+					TransformTools.toAffineTransform(affine), plane);
+			metrics.addTiming("Registration", startTime);
+			metrics.setConvergence(aligner.getIterations(), aligner.isConverged() ? aligner.getIterations() : -1, aligner.getLastChange(), Double.NaN);
+			metricsHistory.add(metrics);
+			if (transform == null) {
+				Dialogs.showErrorMessage("Align images", "Unable to align contours - please check both images have area annotations with matching classifications");
+				return;
+			}
+			logger.info("Contour alignment RMS error: {} pixels ({} iterations)", aligner.getRMSError(), aligner.getIterations());
+			TransformTools.setAffine(transform, affine);
+			return;
+		}
+
+		AlignmentQuality quality;
 		if (alignmentMethod.get() == AlignmentMethod.AREA_ANNOTATIONS) {
 			logger.debug("Image alignment using area annotations");
-			Map<PathClass, Integer> labels = new LinkedHashMap<>();
-			int label = 1;
-			labels.put(PathClass.NULL_CLASS, label++);
-			for (var annotation : imageDataBase.getHierarchy().getAnnotationObjects()) {
-				var pathClass = annotation.getPathClass();
-				if (pathClass != null && !labels.containsKey(pathClass))
-					labels.put(pathClass, label++);
-			}
-			for (var annotation : imageDataSelected.getHierarchy().getAnnotationObjects()) {
-				var pathClass = annotation.getPathClass();
-				if (pathClass != null && !labels.containsKey(pathClass))
-					labels.put(pathClass, label++);
-			}
-			
-			double downsampleBase = requestedPixelSizeMicrons / imageDataBase.getServer().getPixelCalibration().getAveragedPixelSize().doubleValue();
-			serverBase = new LabeledImageServer.Builder(imageDataBase)
-				.backgroundLabel(0)
-				.addLabels(labels)
-				.downsample(downsampleBase)
-				.build();
-			
-			double downsampleSelected = requestedPixelSizeMicrons / imageDataSelected.getServer().getPixelCalibration().getAveragedPixelSize().doubleValue();
-			serverSelected = new LabeledImageServer.Builder(imageDataSelected)
-					.backgroundLabel(0)
-					.addLabels(labels)
-					.downsample(downsampleSelected)
-					.build();
-			
+			quality = alignAreaAnnotations(imageDataBase, imageDataSelected, registrationType.get(), affine, resolution, plane,
+					areaDistanceTransform.get(), metrics);
 		} else {
 			// Default - just use intensities
 			logger.debug("Image alignment using intensities");
-			serverBase = imageDataBase.getServer();
-			serverSelected = imageDataSelected.getServer();			
+			var preprocessor = new RegistrationPreprocessor(preprocessingChannel.get(), preprocessingSigma.get(), preprocessingNormalize.get());
+			var type = registrationType.get();
+			if (searchOrientation.get()) {
+				long startTime = System.nanoTime();
+				var search = new OrientationSearch.Builder()
+						.preprocessors(preprocessor.withStains(imageDataBase.getColorDeconvolutionStains()),
+								preprocessor.withStains(imageDataSelected.getColorDeconvolutionStains()))
+						.build();
+				var result = search.search(imageDataBase.getServer(), imageDataSelected.getServer(), plane, TransformTools.toAffineTransform(affine));
+				metrics.addTiming("Orientation search", startTime);
+				if (result != null) {
+					logger.info("Best orientation: {} degrees{} (NCC {})", result.angle(), result.flipped() ? ", flipped" : "", result.score());
+					TransformTools.setAffine(result.transform(), affine);
+					// Rigid ECC rebuilds the matrix from a single angle, which would lose the flip
+					if (result.flipped() && type == RegistrationType.RIGID) {
+						logger.warn("Best orientation is flipped - using affine rather than rigid registration");
+						Dialogs.showWarningNotification("Align images", "Best orientation is flipped, which rigid registration can't represent - using affine registration instead");
+						type = RegistrationType.AFFINE;
+						metrics.setRegistrationType(type);
+					}
+				}
+			}
+			quality = autoAlign(imageDataBase.getServer(), imageDataSelected.getServer(),
+					preprocessor.withStains(imageDataBase.getColorDeconvolutionStains()),
+					preprocessor.withStains(imageDataSelected.getColorDeconvolutionStains()),
+					alignmentMethod.get(), type, affine, resolution, plane, metrics);
+		}
+		metricsHistory.add(metrics);
+		if (quality != null) {
+			overlay.setQuality(quality);
+			affineTransformUpdated();
 		}
-		
-		autoAlign(serverBase, serverSelected, registrationType.get(), affine, requestedPixelSizeMicrons);
 	}
 	
+
+	/**
+	 * Align an overlay using the centroids of detections in both images.
+	 * This runs in a background thread; the result is applied to the overlay if its transform has not changed in the meantime.
+	 */
+	private void alignDetections(ImageData<BufferedImage> imageDataBase, ImageData<BufferedImage> imageDataSelected,
+			ImageServerOverlay overlay, ImagePlane plane, AlignmentMetrics metrics) {
+		var centroidsBase = getDetectionCentroids(imageDataBase);
+		var centroidsOverlay = getDetectionCentroids(imageDataSelected);
+		if (centroidsBase.size() == 0 || centroidsOverlay.size() == 0) {
+			Dialogs.showErrorMessage("Align images", "Detection alignment requires detections in both images!");
+			return;
+		}
+		var globalTransform = new AffineTransform(overlay.getTransform());
+		var aligner = new PointSetAligner(registrationType.get());
+		Dialogs.showInfoNotification("Align images", String.format("Aligning %d & %d detections...", centroidsBase.size(), centroidsOverlay.size()));
+		pool.submit(() -> {
+			long startTime = System.nanoTime();
+			double[] xyBase = centroidsBase.getCoordinates(plane);
+			double[] xyOverlay = centroidsOverlay.getCoordinates(plane);
+			var transform = aligner.align(xyBase, xyBase.length / 2, xyOverlay, xyOverlay.length / 2, globalTransform);
+			metrics.addTiming("Registration", startTime);
+			metrics.setConvergence(aligner.getIterations(), aligner.isConverged() ? aligner.getIterations() : -1, aligner.getLastChange(), Double.NaN);
+			Platform.runLater(() -> {
+				metricsHistory.add(metrics);
+				if (transform == null) {
+					Dialogs.showErrorMessage("Align images", "Unable to estimate transform from detections!");
+					return;
+				}
+				if (!globalTransform.equals(overlay.getTransform())) {
+					Dialogs.showWarningNotification("Align images", "Transform changed during alignment - result discarded");
+					return;
+				}
+				TransformTools.setAffine(transform, overlay.getAffine());
+				Dialogs.showInfoNotification("Align images",
+						String.format("Aligned detections (RMS error %.2f pixels, %d iterations)", aligner.getRMSError(), aligner.getIterations()));
+			});
+		});
+	}
+
+	/**
+	 * Get the detection centroids for an image, either from the detections that were removed when it was read
+	 * or from its current hierarchy.
+	 */
+	private DetectionCentroids getDetectionCentroids(ImageData<BufferedImage> imageData) {
+		var centroids = mapDetectionCentroids.get(imageData);
+		if (centroids != null)
+			return centroids;
+		return DetectionCentroids.fromHierarchy(imageData.getHierarchy());
+	}
+
+	/**
+	 * Estimate separate transforms for all z-slices and timepoints of the selected image overlay.
+	 * This runs in a background thread; the result is applied to the overlay if its transform has not changed in the meantime.
+	 *
+	 * @param resolution The resolution at which alignment should be performed.
+	 * @param chained if true, align planes sequentially so that each starts from the result of its neighbour
+	 */
+	void alignPlanes(RegistrationResolution resolution, boolean chained) {
+		ImageData<BufferedImage> imageDataBase = viewer.getImageData();
+		ImageData<BufferedImage> imageDataSelected = selectedImageData.get();
+		if (imageDataBase == null || imageDataSelected == null || imageDataBase == imageDataSelected) {
+			Dialogs.showErrorMessage("Align planes", "Please select an image overlay, not the 'base' image from the viewer!");
+			return;
+		}
+		var method = alignmentMethod.get();
+		if (method != AlignmentMethod.INTENSITY && method != AlignmentMethod.MUTUAL_INFORMATION) {
+			Dialogs.showErrorMessage("Align planes", "Aligning all planes requires an intensity-based alignment method");
+			return;
+		}
+		ImageServerOverlay overlay = mapOverlays.get(imageDataSelected);
+		if (overlay == null)
+			return;
+
+		var serverBase = imageDataBase.getServer();
+		var serverOverlay = imageDataSelected.getServer();
+		var globalTransform = new AffineTransform(overlay.getTransform());
+		var preprocessor = new RegistrationPreprocessor(preprocessingChannel.get(), preprocessingSigma.get(), preprocessingNormalize.get());
+		// Each plane needs a whole image in memory, so limit how many are aligned at once
+		int nThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		var aligner = new PlaneAligner(
+				preprocessor.withStains(imageDataBase.getColorDeconvolutionStains()),
+				preprocessor.withStains(imageDataSelected.getColorDeconvolutionStains()),
+				method, registrationType.get(), resolution, nThreads);
+		int nPlanes = serverBase.nZSlices() * serverBase.nTimepoints();
+		Dialogs.showInfoNotification("Align planes", "Aligning " + nPlanes + " planes...");
+		pool.submit(() -> {
+			try {
+				var planes = aligner.align(serverBase, serverOverlay, globalTransform, chained);
+				Platform.runLater(() -> {
+					if (!globalTransform.equals(overlay.getTransform())) {
+						Dialogs.showWarningNotification("Align planes", "Transform changed during alignment - result discarded");
+						return;
+					}
+					overlay.setPlaneTransforms(planes);
+					viewer.repaintEntireImage();
+					Dialogs.showInfoNotification("Align planes",
+							String.format("Aligned %d/%d planes", planes.getNumTransforms(), nPlanes));
+				});
+			} catch (IOException e) {
+				logger.error("Error aligning planes", e);
+				Platform.runLater(() -> Dialogs.showErrorMessage("Align planes", "Error requesting image region: " + e.getLocalizedMessage()));
+			}
+		});
+	}
+
+	/**
+	 * Align all images as a chain of serial sections, ordered by image name.
+	 * Each section is registered to its neighbour (in parallel), and the pairwise transforms are composed to give
+	 * the transform from the base image to every overlay.
+	 * <p>
+	 * If groupwise alignment is selected, sections two apart are also registered and the transforms are found by
+	 * a global least-squares fit to all pairs, weighted by their quality scores. Pairwise results are cached.
+	 * <p>
+	 * This runs in a background thread; transforms are applied to overlays on completion.
+	 *
+	 * @param resolution The resolution at which alignment should be performed.
+	 */
+	void alignChain(RegistrationResolution resolution) {
+		ImageData<BufferedImage> imageDataBase = viewer.getImageData();
+		if (imageDataBase == null) {
+			Dialogs.showErrorMessage("Align section chain", "No image is available!");
+			return;
+		}
+		var method = alignmentMethod.get();
+		if (method != AlignmentMethod.INTENSITY && method != AlignmentMethod.MUTUAL_INFORMATION) {
+			Dialogs.showErrorMessage("Align section chain", "Section chains require an intensity-based alignment method");
+			return;
+		}
+		List<ImageData<BufferedImage>> sections = new ArrayList<>(images);
+		if (!sections.contains(imageDataBase))
+			sections.add(imageDataBase);
+		var comparator = GeneralTools.smartStringComparator();
+		sections.sort((d1, d2) -> comparator.compare(
+				ServerTools.getDisplayableImageName(d1.getServer()),
+				ServerTools.getDisplayableImageName(d2.getServer())));
+		if (sections.size() < 2) {
+			Dialogs.showErrorMessage("Align section chain", "At least two images are needed!");
+			return;
+		}
+		int reference = sections.indexOf(imageDataBase);
+
+		// Use the current alignment to initialize each pair
+		List<AffineTransform> fromReference = new ArrayList<>();
+		for (var imageData : sections) {
+			var overlay = mapOverlays.get(imageData);
+			fromReference.add(imageData == imageDataBase || overlay == null ? new AffineTransform() : new AffineTransform(overlay.getTransform()));
+		}
+		int maxStep = chainGroupwise.get() ? 2 : 1;
+
+		var preprocessor = new RegistrationPreprocessor(preprocessingChannel.get(), preprocessingSigma.get(), preprocessingNormalize.get());
+		// Each pair needs two whole images in memory, so limit how many are registered at once
+		int nThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		var preprocessors = sections.stream().map(d -> preprocessor.withStains(d.getColorDeconvolutionStains())).toList();
+		var chain = new SectionChain(
+				sections.stream().map(ImageData::getServer).toList(),
+				preprocessors,
+				method, registrationType.get(), resolution, nThreads);
+		List<int[]> pairs = chain.getNeighbourPairs(maxStep);
+
+		// For groupwise alignment, only register pairs that are not already cached.
+		// Keys include everything that can change the result: the settings, the stains of both sections
+		// and the initial transform.
+		String settings = String.join("\n", method.name(), registrationType.get().name(), resolution.toString());
+		List<String> keys = new ArrayList<>();
+		List<int[]> pairsToRegister = new ArrayList<>();
+		List<AffineTransform> initials = new ArrayList<>();
+		int[] registeredIndex = new int[pairs.size()];
+		for (int i = 0; i < pairs.size(); i++) {
+			int[] pair = pairs.get(i);
+			AffineTransform initial;
+			try {
+				initial = SectionChain.relativeTransform(fromReference.get(pair[0]), fromReference.get(pair[1]));
+			} catch (NoninvertibleTransformException e) {
+				Dialogs.showErrorMessage("Align section chain", "Current transforms cannot be inverted!");
+				return;
+			}
+			double[] matrix = new double[6];
+			initial.getMatrix(matrix);
+			keys.add(String.join("\n", settings,
+					sections.get(pair[0]).getServer().getPath(), preprocessors.get(pair[0]).toString(),
+					sections.get(pair[1]).getServer().getPath(), preprocessors.get(pair[1]).toString(),
+					Arrays.toString(matrix)));
+			registeredIndex[i] = -1;
+			if (maxStep > 1 && pairwiseCache.containsKey(keys.get(i)))
+				continue;
+			initials.add(initial);
+			registeredIndex[i] = pairsToRegister.size();
+			pairsToRegister.add(pair);
+		}
+		Dialogs.showInfoNotification("Align section chain", "Registering " + pairsToRegister.size() + " pairs...");
+		pool.submit(() -> {
+			try {
+				var registered = chain.registerPairs(pairsToRegister, initials);
+				List<SectionChain.PairwiseResult> results = new ArrayList<>();
+				for (int i = 0; i < pairs.size(); i++) {
+					int[] pair = pairs.get(i);
+					SectionChain.PairwiseResult result;
+					if (registeredIndex[i] >= 0) {
+						result = registered.get(registeredIndex[i]);
+						// Don't cache failures, so that they are retried
+						if (result.transform() != null)
+							pairwiseCache.put(keys.get(i), result);
+					} else
+						result = pairwiseCache.get(keys.get(i));
+					// Cached results may have been registered when sections had different indices
+					results.add(new SectionChain.PairwiseResult(pair[0], pair[1], result.transform(), result.score()));
+				}
+				var adjacent = results.subList(0, sections.size() - 1);
+				var transforms = SectionChain.composeFromReference(adjacent, reference);
+				if (maxStep > 1) {
+					var server = imageDataBase.getServer();
+					transforms = new GroupwiseSolver(server.getWidth(), server.getHeight())
+							.solve(sections.size(), results, reference, transforms);
+				}
+				var finalTransforms = transforms;
+				Platform.runLater(() -> {
+					int nAligned = 0;
+					for (int i = 0; i < sections.size(); i++) {
+						var overlay = mapOverlays.get(sections.get(i));
+						var transform = finalTransforms.get(i);
+						if (i == reference || overlay == null || transform == null)
+							continue;
+						TransformTools.setAffine(transform, overlay.getAffine());
+						nAligned++;
+					}
+					long nFailed = results.stream().filter(result -> !result.isSuccess()).count();
+					if (nFailed > 0)
+						Dialogs.showWarningNotification("Align section chain",
+								String.format("Aligned %d/%d sections (%d pairs failed)", nAligned, sections.size() - 1, nFailed));
+					else
+						Dialogs.showInfoNotification("Align section chain", String.format("Aligned %d sections", nAligned));
+				});
+			} catch (IOException e) {
+				logger.error("Error aligning section chain", e);
+				Platform.runLater(() -> Dialogs.showErrorMessage("Align section chain", "Error requesting image region: " + e.getLocalizedMessage()));
+			}
+		});
+	}
+
+	/**
+	 * Refine the transform of the selected image overlay locally, by aligning overlapping tiles independently.
+	 * This runs in a background thread; the result is applied to the overlay if its transform has not changed in the meantime.
+	 *
+	 * @param requestedPixelSizeMicrons The requested pixel size for the tiles in microns.
+	 */
+	void refineLocally(double requestedPixelSizeMicrons) {
+		ImageData<BufferedImage> imageDataBase = viewer.getImageData();
+		ImageData<BufferedImage> imageDataSelected = selectedImageData.get();
+		if (imageDataBase == null || imageDataSelected == null || imageDataBase == imageDataSelected) {
+			Dialogs.showErrorMessage("Local refinement", "Please select an image overlay, not the 'base' image from the viewer!");
+			return;
+		}
+		ImageServerOverlay overlay = mapOverlays.get(imageDataSelected);
+		if (overlay == null)
+			return;
+
+		var serverBase = imageDataBase.getServer();
+		var serverOverlay = imageDataSelected.getServer();
+		double pixelSize = serverBase.getPixelCalibration().getAveragedPixelSizeMicrons();
+		double downsample = 1.0;
+		if (Double.isFinite(pixelSize))
+			downsample = Math.max(1.0, requestedPixelSizeMicrons / pixelSize);
+		else
+			logger.warn("Pixel size is unavailable! Local refinement will use full resolution");
+
+		var globalTransform = new AffineTransform(overlay.getTransform());
+		var type = registrationType.get();
+		var preprocessor = new RegistrationPreprocessor(preprocessingChannel.get(), preprocessingSigma.get(), preprocessingNormalize.get());
+		var refiner = new LocalAlignmentRefiner.Builder()
+				.downsample(downsample)
+				.preprocessors(
+						preprocessor.withStains(imageDataBase.getColorDeconvolutionStains()),
+						preprocessor.withStains(imageDataSelected.getColorDeconvolutionStains()))
+				.build();
+		var metrics = new AlignmentMetrics(
+				ServerTools.getDisplayableImageName(serverBase),
+				ServerTools.getDisplayableImageName(serverOverlay),
+				"Local refinement", type, false);
+		metrics.setDownsample(downsample);
+		Dialogs.showInfoNotification("Local refinement", "Refining transform locally...");
+		pool.submit(() -> {
+			try {
+				long startTime = System.nanoTime();
+				var grid = refiner.refine(serverBase, serverOverlay, type, globalTransform);
+				metrics.addTiming("Total", startTime);
+				Platform.runLater(() -> {
+					metricsHistory.add(metrics);
+					if (!globalTransform.equals(overlay.getTransform())) {
+						Dialogs.showWarningNotification("Local refinement", "Transform changed during refinement - result discarded");
+						return;
+					}
+					overlay.setLocalTransforms(grid);
+					viewer.repaintEntireImage();
+					Dialogs.showInfoNotification("Local refinement",
+							String.format("Refined %d/%d tiles", grid.getNumRefined(), grid.getNumColumns() * grid.getNumRows()));
+				});
+			} catch (IOException e) {
+				logger.error("Error in local refinement", e);
+				Platform.runLater(() -> Dialogs.showErrorMessage("Local refinement", "Error requesting image region: " + e.getLocalizedMessage()));
+			}
+		});
+	}
+
+
+	/**
+	 * Measure the intensities of the selected overlay inside all detections of the base image, using the current transform.
+	 * This runs in a background thread; measurements are added with the overlay image name as a prefix.
+	 */
+	void measureOverlayIntensities() {
+		ImageData<BufferedImage> imageDataBase = viewer.getImageData();
+		ImageData<BufferedImage> imageDataSelected = selectedImageData.get();
+		if (imageDataBase == null || imageDataSelected == null || imageDataBase == imageDataSelected) {
+			Dialogs.showErrorMessage("Measure detections", "Please select an image overlay, not the 'base' image from the viewer!");
+			return;
+		}
+		ImageServerOverlay overlay = mapOverlays.get(imageDataSelected);
+		if (overlay == null)
+			return;
+		var hierarchy = imageDataBase.getHierarchy();
+		var detections = hierarchy.getDetectionObjects();
+		if (detections.isEmpty()) {
+			Dialogs.showErrorMessage("Measure detections", "No detections found in the base image!");
+			return;
+		}
+		if (overlay.getLocalTransforms() != null && !Dialogs.showConfirmDialog("Measure detections",
+				"Local transforms are not used for measurements - only the affine transform"
+						+ (overlay.getPlaneTransforms() == null ? "" : " and plane transforms") + ".\n"
+						+ "Measure detections anyway?"))
+			return;
+
+		var serverOverlay = imageDataSelected.getServer();
+		var transform = new AffineTransform(overlay.getTransform());
+		var planeTransforms = overlay.getPlaneTransforms();
+		if (planeTransforms != null)
+			logger.info("Measuring with {} plane transforms", planeTransforms.getNumTransforms());
+		var measurer = new OverlayIntensityMeasurer.Builder()
+				.prefix(ServerTools.getDisplayableImageName(serverOverlay))
+				.build();
+		Dialogs.showInfoNotification("Measure detections", String.format("Measuring %d detections...", detections.size()));
+		pool.submit(() -> {
+			try {
+				long startTime = System.nanoTime();
+				int n = measurer.measure(detections, serverOverlay, transform, planeTransforms);
+				logger.info("Measured {} detections in {} ms", n, (System.nanoTime() - startTime) / 1_000_000);
+				Platform.runLater(() -> {
+					hierarchy.fireObjectMeasurementsChangedEvent(this, detections);
+					Dialogs.showInfoNotification("Measure detections", String.format("Measured %d/%d detections", n, detections.size()));
+				});
+			} catch (IOException e) {
+				logger.error("Error measuring detections", e);
+				Platform.runLater(() -> Dialogs.showErrorMessage("Measure detections", "Error requesting image region: " + e.getLocalizedMessage()));
+			}
+		});
+	}
+
+
+	/**
+	 * Open a virtual image that combines the channels of the base image with those of all overlays, using their current transforms.
+	 * This replaces the image in the viewer, so the alignment window is closed.
+	 * If the base image has unsaved changes, the user is asked whether to save them to the project first.
+	 * The fused image keeps the image type of the base image, but isn't added to the project because its transforms
+	 * can't be stored with the server.
+	 * @param window the alignment window
+	 */
+	void openFusedImage(Window window) {
+		ImageData<BufferedImage> imageDataBase = viewer.getImageData();
+		if (imageDataBase == null)
+			return;
+		var builder = new FusedImageServer.Builder(imageDataBase.getServer());
+		int nOverlays = 0;
+		for (var imageData : images) {
+			var overlay = mapOverlays.get(imageData);
+			if (imageData == imageDataBase || overlay == null)
+				continue;
+			if (overlay.getLocalTransforms() != null)
+				logger.warn("Local transforms are not used for fused images - only the affine transform");
+			builder.addOverlay(imageData.getServer(), overlay.getTransform());
+			nOverlays++;
+		}
+		if (nOverlays == 0) {
+			Dialogs.showErrorMessage("Fuse channels", "No overlays to fuse!");
+			return;
+		}
+		FusedImageServer server;
+		try {
+			server = builder.build();
+		} catch (IllegalArgumentException e) {
+			Dialogs.showErrorMessage("Fuse channels", e.getLocalizedMessage());
+			return;
+		}
+		if (imageDataBase.isChanged() && !checkSaveChanges(imageDataBase))
+			return;
+		logger.info("Opening fused image with {} channels from {} images", server.nChannels(), nOverlays + 1);
+		window.hide();
+		viewer.setImageData(new ImageData<>(server, imageDataBase.getImageType()));
+	}
+
+	/**
+	 * Prompt to save unsaved changes before an image is closed, as QuPath does when opening another image.
+	 * @param imageData the image data with unsaved changes
+	 * @return true if the image can be closed, false if the user cancelled or saving failed
+	 */
+	private boolean checkSaveChanges(ImageData<BufferedImage> imageData) {
+		var project = qupath.getProject();
+		var entry = project == null ? null : project.getEntry(imageData);
+		String name = ServerTools.getDisplayableImageName(imageData.getServer());
+		if (entry == null)
+			return Dialogs.showConfirmDialog("Fuse channels", name + " has unsaved changes that will be lost - continue?");
+		var response = Dialogs.showYesNoCancelDialog("Fuse channels", "Save changes to " + name + "?");
+		if (response != ButtonType.YES)
+			return response == ButtonType.NO;
+		try {
+			entry.saveImageData(imageData);
+			return true;
+		} catch (IOException e) {
+			logger.error("Error saving image data", e);
+			Dialogs.showErrorMessage("Fuse channels", "Unable to save " + name + ": " + e.getLocalizedMessage());
+			return false;
+		}
+	}
+
+
+	/**
+	 * Warp labels from the selected overlay into the base image using the current transform, and add them as annotations.
+	 * The labels can come from the overlay image itself (e.g. a label mask) or from a pixel classifier in the project.
+	 * This runs in a background thread.
+	 */
+	void transferLabels() {
+		ImageData<BufferedImage> imageDataBase = viewer.getImageData();
+		ImageData<BufferedImage> imageDataSelected = selectedImageData.get();
+		if (imageDataBase == null || imageDataSelected == null || imageDataBase == imageDataSelected) {
+			Dialogs.showErrorMessage("Transfer labels", "Please select an image overlay, not the 'base' image from the viewer!");
+			return;
+		}
+		ImageServerOverlay overlay = mapOverlays.get(imageDataSelected);
+		if (overlay == null)
+			return;
+		String imageLabels = "Overlay image";
+		List<String> choices = new ArrayList<>();
+		choices.add(imageLabels);
+		var project = qupath.getProject();
+		try {
+			if (project != null)
+				choices.addAll(project.getPixelClassifiers().getNames());
+		} catch (IOException e) {
+			logger.warn("Unable to read pixel classifiers: {}", e.getLocalizedMessage());
+		}
+		var choice = choices.size() == 1 ? imageLabels :
+			Dialogs.showChoiceDialog("Transfer labels", "Labels to transfer", choices, imageLabels);
+		if (choice == null)
+			return;
+
+		ImageServer<BufferedImage> serverLabels;
+		if (imageLabels.equals(choice))
+			serverLabels = imageDataSelected.getServer();
+		else {
+			try {
+				var classifier = project.getPixelClassifiers().get(choice);
+				serverLabels = PixelClassifierTools.createPixelClassificationServer(imageDataSelected, classifier);
+			} catch (IOException e) {
+				Dialogs.showErrorMessage("Transfer labels", "Unable to load pixel classifier: " + e.getLocalizedMessage());
+				return;
+			}
+		}
+		if (serverLabels.nChannels() != 1 || serverLabels.getPixelType().isFloatingPoint()) {
+			Dialogs.showErrorMessage("Transfer labels", "Labels must be a single channel integer image!");
+			return;
+		}
+		if (overlay.getLocalTransforms() != null)
+			logger.warn("Local transforms are not used to transfer labels - only the affine transform");
+
+		var hierarchy = imageDataBase.getHierarchy();
+		var serverWarped = new WarpedLabelServer(serverLabels, imageDataBase.getServer(), overlay.getTransform());
+		Dialogs.showInfoNotification("Transfer labels", "Transferring labels...");
+		pool.submit(() -> {
+			try {
+				long startTime = System.nanoTime();
+				var annotations = serverWarped.traceAnnotations(serverWarped.getDownsampleForResolution(0));
+				logger.info("Traced {} annotations in {} ms", annotations.size(), (System.nanoTime() - startTime) / 1_000_000);
+				Platform.runLater(() -> {
+					hierarchy.addObjects(annotations);
+					Dialogs.showInfoNotification("Transfer labels", String.format("Added %d annotations", annotations.size()));
+				});
+			} catch (IOException e) {
+				logger.error("Error transferring labels", e);
+				Platform.runLater(() -> Dialogs.showErrorMessage("Transfer labels", "Error requesting image region: " + e.getLocalizedMessage()));
+			}
+		});
+	}
+
 	
+	/**
+	 * Estimate a transform from corresponding points in the base and overlay images.
+	 *
+	 * @param pointsBase points in the base image
+	 * @param pointsOverlay corresponding points in the overlay image, in the same order
+	 * @param registrationType the type of transform to estimate
+	 * @param affine the Affine to update with the transform from base to overlay coordinates
+	 * @return true if a transform could be estimated, false otherwise
+	 */
+	static boolean alignPoints(List<Point2> pointsBase, List<Point2> pointsOverlay, RegistrationType registrationType, Affine affine) {
+		Mat matBase = pointsToMat(pointsBase);
+		Mat matOverlay = pointsToMat(pointsOverlay);
+		// @deprecated Use cv::estimateAffine2D, cv::estimateAffinePartial2D instead. If you are using this function
+		// with images, extract points using cv::calcOpticalFlowPyrLK and then use the estimation functions.
+		Mat transform = opencv_video.estimateRigidTransform(matBase, matOverlay, registrationType == RegistrationType.AFFINE);
+		matBase.release();
+		matOverlay.release();
+		if (transform.empty())
+			return false;
+		matToAffine(transform, affine, 1.0);
+		transform.release();
+		return true;
+	}
+
+	/**
+	 * Create labels for all annotation classifications in the specified images, for area-based alignment.
+	 * Unclassified annotations are given the label 1; 0 is reserved for the background.
+	 * @param imageDatas
+	 * @return
+	 */
+	@SafeVarargs
+	static Map<PathClass, Integer> createAnnotationLabels(ImageData<BufferedImage>... imageDatas) {
+		Map<PathClass, Integer> labels = new LinkedHashMap<>();
+		int label = 1;
+		labels.put(PathClass.NULL_CLASS, label++);
+		for (var imageData : imageDatas) {
+			for (var annotation : imageData.getHierarchy().getAnnotationObjects()) {
+				var pathClass = annotation.getPathClass();
+				if (pathClass != null && !labels.containsKey(pathClass))
+					labels.put(pathClass, label++);
+			}
+		}
+		return labels;
+	}
+
+	/**
+	 * Auto-align two images using their area annotations.
+	 * Annotations are rasterized directly at the registration resolution, which is chosen from the original images.
+	 *
+	 * @param imageDataBase the base image
+	 * @param imageDataOverlay the overlay image
+	 * @param registrationType the type of transform to estimate
+	 * @param affine the current transform, which is used as a starting point and updated with the result
+	 * @param resolution the resolution at which the registration should be performed
+	 * @param plane the z-slice and timepoint of the annotations to use
+	 * @param distanceTransform if true, align signed distance maps of the annotations rather than their labels
+	 * @param metrics optional metrics object to record timings and convergence; may be null
+	 * @return quality scores for the result, or null if the registration failed
+	 */
+	static AlignmentQuality alignAreaAnnotations(ImageData<BufferedImage> imageDataBase, ImageData<BufferedImage> imageDataOverlay,
+			RegistrationType registrationType, Affine affine, RegistrationResolution resolution, ImagePlane plane,
+			boolean distanceTransform, AlignmentMetrics metrics) {
+		long startTotal = System.nanoTime();
+		var serverBase = imageDataBase.getServer();
+		var serverOverlay = imageDataOverlay.getServer();
+		double downsample = resolution.getDownsample(serverBase, serverOverlay);
+		if (metrics != null)
+			metrics.setDownsample(downsample);
+
+		var labels = createAnnotationLabels(imageDataBase, imageDataOverlay);
+		long startTime = System.nanoTime();
+		Mat matBase = rasterizeAnnotations(imageDataBase, labels, downsample, plane, distanceTransform);
+		if (metrics != null) {
+			metrics.addTiming("Rasterize base", startTime);
+			metrics.addMat("Base", matBase);
+		}
+		startTime = System.nanoTime();
+		var planeOverlay = ImagePlane.getPlane(Math.min(plane.getZ(), serverOverlay.nZSlices()-1), Math.min(plane.getT(), serverOverlay.nTimepoints()-1));
+		Mat matOverlay = rasterizeAnnotations(imageDataOverlay, labels, downsample, planeOverlay, distanceTransform);
+		if (metrics != null) {
+			metrics.addTiming("Rasterize overlay", startTime);
+			metrics.addMat("Overlay", matOverlay);
+		}
+		try {
+			var quality = autoAlign(matBase, matOverlay, downsample, AlignmentMethod.AREA_ANNOTATIONS, registrationType, affine, metrics);
+			if (metrics != null && quality != null)
+				metrics.addTiming("Total", startTotal);
+			return quality;
+		} finally {
+			matBase.release();
+			matOverlay.release();
+		}
+	}
+
+	private static Mat rasterizeAnnotations(ImageData<BufferedImage> imageData, Map<PathClass, Integer> labels, double downsample,
+			ImagePlane plane, boolean distanceTransform) {
+		var server = imageData.getServer();
+		Mat mat = AnnotationRasterizer.rasterize(imageData.getHierarchy().getAnnotationObjects(), labels,
+				server.getWidth(), server.getHeight(), downsample, plane);
+		if (!distanceTransform)
+			return mat;
+		Mat matDistance = AnnotationRasterizer.toSignedDistance(mat, AnnotationRasterizer.DEFAULT_DISTANCE_CLIP);
+		mat.release();
+		return matDistance;
+	}
+
 	static Mat pointsToMat(Collection<Point2> points) {
 		Mat mat = new Mat(points.size(), 2, opencv_core.CV_32FC1);
 		int r = 0;
@@ -873,27 +2055,107 @@ public class ImageAlignmentPane {
 	}
 	
 
-	static void autoAlign(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay, RegistrationType registrationType, Affine affine, double requestedPixelSizeMicrons) throws IOException {
-		PixelCalibration calBase = serverBase.getPixelCalibration();
-		double pixelSize = calBase.getAveragedPixelSizeMicrons();
-		double downsample = 1;
-		if (!Double.isFinite(pixelSize)) {
-			while (serverBase.getWidth() / downsample > 2000)
-				downsample++;
-			logger.warn("Pixel size is unavailable! Default downsample value of {} will be used", downsample);
-		} else {
-			downsample = requestedPixelSizeMicrons / calBase.getAveragedPixelSizeMicrons();			
-		}
+	/**
+	 * Auto-align two images using their intensities.
+	 *
+	 * @param serverBase the base image
+	 * @param serverOverlay the overlay image
+	 * @param preprocessorBase preprocessor to convert the base image to a single channel
+	 * @param preprocessorOverlay preprocessor to convert the overlay image to a single channel
+	 * @param alignmentMethod the alignment method; {@link AlignmentMethod#MUTUAL_INFORMATION} uses mutual information, otherwise ECC is used
+	 * @param registrationType the type of transform to estimate
+	 * @param affine the current transform, which is used as a starting point and updated with the result
+	 * @param resolution the resolution at which the registration should be performed
+	 * @param metrics optional metrics object to record timings and convergence; may be null
+	 * @return quality scores for the result, or null if the registration failed
+	 * @throws IOException
+	 */
+	static AlignmentQuality autoAlign(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay,
+			RegistrationPreprocessor preprocessorBase, RegistrationPreprocessor preprocessorOverlay, AlignmentMethod alignmentMethod, RegistrationType registrationType, Affine affine, RegistrationResolution resolution,
+			AlignmentMetrics metrics) throws IOException {
+		return autoAlign(serverBase, serverOverlay, preprocessorBase, preprocessorOverlay, alignmentMethod, registrationType, affine, resolution, ImagePlane.getDefaultPlane(), metrics);
+	}
 
-		BufferedImage imgBase = serverBase.readRegion(RegionRequest.createInstance(serverBase.getPath(), downsample, 0, 0, serverBase.getWidth(), serverBase.getHeight()));
-		BufferedImage imgOverlay = serverOverlay.readRegion(RegionRequest.createInstance(serverOverlay.getPath(), downsample, 0, 0, serverOverlay.getWidth(), serverOverlay.getHeight()));
-		
-		imgBase = ensureGrayScale(imgBase);
-		imgOverlay = ensureGrayScale(imgOverlay);
+	/**
+	 * Auto-align a single plane of two images using their intensities.
+	 * If the overlay has fewer z-slices or timepoints than the base image, the last available plane is used.
+	 *
+	 * @param serverBase the base image
+	 * @param serverOverlay the overlay image
+	 * @param preprocessorBase preprocessor to convert the base image to a single channel
+	 * @param preprocessorOverlay preprocessor to convert the overlay image to a single channel
+	 * @param alignmentMethod the alignment method; {@link AlignmentMethod#MUTUAL_INFORMATION} uses mutual information, otherwise ECC is used
+	 * @param registrationType the type of transform to estimate
+	 * @param affine the current transform, which is used as a starting point and updated with the result
+	 * @param resolution the resolution at which the registration should be performed
+	 * @param plane the z-slice and timepoint to align
+	 * @param metrics optional metrics object to record timings and convergence; may be null
+	 * @return quality scores for the result, or null if the registration failed
+	 * @throws IOException
+	 */
+	static AlignmentQuality autoAlign(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay,
+			RegistrationPreprocessor preprocessorBase, RegistrationPreprocessor preprocessorOverlay, AlignmentMethod alignmentMethod, RegistrationType registrationType, Affine affine, RegistrationResolution resolution,
+			ImagePlane plane, AlignmentMetrics metrics) throws IOException {
+		long startTotal = System.nanoTime();
+		double downsample = resolution.getDownsample(serverBase, serverOverlay);
+		logger.debug("Auto-alignment downsample {} ({})", downsample, resolution);
+
+		if (metrics != null)
+			metrics.setDownsample(downsample);
+
+		long startTime = System.nanoTime();
+		int z = plane.getZ();
+		int t = plane.getT();
+		BufferedImage imgBase = serverBase.readRegion(RegionRequest.createInstance(serverBase.getPath(), downsample, 0, 0, serverBase.getWidth(), serverBase.getHeight(), z, t));
+		if (metrics != null)
+			metrics.addTiming("Read base", startTime);
+		startTime = System.nanoTime();
+		BufferedImage imgOverlay = serverOverlay.readRegion(RegionRequest.createInstance(serverOverlay.getPath(), downsample, 0, 0, serverOverlay.getWidth(), serverOverlay.getHeight(),
+				Math.min(z, serverOverlay.nZSlices()-1), Math.min(t, serverOverlay.nTimepoints()-1)));
+		if (metrics != null)
+			metrics.addTiming("Read overlay", startTime);
 		
-		Mat matBase = OpenCVTools.imageToMat(imgBase);
-		Mat matOverlay = OpenCVTools.imageToMat(imgOverlay);
+		RegistrationPreprocessor.checkChannels(preprocessorBase, imgBase, preprocessorOverlay, imgOverlay);
+		startTime = System.nanoTime();
+		Mat matBase = preprocessorBase.apply(imgBase);
+		if (metrics != null) {
+			metrics.addTiming("Convert base", startTime);
+			metrics.addMat("Base", matBase);
+		}
+		startTime = System.nanoTime();
+		Mat matOverlay = preprocessorOverlay.apply(imgOverlay);
+		if (metrics != null) {
+			metrics.addTiming("Convert overlay", startTime);
+			metrics.addMat("Overlay", matOverlay);
+		}
 
+		try {
+			var quality = autoAlign(matBase, matOverlay, downsample, alignmentMethod, registrationType, affine, metrics);
+			if (metrics != null && quality != null) {
+				metrics.addTiming("Total", startTotal);
+				logger.debug("Alignment metrics: {}", metrics);
+			}
+			return quality;
+		} finally {
+			matBase.release();
+			matOverlay.release();
+		}
+	}
+
+	/**
+	 * Auto-align two images that have already been read and converted to single-channel images at the same downsample.
+	 *
+	 * @param matBase the base image
+	 * @param matOverlay the overlay image
+	 * @param downsample the downsample at which both images were read
+	 * @param alignmentMethod the alignment method; {@link AlignmentMethod#MUTUAL_INFORMATION} uses mutual information, otherwise ECC is used
+	 * @param registrationType the type of transform to estimate
+	 * @param affine the current transform (at full resolution), which is used as a starting point and updated with the result
+	 * @param metrics optional metrics object to record timings and convergence; may be null
+	 * @return quality scores for the result, or null if the registration failed
+	 */
+	static AlignmentQuality autoAlign(Mat matBase, Mat matOverlay, double downsample, AlignmentMethod alignmentMethod, RegistrationType registrationType,
+			Affine affine, AlignmentMetrics metrics) {
 		Mat matTransform = Mat.eye(2, 3, opencv_core.CV_32F).asMat();
 		// Initialize using existing transform
 //		affine.setToTransform(mxx, mxy, tx, myx, myy, ty);
@@ -917,26 +2179,30 @@ public class ImageAlignmentPane {
 //		Mat matTemp = new Mat();
 //		opencv_imgproc.warpAffine(matOverlay, matTemp, matTransform, matBase.size());
 //		OpenCVTools.matToImagePlus(matTemp, "Transformed").show();
+		double eccCorrelation = Double.NaN;
+		long startTime = System.nanoTime();
 		try {
-			int motion;
-			switch (registrationType) {
-			case AFFINE:
-				motion = opencv_video.MOTION_AFFINE;
-				break;
-			case RIGID:
-				motion = opencv_video.MOTION_EUCLIDEAN;
-				break;
-			default:
-				logger.warn("Unknown registration type {} - will use {}", registrationType, RegistrationType.AFFINE);
-				motion = opencv_video.MOTION_AFFINE;
-				break;
-			}
-			double result = opencv_video.findTransformECC(matBase, matOverlay, matTransform, motion, termCrit, null);
-			logger.info("Transformation result: {}", result);
+			if (alignmentMethod == AlignmentMethod.MUTUAL_INFORMATION) {
+				// Intensities aren't necessarily linearly related, so use mutual information rather than ECC
+				var registration = new MutualInformationRegistration.Builder().build();
+				var result = registration.register(matBase, matOverlay, TransformTools.toAffineTransform(matTransform), registrationType);
+				matTransform.release();
+				matTransform = TransformTools.toMat(result);
+				logger.info("Transformation result (mutual information): {}", registration.getMutualInformation());
+				if (metrics != null)
+					metrics.setConvergence(registration.getEvaluations(), -1, Double.NaN, registration.getMutualInformation());
+			} else {
+				int motion = registrationType.getMotionType();
+				eccCorrelation = findTransformECC(matBase, matOverlay, matTransform, motion, termCrit, metrics);
+				logger.info("Transformation result: {}", eccCorrelation);
+			}
+			if (metrics != null)
+				metrics.addTiming("Registration", startTime);
 		} catch (Exception e) {
 			Dialogs.showErrorNotification("Estimate transform", "Unable to estimate transform - result did not converge");
 			logger.error("Unable to estimate transform", e);
-			return;
+			matTransform.release();
+			return null;
 		}
 		
 		// To use the following function, images need to be the same size
@@ -951,13 +2217,281 @@ public class ImageAlignmentPane {
 			indexer.getDouble(1, 2) * downsample
 			);
 		indexer.release();
+
+		// Assess the quality using the images we already have
+		startTime = System.nanoTime();
+		var quality = AlignmentQuality.compute(matBase, matOverlay, matTransform, downsample, QUALITY_TILE_SIZE, eccCorrelation);
+		logger.info("Alignment quality: {}", quality.getSummary());
+		if (metrics != null)
+			metrics.addTiming("Quality", startTime);
 		
 //		matMask.release();
-		matBase.release();
-		matOverlay.release();
 		matTransform.release();
+		return quality;
 	}
 	
+	/**
+	 * Run ECC, optionally recording convergence.
+	 * <p>
+	 * If convergence should be tracked, ECC is run one iteration at a time so that the change in correlation can be
+	 * recorded for each iteration. This gives the same result as a single call, but is slower because
+	 * the images are filtered again for every iteration.
+	 *
+	 * @param matBase the base image
+	 * @param matOverlay the overlay image
+	 * @param matTransform the initial transform, updated with the result
+	 * @param motion the OpenCV motion type
+	 * @param termCrit the termination criteria
+	 * @param metrics optional metrics object to record convergence; may be null
+	 * @return the final correlation coefficient
+	 */
+	static double findTransformECC(Mat matBase, Mat matOverlay, Mat matTransform, int motion, TermCriteria termCrit, AlignmentMetrics metrics) {
+		if (metrics == null || !metrics.isTrackConvergence()) {
+			double rho = opencv_video.findTransformECC(matBase, matOverlay, matTransform, motion, termCrit, null);
+			if (metrics != null)
+				metrics.setConvergence(termCrit.maxCount(), -1, Double.NaN, rho);
+			return rho;
+		}
+		int maxIterations = termCrit.maxCount();
+		double epsilon = termCrit.epsilon();
+		boolean useEpsilon = (termCrit.type() & TermCriteria.EPS) != 0;
+		var termCritSingle = new TermCriteria(TermCriteria.COUNT, 1, epsilon);
+		double rho = Double.NaN;
+		double delta = Double.NaN;
+		int convergedIteration = -1;
+		int i = 0;
+		while (i < maxIterations) {
+			double lastRho = rho;
+			rho = opencv_video.findTransformECC(matBase, matOverlay, matTransform, motion, termCritSingle, null);
+			i++;
+			if (Double.isFinite(lastRho)) {
+				delta = Math.abs(rho - lastRho);
+				if (convergedIteration < 0 && delta < epsilon) {
+					convergedIteration = i;
+					if (useEpsilon)
+						break;
+				}
+			}
+		}
+		termCritSingle.close();
+		metrics.setConvergence(i, convergedIteration, delta, rho);
+		return rho;
+	}
+
+	/**
+	 * Export the metrics for all alignments in this session.
+	 * @param json if true, export as JSON; otherwise, export as CSV
+	 */
+	private void exportMetrics(boolean json) {
+		if (metricsHistory.isEmpty())
+			return;
+		String ext = json ? "json" : "csv";
+		File file = FileChoosers.promptToSaveFile("Export metrics", new File("alignment-metrics." + ext),
+				new FileChooser.ExtensionFilter(json ? "JSON" : "CSV", "*." + ext));
+		if (file == null)
+			return;
+		try {
+			String content = json ? AlignmentMetrics.toJSON(metricsHistory) : AlignmentMetrics.toCSV(metricsHistory);
+			Files.writeString(file.toPath(), content, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			Dialogs.showErrorMessage("Export metrics", "Unable to write metrics: " + e.getLocalizedMessage());
+			logger.error("Error exporting metrics", e);
+		}
+	}
+
+	/**
+	 * Get the transforms to export: those of all current overlays, and any stored in the metadata of other project entries.
+	 */
+	private List<TransformIO.Entry> getTransformEntries() {
+		var imageDataBase = viewer.getImageData();
+		String baseName = imageDataBase == null ? null : ServerTools.getDisplayableImageName(imageDataBase.getServer());
+		var project = qupath.getProject();
+		List<TransformIO.Entry> entries = new ArrayList<>();
+		Map<ProjectImageEntry<BufferedImage>, AffineTransform> overlayTransforms = new LinkedHashMap<>();
+		for (var mapEntry : mapOverlays.entrySet()) {
+			var imageData = mapEntry.getKey();
+			if (imageData == imageDataBase)
+				continue;
+			var projectEntry = project == null ? null : project.getEntry(imageData);
+			if (projectEntry == null)
+				entries.add(new TransformIO.Entry(ServerTools.getDisplayableImageName(imageData.getServer()), null, baseName, mapEntry.getValue().getTransform()));
+			else
+				overlayTransforms.put(projectEntry, mapEntry.getValue().getTransform());
+		}
+		if (project != null) {
+			for (var projectEntry : project.getImageList()) {
+				var transform = overlayTransforms.get(projectEntry);
+				String base = baseName;
+				if (transform == null) {
+					transform = TransformIO.getStoredTransform(projectEntry);
+					base = TransformIO.getStoredBase(projectEntry);
+				}
+				if (transform != null)
+					entries.add(new TransformIO.Entry(projectEntry.getImageName(), projectEntry.getID(), base, transform));
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Query whether a transform relative to the specified base image can be applied to overlays of the image in the viewer.
+	 * The base may be given as a displayed image name, project entry name or project entry ID.
+	 * @param base the base image for the transform, or null if unknown (in which case the transform is assumed to apply)
+	 * @return
+	 */
+	private boolean matchesCurrentBase(String base) {
+		if (base == null)
+			return true;
+		var imageDataBase = viewer.getImageData();
+		if (imageDataBase == null)
+			return false;
+		if (base.equals(ServerTools.getDisplayableImageName(imageDataBase.getServer())))
+			return true;
+		var project = qupath.getProject();
+		var projectEntry = project == null ? null : project.getEntry(imageDataBase);
+		return projectEntry != null && (base.equals(projectEntry.getImageName()) || base.equals(projectEntry.getID()));
+	}
+
+	private void exportTransforms() {
+		var entries = getTransformEntries();
+		if (entries.isEmpty()) {
+			Dialogs.showErrorMessage("Export transforms", "No transforms to export - please add overlays or import transforms first");
+			return;
+		}
+		var format = Dialogs.showChoiceDialog("Export transforms", "Export format", TransformIO.Format.values(), TransformIO.Format.JSON);
+		if (format == null)
+			return;
+		try {
+			if (format.isSingleTransform()) {
+				File dir = FileChoosers.promptForDirectory("Export transforms", null);
+				if (dir == null)
+					return;
+				var imageDataBase = viewer.getImageData();
+				int width = imageDataBase == null ? 0 : imageDataBase.getServer().getWidth();
+				int height = imageDataBase == null ? 0 : imageDataBase.getServer().getHeight();
+				for (var entry : entries) {
+					try (var writer = Files.newBufferedWriter(new File(dir, format.getFileName(entry.image())).toPath(), StandardCharsets.UTF_8)) {
+						if (format == TransformIO.Format.ITK)
+							TransformIO.writeITK(writer, entry.transform());
+						else
+							TransformIO.writeElastix(writer, entry.transform(), width, height);
+					}
+				}
+			} else {
+				String ext = format == TransformIO.Format.JSON ? "json" : "csv";
+				File file = FileChoosers.promptToSaveFile("Export transforms", new File(format.getFileName("transforms")),
+						new FileChooser.ExtensionFilter(format == TransformIO.Format.JSON ? "JSON" : "CSV", "*." + ext));
+				if (file == null)
+					return;
+				try (var writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+						var entryWriter = format == TransformIO.Format.JSON ? TransformIO.createJSONWriter(writer) : TransformIO.createCSVWriter(writer)) {
+					for (var entry : entries)
+						entryWriter.write(entry);
+				}
+			}
+			Dialogs.showInfoNotification("Export transforms", String.format("Exported %d transforms", entries.size()));
+		} catch (IOException e) {
+			Dialogs.showErrorMessage("Export transforms", "Unable to write transforms: " + e.getLocalizedMessage());
+			logger.error("Error exporting transforms", e);
+		}
+	}
+
+	/**
+	 * Import transforms from one or more files, matching them to project entries by ID (if available) or image name.
+	 * Matched transforms are stored in the project entry metadata, and applied immediately to any current overlay for the image.
+	 * Images that aren't part of the project can only be matched to current overlays by name.
+	 */
+	private void importTransforms() {
+		var files = FileChoosers.promptForMultipleFiles("Import transforms",
+				new FileChooser.ExtensionFilter("Transforms", "*.json", "*.csv", "*.tfm", "*.txt"));
+		if (files == null || files.isEmpty())
+			return;
+
+		var project = qupath.getProject();
+		Map<String, ProjectImageEntry<BufferedImage>> entriesById = new HashMap<>();
+		Map<String, ProjectImageEntry<BufferedImage>> entriesByName = new HashMap<>();
+		Set<String> duplicateNames = new HashSet<>();
+		if (project != null) {
+			for (var projectEntry : project.getImageList()) {
+				entriesById.put(projectEntry.getID(), projectEntry);
+				if (entriesByName.putIfAbsent(projectEntry.getImageName(), projectEntry) != null)
+					duplicateNames.add(projectEntry.getImageName());
+			}
+		}
+		entriesByName.keySet().removeAll(duplicateNames);
+		Map<ProjectImageEntry<BufferedImage>, ImageServerOverlay> overlaysByEntry = new HashMap<>();
+		Map<String, ImageServerOverlay> overlaysByName = new HashMap<>();
+		for (var mapEntry : mapOverlays.entrySet()) {
+			var projectEntry = project == null ? null : project.getEntry(mapEntry.getKey());
+			if (projectEntry != null)
+				overlaysByEntry.put(projectEntry, mapEntry.getValue());
+			overlaysByName.put(ServerTools.getDisplayableImageName(mapEntry.getKey().getServer()), mapEntry.getValue());
+		}
+
+		int[] counts = new int[4]; // stored, applied to overlays, unmatched, different base
+		Consumer<TransformIO.Entry> consumer = entry -> {
+			var projectEntry = entry.id() == null ? null : entriesById.get(entry.id());
+			if (projectEntry == null && entry.image() != null)
+				projectEntry = entriesByName.get(entry.image());
+			ImageServerOverlay overlay;
+			if (projectEntry != null) {
+				TransformIO.setStoredTransform(projectEntry, entry.transform(), entry.base());
+				counts[0]++;
+				overlay = overlaysByEntry.get(projectEntry);
+			} else {
+				overlay = entry.image() == null ? null : overlaysByName.get(entry.image());
+			}
+			if (overlay != null && !matchesCurrentBase(entry.base())) {
+				logger.warn("Transform for {} is relative to {}, not the current image - it will not be applied", entry.image(), entry.base());
+				counts[3]++;
+			} else if (overlay != null) {
+				TransformTools.setAffine(entry.transform(), overlay.getAffine());
+				counts[1]++;
+			} else if (projectEntry == null) {
+				logger.debug("No image found for transform {}", entry);
+				counts[2]++;
+			}
+		};
+
+		try {
+			for (var file : files) {
+				var path = file.toPath();
+				var format = TransformIO.Format.fromPath(path);
+				if (format == null)
+					throw new IOException("Unknown transform format for " + file.getName());
+				try (var reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+					switch (format) {
+					case JSON -> TransformIO.readJSON(reader, consumer);
+					case CSV -> TransformIO.readCSV(reader, consumer);
+					case ITK -> consumer.accept(new TransformIO.Entry(format.getImageName(file.getName()), null, null, TransformIO.readITK(reader)));
+					case ELASTIX -> consumer.accept(new TransformIO.Entry(format.getImageName(file.getName()), null, null, TransformIO.readElastix(reader)));
+					}
+				}
+			}
+		} catch (IOException e) {
+			Dialogs.showErrorMessage("Import transforms", "Unable to read transforms: " + e.getLocalizedMessage());
+			logger.error("Error importing transforms", e);
+			return;
+		} finally {
+			if (project != null && counts[0] > 0) {
+				try {
+					project.syncChanges();
+				} catch (IOException e) {
+					logger.error("Error saving project", e);
+				}
+			}
+		}
+		var message = String.format("Stored %d transforms in project, applied %d to overlays", counts[0], counts[1]);
+		if (counts[3] > 0)
+			message += String.format(" (%d not applied because they are relative to a different base image)", counts[3]);
+		if (counts[2] > 0) {
+			Dialogs.showWarningNotification("Import transforms", message + String.format(" (%d not matched to any image)", counts[2]));
+		} else if (counts[3] > 0)
+			Dialogs.showWarningNotification("Import transforms", message);
+		else
+			Dialogs.showInfoNotification("Import transforms", message);
+	}
+
 	/**
 	 * Set the values of an Affine based on the contents of a 2x3 Mat.
 	 * @param matTransform the transform data to use
@@ -999,6 +2533,53 @@ public class ImageAlignmentPane {
 	}
 	
 	
+	/**
+	 * Search for the rotation and flip that best aligns the selected overlay with the base image, using thumbnails.
+	 * This runs in a background thread; the result is applied to the overlay if its transform has not changed in the meantime.
+	 */
+	void findOrientation() {
+		ImageData<BufferedImage> imageDataBase = viewer.getImageData();
+		ImageData<BufferedImage> imageDataSelected = selectedImageData.get();
+		if (imageDataBase == null || imageDataSelected == null || imageDataBase == imageDataSelected) {
+			Dialogs.showErrorMessage("Find orientation", "Please select an image overlay, not the 'base' image from the viewer!");
+			return;
+		}
+		ImageServerOverlay overlay = mapOverlays.get(imageDataSelected);
+		if (overlay == null)
+			return;
+		var preprocessor = new RegistrationPreprocessor(preprocessingChannel.get(), preprocessingSigma.get(), preprocessingNormalize.get());
+		var search = new OrientationSearch.Builder()
+				.preprocessors(preprocessor.withStains(imageDataBase.getColorDeconvolutionStains()),
+						preprocessor.withStains(imageDataSelected.getColorDeconvolutionStains()))
+				.build();
+		var plane = ImagePlane.getPlane(viewer.getZPosition(), viewer.getTPosition());
+		var globalTransform = new AffineTransform(overlay.getTransform());
+		pool.submit(() -> {
+			try {
+				var result = search.search(imageDataBase.getServer(), imageDataSelected.getServer(), plane, globalTransform);
+				Platform.runLater(() -> {
+					if (result == null) {
+						Dialogs.showErrorMessage("Find orientation", "Unable to find an orientation where the images overlap!");
+						return;
+					}
+					if (!globalTransform.equals(overlay.getTransform())) {
+						Dialogs.showWarningNotification("Find orientation", "Transform changed during search - result discarded");
+						return;
+					}
+					TransformTools.setAffine(result.transform(), overlay.getAffine());
+					Dialogs.showInfoNotification("Find orientation",
+							String.format("Rotated %.1f degrees%s (NCC %.3f)", result.angle(), result.flipped() ? " & flipped" : "", result.score()));
+					if (result.flipped() && registrationType.get() == RegistrationType.RIGID)
+						Dialogs.showWarningNotification("Find orientation", "Rigid registration can't represent flips - use affine registration to refine this alignment");
+				});
+			} catch (IOException e) {
+				logger.error("Error finding orientation", e);
+				Platform.runLater(() -> Dialogs.showErrorMessage("Find orientation", "Error requesting image region: " + e.getLocalizedMessage()));
+			}
+		});
+	}
+
+
 	static void requestShift(QuPathViewer viewer, Affine affine, double dx, double dy) {
 		double downsample = Math.max(1.0, viewer.getDownsampleFactor());
 		affine.appendTranslation(dx * downsample, dy * downsample);
@@ -1010,12 +2591,77 @@ public class ImageAlignmentPane {
 	
 	
 	
+	/**
+	 * Refine the translation of the selected overlay in the background, using the region currently visible in the viewer.
+	 * The result is applied smoothly, but only if the transform has not changed in the meantime.
+	 */
+	private void requestLiveSnap() {
+		var overlay = getSelectedOverlay();
+		var imageDataBase = viewer.getImageData();
+		var imageDataSelected = selectedImageData.get();
+		if (!liveSnap.get() || overlay == null || imageDataBase == null || imageDataSelected == null || imageDataBase == imageDataSelected)
+			return;
+		var preprocessor = new RegistrationPreprocessor(preprocessingChannel.get(), preprocessingSigma.get(), preprocessingNormalize.get());
+		var transform = new AffineTransform(overlay.getTransform());
+		liveSnapRefiner.request(imageDataBase.getServer(), imageDataSelected.getServer(),
+				preprocessor.withStains(imageDataBase.getColorDeconvolutionStains()),
+				preprocessor.withStains(imageDataSelected.getColorDeconvolutionStains()),
+				ImagePlane.getPlane(viewer.getZPosition(), viewer.getTPosition()),
+				transform, viewer.getDisplayedRegionShape().getBounds2D(),
+				result -> {
+					if (getSelectedOverlay() == overlay && transform.equals(overlay.getTransform()))
+						animateTransform(overlay, transform, result);
+				});
+	}
+
+	/**
+	 * Cancel any pending live snap, and stop applying any previous result.
+	 */
+	private void cancelLiveSnap() {
+		liveSnapPause.stop();
+		liveSnapRefiner.cancel();
+		if (liveSnapAnimation != null) {
+			liveSnapAnimation.stop();
+			liveSnapAnimation = null;
+		}
+	}
+
+	/**
+	 * Gradually change the transform of an overlay, by interpolating the transform coefficients.
+	 */
+	private void animateTransform(ImageServerOverlay overlay, AffineTransform start, AffineTransform end) {
+		double[] m0 = new double[6];
+		double[] m1 = new double[6];
+		start.getMatrix(m0);
+		end.getMatrix(m1);
+		liveSnapAnimation = new Transition() {
+			{
+				setCycleDuration(LIVE_SNAP_ANIMATION);
+			}
+
+			@Override
+			protected void interpolate(double frac) {
+				double[] m = new double[6];
+				for (int i = 0; i < m.length; i++)
+					m[i] = m0[i] + (m1[i] - m0[i]) * frac;
+				TransformTools.setAffine(new AffineTransform(m), overlay.getAffine());
+			}
+		};
+		liveSnapAnimation.play();
+	}
+
+
 	/**
 	 * An event handler to enable interactively adjusting overlay transforms.
 	 */
 	class RefineTransformMouseHandler implements EventHandler<MouseEvent> {
 		
 		private Point2D pDragging;
+
+		// Landmark being moved in landmark mode
+		private int draggingIndex = -1;
+		private boolean draggingBase;
+		private AffineTransform draggingTransform;
 		
 		@Override
 		public void handle(MouseEvent event) {
@@ -1025,20 +2671,108 @@ public class ImageAlignmentPane {
 			ImageServerOverlay overlay = getSelectedOverlay();
 			if (overlay == null)
 				return;
+
+			if (landmarkMode.get() && !event.isShiftDown()) {
+				handleLandmarkEvent(event, overlay);
+				return;
+			}
 				
 			if (event.getEventType() == MouseEvent.MOUSE_PRESSED) {
 				pDragging = viewer.componentPointToImagePoint(event.getX(), event.getY(), pDragging, true);
             } else if (event.getEventType() == MouseEvent.MOUSE_DRAGGED) {
 				Point2D p = viewer.componentPointToImagePoint(event.getX(), event.getY(), null, true);
 				if (event.isShiftDown() && pDragging != null) {
+					cancelLiveSnap();
 					double dx = p.getX() - pDragging.getX();
 					double dy = p.getY() - pDragging.getY();
 					overlay.getAffine().appendTranslation(-dx, -dy);
+					if (liveSnap.get())
+						liveSnapPause.playFromStart();
 					event.consume();
 				}
 				pDragging = p;
 			}
 		}
+
+		/**
+		 * Add or move landmarks. The transform at the start of each click is used to convert overlay points,
+		 * so that points being dragged don't move with the transform as it is refitted.
+		 */
+		private void handleLandmarkEvent(MouseEvent event, ImageServerOverlay overlay) {
+			var landmarks = getSelectedLandmarks();
+			if (landmarks == null)
+				return;
+			var pairs = landmarks.getPairs();
+			Point2D p = viewer.componentPointToImagePoint(event.getX(), event.getY(), null, false);
+			if (event.getEventType() == MouseEvent.MOUSE_PRESSED) {
+				draggingTransform = new AffineTransform(overlay.getTransform());
+				draggingIndex = findLandmark(pairs, p, draggingTransform);
+				if (draggingIndex >= 0) {
+					tableLandmarks.getSelectionModel().clearAndSelect(draggingIndex);
+				} else if (pendingLandmark == null) {
+					pendingLandmark = p;
+				} else {
+					var pOverlay = draggingTransform.transform(p, null);
+					pairs.add(new LandmarkPairs.Pair(pendingLandmark.getX(), pendingLandmark.getY(), pOverlay.getX(), pOverlay.getY()));
+					pendingLandmark = null;
+					landmarksChanged();
+					tableLandmarks.getSelectionModel().clearAndSelect(pairs.size() - 1);
+				}
+				updateLandmarkDisplay();
+				event.consume();
+			} else if (event.getEventType() == MouseEvent.MOUSE_DRAGGED) {
+				if (draggingIndex >= 0 && draggingIndex < pairs.size()) {
+					var pair = pairs.get(draggingIndex);
+					if (draggingBase) {
+						pair = pair.withBase(p.getX(), p.getY());
+					} else {
+						var pOverlay = draggingTransform.transform(p, null);
+						pair = pair.withOverlay(pOverlay.getX(), pOverlay.getY());
+					}
+					pairs.set(draggingIndex, pair);
+					tableLandmarks.getSelectionModel().clearAndSelect(draggingIndex);
+					landmarksChanged();
+				}
+				event.consume();
+			}
+		}
+
+		/**
+		 * Find the landmark with a base or overlay point close to a point in the viewer, setting {@link #draggingBase} accordingly.
+		 * @return the index of the landmark, or -1 if no landmark is close enough
+		 */
+		private int findLandmark(List<LandmarkPairs.Pair> pairs, Point2D p, AffineTransform transform) {
+			double tolerance = LandmarkOverlay.MARKER_RADIUS * viewer.getDownsampleFactor();
+			double best = tolerance * tolerance;
+			int ind = -1;
+			AffineTransform inverse;
+			try {
+				inverse = transform.createInverse();
+			} catch (NoninvertibleTransformException e) {
+				inverse = null;
+			}
+			var pOverlay = new Point2D.Double();
+			for (int i = 0; i < pairs.size(); i++) {
+				var pair = pairs.get(i);
+				double d2 = p.distanceSq(pair.baseX(), pair.baseY());
+				if (d2 <= best) {
+					best = d2;
+					ind = i;
+					draggingBase = true;
+				}
+				if (inverse != null) {
+					pOverlay.setLocation(pair.overlayX(), pair.overlayY());
+					inverse.transform(pOverlay, pOverlay);
+					d2 = p.distanceSq(pOverlay);
+					if (d2 <= best) {
+						best = d2;
+						ind = i;
+						draggingBase = false;
+					}
+				}
+			}
+			return ind;
+		}
 	}
 	
 	
@@ -28,6 +28,13 @@ import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 
+import org.locationtech.jts.densify.Densifier;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFilter;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +51,7 @@ import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.PixelCalibration;
 import qupath.lib.regions.ImageRegion;
 
+import qupath.lib.roi.GeometryTools;
 import qupath.lib.roi.RoiTools;
 import qupath.lib.roi.PointsROI;
 import qupath.lib.roi.ROIs;
@@ -58,6 +66,10 @@ import qupath.lib.objects.PathDetectionObject;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import qupath.lib.geom.Point2;
 
 /**
@@ -82,6 +94,14 @@ public class ImageServerOverlay extends AbstractOverlay {
 
 	private PixelCalibration viewerImageCalibration;
 	private PixelCalibration overlayImageCalibration;
+
+	private LocalTransformGrid localTransforms;
+	private PlaneTransforms planeTransforms;
+	private AlignmentQuality quality;
+
+	private double defaultScale = 1.0;
+
+	private final OverlayTilePrefetcher prefetcher;
 	
 	/**
 	 * Constructor.
@@ -102,6 +122,7 @@ public class ImageServerOverlay extends AbstractOverlay {
 		super(viewer.getOverlayOptions());
 		this.store = viewer.getImageRegionStore();
 		this.server = server;
+		this.prefetcher = new OverlayTilePrefetcher(store, server);
 		this.transform = new AffineTransform();
 		this.transformInverse = null;//transform.createInverse();
 		// Request repaint any time the transform changes
@@ -155,19 +176,129 @@ public class ImageServerOverlay extends AbstractOverlay {
 	}
 
 
+	/**
+	 * Get the grid of local transforms refining the affine transform, if available.
+	 * @return the local transforms, or null if the affine transform should be applied globally
+	 */
+	public LocalTransformGrid getLocalTransforms() {
+		return localTransforms;
+	}
+
+	/**
+	 * Set a grid of local transforms that refine the current affine transform.
+	 * These are used for painting and transforming objects until the affine transform is changed,
+	 * at which point they are discarded.
+	 * @param localTransforms the local transforms, or null to remove any existing local transforms
+	 * @throws IllegalArgumentException if the local transforms were not computed from the current affine transform
+	 */
+	public void setLocalTransforms(LocalTransformGrid localTransforms) {
+		if (localTransforms != null && !localTransforms.getGlobalTransform().equals(transform))
+			throw new IllegalArgumentException("Local transforms do not match the current affine transform");
+		this.localTransforms = localTransforms;
+	}
+
+	/**
+	 * Get the transforms for individual z-slices and timepoints, if available.
+	 * @return the plane transforms, or null if the affine transform should be applied to all planes
+	 */
+	public PlaneTransforms getPlaneTransforms() {
+		return planeTransforms;
+	}
+
+	/**
+	 * Set transforms for individual z-slices and timepoints, estimated from the current affine transform.
+	 * Where available, these take precedence over the affine transform and any local transforms for the corresponding plane.
+	 * They are discarded when the affine transform is changed.
+	 * @param planeTransforms the plane transforms, or null to remove any existing plane transforms
+	 * @throws IllegalArgumentException if the plane transforms were not estimated from the current affine transform
+	 */
+	public void setPlaneTransforms(PlaneTransforms planeTransforms) {
+		if (planeTransforms != null && !planeTransforms.getGlobalTransform().equals(transform))
+			throw new IllegalArgumentException("Plane transforms do not match the current affine transform");
+		this.planeTransforms = planeTransforms;
+	}
+
+	/**
+	 * Get the transform for a specific plane, if it differs from the affine transform.
+	 */
+	private AffineTransform getPlaneTransform(int z, int t) {
+		var planes = planeTransforms;
+		return planes == null ? null : planes.getTransform(z, t);
+	}
+
+	/**
+	 * Get the quality scores for the current affine transform, if available.
+	 * @return the quality scores, or null if they have not been computed for the current transform
+	 */
+	public AlignmentQuality getQuality() {
+		return quality;
+	}
+
+	/**
+	 * Set the quality scores for the current affine transform.
+	 * These are discarded when the affine transform is changed.
+	 * @param quality the quality scores, or null to remove any existing scores
+	 * @throws IllegalArgumentException if the scores were not computed for the current affine transform
+	 */
+	public void setQuality(AlignmentQuality quality) {
+		if (quality != null && !isCurrentTransform(quality.getTransform()))
+			throw new IllegalArgumentException("Quality scores do not match the current affine transform");
+		this.quality = quality;
+	}
+
+	/**
+	 * Check if a transform matches the current transform, allowing for rounding errors
+	 * (e.g. from single-precision OpenCV transforms).
+	 */
+	private boolean isCurrentTransform(AffineTransform other) {
+		double[] m1 = new double[6];
+		double[] m2 = new double[6];
+		transform.getMatrix(m1);
+		other.getMatrix(m2);
+		for (int i = 0; i < 6; i++) {
+			if (Math.abs(m1[i] - m2[i]) > 1e-3 * Math.max(1.0, Math.abs(m1[i])))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Set the scale used by {@link #resetAffine()} when either image lacks a pixel size, e.g. an estimate from the image content.
+	 * @param scale scale factor from viewer to overlay pixel coordinates
+	 */
+	public void setDefaultScale(double scale) {
+		this.defaultScale = scale;
+	}
+
+	/**
+	 * Get the scale used by {@link #resetAffine()} when either image lacks a pixel size.
+	 * @return the scale factor from viewer to overlay pixel coordinates (1 unless set)
+	 */
+	public double getDefaultScale() {
+		return defaultScale;
+	}
+
+	/**
+	 * Query whether both the viewer and overlay images have pixel sizes, so the scale between them is known.
+	 * @return
+	 */
+	public boolean hasPixelSizes() {
+		return viewerImageCalibration.hasPixelSizeMicrons() && overlayImageCalibration.hasPixelSizeMicrons();
+	}
+
 	/**
 	 * Reset the affine transform to its pixel-correct scaled identity
 	 */
 	public void resetAffine() {
 		// The scaling factors's defaults
-		double mxx = 1;
-		double myy = 1;
+		double mxx = defaultScale;
+		double myy = defaultScale;
 
 		if (this.affine == null)
 			return;
 
-        // Calculate the affine 'a' and 'y' scaling factor parameters - Defaults to 1 and 1 if no pixel size micron available.
-		if (this.viewerImageCalibration.hasPixelSizeMicrons() && this.overlayImageCalibration.hasPixelSizeMicrons()) {
+        // Calculate the affine 'a' and 'y' scaling factor parameters - Defaults to the default scale if no pixel size micron available.
+		if (hasPixelSizes()) {
 			mxx = this.viewerImageCalibration.getPixelWidthMicrons() / overlayImageCalibration.getPixelWidthMicrons();
 			myy = this.viewerImageCalibration.getPixelHeightMicrons() / overlayImageCalibration.getPixelHeightMicrons();
 		}
@@ -189,18 +320,49 @@ public class ImageServerOverlay extends AbstractOverlay {
 		} catch (NoninvertibleTransformException e) {
 			logger.warn("Unable to invert transform", e);
 		}
+		// Local transforms are only valid for the global transform they refine
+		if (localTransforms != null && !localTransforms.getGlobalTransform().equals(transform)) {
+			logger.debug("Discarding local transforms after affine transform changed");
+			localTransforms = null;
+		}
+		if (planeTransforms != null && !planeTransforms.getGlobalTransform().equals(transform)) {
+			logger.debug("Discarding plane transforms after affine transform changed");
+			planeTransforms = null;
+		}
+		if (quality != null && !isCurrentTransform(quality.getTransform())) {
+			logger.debug("Discarding quality scores after affine transform changed");
+			quality = null;
+		}
 	}
 
 	@Override
 	public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor, ImageData<BufferedImage> imageData, boolean paintCompletely) {
 
 		BufferedImage imgThumbnail = null;//store.getThumbnail(server, imageRegion.getZ(), imageRegion.getT(), true);
+
+		var inverse = transformInverse;
+		var planeTransform = getPlaneTransform(imageRegion.getZ(), imageRegion.getT());
+		// Local transforms are close to the affine transform, so it is good enough to predict which tiles are needed
+		prefetcher.update(imageRegion, downsampleFactor, planeTransform == null ? transform : planeTransform);
+		if (planeTransform != null) {
+			try {
+				inverse = planeTransform.createInverse();
+			} catch (NoninvertibleTransformException e) {
+				logger.debug("Unable to invert transform for plane z={}, t={}", imageRegion.getZ(), imageRegion.getT());
+			}
+		} else {
+			var grid = localTransforms;
+			if (grid != null) {
+				paintLocalTransforms(g2d, grid, imageRegion, downsampleFactor);
+				return;
+			}
+		}
 			
 		// Paint the image
 		Graphics2D gCopy = (Graphics2D)g2d.create();
-		if (transformInverse != null) {
+		if (inverse != null) {
 			AffineTransform transformOld = gCopy.getTransform();
-			transformOld.concatenate(transformInverse);
+			transformOld.concatenate(inverse);
 			gCopy.setTransform(transformOld);
 		} else {
 			logger.debug("Inverse affine transform is null!");
@@ -218,6 +380,44 @@ public class ImageServerOverlay extends AbstractOverlay {
 				
 	}
 
+	/**
+	 * Paint the overlay piecewise, clipping to each grid cell and applying its local transform.
+	 */
+	private void paintLocalTransforms(Graphics2D g2d, LocalTransformGrid grid, ImageRegion imageRegion, double downsampleFactor) {
+		var clip = g2d.getClipBounds();
+		int c0 = 0, r0 = 0;
+		int c1 = grid.getNumColumns() - 1;
+		int r1 = grid.getNumRows() - 1;
+		if (clip != null) {
+			c0 = grid.getColumn(clip.getMinX());
+			r0 = grid.getRow(clip.getMinY());
+			c1 = grid.getColumn(clip.getMaxX());
+			r1 = grid.getRow(clip.getMaxY());
+		}
+		var composite = getAlphaComposite();
+		var interpolation = PathPrefs.viewerInterpolateBilinearProperty().get() ?
+				RenderingHints.VALUE_INTERPOLATION_BILINEAR : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+		for (int r = r0; r <= r1; r++) {
+			for (int c = c0; c <= c1; c++) {
+				AffineTransform inverse;
+				try {
+					inverse = grid.getTransform(c, r).createInverse();
+				} catch (NoninvertibleTransformException e) {
+					logger.debug("Unable to invert local transform for cell ({}, {})", c, r);
+					continue;
+				}
+				Graphics2D gCopy = (Graphics2D)g2d.create();
+				gCopy.clip(grid.getCellBounds(c, r));
+				gCopy.transform(inverse);
+				if (composite != null)
+					gCopy.setComposite(composite);
+				gCopy.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+				store.paintRegion(server, gCopy, gCopy.getClip(), imageRegion.getZ(), imageRegion.getT(), downsampleFactor, null, null, renderer);
+				gCopy.dispose();
+			}
+		}
+	}
+
 	/**
 	 * Transform object, recursively transforming all child objects
 	 *
@@ -225,9 +425,118 @@ public class ImageServerOverlay extends AbstractOverlay {
 	 * @return
 	 */
 	public PathObject transformObject(PathObject pathObject) {
+		var roi = pathObject.getROI();
+		var planeTransform = roi == null ? null : getPlaneTransform(roi.getZ(), roi.getT());
+		if (planeTransform != null)
+			return transformObject(pathObject, planeTransform, null);
+		return transformObject(pathObject, transform, localTransforms);
+	}
+
+	/**
+	 * Transform objects into a target region, dropping objects that fall entirely outside it and clipping those that overlap its boundary.
+	 * <p>
+	 * The transformed bounding box of each object is computed cheaply and stored in an {@link STRtree}, which is queried
+	 * with the bounds of each part of the region. Only candidates returned by the index are transformed,
+	 * and only those whose bounding box is not entirely inside the region need exact clipping.
+	 * Clipped objects keep their classification, name and measurements.
+	 *
+	 * @param pathObjects objects to transform, in base image coordinates
+	 * @param region target region in overlay image coordinates (e.g. the overlay image bounds)
+	 * @return the transformed objects that overlap the region, in the order they were provided
+	 */
+	public List<PathObject> transformObjects(Collection<? extends PathObject> pathObjects, Geometry region) {
+		var tree = new STRtree();
+		for (var pathObject : pathObjects) {
+			var roi = pathObject.getROI();
+			if (roi != null)
+				tree.insert(getTransformedEnvelope(roi), pathObject);
+		}
+		Set<PathObject> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (int i = 0; i < region.getNumGeometries(); i++) {
+			for (var item : tree.query(region.getGeometryN(i).getEnvelopeInternal()))
+				candidates.add((PathObject)item);
+		}
+
+		var preparedRegion = PreparedGeometryFactory.prepare(region);
+		boolean isRectangle = region.isRectangle();
+		var regionEnvelope = region.getEnvelopeInternal();
+		var factory = region.getFactory();
+		List<PathObject> results = new ArrayList<>();
+		int nClipped = 0;
+		for (var pathObject : pathObjects) {
+			if (!candidates.contains(pathObject))
+				continue;
+			var transformed = transformObject(pathObject);
+			var roi = transformed.getROI();
+			var envelope = roi.getGeometry().getEnvelopeInternal();
+			boolean inside = isRectangle ? regionEnvelope.contains(envelope) : preparedRegion.containsProperly(factory.toGeometry(envelope));
+			if (!inside) {
+				var geometry = roi.getGeometry();
+				if (!preparedRegion.intersects(geometry))
+					continue;
+				geometry = geometry.intersection(region);
+				if (roi.isArea())
+					geometry = GeometryTools.homogenizeGeometryCollection(geometry);
+				if (geometry.isEmpty())
+					continue;
+				transformed = PathObjects.createAnnotationObject(GeometryTools.geometryToROI(geometry, roi.getImagePlane()),
+						transformed.getPathClass(), transformed.getMeasurementList());
+				transformed.setName(pathObject.getName());
+				nClipped++;
+			}
+			results.add(transformed);
+		}
+		logger.debug("Transformed {} of {} objects into target region ({} clipped)", results.size(), pathObjects.size(), nClipped);
+		return results;
+	}
+
+	/**
+	 * Get the bounding box of a ROI after transformation.
+	 * For local transforms, points along the boundary of the ROI bounding box are transformed,
+	 * since the corners alone don't capture the local deformation.
+	 */
+	private Envelope getTransformedEnvelope(ROI roi) {
+		double x1 = roi.getBoundsX(), y1 = roi.getBoundsY();
+		double x2 = x1 + roi.getBoundsWidth(), y2 = y1 + roi.getBoundsHeight();
+		var planeTransform = getPlaneTransform(roi.getZ(), roi.getT());
+		var grid = planeTransform == null ? localTransforms : null;
+		var envelope = new Envelope();
+		if (grid == null) {
+			double[] corners = {x1, y1, x2, y1, x2, y2, x1, y2};
+			(planeTransform == null ? transform : planeTransform).transform(corners, 0, corners, 0, 4);
+			for (int i = 0; i < corners.length; i += 2)
+				envelope.expandToInclude(corners[i], corners[i+1]);
+			return envelope;
+		}
+		double step = grid.getCellSize() / 4.0;
+		int nx = (int)Math.ceil((x2 - x1) / step);
+		int ny = (int)Math.ceil((y2 - y1) / step);
+		var p = new Point2D.Double();
+		for (int i = 0; i <= nx; i++) {
+			double x = nx == 0 ? x1 : x1 + (x2 - x1) * i / nx;
+			envelope.expandToInclude(grid.transform(x, y1, p).getX(), p.getY());
+			envelope.expandToInclude(grid.transform(x, y2, p).getX(), p.getY());
+		}
+		for (int i = 0; i <= ny; i++) {
+			double y = ny == 0 ? y1 : y1 + (y2 - y1) * i / ny;
+			envelope.expandToInclude(grid.transform(x1, y, p).getX(), p.getY());
+			envelope.expandToInclude(grid.transform(x2, y, p).getX(), p.getY());
+		}
+		return envelope;
+	}
+
+	/**
+	 * Transform object using an affine transform, or a grid of local transforms if available.
+	 *
+	 * @param pathObject
+	 * @param transform
+	 * @param grid optional grid of local transforms; if not null, this is used instead of the affine transform
+	 * @return
+	 */
+	static PathObject transformObject(PathObject pathObject, AffineTransform transform, LocalTransformGrid grid) {
 		// Create a new object with the converted ROI
 		var roi = pathObject.getROI();
-		var roi2 = this.transformROI(roi, transform);
+		var roi2 = grid == null ? transformROI(roi, transform) : transformROI(roi, grid);
 
 		PathObject newObject = null;
 
@@ -237,6 +546,44 @@ public class ImageServerOverlay extends AbstractOverlay {
 		return newObject;
 	}
 
+	/**
+	 * Transform ROI using a grid of local transforms.
+	 * The geometry is densified first, so that straight edges can follow the local deformation.
+	 *
+	 * @param roi
+	 * @param grid
+	 * @return
+	 */
+	static ROI transformROI(ROI roi, LocalTransformGrid grid) {
+		var geometry = roi.getGeometry();
+		if (!roi.isPoint())
+			geometry = Densifier.densify(geometry, grid.getCellSize() / 4.0);
+		else
+			geometry = geometry.copy();
+		var point = new Point2D.Double();
+		geometry.apply(new CoordinateSequenceFilter() {
+
+			@Override
+			public void filter(CoordinateSequence seq, int i) {
+				grid.transform(seq.getX(i), seq.getY(i), point);
+				seq.setOrdinate(i, CoordinateSequence.X, point.getX());
+				seq.setOrdinate(i, CoordinateSequence.Y, point.getY());
+			}
+
+			@Override
+			public boolean isDone() {
+				return false;
+			}
+
+			@Override
+			public boolean isGeometryChanged() {
+				return true;
+			}
+
+		});
+		return GeometryTools.geometryToROI(geometry, roi.getImagePlane());
+	}
+
 	/**
 	 * Transform ROI (via conversion to Java AWT shape)
 	 *
@@ -244,7 +591,7 @@ public class ImageServerOverlay extends AbstractOverlay {
 	 * @param transform
 	 * @return
 	 */
-	private ROI transformROI(ROI roi, AffineTransform transform) {
+	static ROI transformROI(ROI roi, AffineTransform transform) {
 		if (roi.getRoiType() == ROI.RoiType.POINT) {
 			List<Point2> points = roi.getAllPoints();
 			var nPoints = points.size();
@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+/**
+ * Static k-d tree for nearest neighbour queries on 2D points.
+ * <p>
+ * Points are stored in flat arrays, reordered so that each subtree occupies a contiguous range
+ * with its median point in the middle. This avoids creating an object per node.
+ */
+class KdTree2D {
+
+	private final double[] xs;
+	private final double[] ys;
+	private final int[] indices;
+
+	/**
+	 * Build a tree from interleaved coordinates.
+	 * @param xy point coordinates as (x0, y0, x1, y1, ...); this is not modified
+	 * @param n number of points
+	 */
+	KdTree2D(double[] xy, int n) {
+		xs = new double[n];
+		ys = new double[n];
+		indices = new int[n];
+		for (int i = 0; i < n; i++) {
+			xs[i] = xy[i*2];
+			ys[i] = xy[i*2+1];
+			indices[i] = i;
+		}
+		build(0, n, 0);
+	}
+
+	/**
+	 * Get the number of points.
+	 * @return
+	 */
+	int size() {
+		return xs.length;
+	}
+
+	private void build(int from, int to, int depth) {
+		if (to - from <= 1)
+			return;
+		int mid = (from + to) >>> 1;
+		select(from, to - 1, mid, (depth & 1) == 0 ? xs : ys);
+		build(from, mid, depth + 1);
+		build(mid + 1, to, depth + 1);
+	}
+
+	/**
+	 * Partially sort so that the element at k is in its sorted position, with no larger elements before it.
+	 */
+	private void select(int left, int right, int k, double[] values) {
+		while (right > left) {
+			double pivot = values[(left + right) >>> 1];
+			int i = left, j = right;
+			while (i <= j) {
+				while (values[i] < pivot)
+					i++;
+				while (values[j] > pivot)
+					j--;
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
+				return;
+		}
+	}
+
+	private void swap(int i, int j) {
+		double tx = xs[i]; xs[i] = xs[j]; xs[j] = tx;
+		double ty = ys[i]; ys[i] = ys[j]; ys[j] = ty;
+		int ti = indices[i]; indices[i] = indices[j]; indices[j] = ti;
+	}
+
+	/**
+	 * Find the nearest point.
+	 * @param x
+	 * @param y
+	 * @param result array of length 2 to store the index of the nearest point (in the original order) and its squared distance;
+	 *               the index is -1 if the tree is empty
+	 */
+	void nearest(double x, double y, double[] result) {
+		result[0] = -1;
+		result[1] = Double.POSITIVE_INFINITY;
+		nearest(0, xs.length, 0, x, y, result);
+		if (result[0] >= 0)
+			result[0] = indices[(int)result[0]];
+	}
+
+	private void nearest(int from, int to, int depth, double x, double y, double[] result) {
+		if (to <= from)
+			return;
+		int mid = (from + to) >>> 1;
+		double dx = xs[mid] - x;
+		double dy = ys[mid] - y;
+		double dist2 = dx*dx + dy*dy;
+		if (dist2 < result[1]) {
+			result[0] = mid;
+			result[1] = dist2;
+		}
+		double diff = (depth & 1) == 0 ? x - xs[mid] : y - ys[mid];
+		// Search the side containing the query first, then the other side only if it could contain a closer point
+		if (diff < 0) {
+			nearest(from, mid, depth + 1, x, y, result);
+			if (diff * diff < result[1])
+				nearest(mid + 1, to, depth + 1, x, y, result);
+		} else {
+			nearest(mid + 1, to, depth + 1, x, y, result);
+			if (diff * diff < result[1])
+				nearest(from, mid, depth + 1, x, y, result);
+		}
+	}
+
+}
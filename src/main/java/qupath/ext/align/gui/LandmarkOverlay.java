@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
+import qupath.lib.images.ImageData;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * Overlay showing landmark pairs used for interactive alignment.
+ * <p>
+ * Base points are drawn as circles, and overlay points (mapped into base coordinates using the current transform)
+ * as crosses. A line joins the points of each pair, so its length shows the residual.
+ */
+public class LandmarkOverlay extends AbstractOverlay {
+
+	/**
+	 * Radius of each marker, in screen pixels.
+	 */
+	static final double MARKER_RADIUS = 5.0;
+
+	private static final Color COLOR_BASE = new Color(0, 200, 255);
+	private static final Color COLOR_OVERLAY = new Color(255, 128, 0);
+	private static final Color COLOR_SELECTED = Color.YELLOW;
+
+	private LandmarkPairs landmarks;
+	private AffineTransform transform;
+	private LandmarkPairs.Pair selected;
+	private Point2D pendingBase;
+
+	/**
+	 * Constructor.
+	 * @param viewer viewer to which the overlay should be added
+	 */
+	public LandmarkOverlay(final QuPathViewer viewer) {
+		super(viewer.getOverlayOptions());
+	}
+
+	/**
+	 * Set the landmarks to display.
+	 * @param landmarks the landmarks, or null if nothing should be displayed
+	 * @param transform the current transform from base to overlay coordinates
+	 */
+	void setLandmarks(LandmarkPairs landmarks, AffineTransform transform) {
+		this.landmarks = landmarks;
+		this.transform = transform == null ? null : new AffineTransform(transform);
+	}
+
+	/**
+	 * Set the pair to highlight.
+	 * @param selected the selected pair, or null
+	 */
+	void setSelected(LandmarkPairs.Pair selected) {
+		this.selected = selected;
+	}
+
+	/**
+	 * Set a base point that has been placed, but does not yet have a corresponding overlay point.
+	 * @param pendingBase the point in base coordinates, or null
+	 */
+	void setPendingBase(Point2D pendingBase) {
+		this.pendingBase = pendingBase;
+	}
+
+	@Override
+	public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor, ImageData<BufferedImage> imageData, boolean paintCompletely) {
+		var landmarks = this.landmarks;
+		var transform = this.transform;
+		var pendingBase = this.pendingBase;
+		if ((landmarks == null || transform == null) && pendingBase == null)
+			return;
+
+		Graphics2D gCopy = (Graphics2D)g2d.create();
+		gCopy.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		gCopy.setStroke(new BasicStroke((float)(downsampleFactor * 1.5)));
+		double r = MARKER_RADIUS * downsampleFactor;
+		if (landmarks != null && transform != null) {
+			AffineTransform inverse;
+			try {
+				inverse = transform.createInverse();
+			} catch (NoninvertibleTransformException e) {
+				inverse = null;
+			}
+			var pOverlay = new Point2D.Double();
+			for (var pair : landmarks.getPairs()) {
+				boolean isSelected = pair.equals(selected);
+				gCopy.setColor(isSelected ? COLOR_SELECTED : COLOR_BASE);
+				gCopy.draw(new Ellipse2D.Double(pair.baseX() - r, pair.baseY() - r, r * 2, r * 2));
+				if (inverse == null)
+					continue;
+				pOverlay.setLocation(pair.overlayX(), pair.overlayY());
+				inverse.transform(pOverlay, pOverlay);
+				gCopy.setColor(isSelected ? COLOR_SELECTED : COLOR_OVERLAY);
+				gCopy.draw(new Line2D.Double(pOverlay.x - r, pOverlay.y - r, pOverlay.x + r, pOverlay.y + r));
+				gCopy.draw(new Line2D.Double(pOverlay.x - r, pOverlay.y + r, pOverlay.x + r, pOverlay.y - r));
+				gCopy.draw(new Line2D.Double(pair.baseX(), pair.baseY(), pOverlay.x, pOverlay.y));
+			}
+		}
+		if (pendingBase != null) {
+			gCopy.setColor(COLOR_SELECTED);
+			gCopy.draw(new Ellipse2D.Double(pendingBase.getX() - r, pendingBase.getY() - r, r * 2, r * 2));
+		}
+		gCopy.dispose();
+	}
+
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import qupath.ext.align.gui.ImageAlignmentPane.RegistrationType;
+
+/**
+ * Corresponding landmarks in a base and overlay image, with a least-squares transform fitted to them.
+ * <p>
+ * The least-squares sums are updated whenever a pair is added, removed or replaced in the list,
+ * so that editing a landmark and refitting the transform takes constant time, regardless of the number of pairs.
+ */
+class LandmarkPairs {
+
+	/**
+	 * A pair of corresponding points.
+	 * @param baseX x-coordinate in the base image
+	 * @param baseY y-coordinate in the base image
+	 * @param overlayX x-coordinate in the overlay image
+	 * @param overlayY y-coordinate in the overlay image
+	 */
+	record Pair(double baseX, double baseY, double overlayX, double overlayY) {
+
+		/**
+		 * Create a new pair with the base point moved.
+		 * @param x
+		 * @param y
+		 * @return
+		 */
+		Pair withBase(double x, double y) {
+			return new Pair(x, y, overlayX, overlayY);
+		}
+
+		/**
+		 * Create a new pair with the overlay point moved.
+		 * @param x
+		 * @param y
+		 * @return
+		 */
+		Pair withOverlay(double x, double y) {
+			return new Pair(baseX, baseY, x, y);
+		}
+
+		/**
+		 * Get the distance between the transformed base point and the overlay point.
+		 * @param transform transform from base to overlay coordinates
+		 * @return the residual, in overlay pixels
+		 */
+		double getResidual(AffineTransform transform) {
+			var p = transform.transform(new Point2D.Double(baseX, baseY), null);
+			return p.distance(overlayX, overlayY);
+		}
+
+	}
+
+	private final ObservableList<Pair> pairs = FXCollections.observableArrayList();
+	private final AffineLeastSquares lsq;
+
+	/**
+	 * Constructor.
+	 * @param originX x-coordinate close to the landmarks (e.g. the image center), used to preserve precision in the least-squares sums
+	 * @param originY y-coordinate close to the landmarks (e.g. the image center), used to preserve precision in the least-squares sums
+	 */
+	LandmarkPairs(double originX, double originY) {
+		lsq = new AffineLeastSquares(originX, originY);
+		pairs.addListener((ListChangeListener<Pair>)c -> {
+			while (c.next()) {
+				for (var pair : c.getRemoved())
+					lsq.add(pair.baseX, pair.baseY, pair.overlayX, pair.overlayY, -1.0);
+				for (var pair : c.getAddedSubList())
+					lsq.add(pair.baseX, pair.baseY, pair.overlayX, pair.overlayY, 1.0);
+			}
+		});
+	}
+
+	/**
+	 * Get the list of pairs. This may be modified directly (e.g. using {@code set} to move a landmark),
+	 * and the fitted transform is updated automatically.
+	 * @return
+	 */
+	ObservableList<Pair> getPairs() {
+		return pairs;
+	}
+
+	/**
+	 * Get the minimum number of pairs needed to fit a transform.
+	 * @param type
+	 * @return
+	 */
+	static int getMinPairs(RegistrationType type) {
+		return type == RegistrationType.RIGID ? 2 : 3;
+	}
+
+	/**
+	 * Fit a transform to the current pairs.
+	 * @param type the type of transform to fit
+	 * @return the transform from base to overlay coordinates, or null if there are too few pairs (or they are degenerate)
+	 */
+	AffineTransform solve(RegistrationType type) {
+		if (pairs.size() < getMinPairs(type))
+			return null;
+		return lsq.solve(type);
+	}
+
+	/**
+	 * Get the root-mean-square residual of all pairs.
+	 * @param transform transform from base to overlay coordinates
+	 * @return the RMS residual in overlay pixels, or NaN if there are no pairs
+	 */
+	double getRMSError(AffineTransform transform) {
+		if (pairs.isEmpty())
+			return Double.NaN;
+		double sum = 0;
+		for (var pair : pairs) {
+			double r = pair.getResidual(transform);
+			sum += r * r;
+		}
+		return Math.sqrt(sum / pairs.size());
+	}
+
+}
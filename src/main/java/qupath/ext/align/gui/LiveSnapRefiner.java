@@ -0,0 +1,213 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.bytedeco.opencv.global.opencv_video;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.TermCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.application.Platform;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Quickly refine the translation of an overlay around the current viewport, while the user is adjusting it interactively.
+ * <p>
+ * Each image is read once at a low resolution and cached, so that a refinement only needs a short ECC registration
+ * of the visible part of the base image against the overlay (typically well under 100 ms).
+ * Only the translation is refined, since that is what the user changes by dragging.
+ * <p>
+ * Requests are handled one at a time on a single background thread. Each new request (or call to {@link #cancel()})
+ * makes all earlier requests stale: they are skipped if they have not started, and their results are discarded otherwise.
+ */
+class LiveSnapRefiner {
+
+	private static final Logger logger = LoggerFactory.getLogger(LiveSnapRefiner.class);
+
+	/**
+	 * Maximum number of pixels in the cached low-resolution version of each image.
+	 */
+	private static final long MAX_PIXELS = 1_000_000;
+
+	private static final int MAX_ITERATIONS = 30;
+
+	/**
+	 * Results with a lower ECC correlation coefficient are discarded.
+	 */
+	private static final double MIN_CORRELATION = 0.4;
+
+	/**
+	 * Minimum width and height of the visible region, in pixels at the cached resolution.
+	 */
+	private static final int MIN_SIZE = 16;
+
+	/**
+	 * Maximum translation, as a fraction of the smaller dimension of the visible region.
+	 * Larger corrections are unlikely to be what the user intended.
+	 */
+	private static final double MAX_SHIFT_FRACTION = 0.25;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("image-alignment-snap", true));
+	private final AtomicLong generation = new AtomicLong();
+	private Future<?> pending;
+
+	// Only accessed from the executor thread
+	private CachedImage cacheBase;
+	private CachedImage cacheOverlay;
+
+	/**
+	 * Request that the transform is refined in the background.
+	 * This should be called from the JavaFX Application Thread.
+	 * @param serverBase the base image
+	 * @param serverOverlay the overlay image
+	 * @param preprocessorBase preprocessor to convert the base image to a single channel
+	 * @param preprocessorOverlay preprocessor to convert the overlay image to a single channel
+	 * @param plane the z-slice and timepoint to align
+	 * @param transform the current transform from base to overlay coordinates
+	 * @param viewport the visible region of the base image, at full resolution
+	 * @param onSuccess consumer of the refined transform; this is called on the JavaFX Application Thread, only if
+	 *                  no other request has been made (and {@link #cancel()} has not been called) in the meantime
+	 */
+	void request(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay,
+			RegistrationPreprocessor preprocessorBase, RegistrationPreprocessor preprocessorOverlay,
+			ImagePlane plane, AffineTransform transform, Rectangle2D viewport, Consumer<AffineTransform> onSuccess) {
+		long requestGeneration = cancel();
+		var initial = new AffineTransform(transform);
+		pending = executor.submit(() -> {
+			if (generation.get() != requestGeneration)
+				return;
+			try {
+				long startTime = System.nanoTime();
+				var result = refine(serverBase, serverOverlay, preprocessorBase, preprocessorOverlay, plane, initial, viewport);
+				logger.trace("Live snap completed in {} ms", (System.nanoTime() - startTime) / 1e6);
+				if (result != null) {
+					Platform.runLater(() -> {
+						if (generation.get() == requestGeneration)
+							onSuccess.accept(result);
+					});
+				}
+			} catch (Exception e) {
+				logger.debug("Unable to refine transform: {}", e.getLocalizedMessage());
+			}
+		});
+	}
+
+	/**
+	 * Make any pending request stale, so that it is skipped or its result is discarded.
+	 * @return the current generation, which is used to identify requests
+	 */
+	long cancel() {
+		if (pending != null)
+			pending.cancel(false);
+		return generation.incrementAndGet();
+	}
+
+	/**
+	 * Cancel any pending request, release the cached images and stop the background thread.
+	 */
+	void close() {
+		cancel();
+		executor.execute(() -> {
+			cacheBase = release(cacheBase);
+			cacheOverlay = release(cacheOverlay);
+		});
+		executor.shutdown();
+	}
+
+	private AffineTransform refine(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay,
+			RegistrationPreprocessor preprocessorBase, RegistrationPreprocessor preprocessorOverlay,
+			ImagePlane plane, AffineTransform transform, Rectangle2D viewport) throws IOException {
+		double downsample = RegistrationResolution.auto().withMaxPixels(MAX_PIXELS).getDownsample(serverBase, serverOverlay);
+		cacheBase = getCached(cacheBase, serverBase, preprocessorBase, downsample, plane);
+		cacheOverlay = getCached(cacheOverlay, serverOverlay, preprocessorOverlay, downsample, plane);
+
+		Mat matBase = cacheBase.mat;
+		int x = (int)Math.max(0, Math.floor(viewport.getMinX() / downsample));
+		int y = (int)Math.max(0, Math.floor(viewport.getMinY() / downsample));
+		int x2 = (int)Math.min(matBase.cols(), Math.ceil(viewport.getMaxX() / downsample));
+		int y2 = (int)Math.min(matBase.rows(), Math.ceil(viewport.getMaxY() / downsample));
+		if (x2 - x < MIN_SIZE || y2 - y < MIN_SIZE)
+			return null;
+
+		var regionTransform = TransformTools.toRegionTransform(transform, downsample, x * downsample, y * downsample, 0, 0);
+		Mat matTransform = TransformTools.toMat(regionTransform);
+		Mat matRegion = matBase.apply(new Rect(x, y, x2 - x, y2 - y)).clone();
+		try {
+			var termCrit = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, MAX_ITERATIONS, 0.001);
+			double cc = opencv_video.findTransformECC(matRegion, cacheOverlay.mat, matTransform, opencv_video.MOTION_TRANSLATION, termCrit, null);
+			var result = TransformTools.toAffineTransform(matTransform);
+			double shift = Math.hypot(result.getTranslateX() - regionTransform.getTranslateX(), result.getTranslateY() - regionTransform.getTranslateY());
+			if (cc < MIN_CORRELATION || shift > Math.min(x2 - x, y2 - y) * MAX_SHIFT_FRACTION) {
+				logger.trace("Live snap rejected (correlation {}, shift {} pixels)", cc, shift);
+				return null;
+			}
+			return TransformTools.fromRegionTransform(result, downsample, x * downsample, y * downsample, 0, 0);
+		} catch (Exception e) {
+			// ECC throws an exception if it fails to converge, which is common for regions without much texture
+			logger.trace("Live snap failed: {}", e.getLocalizedMessage());
+			return null;
+		} finally {
+			matRegion.release();
+			matTransform.release();
+		}
+	}
+
+	/**
+	 * Get a cached image, or read a new one if the cached image doesn't match the server and settings.
+	 */
+	private static CachedImage getCached(CachedImage cached, ImageServer<BufferedImage> server, RegistrationPreprocessor preprocessor,
+			double downsample, ImagePlane plane) throws IOException {
+		int z = Math.min(plane.getZ(), server.nZSlices()-1);
+		int t = Math.min(plane.getT(), server.nTimepoints()-1);
+		String key = preprocessor + ", downsample=" + downsample + ", z=" + z + ", t=" + t;
+		if (cached != null && cached.server == server && cached.key.equals(key))
+			return cached;
+		release(cached);
+		var img = server.readRegion(RegionRequest.createInstance(server.getPath(), downsample, 0, 0, server.getWidth(), server.getHeight(), z, t));
+		logger.debug("Caching {} x {} image for live snap ({})", img.getWidth(), img.getHeight(), key);
+		return new CachedImage(server, key, preprocessor.apply(img));
+	}
+
+	private static CachedImage release(CachedImage cached) {
+		if (cached != null)
+			cached.mat.release();
+		return null;
+	}
+
+	private record CachedImage(ImageServer<BufferedImage> server, String key, Mat mat) {}
+
+}
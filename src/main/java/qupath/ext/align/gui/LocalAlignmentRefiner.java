@@ -0,0 +1,441 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.bytedeco.javacpp.indexer.Indexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_video;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.TermCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.align.gui.ImageAlignmentPane.RegistrationType;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+import qupath.opencv.tools.OpenCVTools;
+
+/**
+ * Refine a global affine transform by estimating local transforms for overlapping tiles.
+ * <p>
+ * Each tile is registered independently using ECC at a (typically high) resolution, starting from the
+ * global transform. Tiles are processed in parallel using a {@link ForkJoinPool}.
+ * Tiles without enough texture, which fail to converge, or whose result disagrees strongly with the global
+ * transform or their neighbours are rejected, and fall back to the global transform.
+ */
+class LocalAlignmentRefiner {
+
+	private static final Logger logger = LoggerFactory.getLogger(LocalAlignmentRefiner.class);
+
+	private final double downsample;
+	private final int tileSize;
+	private final double overlap;
+	private final double minCorrelation;
+	private final double minStdDev;
+	private final double maxDisplacement;
+	private final double maxNeighbourDeviation;
+	private final int maxIterations;
+	private final int nThreads;
+	private final RegistrationPreprocessor preprocessorBase;
+	private final RegistrationPreprocessor preprocessorOverlay;
+
+	private LocalAlignmentRefiner(Builder builder) {
+		this.downsample = builder.downsample;
+		this.tileSize = builder.tileSize;
+		this.overlap = builder.overlap;
+		this.minCorrelation = builder.minCorrelation;
+		this.minStdDev = builder.minStdDev;
+		this.maxDisplacement = builder.maxDisplacement < 0 ? tileSize * 0.25 : builder.maxDisplacement;
+		this.maxNeighbourDeviation = builder.maxNeighbourDeviation;
+		this.maxIterations = builder.maxIterations;
+		this.nThreads = builder.nThreads;
+		this.preprocessorBase = builder.preprocessorBase;
+		this.preprocessorOverlay = builder.preprocessorOverlay;
+	}
+
+	/**
+	 * Estimate a grid of local transforms.
+	 * @param serverBase the base image
+	 * @param serverOverlay the overlay image
+	 * @param registrationType the type of transform to estimate for each tile
+	 * @param globalTransform global transform from the base to the overlay image, used as a starting point for every tile
+	 * @return the local transform grid
+	 * @throws IOException if the tiles could not be read
+	 */
+	LocalTransformGrid refine(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay,
+			RegistrationType registrationType, AffineTransform globalTransform) throws IOException {
+
+		double stride = tileSize * (1 - overlap) * downsample;
+		double margin = (tileSize * downsample - stride) / 2.0;
+		int nCols = Math.max(1, (int)Math.ceil(serverBase.getWidth() / stride));
+		int nRows = Math.max(1, (int)Math.ceil(serverBase.getHeight() / stride));
+		var grid = new LocalTransformGrid(globalTransform, 0, 0, stride, stride, nCols, nRows);
+
+		List<Callable<TileResult>> tasks = new ArrayList<>();
+		for (int r = 0; r < nRows; r++) {
+			for (int c = 0; c < nCols; c++) {
+				int col = c;
+				int row = r;
+				tasks.add(() -> refineTile(serverBase, serverOverlay, registrationType, globalTransform, grid, col, row, margin));
+			}
+		}
+		logger.debug("Refining {} tiles ({}x{}) at downsample {}", tasks.size(), nCols, nRows, downsample);
+
+		var pool = new ForkJoinPool(nThreads);
+		TileResult[] results = new TileResult[nCols * nRows];
+		try {
+			for (var future : pool.invokeAll(tasks)) {
+				var result = future.get();
+				results[result.row * nCols + result.col] = result;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Local refinement interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException("Error refining tiles", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+
+		rejectInconsistentTiles(results, nCols, nRows);
+
+		for (var result : results) {
+			if (result.transform != null)
+				grid.setTransform(result.col, result.row, result.transform);
+		}
+		logger.info("Local refinement complete: {}/{} tiles refined", grid.getNumRefined(), results.length);
+		return grid;
+	}
+
+
+	private TileResult refineTile(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay,
+			RegistrationType registrationType, AffineTransform globalTransform, LocalTransformGrid grid, int col, int row, double margin) throws IOException {
+
+		var cell = grid.getCellBounds(col, row);
+		int x = (int)Math.max(0, Math.floor(cell.getMinX() - margin));
+		int y = (int)Math.max(0, Math.floor(cell.getMinY() - margin));
+		int x2 = (int)Math.min(serverBase.getWidth(), Math.ceil(cell.getMaxX() + margin));
+		int y2 = (int)Math.min(serverBase.getHeight(), Math.ceil(cell.getMaxY() + margin));
+		var result = new TileResult(col, row);
+		if (x2 - x < downsample * 8 || y2 - y < downsample * 8)
+			return result;
+
+		// Find the overlay region corresponding to the base tile, with a margin to allow for local displacements
+		double[] corners = {x, y, x2, y, x, y2, x2, y2};
+		globalTransform.transform(corners, 0, corners, 0, 4);
+		double pad = maxDisplacement * downsample;
+		int ox = (int)Math.max(0, Math.floor(min(corners, 0) - pad));
+		int oy = (int)Math.max(0, Math.floor(min(corners, 1) - pad));
+		int ox2 = (int)Math.min(serverOverlay.getWidth(), Math.ceil(max(corners, 0) + pad));
+		int oy2 = (int)Math.min(serverOverlay.getHeight(), Math.ceil(max(corners, 1) + pad));
+		if (ox2 - ox < downsample * 8 || oy2 - oy < downsample * 8)
+			return result;
+
+		BufferedImage imgBase = serverBase.readRegion(RegionRequest.createInstance(serverBase.getPath(), downsample, x, y, x2 - x, y2 - y));
+		BufferedImage imgOverlay = serverOverlay.readRegion(RegionRequest.createInstance(serverOverlay.getPath(), downsample, ox, oy, ox2 - ox, oy2 - oy));
+
+		RegistrationPreprocessor.checkChannels(preprocessorBase, imgBase, preprocessorOverlay, imgOverlay);
+		Mat matBase = preprocessorBase.apply(imgBase);
+		Mat matOverlay = preprocessorOverlay.apply(imgOverlay);
+		var regionTransform = TransformTools.toRegionTransform(globalTransform, downsample, x, y, ox, oy);
+		Mat matTransform = TransformTools.toMat(regionTransform);
+		try {
+			// Skip tiles that are (almost) empty, since they can't be registered reliably.
+			// Check this on 8-bit intensities, since preprocessing can change the range of values.
+			Mat matTexture = matBase.depth() == opencv_core.CV_8U ? matBase : OpenCVTools.imageToMat(ImageAlignmentPane.ensureGrayScale(imgBase));
+			Mat mean = new Mat();
+			Mat stdDev = new Mat();
+			opencv_core.meanStdDev(matTexture, mean, stdDev);
+			if (matTexture != matBase)
+				matTexture.release();
+			double std;
+			try (Indexer indexer = stdDev.createIndexer()) {
+				std = indexer.getDouble(0);
+			}
+			mean.release();
+			stdDev.release();
+			if (std < minStdDev) {
+				logger.trace("Skipping tile ({}, {}) - insufficient texture (std dev {})", col, row, std);
+				return result;
+			}
+
+			var termCrit = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, maxIterations, 0.0001);
+			double cc = opencv_video.findTransformECC(matBase, matOverlay, matTransform, registrationType.getMotionType(), termCrit, null);
+			if (cc < minCorrelation) {
+				logger.trace("Rejecting tile ({}, {}) - correlation {}", col, row, cc);
+				return result;
+			}
+			var tileTransform = TransformTools.fromRegionTransform(TransformTools.toAffineTransform(matTransform), downsample, x, y, ox, oy);
+
+			// Reject tiles that move too far from the global transform
+			double[] check = {x, y, x2, y, x, y2, x2, y2};
+			double[] checkGlobal = check.clone();
+			tileTransform.transform(check, 0, check, 0, 4);
+			globalTransform.transform(checkGlobal, 0, checkGlobal, 0, 4);
+			double maxDist = 0;
+			for (int i = 0; i < check.length; i += 2)
+				maxDist = Math.max(maxDist, Point2D.distance(check[i], check[i+1], checkGlobal[i], checkGlobal[i+1]));
+			if (maxDist / downsample > maxDisplacement) {
+				logger.trace("Rejecting tile ({}, {}) - displacement {} pixels", col, row, maxDist / downsample);
+				return result;
+			}
+
+			var center = tileTransform.transform(new Point2D.Double(cell.getCenterX(), cell.getCenterY()), null);
+			var centerGlobal = globalTransform.transform(new Point2D.Double(cell.getCenterX(), cell.getCenterY()), null);
+			result.dx = (center.getX() - centerGlobal.getX()) / downsample;
+			result.dy = (center.getY() - centerGlobal.getY()) / downsample;
+			result.transform = tileTransform;
+		} catch (Exception e) {
+			logger.trace("Unable to refine tile ({}, {}): {}", col, row, e.getLocalizedMessage());
+		} finally {
+			matBase.release();
+			matOverlay.release();
+			matTransform.release();
+		}
+		return result;
+	}
+
+
+	/**
+	 * Reject tiles whose displacement (relative to the global transform) differs from the median
+	 * displacement of their accepted neighbours by more than the permitted deviation.
+	 */
+	private void rejectInconsistentTiles(TileResult[] results, int nCols, int nRows) {
+		if (!Double.isFinite(maxNeighbourDeviation))
+			return;
+		List<TileResult> toReject = new ArrayList<>();
+		double[] dx = new double[8];
+		double[] dy = new double[8];
+		for (var result : results) {
+			if (result.transform == null)
+				continue;
+			int n = 0;
+			for (int r = Math.max(0, result.row-1); r <= Math.min(nRows-1, result.row+1); r++) {
+				for (int c = Math.max(0, result.col-1); c <= Math.min(nCols-1, result.col+1); c++) {
+					var neighbour = results[r * nCols + c];
+					if (neighbour == result || neighbour.transform == null)
+						continue;
+					dx[n] = neighbour.dx;
+					dy[n] = neighbour.dy;
+					n++;
+				}
+			}
+			// Need at least a couple of neighbours to judge consistency
+			if (n < 2)
+				continue;
+			double medX = median(dx, n);
+			double medY = median(dy, n);
+			if (Math.hypot(result.dx - medX, result.dy - medY) > maxNeighbourDeviation)
+				toReject.add(result);
+		}
+		for (var result : toReject) {
+			logger.trace("Rejecting tile ({}, {}) - inconsistent with neighbours", result.col, result.row);
+			result.transform = null;
+		}
+	}
+
+	private static double median(double[] values, int n) {
+		double[] sorted = Arrays.copyOf(values, n);
+		Arrays.sort(sorted);
+		return n % 2 == 1 ? sorted[n/2] : (sorted[n/2-1] + sorted[n/2]) / 2.0;
+	}
+
+	private static double min(double[] xy, int offset) {
+		double v = Double.POSITIVE_INFINITY;
+		for (int i = offset; i < xy.length; i += 2)
+			v = Math.min(v, xy[i]);
+		return v;
+	}
+
+	private static double max(double[] xy, int offset) {
+		double v = Double.NEGATIVE_INFINITY;
+		for (int i = offset; i < xy.length; i += 2)
+			v = Math.max(v, xy[i]);
+		return v;
+	}
+
+
+	private static class TileResult {
+
+		private final int col;
+		private final int row;
+		private AffineTransform transform;
+		private double dx;
+		private double dy;
+
+		private TileResult(int col, int row) {
+			this.col = col;
+			this.row = row;
+		}
+
+	}
+
+
+	/**
+	 * Builder for a {@link LocalAlignmentRefiner}.
+	 */
+	static class Builder {
+
+		private double downsample = 1.0;
+		private int tileSize = 512;
+		private double overlap = 0.25;
+		private double minCorrelation = 0.5;
+		private double minStdDev = 4.0;
+		private double maxDisplacement = -1;
+		private double maxNeighbourDeviation = 8.0;
+		private int maxIterations = 50;
+		private int nThreads = Runtime.getRuntime().availableProcessors();
+		private RegistrationPreprocessor preprocessorBase = RegistrationPreprocessor.getDefault();
+		private RegistrationPreprocessor preprocessorOverlay = RegistrationPreprocessor.getDefault();
+
+		/**
+		 * Downsample at which tiles should be registered.
+		 * @param downsample
+		 * @return this builder
+		 */
+		Builder downsample(double downsample) {
+			this.downsample = downsample;
+			return this;
+		}
+
+		/**
+		 * Size of each tile, in pixels at the registration resolution (including overlap).
+		 * @param tileSize
+		 * @return this builder
+		 */
+		Builder tileSize(int tileSize) {
+			this.tileSize = tileSize;
+			return this;
+		}
+
+		/**
+		 * Fraction of each tile that overlaps with its neighbours, between 0 and 1.
+		 * @param overlap
+		 * @return this builder
+		 */
+		Builder overlap(double overlap) {
+			this.overlap = overlap;
+			return this;
+		}
+
+		/**
+		 * Minimum ECC correlation coefficient for a tile to be accepted.
+		 * @param minCorrelation
+		 * @return this builder
+		 */
+		Builder minCorrelation(double minCorrelation) {
+			this.minCorrelation = minCorrelation;
+			return this;
+		}
+
+		/**
+		 * Minimum standard deviation of base tile intensities; tiles with less texture are skipped.
+		 * @param minStdDev
+		 * @return this builder
+		 */
+		Builder minStdDev(double minStdDev) {
+			this.minStdDev = minStdDev;
+			return this;
+		}
+
+		/**
+		 * Maximum displacement from the global transform, in pixels at the registration resolution.
+		 * Defaults to a quarter of the tile size.
+		 * @param maxDisplacement
+		 * @return this builder
+		 */
+		Builder maxDisplacement(double maxDisplacement) {
+			this.maxDisplacement = maxDisplacement;
+			return this;
+		}
+
+		/**
+		 * Maximum difference between the displacement of a tile and the median displacement of its neighbours,
+		 * in pixels at the registration resolution. Use {@code Double.POSITIVE_INFINITY} to skip this check.
+		 * @param maxNeighbourDeviation
+		 * @return this builder
+		 */
+		Builder maxNeighbourDeviation(double maxNeighbourDeviation) {
+			this.maxNeighbourDeviation = maxNeighbourDeviation;
+			return this;
+		}
+
+		/**
+		 * Maximum number of ECC iterations per tile.
+		 * @param maxIterations
+		 * @return this builder
+		 */
+		Builder maxIterations(int maxIterations) {
+			this.maxIterations = maxIterations;
+			return this;
+		}
+
+		/**
+		 * Number of tiles to refine in parallel.
+		 * @param nThreads
+		 * @return this builder
+		 */
+		Builder nThreads(int nThreads) {
+			this.nThreads = Math.max(1, nThreads);
+			return this;
+		}
+
+		/**
+		 * Preprocessors used to convert the base and overlay tiles to a single channel.
+		 * @param preprocessorBase
+		 * @param preprocessorOverlay
+		 * @return this builder
+		 */
+		Builder preprocessors(RegistrationPreprocessor preprocessorBase, RegistrationPreprocessor preprocessorOverlay) {
+			this.preprocessorBase = preprocessorBase;
+			this.preprocessorOverlay = preprocessorOverlay;
+			return this;
+		}
+
+		/**
+		 * Build the refiner.
+		 * @return
+		 */
+		LocalAlignmentRefiner build() {
+			if (tileSize < 32)
+				throw new IllegalArgumentException("Tile size must be at least 32 pixels");
+			if (overlap < 0 || overlap >= 1)
+				throw new IllegalArgumentException("Overlap must be >= 0 and < 1");
+			return new LocalAlignmentRefiner(this);
+		}
+
+	}
+
+}
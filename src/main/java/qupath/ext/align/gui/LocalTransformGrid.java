@@ -0,0 +1,241 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+/**
+ * A regular grid of local affine transforms, each refining a global transform within one cell
+ * of the base image.
+ * <p>
+ * Cells are defined in full-resolution base image coordinates. Cells for which no reliable local transform
+ * could be found fall back to the global transform.
+ * <p>
+ * Individual cells can be used for piecewise rendering, while {@link #transform(double, double, Point2D)}
+ * blends the transforms of neighbouring cells to give a continuous mapping suitable for transforming objects.
+ */
+public class LocalTransformGrid {
+
+	private final AffineTransform globalTransform;
+
+	private final double originX;
+	private final double originY;
+	private final double cellWidth;
+	private final double cellHeight;
+	private final int nCols;
+	private final int nRows;
+
+	// Flattened 2x3 matrices (m00, m01, m02, m10, m11, m12) for each cell, in row-major order
+	private final double[] coefficients;
+	private final boolean[] refined;
+
+	LocalTransformGrid(AffineTransform globalTransform, double originX, double originY, double cellWidth, double cellHeight, int nCols, int nRows) {
+		this.globalTransform = new AffineTransform(globalTransform);
+		this.originX = originX;
+		this.originY = originY;
+		this.cellWidth = cellWidth;
+		this.cellHeight = cellHeight;
+		this.nCols = nCols;
+		this.nRows = nRows;
+		this.coefficients = new double[nCols * nRows * 6];
+		this.refined = new boolean[nCols * nRows];
+		for (int i = 0; i < nCols * nRows; i++)
+			setCoefficients(i, globalTransform);
+	}
+
+	private void setCoefficients(int ind, AffineTransform transform) {
+		int k = ind * 6;
+		coefficients[k] = transform.getScaleX();
+		coefficients[k+1] = transform.getShearX();
+		coefficients[k+2] = transform.getTranslateX();
+		coefficients[k+3] = transform.getShearY();
+		coefficients[k+4] = transform.getScaleY();
+		coefficients[k+5] = transform.getTranslateY();
+	}
+
+	/**
+	 * Set the local transform for a cell, or reset it to the global transform if the transform is null.
+	 * @param col
+	 * @param row
+	 * @param transform
+	 */
+	void setTransform(int col, int row, AffineTransform transform) {
+		int ind = row * nCols + col;
+		refined[ind] = transform != null;
+		setCoefficients(ind, transform == null ? globalTransform : transform);
+	}
+
+	/**
+	 * Get the global transform that this grid refines.
+	 * @return
+	 */
+	public AffineTransform getGlobalTransform() {
+		return new AffineTransform(globalTransform);
+	}
+
+	/**
+	 * Get the number of columns in the grid.
+	 * @return
+	 */
+	public int getNumColumns() {
+		return nCols;
+	}
+
+	/**
+	 * Get the number of rows in the grid.
+	 * @return
+	 */
+	public int getNumRows() {
+		return nRows;
+	}
+
+	/**
+	 * Get the number of cells with a refined local transform.
+	 * @return
+	 */
+	public int getNumRefined() {
+		int n = 0;
+		for (boolean r : refined) {
+			if (r)
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Query whether a cell has a refined local transform, rather than using the global transform.
+	 * @param col
+	 * @param row
+	 * @return
+	 */
+	public boolean isRefined(int col, int row) {
+		return refined[row * nCols + col];
+	}
+
+	/**
+	 * Get the bounds of a cell, in full-resolution base image coordinates.
+	 * @param col
+	 * @param row
+	 * @return
+	 */
+	public Rectangle2D getCellBounds(int col, int row) {
+		return new Rectangle2D.Double(originX + col * cellWidth, originY + row * cellHeight, cellWidth, cellHeight);
+	}
+
+	/**
+	 * Get the transform for a single cell.
+	 * @param col
+	 * @param row
+	 * @return
+	 */
+	public AffineTransform getTransform(int col, int row) {
+		int k = (row * nCols + col) * 6;
+		return new AffineTransform(
+				coefficients[k], coefficients[k+3],
+				coefficients[k+1], coefficients[k+4],
+				coefficients[k+2], coefficients[k+5]);
+	}
+
+	/**
+	 * Get the column containing an x-coordinate, clamped to the grid.
+	 * @param x
+	 * @return
+	 */
+	public int getColumn(double x) {
+		return clamp((int)Math.floor((x - originX) / cellWidth), nCols);
+	}
+
+	/**
+	 * Get the row containing a y-coordinate, clamped to the grid.
+	 * @param y
+	 * @return
+	 */
+	public int getRow(double y) {
+		return clamp((int)Math.floor((y - originY) / cellHeight), nRows);
+	}
+
+	private static int clamp(int v, int n) {
+		return v < 0 ? 0 : v >= n ? n - 1 : v;
+	}
+
+	/**
+	 * Transform a point from the base image to the overlay image.
+	 * The transforms of the four nearest cell centres are blended bilinearly, so that the mapping
+	 * is continuous across cell boundaries.
+	 * @param x x-coordinate in the base image
+	 * @param y y-coordinate in the base image
+	 * @param dest optional point to store the result
+	 * @return the transformed point
+	 */
+	public Point2D transform(double x, double y, Point2D dest) {
+		double gx = (x - originX) / cellWidth - 0.5;
+		double gy = (y - originY) / cellHeight - 0.5;
+		int c0 = clamp((int)Math.floor(gx), nCols);
+		int r0 = clamp((int)Math.floor(gy), nRows);
+		int c1 = Math.min(c0 + 1, nCols - 1);
+		int r1 = Math.min(r0 + 1, nRows - 1);
+		double wx = Math.max(0, Math.min(1, gx - c0));
+		double wy = Math.max(0, Math.min(1, gy - r0));
+
+		double w00 = (1 - wx) * (1 - wy);
+		double w10 = wx * (1 - wy);
+		double w01 = (1 - wx) * wy;
+		double w11 = wx * wy;
+		int k00 = (r0 * nCols + c0) * 6;
+		int k10 = (r0 * nCols + c1) * 6;
+		int k01 = (r1 * nCols + c0) * 6;
+		int k11 = (r1 * nCols + c1) * 6;
+
+		double x2 = 0, y2 = 0;
+		for (int i = 0; i < 3; i++) {
+			double v = i == 0 ? x : i == 1 ? y : 1;
+			x2 += v * (w00 * coefficients[k00 + i] + w10 * coefficients[k10 + i] +
+					w01 * coefficients[k01 + i] + w11 * coefficients[k11 + i]);
+			y2 += v * (w00 * coefficients[k00 + 3 + i] + w10 * coefficients[k10 + 3 + i] +
+					w01 * coefficients[k01 + 3 + i] + w11 * coefficients[k11 + 3 + i]);
+		}
+		if (dest == null)
+			return new Point2D.Double(x2, y2);
+		dest.setLocation(x2, y2);
+		return dest;
+	}
+
+	/**
+	 * Get the smaller side length of a grid cell, in full-resolution base image coordinates.
+	 * @return
+	 */
+	public double getCellSize() {
+		return Math.min(cellWidth, cellHeight);
+	}
+
+	@Override
+	public String toString() {
+		return "LocalTransformGrid [" + nCols + "x" + nRows + ", refined=" + getNumRefined() +
+				", global=" + Arrays.toString(new double[] {
+						globalTransform.getScaleX(), globalTransform.getShearX(), globalTransform.getTranslateX(),
+						globalTransform.getShearY(), globalTransform.getScaleY(), globalTransform.getTranslateY()}) + "]";
+	}
+
+}
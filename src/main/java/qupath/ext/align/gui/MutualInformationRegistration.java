@@ -0,0 +1,477 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.apache.commons.math3.exception.TooManyEvaluationsException;
+import org.apache.commons.math3.optim.InitialGuess;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.align.gui.ImageAlignmentPane.RegistrationType;
+
+/**
+ * Intensity-based registration by maximizing the mutual information between two images.
+ * <p>
+ * Unlike ECC, this does not assume that intensities are linearly related, and so is suitable for
+ * images with different stains or modalities.
+ * <p>
+ * Registration uses a multi-resolution pyramid, optimizing normalized mutual information at each level
+ * with a Nelder-Mead simplex. Joint histograms are accumulated using partial volume interpolation into
+ * primitive arrays, split into chunks that are accumulated in parallel.
+ */
+class MutualInformationRegistration {
+
+	private static final Logger logger = LoggerFactory.getLogger(MutualInformationRegistration.class);
+
+	/**
+	 * Minimum size of the smallest image dimension at the coarsest pyramid level.
+	 */
+	private static final int MIN_LEVEL_SIZE = 64;
+
+	private final int nBins;
+	private final int nLevels;
+	private final int maxSamples;
+	private final int maxEvaluations;
+	private final int nChunks;
+
+	private double mutualInformation = Double.NaN;
+	private int evaluations;
+
+	private MutualInformationRegistration(Builder builder) {
+		this.nBins = builder.nBins;
+		this.nLevels = builder.nLevels;
+		this.maxSamples = builder.maxSamples;
+		this.maxEvaluations = builder.maxEvaluations;
+		this.nChunks = builder.nChunks;
+	}
+
+	/**
+	 * Get the mutual information (in bits) at the end of the last registration.
+	 * @return
+	 */
+	double getMutualInformation() {
+		return mutualInformation;
+	}
+
+	/**
+	 * Get the total number of objective function evaluations (across all pyramid levels) used by the last registration.
+	 * @return
+	 */
+	int getEvaluations() {
+		return evaluations;
+	}
+
+	/**
+	 * Register two single-channel images.
+	 * @param matBase the base (fixed) image
+	 * @param matOverlay the overlay (moving) image
+	 * @param initial initial transform from base pixel coordinates to overlay pixel coordinates
+	 * @param registrationType the type of transform to estimate
+	 * @return the optimized transform from base pixel coordinates to overlay pixel coordinates
+	 */
+	AffineTransform register(Mat matBase, Mat matOverlay, AffineTransform initial, RegistrationType registrationType) {
+		var base = new BinnedImage(matBase, nBins);
+		var overlay = new BinnedImage(matOverlay, nBins);
+		List<BinnedImage> pyramidBase = new ArrayList<>();
+		List<BinnedImage> pyramidOverlay = new ArrayList<>();
+		pyramidBase.add(base);
+		pyramidOverlay.add(overlay);
+		while (pyramidBase.size() < nLevels) {
+			var b = pyramidBase.get(pyramidBase.size()-1);
+			var o = pyramidOverlay.get(pyramidOverlay.size()-1);
+			if (Math.min(b.width, b.height) < MIN_LEVEL_SIZE * 2 || Math.min(o.width, o.height) < MIN_LEVEL_SIZE * 2)
+				break;
+			pyramidBase.add(b.downsample2());
+			pyramidOverlay.add(o.downsample2());
+		}
+
+		// Convert the initial transform to the coarsest level
+		int coarsest = pyramidBase.size() - 1;
+		double scale = Math.pow(2, coarsest);
+		var transform = rescale(initial, 1.0/scale);
+
+		evaluations = 0;
+		for (int level = coarsest; level >= 0; level--) {
+			var b = pyramidBase.get(level);
+			var o = pyramidOverlay.get(level);
+			transform = optimize(b, o, transform, registrationType);
+			logger.debug("Mutual information level {} ({}x{}): MI = {}", level, b.width, b.height, mutualInformation);
+			if (level > 0)
+				transform = rescale(transform, 2.0);
+		}
+		return transform;
+	}
+
+
+	private AffineTransform optimize(BinnedImage base, BinnedImage overlay, AffineTransform initial, RegistrationType registrationType) {
+		double cx = base.width / 2.0;
+		double cy = base.height / 2.0;
+		int stride = Math.max(1, (int)Math.ceil(Math.sqrt((double)base.width * base.height / maxSamples)));
+		var parameterization = new Parameterization(initial, registrationType, cx, cy);
+
+		var best = new double[][] {parameterization.getInitialGuess()};
+		var bestValue = new double[] {Double.NEGATIVE_INFINITY};
+		var objective = new ObjectiveFunction(p -> {
+			evaluations++;
+			var hist = jointHistogram(base, overlay, parameterization.toTransform(p), stride);
+			double value = normalizedMutualInformation(hist);
+			if (value > bestValue[0]) {
+				bestValue[0] = value;
+				best[0] = p.clone();
+			}
+			return value;
+		});
+
+		var optimizer = new SimplexOptimizer(1e-6, 1e-9);
+		try {
+			optimizer.optimize(
+					new MaxEval(maxEvaluations),
+					objective,
+					GoalType.MAXIMIZE,
+					new InitialGuess(parameterization.getInitialGuess()),
+					new NelderMeadSimplex(parameterization.getSteps())
+					);
+		} catch (TooManyEvaluationsException e) {
+			logger.debug("Mutual information optimization reached the maximum number of evaluations ({})", maxEvaluations);
+		}
+		var transform = parameterization.toTransform(best[0]);
+		var hist = jointHistogram(base, overlay, transform, stride);
+		mutualInformation = AlignmentQuality.mutualInformation(hist, nBins, sum(hist));
+		return transform;
+	}
+
+
+	/**
+	 * Accumulate a joint histogram, sampling the base image on a regular grid and distributing each sample
+	 * across the bins of the four neighbouring overlay pixels (partial volume interpolation).
+	 */
+	double[] jointHistogram(BinnedImage base, BinnedImage overlay, AffineTransform transform, int stride) {
+		double m00 = transform.getScaleX();
+		double m01 = transform.getShearX();
+		double m02 = transform.getTranslateX();
+		double m10 = transform.getShearY();
+		double m11 = transform.getScaleY();
+		double m12 = transform.getTranslateY();
+		int nRows = (base.height + stride - 1) / stride;
+		int chunks = Math.max(1, Math.min(nChunks, nRows));
+		int rowsPerChunk = (nRows + chunks - 1) / chunks;
+
+		return IntStream.range(0, chunks).parallel().mapToObj(chunk -> {
+			double[] hist = new double[nBins * nBins];
+			int rowStart = chunk * rowsPerChunk;
+			int rowEnd = Math.min(nRows, rowStart + rowsPerChunk);
+			int ow = overlay.width;
+			int oh = overlay.height;
+			byte[] bins = overlay.bins;
+			for (int r = rowStart; r < rowEnd; r++) {
+				int y = r * stride;
+				int offset = y * base.width;
+				for (int x = 0; x < base.width; x += stride) {
+					double u = m00 * x + m01 * y + m02;
+					double v = m10 * x + m11 * y + m12;
+					if (u < 0 || v < 0 || u >= ow - 1 || v >= oh - 1)
+						continue;
+					int u0 = (int)u;
+					int v0 = (int)v;
+					double fu = u - u0;
+					double fv = v - v0;
+					int row = (base.bins[offset + x] & 0xFF) * nBins;
+					int ind = v0 * ow + u0;
+					hist[row + (bins[ind] & 0xFF)] += (1 - fu) * (1 - fv);
+					hist[row + (bins[ind + 1] & 0xFF)] += fu * (1 - fv);
+					hist[row + (bins[ind + ow] & 0xFF)] += (1 - fu) * fv;
+					hist[row + (bins[ind + ow + 1] & 0xFF)] += fu * fv;
+				}
+			}
+			return hist;
+		}).reduce((h1, h2) -> {
+			for (int i = 0; i < h1.length; i++)
+				h1[i] += h2[i];
+			return h1;
+		}).orElseGet(() -> new double[nBins * nBins]);
+	}
+
+	/**
+	 * Normalized mutual information (H(A) + H(B)) / H(A, B), which is less sensitive to changes in overlap than MI.
+	 */
+	private double normalizedMutualInformation(double[] hist) {
+		double n = sum(hist);
+		if (n <= 0)
+			return 0;
+		double[] pA = new double[nBins];
+		double[] pB = new double[nBins];
+		double hAB = 0;
+		for (int a = 0; a < nBins; a++) {
+			for (int b = 0; b < nBins; b++) {
+				double p = hist[a * nBins + b] / n;
+				if (p <= 0)
+					continue;
+				pA[a] += p;
+				pB[b] += p;
+				hAB -= p * Math.log(p);
+			}
+		}
+		if (hAB <= 0)
+			return 0;
+		return (entropy(pA) + entropy(pB)) / hAB;
+	}
+
+	private static double entropy(double[] p) {
+		double h = 0;
+		for (double v : p) {
+			if (v > 0)
+				h -= v * Math.log(v);
+		}
+		return h;
+	}
+
+	private static double sum(double[] values) {
+		double sum = 0;
+		for (double v : values)
+			sum += v;
+		return sum;
+	}
+
+	/**
+	 * Convert a transform between pixel coordinates to the equivalent transform after both images are rescaled.
+	 */
+	private static AffineTransform rescale(AffineTransform transform, double scale) {
+		var result = AffineTransform.getScaleInstance(scale, scale);
+		result.concatenate(transform);
+		result.scale(1.0/scale, 1.0/scale);
+		return result;
+	}
+
+
+	/**
+	 * Map between optimizer parameters and transforms.
+	 * Parameters are applied relative to the initial transform, around the centre of the base image,
+	 * so that rotation/scaling and translation are approximately decoupled.
+	 */
+	private static class Parameterization {
+
+		private final AffineTransform initial;
+		private final RegistrationType type;
+		private final double cx;
+		private final double cy;
+
+		private Parameterization(AffineTransform initial, RegistrationType type, double cx, double cy) {
+			this.initial = initial;
+			this.type = type;
+			this.cx = cx;
+			this.cy = cy;
+		}
+
+		double[] getInitialGuess() {
+			if (type == RegistrationType.RIGID)
+				return new double[3];
+			return new double[6];
+		}
+
+		double[] getSteps() {
+			if (type == RegistrationType.RIGID)
+				return new double[] {0.05, 2.0, 2.0};
+			return new double[] {0.05, 0.05, 2.0, 0.05, 0.05, 2.0};
+		}
+
+		AffineTransform toTransform(double[] p) {
+			var local = new AffineTransform();
+			if (type == RegistrationType.RIGID) {
+				local.translate(p[1], p[2]);
+				local.rotate(p[0], cx, cy);
+			} else {
+				local.translate(cx + p[2], cy + p[5]);
+				local.concatenate(new AffineTransform(1 + p[0], p[3], p[1], 1 + p[4], 0, 0));
+				local.translate(-cx, -cy);
+			}
+			var result = new AffineTransform(initial);
+			result.concatenate(local);
+			return result;
+		}
+
+	}
+
+
+	/**
+	 * Single-channel image with intensities quantized into histogram bins.
+	 */
+	static class BinnedImage {
+
+		private final int width;
+		private final int height;
+		private final float[] values;
+		private final byte[] bins;
+		private final float min;
+		private final float max;
+		private final int nBins;
+
+		BinnedImage(Mat mat, int nBins) {
+			this(mat.cols(), mat.rows(), toFloatArray(mat), Float.NaN, Float.NaN, nBins);
+		}
+
+		private BinnedImage(int width, int height, float[] values, float min, float max, int nBins) {
+			this.width = width;
+			this.height = height;
+			this.values = values;
+			this.nBins = nBins;
+			if (Float.isNaN(min) || Float.isNaN(max)) {
+				min = Float.POSITIVE_INFINITY;
+				max = Float.NEGATIVE_INFINITY;
+				for (float v : values) {
+					if (v < min)
+						min = v;
+					if (v > max)
+						max = v;
+				}
+			}
+			this.min = min;
+			this.max = max;
+			this.bins = new byte[values.length];
+			float scale = max > min ? (nBins - 1e-3f) / (max - min) : 0f;
+			for (int i = 0; i < values.length; i++)
+				bins[i] = (byte)Math.min(nBins - 1, Math.max(0, (int)((values[i] - min) * scale)));
+		}
+
+		/**
+		 * Downsample by a factor of 2 by averaging 2x2 blocks, keeping the binning range unchanged.
+		 */
+		BinnedImage downsample2() {
+			int w2 = width / 2;
+			int h2 = height / 2;
+			float[] values2 = new float[w2 * h2];
+			for (int y = 0; y < h2; y++) {
+				int ind = 2 * y * width;
+				for (int x = 0; x < w2; x++) {
+					int i = ind + 2 * x;
+					values2[y * w2 + x] = (values[i] + values[i + 1] + values[i + width] + values[i + width + 1]) / 4f;
+				}
+			}
+			return new BinnedImage(w2, h2, values2, min, max, nBins);
+		}
+
+		private static float[] toFloatArray(Mat mat) {
+			Mat mat32 = new Mat();
+			mat.convertTo(mat32, opencv_core.CV_32F);
+			if (!mat32.isContinuous()) {
+				var temp = mat32.clone();
+				mat32.release();
+				mat32 = temp;
+			}
+			float[] values = new float[(int)mat32.total()];
+			FloatBuffer buffer = mat32.createBuffer();
+			buffer.get(values);
+			mat32.release();
+			return values;
+		}
+
+	}
+
+
+	/**
+	 * Builder for a {@link MutualInformationRegistration}.
+	 */
+	static class Builder {
+
+		private int nBins = 32;
+		private int nLevels = 3;
+		private int maxSamples = 200_000;
+		private int maxEvaluations = 1000;
+		private int nChunks = Runtime.getRuntime().availableProcessors() * 2;
+
+		/**
+		 * Number of histogram bins per image (at most 256).
+		 * @param nBins
+		 * @return this builder
+		 */
+		Builder bins(int nBins) {
+			this.nBins = nBins;
+			return this;
+		}
+
+		/**
+		 * Maximum number of pyramid levels, including the original resolution.
+		 * @param nLevels
+		 * @return this builder
+		 */
+		Builder levels(int nLevels) {
+			this.nLevels = nLevels;
+			return this;
+		}
+
+		/**
+		 * Approximate maximum number of base image pixels sampled per evaluation.
+		 * @param maxSamples
+		 * @return this builder
+		 */
+		Builder maxSamples(int maxSamples) {
+			this.maxSamples = maxSamples;
+			return this;
+		}
+
+		/**
+		 * Maximum number of objective function evaluations per pyramid level.
+		 * @param maxEvaluations
+		 * @return this builder
+		 */
+		Builder maxEvaluations(int maxEvaluations) {
+			this.maxEvaluations = maxEvaluations;
+			return this;
+		}
+
+		/**
+		 * Number of chunks into which each histogram accumulation is split for parallel processing.
+		 * @param nChunks
+		 * @return this builder
+		 */
+		Builder chunks(int nChunks) {
+			this.nChunks = nChunks;
+			return this;
+		}
+
+		/**
+		 * Build the registration.
+		 * @return
+		 */
+		MutualInformationRegistration build() {
+			if (nBins < 2 || nBins > 256)
+				throw new IllegalArgumentException("Number of bins must be between 2 and 256");
+			if (nLevels < 1)
+				throw new IllegalArgumentException("Number of levels must be at least 1");
+			return new MutualInformationRegistration(this);
+		}
+
+	}
+
+}
@@ -0,0 +1,330 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Coarse search for the orientation of an overlay, for sections that were mounted flipped or rotated.
+ * <p>
+ * All 8 combinations of 90 degree rotations and flipping are tested, each with finer rotation steps between them,
+ * using low resolution thumbnails of both images. For each candidate the overlay is warped into the base image,
+ * the translation is found by phase correlation, and the result is scored by normalized cross-correlation
+ * over the overlapping pixels. Candidates are independent, so are evaluated in parallel.
+ * The scale of the current transform is kept, so the result can be used to initialize a finer registration.
+ */
+class OrientationSearch {
+
+	private static final Logger logger = LoggerFactory.getLogger(OrientationSearch.class);
+
+	/**
+	 * Minimum fraction of the smaller image that must overlap for a candidate to be scored.
+	 */
+	private static final double MIN_OVERLAP = 0.25;
+
+	private final double fineStep;
+	private final long maxPixels;
+	private final int nThreads;
+	private final RegistrationPreprocessor preprocessorBase;
+	private final RegistrationPreprocessor preprocessorOverlay;
+
+	/**
+	 * The best orientation found by a search.
+	 * @param transform transform from base to overlay coordinates, at full resolution
+	 * @param angle rotation in degrees
+	 * @param flipped true if the overlay is flipped horizontally (before rotation)
+	 * @param score normalized cross-correlation between the base and transformed overlay thumbnails
+	 */
+	record Result(AffineTransform transform, double angle, boolean flipped, double score) {}
+
+	private OrientationSearch(Builder builder) {
+		this.fineStep = builder.fineStep;
+		this.maxPixels = builder.maxPixels;
+		this.nThreads = builder.nThreads;
+		this.preprocessorBase = builder.preprocessorBase;
+		this.preprocessorOverlay = builder.preprocessorOverlay;
+	}
+
+	/**
+	 * Find the orientation that best aligns the overlay with the base image.
+	 * @param serverBase the base image
+	 * @param serverOverlay the overlay image
+	 * @param plane z-slice and timepoint to use
+	 * @param transform the current transform from base to overlay coordinates; only its scale is used
+	 * @return the best orientation, or null if no candidate overlapped sufficiently
+	 * @throws IOException if the thumbnails could not be read, or the search was interrupted
+	 */
+	Result search(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay, ImagePlane plane, AffineTransform transform) throws IOException {
+		double downsample = RegistrationResolution.auto().withMaxPixels(maxPixels).getDownsample(serverBase, serverOverlay);
+		Mat matBase = readThumbnail(serverBase, preprocessorBase, downsample, plane);
+		Mat matOverlay = readThumbnail(serverOverlay, preprocessorOverlay, downsample, plane);
+		try {
+			double scale = Math.sqrt(Math.abs(transform.getDeterminant()));
+			return search(matBase, matOverlay, downsample, scale > 0 ? scale : 1.0);
+		} finally {
+			matBase.release();
+			matOverlay.release();
+		}
+	}
+
+	/**
+	 * Find the orientation that best aligns two thumbnails.
+	 * @param matBase single-channel base thumbnail
+	 * @param matOverlay single-channel overlay thumbnail, at the same downsample
+	 * @param downsample the downsample of both thumbnails
+	 * @param scale scale factor from base to overlay coordinates
+	 * @return the best orientation, or null if no candidate overlapped sufficiently
+	 * @throws IOException if the search was interrupted
+	 */
+	Result search(Mat matBase, Mat matOverlay, double downsample, double scale) throws IOException {
+		long startTime = System.nanoTime();
+		Mat base32 = to32F(matBase);
+		Mat overlay32 = to32F(matOverlay);
+		float[] pixelsBase = toFloats(base32);
+
+		int nFine = Math.max(1, (int)Math.round(90.0 / fineStep));
+		List<Callable<Result>> tasks = new ArrayList<>();
+		for (boolean flipped : new boolean[] {false, true}) {
+			for (int i = 0; i < 4 * nFine; i++) {
+				// Fine steps are centred on each 90 degree rotation
+				double angle = (i - nFine / 2) * 90.0 / nFine;
+				tasks.add(() -> evaluate(base32, pixelsBase, overlay32, angle, flipped, scale));
+			}
+		}
+
+		var pool = new ForkJoinPool(nThreads);
+		Result best = null;
+		try {
+			for (var future : pool.invokeAll(tasks)) {
+				var result = future.get();
+				if (result != null && (best == null || result.score > best.score))
+					best = result;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Orientation search interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Error searching orientations", e.getCause());
+		} finally {
+			pool.shutdown();
+			if (base32 != matBase)
+				base32.release();
+			if (overlay32 != matOverlay)
+				overlay32.release();
+		}
+		logger.debug("Orientation search: {} candidates in {} ms, best {}", tasks.size(), (System.nanoTime() - startTime) / 1_000_000, best);
+		if (best == null)
+			return null;
+		var transform = TransformTools.fromRegionTransform(best.transform, downsample, 0, 0, 0, 0);
+		return new Result(transform, best.angle, best.flipped, best.score);
+	}
+
+	/**
+	 * Score one orientation, returning the transform between the thumbnails or null if there is too little overlap.
+	 */
+	private static Result evaluate(Mat matBase, float[] pixelsBase, Mat matOverlay, double angle, boolean flipped, double scale) {
+		double theta = Math.toRadians(angle);
+		double cos = Math.cos(theta) * scale;
+		double sin = Math.sin(theta) * scale;
+		double f = flipped ? -1 : 1;
+		// Linear part: scale * rotation * flip
+		double m00 = cos * f, m01 = -sin;
+		double m10 = sin * f, m11 = cos;
+		// Start by mapping the centre of the base to the centre of the overlay
+		double cxBase = matBase.cols() / 2.0, cyBase = matBase.rows() / 2.0;
+		double cxOverlay = matOverlay.cols() / 2.0, cyOverlay = matOverlay.rows() / 2.0;
+		var transform = new AffineTransform(m00, m10, m01, m11,
+				cxOverlay - (m00 * cxBase + m01 * cyBase),
+				cyOverlay - (m10 * cxBase + m11 * cyBase));
+
+		Mat matWarped = warp(matOverlay, transform, matBase);
+		// If the warped overlay is the base shifted by s, then base(p) = warped(p + s)
+		var shift = opencv_imgproc.phaseCorrelate(matBase, matWarped);
+		double sx = shift.x(), sy = shift.y();
+		shift.close();
+		matWarped.release();
+		transform.translate(sx, sy);
+
+		matWarped = warp(matOverlay, transform, matBase);
+		float[] pixelsWarped = toFloats(matWarped);
+		matWarped.release();
+		double score = computeNCC(pixelsBase, pixelsWarped, matBase.cols(), matBase.rows(), transform, matOverlay.cols(), matOverlay.rows());
+		if (Double.isNaN(score))
+			return null;
+		return new Result(transform, angle, flipped, score);
+	}
+
+	private static Mat warp(Mat matOverlay, AffineTransform transform, Mat matBase) {
+		Mat matTransform = TransformTools.toMat(transform);
+		Mat matWarped = new Mat();
+		opencv_imgproc.warpAffine(matOverlay, matWarped, matTransform, matBase.size(),
+				opencv_imgproc.INTER_LINEAR | opencv_imgproc.WARP_INVERSE_MAP, opencv_core.BORDER_CONSTANT, Scalar.all(0));
+		matTransform.release();
+		return matWarped;
+	}
+
+	/**
+	 * Compute the normalized cross-correlation over base pixels that map inside the overlay.
+	 * @return the correlation, or NaN if the overlap is too small
+	 */
+	private static double computeNCC(float[] base, float[] warped, int width, int height, AffineTransform transform, int widthOverlay, int heightOverlay) {
+		double[] p = new double[2];
+		double sumX = 0, sumY = 0, sumXX = 0, sumYY = 0, sumXY = 0;
+		long n = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				p[0] = x;
+				p[1] = y;
+				transform.transform(p, 0, p, 0, 1);
+				if (p[0] < 0 || p[1] < 0 || p[0] > widthOverlay - 1 || p[1] > heightOverlay - 1)
+					continue;
+				int ind = y * width + x;
+				double a = base[ind];
+				double b = warped[ind];
+				sumX += a;
+				sumY += b;
+				sumXX += a * a;
+				sumYY += b * b;
+				sumXY += a * b;
+				n++;
+			}
+		}
+		if (n < MIN_OVERLAP * Math.min((long)width * height, (long)widthOverlay * heightOverlay))
+			return Double.NaN;
+		double cov = sumXY - sumX * sumY / n;
+		double varX = sumXX - sumX * sumX / n;
+		double varY = sumYY - sumY * sumY / n;
+		if (varX <= 0 || varY <= 0)
+			return Double.NaN;
+		return cov / Math.sqrt(varX * varY);
+	}
+
+	private static Mat readThumbnail(ImageServer<BufferedImage> server, RegistrationPreprocessor preprocessor, double downsample, ImagePlane plane) throws IOException {
+		int z = Math.min(plane.getZ(), server.nZSlices()-1);
+		int t = Math.min(plane.getT(), server.nTimepoints()-1);
+		var img = server.readRegion(RegionRequest.createInstance(server.getPath(), downsample, 0, 0, server.getWidth(), server.getHeight(), z, t));
+		return preprocessor.apply(img);
+	}
+
+	private static Mat to32F(Mat mat) {
+		if (mat.depth() == opencv_core.CV_32F && mat.channels() == 1)
+			return mat;
+		Mat mat32 = new Mat();
+		mat.convertTo(mat32, opencv_core.CV_32F);
+		return mat32;
+	}
+
+	private static float[] toFloats(Mat mat) {
+		Mat matContinuous = mat.isContinuous() ? mat : mat.clone();
+		float[] pixels = new float[(int)matContinuous.total()];
+		try (FloatIndexer indexer = matContinuous.createIndexer()) {
+			indexer.get(0, pixels);
+		}
+		if (matContinuous != mat)
+			matContinuous.release();
+		return pixels;
+	}
+
+
+	/**
+	 * Builder for an {@link OrientationSearch}.
+	 */
+	static class Builder {
+
+		private double fineStep = 5.0;
+		private long maxPixels = 256 * 256;
+		private int nThreads = Runtime.getRuntime().availableProcessors();
+		private RegistrationPreprocessor preprocessorBase = RegistrationPreprocessor.getDefault();
+		private RegistrationPreprocessor preprocessorOverlay = RegistrationPreprocessor.getDefault();
+
+		/**
+		 * Step between tested rotations, in degrees. This is rounded so that each 90 degrees contains a whole number of steps.
+		 * @param fineStep
+		 * @return this builder
+		 */
+		Builder fineStep(double fineStep) {
+			this.fineStep = Math.min(90, Math.max(0.5, fineStep));
+			return this;
+		}
+
+		/**
+		 * Maximum number of pixels in each thumbnail.
+		 * @param maxPixels
+		 * @return this builder
+		 */
+		Builder maxPixels(long maxPixels) {
+			this.maxPixels = maxPixels;
+			return this;
+		}
+
+		/**
+		 * Number of candidates to evaluate in parallel.
+		 * @param nThreads
+		 * @return this builder
+		 */
+		Builder nThreads(int nThreads) {
+			this.nThreads = Math.max(1, nThreads);
+			return this;
+		}
+
+		/**
+		 * Preprocessors used to convert the base and overlay thumbnails to a single channel.
+		 * @param preprocessorBase
+		 * @param preprocessorOverlay
+		 * @return this builder
+		 */
+		Builder preprocessors(RegistrationPreprocessor preprocessorBase, RegistrationPreprocessor preprocessorOverlay) {
+			this.preprocessorBase = preprocessorBase;
+			this.preprocessorOverlay = preprocessorOverlay;
+			return this;
+		}
+
+		/**
+		 * Build the search.
+		 * @return
+		 */
+		OrientationSearch build() {
+			return new OrientationSearch(this);
+		}
+
+	}
+
+}
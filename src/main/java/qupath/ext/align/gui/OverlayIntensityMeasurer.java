@@ -0,0 +1,439 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Measure the intensities of an aligned overlay image inside objects (typically cells) detected on the base image.
+ * <p>
+ * Objects are mapped into overlay coordinates using the alignment transform (or the transform for their plane,
+ * if plane transforms are available), and grouped by the overlay tile
+ * containing their transformed centroid. Each tile is read once, expanded to contain all of its objects,
+ * and tiles are processed in parallel. Pixels are assigned to an object if their centers are inside its transformed ROI.
+ * This keeps memory use bounded by the tile size and number of threads, regardless of the number of objects.
+ * <p>
+ * For each channel, the mean, median and requested percentiles are added to the measurement list of each object.
+ */
+class OverlayIntensityMeasurer {
+
+	private static final Logger logger = LoggerFactory.getLogger(OverlayIntensityMeasurer.class);
+
+	private final double downsample;
+	private final int tileSize;
+	private final double[] percentiles;
+	private final String prefix;
+	private final int nThreads;
+
+	private OverlayIntensityMeasurer(Builder builder) {
+		this.downsample = builder.downsample;
+		this.tileSize = builder.tileSize;
+		this.percentiles = builder.percentiles.clone();
+		this.prefix = builder.prefix;
+		this.nThreads = builder.nThreads;
+	}
+
+	/**
+	 * Measure overlay intensities inside objects.
+	 * @param pathObjects objects with area ROIs in base image coordinates; objects without area ROIs are skipped
+	 * @param serverOverlay the overlay image
+	 * @param transform transform from base to overlay coordinates
+	 * @param planeTransforms transforms for individual z-slices and timepoints, which take precedence over {@code transform}
+	 *                        for the planes that have them; may be null
+	 * @return the number of objects that were measured
+	 * @throws IOException if the overlay image could not be read
+	 */
+	int measure(Collection<? extends PathObject> pathObjects, ImageServer<BufferedImage> serverOverlay, AffineTransform transform,
+			PlaneTransforms planeTransforms) throws IOException {
+		var objects = pathObjects.stream().filter(p -> p.hasROI() && p.getROI().isArea()).toArray(PathObject[]::new);
+		int n = objects.length;
+		if (n == 0)
+			return 0;
+
+		// Assign each object to the tile containing its transformed centroid, using a counting sort
+		double tileFullSize = tileSize * downsample;
+		int nCols = Math.max(1, (int)Math.ceil(serverOverlay.getWidth() / tileFullSize));
+		int nRows = Math.max(1, (int)Math.ceil(serverOverlay.getHeight() / tileFullSize));
+		int nZ = serverOverlay.nZSlices();
+		int nT = serverOverlay.nTimepoints();
+		int nTiles = nCols * nRows * nZ * nT;
+
+		// Objects are grouped by plane, so each plane needs only one transform
+		AffineTransform[] transforms = new AffineTransform[nZ * nT];
+		for (int t = 0; t < nT; t++) {
+			for (int z = 0; z < nZ; z++) {
+				var planeTransform = planeTransforms == null ? null : planeTransforms.getTransform(z, t);
+				transforms[t * nZ + z] = planeTransform == null ? transform : planeTransform;
+			}
+		}
+
+		int[] tileIndex = new int[n];
+		int[] counts = new int[nTiles + 1];
+		double[] p = new double[2];
+		for (int i = 0; i < n; i++) {
+			var roi = objects[i].getROI();
+			int z = Math.min(roi.getZ(), nZ - 1);
+			int t = Math.min(roi.getT(), nT - 1);
+			p[0] = roi.getCentroidX();
+			p[1] = roi.getCentroidY();
+			transforms[t * nZ + z].transform(p, 0, p, 0, 1);
+			int col = Math.max(0, Math.min(nCols - 1, (int)Math.floor(p[0] / tileFullSize)));
+			int row = Math.max(0, Math.min(nRows - 1, (int)Math.floor(p[1] / tileFullSize)));
+			int ind = ((t * nZ + z) * nRows + row) * nCols + col;
+			tileIndex[i] = ind;
+			counts[ind + 1]++;
+		}
+		for (int i = 0; i < nTiles; i++)
+			counts[i + 1] += counts[i];
+		int[] order = new int[n];
+		int[] next = Arrays.copyOf(counts, nTiles);
+		for (int i = 0; i < n; i++)
+			order[next[tileIndex[i]]++] = i;
+
+		List<Callable<Integer>> tasks = new ArrayList<>();
+		for (int tile = 0; tile < nTiles; tile++) {
+			int start = counts[tile];
+			int end = counts[tile + 1];
+			if (end > start) {
+				int z = (tile / (nCols * nRows)) % nZ;
+				int t = tile / (nCols * nRows * nZ);
+				var tileTransform = transforms[t * nZ + z];
+				tasks.add(() -> measureTile(objects, order, start, end, serverOverlay, tileTransform, z, t));
+			}
+		}
+		logger.debug("Measuring {} objects in {} overlay tiles", n, tasks.size());
+
+		var pool = new ForkJoinPool(nThreads);
+		int nMeasured = 0;
+		try {
+			for (var future : pool.invokeAll(tasks))
+				nMeasured += future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Measurement interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException("Error measuring tiles", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		return nMeasured;
+	}
+
+	private int measureTile(PathObject[] objects, int[] order, int start, int end, ImageServer<BufferedImage> server,
+			AffineTransform transform, int z, int t) throws IOException {
+		// Find the overlay region containing all objects in the tile
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		double[] corners = new double[8];
+		for (int i = start; i < end; i++) {
+			var roi = objects[order[i]].getROI();
+			double x1 = roi.getBoundsX(), y1 = roi.getBoundsY();
+			double x2 = x1 + roi.getBoundsWidth(), y2 = y1 + roi.getBoundsHeight();
+			corners[0] = x1; corners[1] = y1;
+			corners[2] = x2; corners[3] = y1;
+			corners[4] = x2; corners[5] = y2;
+			corners[6] = x1; corners[7] = y2;
+			transform.transform(corners, 0, corners, 0, 4);
+			for (int c = 0; c < 8; c += 2) {
+				minX = Math.min(minX, corners[c]);
+				maxX = Math.max(maxX, corners[c]);
+				minY = Math.min(minY, corners[c+1]);
+				maxY = Math.max(maxY, corners[c+1]);
+			}
+		}
+		int x = (int)Math.max(0, Math.floor(minX));
+		int y = (int)Math.max(0, Math.floor(minY));
+		int x2 = (int)Math.min(server.getWidth(), Math.ceil(maxX));
+		int y2 = (int)Math.min(server.getHeight(), Math.ceil(maxY));
+		if (x2 <= x || y2 <= y)
+			return 0;
+
+		var img = server.readRegion(RegionRequest.createInstance(server.getPath(), downsample, x, y, x2 - x, y2 - y, z, t));
+		var raster = img.getRaster();
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		int nBands = raster.getNumBands();
+		float[][] pixels = new float[nBands][];
+		for (int b = 0; b < nBands; b++)
+			pixels[b] = raster.getSamples(0, 0, width, height, b, (float[])null);
+		String[] names = createMeasurementNames(server, nBands);
+
+		// Transform from base coordinates to pixel coordinates in the region
+		var regionTransform = AffineTransform.getScaleInstance(1.0 / downsample, 1.0 / downsample);
+		regionTransform.translate(-x, -y);
+		regionTransform.concatenate(transform);
+
+		var mask = new PixelMask(width, height);
+		float[] values = new float[64];
+		int nMeasured = 0;
+		for (int i = start; i < end; i++) {
+			var pathObject = objects[order[i]];
+			mask.fill(pathObject.getROI().getGeometry(), regionTransform);
+			int nPixels = mask.size();
+			if (nPixels == 0)
+				continue;
+			if (values.length < nPixels)
+				values = new float[Math.max(nPixels, values.length * 2)];
+			var measurements = pathObject.getMeasurementList();
+			int k = 0;
+			for (int b = 0; b < nBands; b++) {
+				double sum = 0;
+				float[] bandPixels = pixels[b];
+				for (int j = 0; j < nPixels; j++) {
+					float v = bandPixels[mask.get(j)];
+					values[j] = v;
+					sum += v;
+				}
+				Arrays.sort(values, 0, nPixels);
+				measurements.put(names[k++], sum / nPixels);
+				measurements.put(names[k++], percentile(values, nPixels, 50));
+				for (double percentile : percentiles)
+					measurements.put(names[k++], percentile(values, nPixels, percentile));
+			}
+			nMeasured++;
+		}
+		return nMeasured;
+	}
+
+	private String[] createMeasurementNames(ImageServer<BufferedImage> server, int nBands) {
+		String[] names = new String[nBands * (2 + percentiles.length)];
+		int k = 0;
+		for (int b = 0; b < nBands; b++) {
+			String channel = b < server.nChannels() ? server.getChannel(b).getName() : "Channel " + (b + 1);
+			String base = prefix + ": " + channel + ": ";
+			names[k++] = base + "Mean";
+			names[k++] = base + "Median";
+			for (double percentile : percentiles)
+				names[k++] = base + "Percentile " + formatPercentile(percentile);
+		}
+		return names;
+	}
+
+	private static String formatPercentile(double percentile) {
+		return percentile == Math.rint(percentile) ? Integer.toString((int)percentile) : Double.toString(percentile);
+	}
+
+	/**
+	 * Get a percentile from sorted values, interpolating linearly between ranks.
+	 */
+	private static double percentile(float[] sorted, int n, double percentile) {
+		double pos = percentile / 100.0 * (n - 1);
+		int lower = (int)Math.floor(pos);
+		int upper = Math.min(n - 1, lower + 1);
+		double frac = pos - lower;
+		return sorted[lower] * (1 - frac) + sorted[upper] * frac;
+	}
+
+
+	/**
+	 * Indices of the pixels whose centers are inside a polygon, found by scanline filling with the even-odd rule.
+	 * If the polygon is so small that it contains no pixel centers, the pixel containing its first vertex is used instead.
+	 */
+	private static class PixelMask {
+
+		private final int width;
+		private final int height;
+		private int[] indices = new int[256];
+		private int n;
+
+		// Polygon edges in pixel coordinates, as (x1, y1, x2, y2)
+		private double[] edges = new double[256];
+		private int nEdges;
+		private double[] crossings = new double[32];
+
+		PixelMask(int width, int height) {
+			this.width = width;
+			this.height = height;
+		}
+
+		int size() {
+			return n;
+		}
+
+		int get(int i) {
+			return indices[i];
+		}
+
+		void fill(Geometry geometry, AffineTransform transform) {
+			n = 0;
+			nEdges = 0;
+			double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			double[] p = new double[4];
+			for (int g = 0; g < geometry.getNumGeometries(); g++) {
+				if (!(geometry.getGeometryN(g) instanceof Polygon polygon))
+					continue;
+				for (int r = -1; r < polygon.getNumInteriorRing(); r++) {
+					var ring = r < 0 ? polygon.getExteriorRing() : polygon.getInteriorRingN(r);
+					Coordinate[] coords = ring.getCoordinates();
+					for (int i = 1; i < coords.length; i++) {
+						p[0] = coords[i-1].x; p[1] = coords[i-1].y;
+						p[2] = coords[i].x; p[3] = coords[i].y;
+						transform.transform(p, 0, p, 0, 2);
+						addEdge(p);
+						minY = Math.min(minY, Math.min(p[1], p[3]));
+						maxY = Math.max(maxY, Math.max(p[1], p[3]));
+					}
+				}
+			}
+			if (nEdges == 0)
+				return;
+			int rowStart = Math.max(0, (int)Math.ceil(minY - 0.5));
+			int rowEnd = Math.min(height - 1, (int)Math.floor(maxY - 0.5));
+			for (int row = rowStart; row <= rowEnd; row++) {
+				double yc = row + 0.5;
+				int nCrossings = 0;
+				for (int e = 0; e < nEdges; e++) {
+					double y1 = edges[e*4+1], y2 = edges[e*4+3];
+					// Half-open interval, so that vertices are counted once
+					if ((y1 <= yc) == (y2 <= yc))
+						continue;
+					double x1 = edges[e*4], x2 = edges[e*4+2];
+					if (nCrossings == crossings.length)
+						crossings = Arrays.copyOf(crossings, nCrossings * 2);
+					crossings[nCrossings++] = x1 + (yc - y1) / (y2 - y1) * (x2 - x1);
+				}
+				Arrays.sort(crossings, 0, nCrossings);
+				for (int c = 0; c + 1 < nCrossings; c += 2) {
+					int colStart = Math.max(0, (int)Math.ceil(crossings[c] - 0.5));
+					int colEnd = Math.min(width - 1, (int)Math.floor(crossings[c+1] - 0.5));
+					for (int col = colStart; col <= colEnd; col++)
+						add(row * width + col);
+				}
+			}
+			if (n == 0) {
+				int col = (int)Math.floor(edges[0]);
+				int row = (int)Math.floor(edges[1]);
+				if (col >= 0 && col < width && row >= 0 && row < height)
+					add(row * width + col);
+			}
+		}
+
+		private void addEdge(double[] p) {
+			if (nEdges * 4 == edges.length)
+				edges = Arrays.copyOf(edges, edges.length * 2);
+			System.arraycopy(p, 0, edges, nEdges * 4, 4);
+			nEdges++;
+		}
+
+		private void add(int index) {
+			if (n == indices.length)
+				indices = Arrays.copyOf(indices, n * 2);
+			indices[n++] = index;
+		}
+
+	}
+
+
+	/**
+	 * Builder for an {@link OverlayIntensityMeasurer}.
+	 */
+	static class Builder {
+
+		private double downsample = 1.0;
+		private int tileSize = 1024;
+		private double[] percentiles = {5, 25, 75, 95};
+		private String prefix = "Overlay";
+		private int nThreads = Runtime.getRuntime().availableProcessors();
+
+		/**
+		 * Downsample at which the overlay should be measured.
+		 * @param downsample
+		 * @return this builder
+		 */
+		Builder downsample(double downsample) {
+			this.downsample = downsample;
+			return this;
+		}
+
+		/**
+		 * Size of the tiles used to group objects, in pixels at the measurement resolution.
+		 * Tiles are expanded to contain all objects whose centroids they contain.
+		 * @param tileSize
+		 * @return this builder
+		 */
+		Builder tileSize(int tileSize) {
+			this.tileSize = Math.max(16, tileSize);
+			return this;
+		}
+
+		/**
+		 * Percentiles to measure (between 0 and 100) in addition to the mean and median.
+		 * @param percentiles
+		 * @return this builder
+		 */
+		Builder percentiles(double... percentiles) {
+			this.percentiles = percentiles.clone();
+			return this;
+		}
+
+		/**
+		 * Prefix for measurement names, which are in the form {@code "prefix: channel: statistic"}.
+		 * @param prefix
+		 * @return this builder
+		 */
+		Builder prefix(String prefix) {
+			this.prefix = prefix;
+			return this;
+		}
+
+		/**
+		 * Number of tiles to measure in parallel.
+		 * @param nThreads
+		 * @return this builder
+		 */
+		Builder nThreads(int nThreads) {
+			this.nThreads = Math.max(1, nThreads);
+			return this;
+		}
+
+		/**
+		 * Build the measurer.
+		 * @return
+		 */
+		OverlayIntensityMeasurer build() {
+			return new OverlayIntensityMeasurer(this);
+		}
+
+	}
+
+}
@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.gui.images.stores.DefaultImageRegionStore;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Prefetch overlay tiles for the region the viewer is likely to show next.
+ * <p>
+ * The direction of panning and zooming is estimated from successive viewer regions. The region one viewport further
+ * along the pan direction (and at the next zoom level, if zooming) is mapped into overlay coordinates, and any tiles
+ * that aren't already cached are queued for loading at low priority. Tiles are read from the overlay server,
+ * which shares its cache with the viewer's region store, so they are available when the overlay is next painted.
+ * Queued tiles are discarded when the direction changes.
+ */
+class OverlayTilePrefetcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(OverlayTilePrefetcher.class);
+
+	/**
+	 * Maximum number of queued tiles, shared by all overlays; when exceeded, the oldest requests are dropped.
+	 */
+	private static final int MAX_QUEUED = 64;
+
+	/**
+	 * Minimum cosine of the angle between successive pan directions for the direction to be considered unchanged.
+	 */
+	private static final double MIN_DIRECTION_COSINE = 0.5;
+
+	private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<>(MAX_QUEUED),
+			ThreadTools.createThreadFactory("image-alignment-overlay-prefetch-", true, Thread.MIN_PRIORITY),
+			new ThreadPoolExecutor.DiscardOldestPolicy());
+
+	private final DefaultImageRegionStore store;
+	private final ImageServer<BufferedImage> server;
+	private final AtomicLong generation = new AtomicLong();
+
+	private ImageRegion lastRegion;
+	private double lastDownsample = Double.NaN;
+	private double lastUx, lastUy;
+	private int lastZoom;
+
+	/**
+	 * Constructor.
+	 * @param store the store used to paint the overlay
+	 * @param server the overlay server
+	 */
+	OverlayTilePrefetcher(DefaultImageRegionStore store, ImageServer<BufferedImage> server) {
+		this.store = store;
+		this.server = server;
+	}
+
+	/**
+	 * Update the prefetcher with the region currently shown in the viewer.
+	 * This should be called from the thread that paints the overlay; it returns quickly, since tiles are loaded in the background.
+	 * @param region the region shown in the viewer, in base image coordinates
+	 * @param downsample the viewer downsample
+	 * @param transform transform from base to overlay coordinates
+	 */
+	void update(ImageRegion region, double downsample, AffineTransform transform) {
+		var last = lastRegion;
+		double lastDs = lastDownsample;
+		lastRegion = region;
+		lastDownsample = downsample;
+		if (last == null || last.getZ() != region.getZ() || last.getT() != region.getT()) {
+			cancel();
+			lastZoom = 0;
+			lastUx = lastUy = 0;
+			return;
+		}
+		double dx = (region.getMinX() + region.getMaxX() - last.getMinX() - last.getMaxX()) / 2.0;
+		double dy = (region.getMinY() + region.getMaxY() - last.getMinY() - last.getMaxY()) / 2.0;
+		double dist = Math.sqrt(dx*dx + dy*dy);
+		double ratio = downsample / lastDs;
+		int zoom = Math.abs(ratio - 1) < 1e-6 ? 0 : (ratio > 1 ? 1 : -1);
+		if (dist < 1e-6 && zoom == 0)
+			return;
+
+		double ux = dist < 1e-6 ? 0 : dx / dist;
+		double uy = dist < 1e-6 ? 0 : dy / dist;
+		boolean panChanged = dist >= 1e-6 && (lastUx != 0 || lastUy != 0) && ux * lastUx + uy * lastUy < MIN_DIRECTION_COSINE;
+		boolean zoomChanged = zoom != 0 && lastZoom != 0 && zoom != lastZoom;
+		if (panChanged || zoomChanged)
+			cancel();
+		if (dist >= 1e-6) {
+			lastUx = ux;
+			lastUy = uy;
+		}
+		if (zoom != 0)
+			lastZoom = zoom;
+
+		// Predict the next region: one viewport ahead, scaled by the last zoom step
+		double scale = zoom == 0 ? 1 : ratio;
+		double w = region.getWidth() * scale;
+		double h = region.getHeight() * scale;
+		double cx = (region.getMinX() + region.getMaxX()) / 2.0 + ux * region.getWidth();
+		double cy = (region.getMinY() + region.getMaxY()) / 2.0 + uy * region.getHeight();
+		queueTiles(cx - w / 2, cy - h / 2, w, h, downsample * scale, region.getZ(), region.getT(), transform);
+	}
+
+	/**
+	 * Discard any queued tiles for this overlay.
+	 */
+	void cancel() {
+		generation.incrementAndGet();
+		pool.getQueue().removeIf(r -> r instanceof PrefetchTask task && task.prefetcher == this);
+	}
+
+	private void queueTiles(double x, double y, double width, double height, double downsample, int z, int t, AffineTransform transform) {
+		double[] corners = {x, y, x + width, y, x + width, y + height, x, y + height};
+		transform.transform(corners, 0, corners, 0, 4);
+		int x1 = (int)Math.max(0, Math.floor(Math.min(Math.min(corners[0], corners[2]), Math.min(corners[4], corners[6]))));
+		int y1 = (int)Math.max(0, Math.floor(Math.min(Math.min(corners[1], corners[3]), Math.min(corners[5], corners[7]))));
+		int x2 = (int)Math.min(server.getWidth(), Math.ceil(Math.max(Math.max(corners[0], corners[2]), Math.max(corners[4], corners[6]))));
+		int y2 = (int)Math.min(server.getHeight(), Math.ceil(Math.max(Math.max(corners[1], corners[3]), Math.max(corners[5], corners[7]))));
+		if (x2 <= x1 || y2 <= y1 || z >= server.nZSlices() || t >= server.nTimepoints())
+			return;
+		var request = RegionRequest.createInstance(server.getPath(), downsample, x1, y1, x2 - x1, y2 - y1, z, t);
+		long gen = generation.get();
+		int n = 0;
+		for (var tile : server.getTileRequestManager().getTileRequests(request)) {
+			var tileRequest = tile.getRegionRequest();
+			if (store.getCachedTile(server, tileRequest) == null) {
+				pool.execute(new PrefetchTask(this, gen, tileRequest));
+				n++;
+			}
+		}
+		if (n > 0)
+			logger.trace("Queued {} overlay tiles for prefetching", n);
+	}
+
+	private record PrefetchTask(OverlayTilePrefetcher prefetcher, long generation, RegionRequest request) implements Runnable {
+
+		@Override
+		public void run() {
+			if (generation != prefetcher.generation.get() || prefetcher.store.getCachedTile(prefetcher.server, request) != null)
+				return;
+			try {
+				prefetcher.server.readRegion(request);
+			} catch (IOException e) {
+				logger.debug("Unable to prefetch overlay tile {}: {}", request, e.getLocalizedMessage());
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.scene.transform.Affine;
+import qupath.ext.align.gui.ImageAlignmentPane.AlignmentMethod;
+import qupath.ext.align.gui.ImageAlignmentPane.RegistrationType;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.ImagePlane;
+
+/**
+ * Estimate separate transforms for every z-slice and timepoint of an image.
+ * <p>
+ * Planes can either be aligned independently in parallel, each starting from the same initial transform,
+ * or chained so that each plane starts from the result of its neighbour. Chaining is slower, but can follow
+ * gradual drift that would be too large to recover from the initial transform alone.
+ */
+class PlaneAligner {
+
+	private static final Logger logger = LoggerFactory.getLogger(PlaneAligner.class);
+
+	/**
+	 * Which planes to align, and how.
+	 */
+	static enum Mode {
+		/**
+		 * Align only the plane currently shown in the viewer.
+		 */
+		CURRENT_PLANE,
+		/**
+		 * Align all planes independently, in parallel.
+		 */
+		ALL_PARALLEL,
+		/**
+		 * Align all planes sequentially, starting each plane from the result of the previous one.
+		 */
+		ALL_CHAINED;
+
+		@Override
+		public String toString() {
+			switch(this) {
+			case CURRENT_PLANE:
+				return "Current plane";
+			case ALL_PARALLEL:
+				return "All planes (parallel)";
+			case ALL_CHAINED:
+				return "All planes (chained for drift)";
+			}
+			throw new IllegalArgumentException("Unknown mode " + this);
+		}
+	}
+
+	private final RegistrationPreprocessor preprocessorBase;
+	private final RegistrationPreprocessor preprocessorOverlay;
+	private final AlignmentMethod alignmentMethod;
+	private final RegistrationType registrationType;
+	private final RegistrationResolution resolution;
+	private final int nThreads;
+
+	/**
+	 * Constructor.
+	 * @param preprocessorBase preprocessor for the base image
+	 * @param preprocessorOverlay preprocessor for the overlay image
+	 * @param alignmentMethod intensity-based alignment method
+	 * @param registrationType type of transform to estimate
+	 * @param resolution resolution for registration
+	 * @param nThreads maximum number of planes to align in parallel; each plane needs memory for a whole image at the registration resolution
+	 */
+	PlaneAligner(RegistrationPreprocessor preprocessorBase, RegistrationPreprocessor preprocessorOverlay,
+			AlignmentMethod alignmentMethod, RegistrationType registrationType, RegistrationResolution resolution, int nThreads) {
+		this.preprocessorBase = preprocessorBase;
+		this.preprocessorOverlay = preprocessorOverlay;
+		this.alignmentMethod = alignmentMethod;
+		this.registrationType = registrationType;
+		this.resolution = resolution;
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Align all planes of the base image with the corresponding planes of the overlay.
+	 * @param serverBase
+	 * @param serverOverlay
+	 * @param initial initial transform from base to overlay coordinates
+	 * @param chained if true, align planes sequentially so that each starts from the result of its neighbour;
+	 *                otherwise, align planes in parallel starting from the initial transform
+	 * @return the transforms for each plane; planes that could not be aligned have no transform
+	 * @throws IOException
+	 */
+	PlaneTransforms align(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay, AffineTransform initial, boolean chained) throws IOException {
+		int nZ = serverBase.nZSlices();
+		int nT = serverBase.nTimepoints();
+		var transforms = new PlaneTransforms(initial, nZ, nT);
+		if (chained)
+			alignChained(serverBase, serverOverlay, initial, transforms);
+		else
+			alignParallel(serverBase, serverOverlay, initial, transforms);
+		logger.info("Aligned {}/{} planes", transforms.getNumTransforms(), nZ * nT);
+		return transforms;
+	}
+
+	/**
+	 * Chain along z for each timepoint, and along t for the first z-slice, so that every plane
+	 * starts from the result of an adjacent plane.
+	 */
+	private void alignChained(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay, AffineTransform initial, PlaneTransforms transforms) throws IOException {
+		var startT = initial;
+		for (int t = 0; t < transforms.getNumTimepoints(); t++) {
+			var start = startT;
+			for (int z = 0; z < transforms.getNumZSlices(); z++) {
+				var result = alignPlane(serverBase, serverOverlay, start, z, t, transforms);
+				if (result != null)
+					start = result;
+				if (z == 0)
+					startT = start;
+			}
+		}
+	}
+
+	private void alignParallel(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay, AffineTransform initial, PlaneTransforms transforms) throws IOException {
+		List<Callable<AffineTransform>> tasks = new ArrayList<>();
+		for (int t = 0; t < transforms.getNumTimepoints(); t++) {
+			for (int z = 0; z < transforms.getNumZSlices(); z++) {
+				int zz = z, tt = t;
+				tasks.add(() -> alignPlane(serverBase, serverOverlay, initial, zz, tt, transforms));
+			}
+		}
+		var pool = new ForkJoinPool(nThreads);
+		try {
+			for (var future : pool.invokeAll(tasks))
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Plane alignment interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioException)
+				throw ioException;
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Align a single plane, storing the result.
+	 * @return the transform for the plane, or null if alignment failed
+	 */
+	private AffineTransform alignPlane(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay, AffineTransform start,
+			int z, int t, PlaneTransforms transforms) throws IOException {
+		var affine = new Affine();
+		TransformTools.setAffine(start, affine);
+		var quality = ImageAlignmentPane.autoAlign(serverBase, serverOverlay, preprocessorBase, preprocessorOverlay,
+				alignmentMethod, registrationType, affine, resolution, ImagePlane.getPlane(z, t), null);
+		if (quality == null) {
+			logger.warn("Unable to align plane z={}, t={}", z, t);
+			return null;
+		}
+		var transform = TransformTools.toAffineTransform(affine);
+		transforms.setTransform(z, t, transform, quality.getNCC());
+		logger.debug("Plane z={}, t={}: {}", z, t, quality.getSummary());
+		return transform;
+	}
+
+}
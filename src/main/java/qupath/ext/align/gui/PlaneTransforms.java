@@ -0,0 +1,166 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.util.Arrays;
+
+/**
+ * Separate affine transforms for each z-slice and timepoint of an image, e.g. to correct drift in a time series.
+ * <p>
+ * Transforms are stored compactly as flattened 2x3 matrices. Planes without their own transform
+ * fall back to the global transform from which the plane transforms were estimated.
+ * Different planes may be set concurrently from different threads.
+ */
+public class PlaneTransforms {
+
+	private final AffineTransform globalTransform;
+	private final int nZSlices;
+	private final int nTimepoints;
+
+	// Flattened 2x3 matrices (m00, m01, m02, m10, m11, m12) for each plane, indexed by t * nZSlices + z; NaN if unset
+	private final double[] coefficients;
+	private final double[] scores;
+
+	PlaneTransforms(AffineTransform globalTransform, int nZSlices, int nTimepoints) {
+		this.globalTransform = new AffineTransform(globalTransform);
+		this.nZSlices = nZSlices;
+		this.nTimepoints = nTimepoints;
+		this.coefficients = new double[nZSlices * nTimepoints * 6];
+		this.scores = new double[nZSlices * nTimepoints];
+		Arrays.fill(coefficients, Double.NaN);
+		Arrays.fill(scores, Double.NaN);
+	}
+
+	private int index(int z, int t) {
+		if (z < 0 || z >= nZSlices || t < 0 || t >= nTimepoints)
+			return -1;
+		return t * nZSlices + z;
+	}
+
+	/**
+	 * Set the transform for a plane.
+	 * @param z
+	 * @param t
+	 * @param transform the transform, or null to use the global transform for this plane
+	 * @param score a quality score for the transform (e.g. normalized cross-correlation), or NaN if unavailable
+	 */
+	void setTransform(int z, int t, AffineTransform transform, double score) {
+		int ind = index(z, t);
+		if (ind < 0)
+			throw new IllegalArgumentException("Plane z=" + z + ", t=" + t + " is outside the image");
+		int k = ind * 6;
+		if (transform == null) {
+			Arrays.fill(coefficients, k, k + 6, Double.NaN);
+			scores[ind] = Double.NaN;
+			return;
+		}
+		coefficients[k] = transform.getScaleX();
+		coefficients[k+1] = transform.getShearX();
+		coefficients[k+2] = transform.getTranslateX();
+		coefficients[k+3] = transform.getShearY();
+		coefficients[k+4] = transform.getScaleY();
+		coefficients[k+5] = transform.getTranslateY();
+		scores[ind] = score;
+	}
+
+	/**
+	 * Get the global transform from which these plane transforms were estimated.
+	 * @return
+	 */
+	public AffineTransform getGlobalTransform() {
+		return new AffineTransform(globalTransform);
+	}
+
+	/**
+	 * Get the number of z-slices.
+	 * @return
+	 */
+	public int getNumZSlices() {
+		return nZSlices;
+	}
+
+	/**
+	 * Get the number of timepoints.
+	 * @return
+	 */
+	public int getNumTimepoints() {
+		return nTimepoints;
+	}
+
+	/**
+	 * Query whether a plane has its own transform.
+	 * @param z
+	 * @param t
+	 * @return
+	 */
+	public boolean hasTransform(int z, int t) {
+		int ind = index(z, t);
+		return ind >= 0 && !Double.isNaN(coefficients[ind * 6]);
+	}
+
+	/**
+	 * Get the number of planes with their own transform.
+	 * @return
+	 */
+	public int getNumTransforms() {
+		int n = 0;
+		for (int i = 0; i < scores.length; i++) {
+			if (!Double.isNaN(coefficients[i * 6]))
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Get the transform for a plane.
+	 * @param z
+	 * @param t
+	 * @return the transform for the plane, or null if the plane does not have its own transform
+	 */
+	public AffineTransform getTransform(int z, int t) {
+		if (!hasTransform(z, t))
+			return null;
+		int k = index(z, t) * 6;
+		return new AffineTransform(
+				coefficients[k], coefficients[k+3],
+				coefficients[k+1], coefficients[k+4],
+				coefficients[k+2], coefficients[k+5]);
+	}
+
+	/**
+	 * Get the quality score for a plane.
+	 * @param z
+	 * @param t
+	 * @return the score, or NaN if unavailable
+	 */
+	public double getScore(int z, int t) {
+		int ind = index(z, t);
+		return ind < 0 ? Double.NaN : scores[ind];
+	}
+
+	@Override
+	public String toString() {
+		return "PlaneTransforms [" + nZSlices + " z-slices, " + nTimepoints + " timepoints, transforms=" + getNumTransforms() + "]";
+	}
+
+}
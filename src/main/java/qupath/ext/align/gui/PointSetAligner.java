@@ -0,0 +1,301 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.align.gui.ImageAlignmentPane.RegistrationType;
+import qupath.lib.geom.Point2;
+
+/**
+ * Align two sets of points without known correspondences, using trimmed iterative closest point (ICP).
+ * <p>
+ * The point sets may have different sizes, and the points may be in any order.
+ * At each iteration, every base point is paired with its nearest overlay point (found with a k-d tree),
+ * and only the closest fraction of pairs is used to re-estimate the transform, so that points annotated in only one
+ * image are ignored. The fraction is chosen automatically at each iteration as the one that minimizes the
+ * RMS distance divided by the fraction cubed, which balances a small error against using many points
+ * (Chetverikov et al., 'Robust Euclidean alignment of 3D point sets: the trimmed iterative closest point algorithm', 2005).
+ * ICP starts from the initial transform unchanged, since point sets often only partly overlap (e.g. detections from
+ * different stains, or sections with folds) and their centroids need not correspond. If there is no initial transform,
+ * ICP instead starts from a translation that makes the centroids of both point sets coincide.
+ * <p>
+ * Large point sets (e.g. millions of detection centroids) are supported: nearest neighbour queries run in parallel,
+ * and if there are very many base points then a regular subset is used for the ICP iterations.
+ * All overlay points are always used as potential partners.
+ */
+class PointSetAligner {
+
+	private static final Logger logger = LoggerFactory.getLogger(PointSetAligner.class);
+
+	private static final int MAX_ITERATIONS = 100;
+
+	/**
+	 * Minimum fraction of pairs used to estimate the transform.
+	 */
+	private static final double MIN_TRIM_FRACTION = 0.4;
+
+	/**
+	 * Exponent used to penalize small trim fractions when choosing how many pairs to use.
+	 */
+	private static final double TRIM_PENALTY = 3.0;
+
+	/**
+	 * Iteration stops when no point moves by more than this distance, in pixels.
+	 */
+	private static final double TOLERANCE = 0.01;
+
+	/**
+	 * Maximum number of base points used for ICP iterations.
+	 */
+	private static final int MAX_BASE_POINTS = 250_000;
+
+	/**
+	 * Number of base points per parallel task when finding nearest neighbours.
+	 */
+	private static final int CHUNK_SIZE = 4096;
+
+	private final RegistrationType registrationType;
+
+	private int iterations;
+	private double rmsError = Double.NaN;
+	private double lastChange = Double.NaN;
+	private boolean converged;
+
+	/**
+	 * Constructor.
+	 * @param registrationType type of transform to estimate
+	 */
+	PointSetAligner(RegistrationType registrationType) {
+		this.registrationType = registrationType;
+	}
+
+	/**
+	 * Align two collections of points.
+	 * @param pointsBase points in the base image
+	 * @param pointsOverlay points in the overlay image
+	 * @param initial initial transform from base to overlay coordinates, or null to start by matching the point centroids
+	 * @return the transform from base to overlay coordinates, or null if the points could not be aligned
+	 */
+	AffineTransform align(Collection<Point2> pointsBase, Collection<Point2> pointsOverlay, AffineTransform initial) {
+		return align(toArray(pointsBase), pointsBase.size(), toArray(pointsOverlay), pointsOverlay.size(), initial);
+	}
+
+	/**
+	 * Align two sets of points, stored as interleaved coordinates (x0, y0, x1, y1, ...).
+	 * @param xyBase base point coordinates
+	 * @param nBase number of base points
+	 * @param xyOverlay overlay point coordinates
+	 * @param nOverlay number of overlay points
+	 * @param initial initial transform from base to overlay coordinates, or null to start by matching the point centroids
+	 * @return the transform from base to overlay coordinates, or null if the points could not be aligned
+	 */
+	AffineTransform align(double[] xyBase, int nBase, double[] xyOverlay, int nOverlay, AffineTransform initial) {
+		iterations = 0;
+		rmsError = Double.NaN;
+		lastChange = Double.NaN;
+		converged = false;
+		int minPoints = registrationType == RegistrationType.RIGID ? 2 : 3;
+		if (nBase < minPoints || nOverlay < minPoints) {
+			logger.warn("At least {} points are needed in each image, but found {} and {}", minPoints, nBase, nOverlay);
+			return null;
+		}
+
+		var transform = initial == null ? matchCentroids(xyBase, nBase, xyOverlay, nOverlay) : new AffineTransform(initial);
+		if (nBase > MAX_BASE_POINTS) {
+			xyBase = subsample(xyBase, nBase, MAX_BASE_POINTS);
+			nBase = MAX_BASE_POINTS;
+		}
+		double originX = mean(xyBase, nBase, 0);
+		double originY = mean(xyBase, nBase, 1);
+		int minKeep = Math.max(minPoints, (int)Math.ceil(nBase * MIN_TRIM_FRACTION));
+
+		var tree = new KdTree2D(xyOverlay, nOverlay);
+		double[] transformed = new double[nBase * 2];
+		int[] nearestIndex = new int[nBase];
+		double[] dist2 = new double[nBase];
+		int n = nBase;
+		int nChunks = (nBase + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		while (iterations < MAX_ITERATIONS) {
+			iterations++;
+			transform.transform(xyBase, 0, transformed, 0, nBase);
+			// The tree is read-only, so can be queried from multiple threads
+			IntStream.range(0, nChunks).parallel().forEach(c -> {
+				double[] nearest = new double[2];
+				int end = Math.min(n, (c + 1) * CHUNK_SIZE);
+				for (int i = c * CHUNK_SIZE; i < end; i++) {
+					tree.nearest(transformed[i*2], transformed[i*2+1], nearest);
+					nearestIndex[i] = (int)nearest[0];
+					dist2[i] = nearest[1];
+				}
+			});
+			double[] sorted = dist2.clone();
+			Arrays.sort(sorted);
+			int nKeep = chooseNumPairs(sorted, minKeep);
+			double threshold = sorted[nKeep - 1];
+			var lsq = new AffineLeastSquares(originX, originY);
+			double sumDist2 = 0;
+			for (int i = 0; i < nBase && lsq.size() < nKeep; i++) {
+				if (dist2[i] <= threshold) {
+					int j = nearestIndex[i];
+					lsq.add(xyBase[i*2], xyBase[i*2+1], xyOverlay[j*2], xyOverlay[j*2+1], 1.0);
+					sumDist2 += dist2[i];
+				}
+			}
+			rmsError = Math.sqrt(sumDist2 / Math.max(1, lsq.size()));
+			var next = lsq.solve(registrationType);
+			if (next == null) {
+				logger.warn("Unable to estimate transform from {} points", lsq.size());
+				return null;
+			}
+			lastChange = maxDisplacement(transform, next, xyBase, nBase);
+			transform = next;
+			if (lastChange < TOLERANCE) {
+				converged = true;
+				break;
+			}
+		}
+		logger.debug("Point set alignment: {} & {} points, {} iterations, RMS error {}", nBase, nOverlay, iterations, rmsError);
+		return transform;
+	}
+
+	/**
+	 * Get the number of ICP iterations used in the last alignment.
+	 * @return
+	 */
+	int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Query whether the last alignment converged before the maximum number of iterations.
+	 * @return
+	 */
+	boolean isConverged() {
+		return converged;
+	}
+
+	/**
+	 * Get the maximum displacement of any base point in the final iteration of the last alignment, in pixels.
+	 * @return
+	 */
+	double getLastChange() {
+		return lastChange;
+	}
+
+	/**
+	 * Get the root-mean-square distance between the pairs used in the final iteration of the last alignment, in pixels.
+	 * @return
+	 */
+	double getRMSError() {
+		return rmsError;
+	}
+
+	/**
+	 * Choose the number of closest pairs to use, minimizing the RMS distance divided by the fraction used to the power {@link #TRIM_PENALTY}.
+	 * @param sorted squared distances for each pair, sorted in ascending order
+	 * @param minKeep minimum number of pairs to use
+	 */
+	private static int chooseNumPairs(double[] sorted, int minKeep) {
+		int n = sorted.length;
+		double sum = 0;
+		double bestScore = Double.POSITIVE_INFINITY;
+		int best = n;
+		for (int k = 1; k <= n; k++) {
+			sum += sorted[k-1];
+			if (k < minKeep)
+				continue;
+			double score = Math.sqrt(sum / k) / Math.pow((double)k / n, TRIM_PENALTY);
+			if (score < bestScore) {
+				bestScore = score;
+				best = k;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Create a translation that maps the centroid of the base points to the centroid of the overlay points.
+	 */
+	private static AffineTransform matchCentroids(double[] xyBase, int nBase, double[] xyOverlay, int nOverlay) {
+		return AffineTransform.getTranslateInstance(
+				mean(xyOverlay, nOverlay, 0) - mean(xyBase, nBase, 0),
+				mean(xyOverlay, nOverlay, 1) - mean(xyBase, nBase, 1));
+	}
+
+	/**
+	 * Select a regular subset of points.
+	 */
+	private static double[] subsample(double[] xy, int n, int nSamples) {
+		double[] result = new double[nSamples * 2];
+		for (int i = 0; i < nSamples; i++) {
+			int ind = (int)((long)i * n / nSamples);
+			result[i*2] = xy[ind*2];
+			result[i*2+1] = xy[ind*2+1];
+		}
+		return result;
+	}
+
+	private static double mean(double[] xy, int n, int offset) {
+		double sum = 0;
+		for (int i = 0; i < n; i++)
+			sum += xy[i*2 + offset];
+		return sum / n;
+	}
+
+	private static double[] toArray(Collection<Point2> points) {
+		double[] xy = new double[points.size() * 2];
+		int i = 0;
+		for (var p : points) {
+			xy[i++] = p.getX();
+			xy[i++] = p.getY();
+		}
+		return xy;
+	}
+
+	/**
+	 * Get the maximum distance between any point transformed by two different transforms.
+	 * @param t1
+	 * @param t2
+	 * @param xy interleaved point coordinates
+	 * @param n number of points
+	 * @return
+	 */
+	static double maxDisplacement(AffineTransform t1, AffineTransform t2, double[] xy, int n) {
+		double[] p1 = new double[2];
+		double[] p2 = new double[2];
+		double max = 0;
+		for (int i = 0; i < n; i++) {
+			t1.transform(xy, i*2, p1, 0, 1);
+			t2.transform(xy, i*2, p2, 0, 1);
+			max = Math.max(max, (p1[0]-p2[0])*(p1[0]-p2[0]) + (p1[1]-p2[1])*(p1[1]-p2[1]));
+		}
+		return Math.sqrt(max);
+	}
+
+}
@@ -0,0 +1,317 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.image.BufferedImage;
+import java.nio.FloatBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.opencv.tools.OpenCVTools;
+
+/**
+ * Convert images to a single channel before registration, optionally using color deconvolution,
+ * smoothing and contrast normalization.
+ * <p>
+ * Color deconvolution can help when aligning brightfield images with different stains, e.g. by aligning using
+ * only the hematoxylin channel so that DAB or eosin staining does not confuse the registration.
+ * Conversion is applied to the whole raster using lookup tables, without creating objects per pixel.
+ */
+class RegistrationPreprocessor {
+
+	private static final Logger logger = LoggerFactory.getLogger(RegistrationPreprocessor.class);
+
+	/**
+	 * Lower and upper percentiles used for contrast normalization.
+	 */
+	private static final double NORMALIZE_LOWER_PERCENTILE = 1.0;
+	private static final double NORMALIZE_UPPER_PERCENTILE = 99.0;
+
+	private static final int NORMALIZE_HISTOGRAM_BINS = 1024;
+
+	/**
+	 * Combinations of base and overlay channels that have already been warned about, to avoid repeating warnings for every tile.
+	 */
+	private static final Set<String> warnedChannels = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Channel to extract for registration.
+	 */
+	static enum Channel {
+		/**
+		 * Grayscale luminance (the default behavior).
+		 */
+		LUMINANCE,
+		/**
+		 * First stain from color deconvolution (usually hematoxylin).
+		 */
+		HEMATOXYLIN,
+		/**
+		 * Second stain from color deconvolution (usually eosin or DAB).
+		 */
+		SECOND_STAIN,
+		/**
+		 * Sum of the optical densities of the red, green and blue channels.
+		 */
+		OPTICAL_DENSITY_SUM;
+
+		@Override
+		public String toString() {
+			switch(this) {
+			case LUMINANCE:
+				return "Luminance";
+			case HEMATOXYLIN:
+				return "Hematoxylin (stain 1)";
+			case SECOND_STAIN:
+				return "Eosin/DAB (stain 2)";
+			case OPTICAL_DENSITY_SUM:
+				return "Optical density sum";
+			}
+			throw new IllegalArgumentException("Unknown channel " + this);
+		}
+	}
+
+	private final Channel channel;
+	private final double sigma;
+	private final boolean normalize;
+	private final ColorDeconvolutionStains stains;
+
+	/**
+	 * Constructor.
+	 * @param channel the channel to extract
+	 * @param sigma Gaussian smoothing sigma, in pixels at the registration resolution (0 for no smoothing)
+	 * @param normalize if true, stretch contrast between the 1st and 99th percentiles
+	 */
+	RegistrationPreprocessor(Channel channel, double sigma, boolean normalize) {
+		this(channel, sigma, normalize, null);
+	}
+
+	private RegistrationPreprocessor(Channel channel, double sigma, boolean normalize, ColorDeconvolutionStains stains) {
+		this.channel = channel == null ? Channel.LUMINANCE : channel;
+		this.sigma = sigma;
+		this.normalize = normalize;
+		this.stains = stains;
+	}
+
+	/**
+	 * Create a preprocessor with the same settings, but using the specified stains for color deconvolution.
+	 * Because stains are specific to an image, a separate preprocessor is generally needed for each image.
+	 * @param stains
+	 * @return
+	 */
+	RegistrationPreprocessor withStains(ColorDeconvolutionStains stains) {
+		return new RegistrationPreprocessor(channel, sigma, normalize, stains);
+	}
+
+	/**
+	 * Get a preprocessor that converts images to grayscale without further processing.
+	 * @return
+	 */
+	static RegistrationPreprocessor getDefault() {
+		return new RegistrationPreprocessor(Channel.LUMINANCE, 0, false);
+	}
+
+	/**
+	 * Query if the preprocessor requires color deconvolution stains.
+	 * @return
+	 */
+	boolean requiresStains() {
+		return channel == Channel.HEMATOXYLIN || channel == Channel.SECOND_STAIN;
+	}
+
+	/**
+	 * Query if the preprocessor only converts images to grayscale, without further processing.
+	 * @return
+	 */
+	boolean isDefault() {
+		return channel == Channel.LUMINANCE && sigma <= 0 && !normalize;
+	}
+
+	/**
+	 * Get the channel that will actually be extracted from an image.
+	 * This is luminance if the requested channel needs an 8-bit RGB image or stains that aren't available.
+	 * @param img
+	 * @return
+	 */
+	Channel getChannel(BufferedImage img) {
+		if (channel == Channel.LUMINANCE)
+			return channel;
+		boolean isRGB = img.getColorModel().getNumComponents() >= 3 && img.getSampleModel().getSampleSize(0) == 8;
+		if (!isRGB || (requiresStains() && stains == null))
+			return Channel.LUMINANCE;
+		return channel;
+	}
+
+	/**
+	 * Log a warning if the base and overlay images are converted using different channels, e.g. because only one image has stains.
+	 * Each combination is only warned about once.
+	 * @param preprocessorBase
+	 * @param imgBase
+	 * @param preprocessorOverlay
+	 * @param imgOverlay
+	 */
+	static void checkChannels(RegistrationPreprocessor preprocessorBase, BufferedImage imgBase,
+			RegistrationPreprocessor preprocessorOverlay, BufferedImage imgOverlay) {
+		var channelBase = preprocessorBase.getChannel(imgBase);
+		var channelOverlay = preprocessorOverlay.getChannel(imgOverlay);
+		if (channelBase == channelOverlay)
+			return;
+		if (warnedChannels.add(channelBase + "/" + channelOverlay))
+			logger.warn("Base and overlay images are registered using different channels ({} & {}) - "
+					+ "the requested channel needs 8-bit RGB images with color deconvolution stains", channelBase, channelOverlay);
+	}
+
+	/**
+	 * Convert an image to a single-channel Mat for registration.
+	 * @param img the image
+	 * @return an 8-bit Mat if the preprocessor is the default (see {@link #isDefault()}), otherwise a 32-bit floating point Mat.
+	 *         The type depends only on the settings, so images converted with the same settings can always be registered together.
+	 * @see #withStains(ColorDeconvolutionStains)
+	 */
+	Mat apply(BufferedImage img) {
+		var channel = getChannel(img);
+		if (channel != this.channel)
+			logger.debug("{} unavailable for image - will use luminance instead", this.channel);
+
+		Mat mat;
+		if (channel == Channel.LUMINANCE) {
+			mat = OpenCVTools.imageToMat(ImageAlignmentPane.ensureGrayScale(img));
+			if (isDefault())
+				return mat;
+			mat.convertTo(mat, opencv_core.CV_32F);
+		} else {
+			float[] values = channel == Channel.OPTICAL_DENSITY_SUM ?
+					opticalDensitySum(img) : deconvolve(img, stains, channel == Channel.HEMATOXYLIN ? 0 : 1);
+			mat = new Mat(img.getHeight(), img.getWidth(), opencv_core.CV_32F);
+			FloatBuffer buffer = mat.createBuffer();
+			buffer.put(values);
+		}
+
+		if (sigma > 0)
+			opencv_imgproc.GaussianBlur(mat, mat, new Size(0, 0), sigma);
+		if (normalize)
+			normalizePercentiles(mat);
+		return mat;
+	}
+
+
+	/**
+	 * Apply color deconvolution to extract stain concentrations for a single stain.
+	 */
+	private static float[] deconvolve(BufferedImage img, ColorDeconvolutionStains stains, int stainIndex) {
+		int[] rgb = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+		double[][] inverse = stains.getMatrixInverse();
+		float[] lutRed = createWeightedODLUT(stains.getMaxRed(), inverse[0][stainIndex]);
+		float[] lutGreen = createWeightedODLUT(stains.getMaxGreen(), inverse[1][stainIndex]);
+		float[] lutBlue = createWeightedODLUT(stains.getMaxBlue(), inverse[2][stainIndex]);
+		float[] output = new float[rgb.length];
+		for (int i = 0; i < rgb.length; i++) {
+			int v = rgb[i];
+			output[i] = lutRed[(v >> 16) & 0xFF] + lutGreen[(v >> 8) & 0xFF] + lutBlue[v & 0xFF];
+		}
+		return output;
+	}
+
+	/**
+	 * Compute the sum of optical densities for each pixel, assuming a white background.
+	 */
+	private static float[] opticalDensitySum(BufferedImage img) {
+		int[] rgb = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+		float[] lut = createWeightedODLUT(255, 1.0);
+		float[] output = new float[rgb.length];
+		for (int i = 0; i < rgb.length; i++) {
+			int v = rgb[i];
+			output[i] = lut[(v >> 16) & 0xFF] + lut[(v >> 8) & 0xFF] + lut[v & 0xFF];
+		}
+		return output;
+	}
+
+	/**
+	 * Create a lookup table converting 8-bit values to optical densities, multiplied by a weight.
+	 */
+	private static float[] createWeightedODLUT(double maxValue, double weight) {
+		float[] lut = new float[256];
+		for (int i = 0; i < 256; i++)
+			lut[i] = (float)(weight * Math.max(0, -Math.log10(Math.max(i, 1) / maxValue)));
+		return lut;
+	}
+
+	/**
+	 * Linearly rescale a 32-bit Mat in-place so that the lower and upper percentiles map to 0 and 1,
+	 * clipping values outside this range.
+	 */
+	private static void normalizePercentiles(Mat mat) {
+		double[] minValue = new double[1];
+		double[] maxValue = new double[1];
+		opencv_core.minMaxLoc(mat, minValue, maxValue, null, null, null);
+		double min = minValue[0];
+		double max = maxValue[0];
+		if (!(max > min))
+			return;
+
+		// Find percentiles from a histogram, to avoid sorting all pixels
+		FloatBuffer buffer = mat.createBuffer();
+		int[] hist = new int[NORMALIZE_HISTOGRAM_BINS];
+		double scale = (NORMALIZE_HISTOGRAM_BINS - 1) / (max - min);
+		int n = buffer.limit();
+		for (int i = 0; i < n; i++)
+			hist[(int)((buffer.get(i) - min) * scale)]++;
+		double lower = min + findPercentileBin(hist, n, NORMALIZE_LOWER_PERCENTILE) / scale;
+		double upper = min + (findPercentileBin(hist, n, NORMALIZE_UPPER_PERCENTILE) + 1) / scale;
+		if (!(upper > lower))
+			return;
+
+		mat.convertTo(mat, opencv_core.CV_32F, 1.0 / (upper - lower), -lower / (upper - lower));
+		opencv_imgproc.threshold(mat, mat, 1.0, 1.0, opencv_imgproc.THRESH_TRUNC);
+		opencv_imgproc.threshold(mat, mat, 0.0, 0.0, opencv_imgproc.THRESH_TOZERO);
+	}
+
+	private static int findPercentileBin(int[] hist, int n, double percentile) {
+		long target = Math.round(n * percentile / 100.0);
+		long count = 0;
+		for (int i = 0; i < hist.length; i++) {
+			count += hist[i];
+			if (count >= target)
+				return i;
+		}
+		return hist.length - 1;
+	}
+
+	/**
+	 * Get a string representation of the settings. This includes the stains if they are used, so can be used
+	 * as a key for cached images that should be updated whenever the stains change.
+	 */
+	@Override
+	public String toString() {
+		String stainsString = requiresStains() && stains != null ? ", stains=" + ColorDeconvolutionStains.getColorDeconvolutionStainsAsString(stains, 5) : "";
+		return "RegistrationPreprocessor [channel=" + channel + ", sigma=" + sigma + ", normalize=" + normalize + stainsString + "]";
+	}
+
+}
@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+
+/**
+ * Choose the resolution at which images are read for registration.
+ * <p>
+ * The resolution is limited by a budget on the number of pixels per image, which is itself reduced if the
+ * maximum heap size is too small. The budget doesn't depend on the memory in use at the time, so the same images
+ * are always registered at the same resolution.
+ * <p>
+ * Both images are read at the same downsample. Where possible, this is snapped to a native pyramid level
+ * of both images so that neither needs resampling; otherwise, it is snapped to a level of the base image only.
+ */
+class RegistrationResolution {
+
+	private static final Logger logger = LoggerFactory.getLogger(RegistrationResolution.class);
+
+	/**
+	 * Default maximum number of pixels per image (roughly 2000 x 2000).
+	 */
+	static final long DEFAULT_MAX_PIXELS = 4_000_000L;
+
+	/**
+	 * Approximate memory needed per pixel, for both images: the RGB image read from the server,
+	 * the single-channel Mat used for registration and temporary images for quality assessment.
+	 */
+	private static final int BYTES_PER_PIXEL = 24;
+
+	/**
+	 * Maximum proportion of the available heap that registration images may use.
+	 */
+	private static final double MAX_HEAP_PROPORTION = 0.25;
+
+	/**
+	 * Relative difference within which a requested downsample is snapped to a native pyramid level.
+	 */
+	private static final double SNAP_TOLERANCE = 0.25;
+
+	/**
+	 * Relative difference within which pyramid levels of two images are considered the same.
+	 */
+	private static final double LEVEL_TOLERANCE = 1e-3;
+
+	/**
+	 * Last pixel budget that was reduced because of the heap size, so that this is only logged once.
+	 */
+	private static volatile long lastHeapBudget = -1;
+
+	private final double requestedPixelSizeMicrons;
+	private final long maxPixels;
+
+	private RegistrationResolution(double requestedPixelSizeMicrons, long maxPixels) {
+		this.requestedPixelSizeMicrons = requestedPixelSizeMicrons;
+		this.maxPixels = maxPixels;
+	}
+
+	/**
+	 * Choose the resolution automatically, using the highest resolution native level within the default pixel budget.
+	 * @return
+	 */
+	static RegistrationResolution auto() {
+		return new RegistrationResolution(Double.NaN, DEFAULT_MAX_PIXELS);
+	}
+
+	/**
+	 * Request a specific pixel size, subject to the default pixel budget.
+	 * @param requestedPixelSizeMicrons the pixel size in microns; if this is not a finite, positive value then the resolution is chosen automatically
+	 * @return
+	 */
+	static RegistrationResolution pixelSize(double requestedPixelSizeMicrons) {
+		return new RegistrationResolution(requestedPixelSizeMicrons, DEFAULT_MAX_PIXELS);
+	}
+
+	/**
+	 * Create a resolution with the same requested pixel size, but a different budget.
+	 * @param maxPixels maximum number of pixels per image
+	 * @return
+	 */
+	RegistrationResolution withMaxPixels(long maxPixels) {
+		if (maxPixels <= 0)
+			throw new IllegalArgumentException("Maximum number of pixels must be > 0, but was " + maxPixels);
+		return new RegistrationResolution(requestedPixelSizeMicrons, maxPixels);
+	}
+
+	/**
+	 * Query whether the resolution should be chosen automatically.
+	 * @return
+	 */
+	boolean isAuto() {
+		return !(Double.isFinite(requestedPixelSizeMicrons) && requestedPixelSizeMicrons > 0);
+	}
+
+	/**
+	 * Get the requested pixel size.
+	 * @return the requested pixel size in microns, or NaN if the resolution should be chosen automatically
+	 */
+	double getRequestedPixelSizeMicrons() {
+		return isAuto() ? Double.NaN : requestedPixelSizeMicrons;
+	}
+
+	/**
+	 * Get the maximum number of pixels per image.
+	 * @return
+	 */
+	long getMaxPixels() {
+		return maxPixels;
+	}
+
+	/**
+	 * Get the downsample at which both images should be read.
+	 * The downsample is calculated relative to the base image; the overlay is included when checking the budget,
+	 * and when choosing a native pyramid level.
+	 *
+	 * @param serverBase the base image
+	 * @param serverOverlay the overlay image (may be null)
+	 * @return the downsample (always &ge; 1)
+	 */
+	double getDownsample(ImageServer<?> serverBase, ImageServer<?> serverOverlay) {
+		long nPixels = (long)serverBase.getWidth() * serverBase.getHeight();
+		if (serverOverlay != null)
+			nPixels = Math.max(nPixels, (long)serverOverlay.getWidth() * serverOverlay.getHeight());
+		long budget = getPixelBudget();
+		double minDownsample = Math.max(1.0, Math.sqrt((double)nPixels / budget));
+
+		double pixelSize = serverBase.getPixelCalibration().getAveragedPixelSizeMicrons();
+		double[] baseLevels = serverBase.getPreferredDownsamples();
+		double[] commonLevels = serverOverlay == null ? baseLevels : getCommonLevels(baseLevels, serverOverlay.getPreferredDownsamples());
+		double downsample;
+		if (!isAuto() && Double.isFinite(pixelSize)) {
+			downsample = requestedPixelSizeMicrons / pixelSize;
+			if (downsample < minDownsample) {
+				logger.warn("Requested pixel size {} would exceed the budget of {} pixels - will use downsample {} instead",
+						requestedPixelSizeMicrons, budget, minDownsample);
+				downsample = minDownsample;
+			}
+			double snapped = snapToLevel(downsample, minDownsample, commonLevels);
+			if (snapped == downsample)
+				snapped = snapToLevel(downsample, minDownsample, baseLevels);
+			downsample = snapped;
+		} else {
+			if (!isAuto())
+				logger.warn("Pixel size is unavailable! Resolution will be chosen automatically");
+			downsample = chooseLevel(minDownsample, commonLevels);
+			if (Double.isNaN(downsample))
+				downsample = chooseLevel(minDownsample, baseLevels);
+			if (Double.isNaN(downsample))
+				downsample = minDownsample;
+		}
+		logger.debug("Registration downsample: {} (budget {} pixels, native levels {}, shared levels {})",
+				downsample, budget, Arrays.toString(baseLevels), Arrays.toString(commonLevels));
+		return Math.max(1.0, downsample);
+	}
+
+	/**
+	 * Choose the highest-resolution native level within budget, unless that would lose much more resolution than the budget requires.
+	 * @return the level, or NaN if no level is suitable
+	 */
+	private static double chooseLevel(double minDownsample, double[] levels) {
+		for (double level : levels) {
+			if (level >= minDownsample * (1 - 1e-6))
+				return level > minDownsample * (1 + SNAP_TOLERANCE) * 2 ? Double.NaN : level;
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * Get the pyramid levels shared by two images.
+	 */
+	static double[] getCommonLevels(double[] levels, double[] otherLevels) {
+		return Arrays.stream(levels)
+				.filter(level -> Arrays.stream(otherLevels).anyMatch(other -> Math.abs(other / level - 1) <= LEVEL_TOLERANCE))
+				.toArray();
+	}
+
+	/**
+	 * Snap a downsample to the closest native level within tolerance, provided that level is within budget.
+	 */
+	static double snapToLevel(double downsample, double minDownsample, double[] levels) {
+		double best = downsample;
+		double bestDiff = SNAP_TOLERANCE;
+		for (double level : levels) {
+			if (level < minDownsample * (1 - 1e-6))
+				continue;
+			double diff = Math.abs(Math.log(level / downsample));
+			if (diff < Math.log(1 + bestDiff)) {
+				best = level;
+				bestDiff = Math.exp(diff) - 1;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Get the maximum number of pixels per image, reduced if the maximum heap size is too small.
+	 * This uses the maximum heap size rather than the memory currently available, which varies from call to call
+	 * depending upon when garbage was last collected.
+	 */
+	private long getPixelBudget() {
+		long heapBudget = Math.max(1, (long)(Runtime.getRuntime().maxMemory() * MAX_HEAP_PROPORTION / BYTES_PER_PIXEL));
+		if (heapBudget >= maxPixels)
+			return maxPixels;
+		if (heapBudget != lastHeapBudget) {
+			lastHeapBudget = heapBudget;
+			logger.warn("Maximum heap size is too small for registration images of {} pixels - will use {} pixels instead", maxPixels, heapBudget);
+		}
+		return heapBudget;
+	}
+
+	@Override
+	public String toString() {
+		if (isAuto())
+			return "RegistrationResolution [auto, maxPixels=" + maxPixels + "]";
+		return "RegistrationResolution [pixelSize=" + requestedPixelSizeMicrons + ", maxPixels=" + maxPixels + "]";
+	}
+
+}
@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Estimate the relative scale of two images that lack pixel sizes, from the areas of their tissue.
+ * <p>
+ * Each image is read as a small thumbnail, smoothed and thresholded using Otsu's method. The tissue is taken to be
+ * whichever side of the threshold covers less of the image border, so this works for both brightfield and fluorescence.
+ * If both images show the same tissue, the ratio of lengths is the square root of the ratio of tissue areas.
+ */
+class ScaleEstimator {
+
+	private static final Logger logger = LoggerFactory.getLogger(ScaleEstimator.class);
+
+	/**
+	 * Maximum number of pixels in each thumbnail.
+	 */
+	private static final long MAX_PIXELS = 512 * 512;
+
+	/**
+	 * Tissue must cover between these fractions of the thumbnail for its area to be trusted.
+	 */
+	private static final double MIN_TISSUE_FRACTION = 0.005;
+	private static final double MAX_TISSUE_FRACTION = 0.95;
+
+	/**
+	 * Estimated scales outside this range (or its reciprocal) are rejected as implausible.
+	 */
+	private static final double MAX_SCALE = 20.0;
+
+	private ScaleEstimator() {}
+
+	/**
+	 * Estimate the scale factor from base to overlay pixel coordinates.
+	 * @param serverBase the base image
+	 * @param serverOverlay the overlay image
+	 * @param preprocessorBase preprocessor used to convert the base thumbnail to a single channel
+	 * @param preprocessorOverlay preprocessor used to convert the overlay thumbnail to a single channel
+	 * @return the scale factor, or NaN if it could not be estimated reliably
+	 * @throws IOException if a thumbnail could not be read
+	 */
+	static double estimateScale(ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay,
+			RegistrationPreprocessor preprocessorBase, RegistrationPreprocessor preprocessorOverlay) throws IOException {
+		long startTime = System.nanoTime();
+		double areaBase = estimateTissueArea(serverBase, preprocessorBase);
+		double areaOverlay = estimateTissueArea(serverOverlay, preprocessorOverlay);
+		double scale = Math.sqrt(areaOverlay / areaBase);
+		logger.debug("Tissue areas {} & {} pixels, scale {} ({} ms)", areaBase, areaOverlay, scale, (System.nanoTime() - startTime) / 1_000_000);
+		if (!Double.isFinite(scale) || scale > MAX_SCALE || scale < 1.0 / MAX_SCALE)
+			return Double.NaN;
+		return scale;
+	}
+
+	/**
+	 * Estimate the area of tissue in an image.
+	 * @param server
+	 * @param preprocessor
+	 * @return the area in full resolution pixels, or NaN if the tissue couldn't be distinguished from the background
+	 * @throws IOException
+	 */
+	static double estimateTissueArea(ImageServer<BufferedImage> server, RegistrationPreprocessor preprocessor) throws IOException {
+		double downsample = RegistrationResolution.auto().withMaxPixels(MAX_PIXELS).getDownsample(server, null);
+		var img = server.readRegion(RegionRequest.createInstance(server.getPath(), downsample, 0, 0, server.getWidth(), server.getHeight()));
+		Mat mat = preprocessor.apply(img);
+		Mat mat8 = new Mat();
+		opencv_core.normalize(mat, mat8, 0, 255, opencv_core.NORM_MINMAX, opencv_core.CV_8U, null);
+		mat.release();
+		var size = new Size(5, 5);
+		opencv_imgproc.GaussianBlur(mat8, mat8, size, 0);
+		size.close();
+		Mat matMask = new Mat();
+		opencv_imgproc.threshold(mat8, matMask, 0, 255, opencv_imgproc.THRESH_BINARY | opencv_imgproc.THRESH_OTSU);
+		int width = matMask.cols();
+		int height = matMask.rows();
+		byte[] mask = new byte[width * height];
+		matMask.data().get(mask);
+		mat8.release();
+		matMask.release();
+
+		long nAbove = 0;
+		long nBorder = 0, nBorderAbove = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				boolean above = mask[y * width + x] != 0;
+				if (above)
+					nAbove++;
+				if (x == 0 || y == 0 || x == width - 1 || y == height - 1) {
+					nBorder++;
+					if (above)
+						nBorderAbove++;
+				}
+			}
+		}
+		// The background is assumed to be whatever covers most of the border
+		long nTissue = nBorderAbove * 2 > nBorder ? width * height - nAbove : nAbove;
+		double fraction = (double)nTissue / (width * height);
+		if (fraction < MIN_TISSUE_FRACTION || fraction > MAX_TISSUE_FRACTION) {
+			logger.debug("Tissue covers {}% of {} - unable to estimate area", fraction * 100, server.getPath());
+			return Double.NaN;
+		}
+		// Thumbnail dimensions are rounded, so use the actual scaling rather than the downsample
+		double scaleX = (double)server.getWidth() / width;
+		double scaleY = (double)server.getHeight() / height;
+		return nTissue * scaleX * scaleY;
+	}
+
+}
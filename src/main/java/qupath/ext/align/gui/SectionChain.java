@@ -0,0 +1,263 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.scene.transform.Affine;
+import qupath.ext.align.gui.ImageAlignmentPane.AlignmentMethod;
+import qupath.ext.align.gui.ImageAlignmentPane.RegistrationType;
+import qupath.lib.images.servers.ImageServer;
+
+/**
+ * Align a series of consecutive sections by registering each section to its neighbour,
+ * then composing the pairwise transforms into transforms from a reference section.
+ * <p>
+ * Only adjacent pairs are registered, so the cost is linear in the number of sections,
+ * and pairs are registered concurrently.
+ * All transforms follow the usual convention, mapping coordinates in one section to coordinates in another.
+ */
+class SectionChain {
+
+	private static final Logger logger = LoggerFactory.getLogger(SectionChain.class);
+
+	/**
+	 * The result of registering two sections.
+	 * @param from index of the section used as the base image
+	 * @param to index of the section used as the overlay image
+	 * @param transform the transform from coordinates in {@code from} to coordinates in {@code to}, or null if registration failed
+	 * @param score a quality score for the registration (normalized cross-correlation), or NaN if unavailable
+	 */
+	static record PairwiseResult(int from, int to, AffineTransform transform, double score) {
+
+		/**
+		 * Query whether the registration succeeded.
+		 * @return
+		 */
+		boolean isSuccess() {
+			return transform != null;
+		}
+
+	}
+
+	private final List<ImageServer<BufferedImage>> servers;
+	private final List<RegistrationPreprocessor> preprocessors;
+	private final AlignmentMethod alignmentMethod;
+	private final RegistrationType registrationType;
+	private final RegistrationResolution resolution;
+	private final int nThreads;
+
+	/**
+	 * Constructor.
+	 * @param servers the sections, in order
+	 * @param preprocessors preprocessors for each section
+	 * @param alignmentMethod intensity-based alignment method
+	 * @param registrationType type of transform to estimate
+	 * @param resolution resolution for registration
+	 * @param nThreads maximum number of pairs to register in parallel; each pair needs memory for two images at the registration resolution
+	 */
+	SectionChain(List<ImageServer<BufferedImage>> servers, List<RegistrationPreprocessor> preprocessors,
+			AlignmentMethod alignmentMethod, RegistrationType registrationType, RegistrationResolution resolution, int nThreads) {
+		if (servers.size() != preprocessors.size())
+			throw new IllegalArgumentException("Number of preprocessors must match the number of sections");
+		this.servers = List.copyOf(servers);
+		this.preprocessors = List.copyOf(preprocessors);
+		this.alignmentMethod = alignmentMethod;
+		this.registrationType = registrationType;
+		this.resolution = resolution;
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Get the number of sections.
+	 * @return
+	 */
+	int size() {
+		return servers.size();
+	}
+
+	/**
+	 * Register two sections.
+	 * @param from index of the base section
+	 * @param to index of the overlay section
+	 * @param initial initial transform from {@code from} to {@code to}
+	 * @return the result of the registration
+	 * @throws IOException
+	 */
+	PairwiseResult registerPair(int from, int to, AffineTransform initial) throws IOException {
+		var affine = new Affine();
+		TransformTools.setAffine(initial, affine);
+		var quality = ImageAlignmentPane.autoAlign(servers.get(from), servers.get(to), preprocessors.get(from), preprocessors.get(to),
+				alignmentMethod, registrationType, affine, resolution, null);
+		if (quality == null) {
+			logger.warn("Unable to register section {} to section {}", from, to);
+			return new PairwiseResult(from, to, null, Double.NaN);
+		}
+		logger.debug("Section {} -> {}: {}", from, to, quality.getSummary());
+		return new PairwiseResult(from, to, TransformTools.toAffineTransform(affine), quality.getNCC());
+	}
+
+	/**
+	 * Register a list of section pairs concurrently.
+	 * @param pairs pairs of section indices (from, to)
+	 * @param initials initial transforms for each pair
+	 * @return results in the same order as the pairs
+	 * @throws IOException
+	 */
+	List<PairwiseResult> registerPairs(List<int[]> pairs, List<AffineTransform> initials) throws IOException {
+		List<Callable<PairwiseResult>> tasks = new ArrayList<>();
+		for (int i = 0; i < pairs.size(); i++) {
+			int[] pair = pairs.get(i);
+			var initial = initials.get(i);
+			tasks.add(() -> registerPair(pair[0], pair[1], initial));
+		}
+		var pool = new ForkJoinPool(nThreads);
+		try {
+			List<PairwiseResult> results = new ArrayList<>();
+			for (var future : pool.invokeAll(tasks))
+				results.add(future.get());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Section registration interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioException)
+				throw ioException;
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Register each section to the next one.
+	 * @param initials initial transforms from each section to the next, i.e. {@code size() - 1} transforms
+	 * @return results for each adjacent pair, in order
+	 * @throws IOException
+	 */
+	List<PairwiseResult> registerAdjacent(List<AffineTransform> initials) throws IOException {
+		if (initials.size() != size() - 1)
+			throw new IllegalArgumentException("Expected " + (size() - 1) + " initial transforms, but got " + initials.size());
+		List<int[]> pairs = new ArrayList<>();
+		for (int i = 0; i < size() - 1; i++)
+			pairs.add(new int[] {i, i + 1});
+		return registerPairs(pairs, initials);
+	}
+
+	/**
+	 * Get the pairs of sections within a maximum distance of one another in the chain.
+	 * @param maxStep maximum difference between section indices; 1 gives adjacent pairs only, 2 also includes skip-one pairs
+	 * @return pairs of section indices (from, to), with from &lt; to
+	 */
+	List<int[]> getNeighbourPairs(int maxStep) {
+		List<int[]> pairs = new ArrayList<>();
+		for (int step = 1; step <= maxStep; step++) {
+			for (int i = 0; i + step < size(); i++)
+				pairs.add(new int[] {i, i + step});
+		}
+		return pairs;
+	}
+
+	/**
+	 * Compute the transform between two sections, given transforms from a reference to each.
+	 * @param fromReferenceFrom transform from the reference to the first section
+	 * @param fromReferenceTo transform from the reference to the second section
+	 * @return the transform from the first section to the second
+	 * @throws NoninvertibleTransformException
+	 */
+	static AffineTransform relativeTransform(AffineTransform fromReferenceFrom, AffineTransform fromReferenceTo) throws NoninvertibleTransformException {
+		// T(i -> j) = T(ref -> j) * T(ref -> i)^-1
+		var transform = new AffineTransform(fromReferenceTo);
+		transform.concatenate(fromReferenceFrom.createInverse());
+		return transform;
+	}
+
+	/**
+	 * Compute the transforms between adjacent sections, given transforms from a reference to every section.
+	 * This is useful to initialize pairwise registration from the current (perhaps coarse) alignment.
+	 * @param fromReference transforms from the reference section to each section
+	 * @return transforms from each section to the next
+	 * @throws NoninvertibleTransformException
+	 */
+	static List<AffineTransform> toAdjacent(List<AffineTransform> fromReference) throws NoninvertibleTransformException {
+		List<AffineTransform> adjacent = new ArrayList<>();
+		for (int i = 0; i < fromReference.size() - 1; i++)
+			adjacent.add(relativeTransform(fromReference.get(i), fromReference.get(i + 1)));
+		return adjacent;
+	}
+
+	/**
+	 * Compose transforms between adjacent sections into transforms from a reference section to every section.
+	 * If a pairwise registration failed, sections beyond it (as seen from the reference) have no transform.
+	 * @param adjacent results for each adjacent pair, in order
+	 * @param reference index of the reference section
+	 * @return transforms from the reference section to each section; the reference itself has the identity transform,
+	 *         and sections that could not be reached have null
+	 */
+	static List<AffineTransform> composeFromReference(List<PairwiseResult> adjacent, int reference) {
+		int n = adjacent.size() + 1;
+		var transforms = new ArrayList<AffineTransform>(n);
+		for (int i = 0; i < n; i++)
+			transforms.add(null);
+		transforms.set(reference, new AffineTransform());
+
+		// Forwards: T(ref -> k) = T(k-1 -> k) * T(ref -> k-1)
+		for (int k = reference + 1; k < n; k++) {
+			var previous = transforms.get(k - 1);
+			var pair = adjacent.get(k - 1);
+			if (previous == null || !pair.isSuccess())
+				break;
+			var transform = new AffineTransform(pair.transform());
+			transform.concatenate(previous);
+			transforms.set(k, transform);
+		}
+
+		// Backwards: T(ref -> k) = T(k -> k+1)^-1 * T(ref -> k+1)
+		for (int k = reference - 1; k >= 0; k--) {
+			var next = transforms.get(k + 1);
+			var pair = adjacent.get(k);
+			if (next == null || !pair.isSuccess())
+				break;
+			try {
+				var transform = pair.transform().createInverse();
+				transform.concatenate(next);
+				transforms.set(k, transform);
+			} catch (NoninvertibleTransformException e) {
+				logger.warn("Unable to invert transform from section {} to {}", k, k + 1);
+				break;
+			}
+		}
+		return transforms;
+	}
+
+}
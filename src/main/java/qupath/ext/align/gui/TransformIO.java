@@ -0,0 +1,633 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Read and write affine transforms for many images, for exchange with other software.
+ * <p>
+ * JSON and CSV files contain one record per image, and are read and written one record at a time
+ * so that very large files don't need to be held in memory.
+ * ITK and elastix files contain a single transform each, and are named after the image.
+ * <p>
+ * All transforms map full-resolution pixel coordinates in the base image to pixel coordinates in the overlay image.
+ * This matches the ITK convention of mapping from the fixed to the moving image, assuming a pixel spacing of 1 and
+ * an origin of 0 for both images.
+ */
+class TransformIO {
+
+	/**
+	 * Key used to store a transform in the metadata of a project entry.
+	 */
+	static final String METADATA_KEY = "Alignment transform";
+
+	/**
+	 * Key used to store the name of the base image for a stored transform in the metadata of a project entry.
+	 */
+	static final String METADATA_BASE_KEY = "Alignment base image";
+
+	private static final String CSV_DELIMITER = ",";
+
+	private static final String[] CSV_HEADER = {"Image", "ID", "Base", "mxx", "mxy", "tx", "myx", "myy", "ty"};
+
+	/**
+	 * Supported file formats.
+	 */
+	enum Format {
+		/**
+		 * JSON array, with one object per image.
+		 */
+		JSON,
+		/**
+		 * CSV table, with one row per image.
+		 */
+		CSV,
+		/**
+		 * ITK transform files (.tfm), one per image.
+		 */
+		ITK,
+		/**
+		 * elastix transform parameter files, one per image.
+		 */
+		ELASTIX;
+
+		/**
+		 * Query whether the format stores one transform per file.
+		 * @return
+		 */
+		boolean isSingleTransform() {
+			return this == ITK || this == ELASTIX;
+		}
+
+		/**
+		 * Get a file name for a transform in this format.
+		 * @param name image name
+		 * @return
+		 */
+		String getFileName(String name) {
+			String safeName = name.replaceAll("[\\\\/:*?\"<>|]", "_");
+			switch (this) {
+			case JSON:
+				return safeName + ".json";
+			case CSV:
+				return safeName + ".csv";
+			case ITK:
+				return safeName + ".tfm";
+			case ELASTIX:
+				return "TransformParameters." + safeName + ".txt";
+			}
+			throw new IllegalArgumentException("Unknown format " + this);
+		}
+
+		/**
+		 * Get the image name from a file name created by {@link #getFileName(String)}.
+		 * @param fileName
+		 * @return
+		 */
+		String getImageName(String fileName) {
+			String name = fileName;
+			int ind = name.lastIndexOf('.');
+			if (ind > 0)
+				name = name.substring(0, ind);
+			if (this == ELASTIX && name.startsWith("TransformParameters."))
+				name = name.substring("TransformParameters.".length());
+			return name;
+		}
+
+		/**
+		 * Guess the format of a file from its name.
+		 * ITK files may also have a .txt extension, so these are distinguished from elastix files by their contents.
+		 * @param path
+		 * @return the format, or null if it could not be determined
+		 * @throws IOException
+		 */
+		static Format fromPath(Path path) throws IOException {
+			String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+			if (name.endsWith(".json"))
+				return JSON;
+			if (name.endsWith(".csv"))
+				return CSV;
+			if (name.endsWith(".tfm"))
+				return ITK;
+			if (name.endsWith(".txt")) {
+				try (var reader = Files.newBufferedReader(path)) {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						line = line.strip();
+						if (line.startsWith("#Insight"))
+							return ITK;
+						if (line.startsWith("("))
+							return ELASTIX;
+					}
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			switch (this) {
+			case JSON:
+				return "JSON (all images)";
+			case CSV:
+				return "CSV (all images)";
+			case ITK:
+				return "ITK (one file per image)";
+			case ELASTIX:
+				return "elastix (one file per image)";
+			}
+			throw new IllegalArgumentException("Unknown format " + this);
+		}
+	}
+
+	/**
+	 * Transform for one image.
+	 * @param image the image name
+	 * @param id the ID of the project entry, or null if unknown
+	 * @param base the name of the base image, or null if unknown
+	 * @param transform transform from base to image coordinates
+	 */
+	record Entry(String image, String id, String base, AffineTransform transform) {}
+
+	/**
+	 * Write transforms as a JSON array.
+	 * @param writer
+	 * @return a consumer to which each entry should be passed, and which must be closed when all entries have been written
+	 * @throws IOException
+	 */
+	static EntryWriter createJSONWriter(Writer writer) throws IOException {
+		var json = new JsonWriter(writer);
+		json.setIndent("  ");
+		json.beginArray();
+		return new EntryWriter() {
+			@Override
+			public void write(Entry entry) throws IOException {
+				json.beginObject();
+				json.name("image").value(entry.image());
+				if (entry.id() != null)
+					json.name("id").value(entry.id());
+				if (entry.base() != null)
+					json.name("base").value(entry.base());
+				json.name("transform").beginArray();
+				for (double v : toArray(entry.transform()))
+					json.value(v);
+				json.endArray();
+				json.endObject();
+			}
+
+			@Override
+			public void close() throws IOException {
+				json.endArray();
+				json.flush();
+			}
+		};
+	}
+
+	/**
+	 * Write transforms as a CSV table.
+	 * @param writer
+	 * @return a consumer to which each entry should be passed, and which must be closed when all entries have been written
+	 * @throws IOException
+	 */
+	static EntryWriter createCSVWriter(Writer writer) throws IOException {
+		writer.write(String.join(CSV_DELIMITER, CSV_HEADER));
+		writer.write("\n");
+		return new EntryWriter() {
+			@Override
+			public void write(Entry entry) throws IOException {
+				var sb = new StringBuilder();
+				sb.append(escape(entry.image())).append(CSV_DELIMITER)
+					.append(escape(entry.id())).append(CSV_DELIMITER)
+					.append(escape(entry.base()));
+				for (double v : toArray(entry.transform()))
+					sb.append(CSV_DELIMITER).append(v);
+				writer.write(sb.append("\n").toString());
+			}
+
+			@Override
+			public void close() throws IOException {
+				writer.flush();
+			}
+		};
+	}
+
+	/**
+	 * Write a single transform as an ITK transform file.
+	 * @param writer
+	 * @param transform
+	 * @throws IOException
+	 */
+	static void writeITK(Writer writer, AffineTransform transform) throws IOException {
+		writer.write("#Insight Transform File V1.0\n");
+		writer.write("#Transform 0\n");
+		writer.write("Transform: AffineTransform_double_2_2\n");
+		writer.write(String.format(Locale.ROOT, "Parameters: %s %s %s %s %s %s\n",
+				transform.getScaleX(), transform.getShearX(), transform.getShearY(), transform.getScaleY(),
+				transform.getTranslateX(), transform.getTranslateY()));
+		writer.write("FixedParameters: 0 0\n");
+	}
+
+	/**
+	 * Write a single transform as an elastix transform parameter file.
+	 * @param writer
+	 * @param transform
+	 * @param width width of the base image
+	 * @param height height of the base image
+	 * @throws IOException
+	 */
+	static void writeElastix(Writer writer, AffineTransform transform, int width, int height) throws IOException {
+		String[] lines = {
+				"(Transform \"AffineTransform\")",
+				"(NumberOfParameters 6)",
+				String.format(Locale.ROOT, "(TransformParameters %s %s %s %s %s %s)",
+						transform.getScaleX(), transform.getShearX(), transform.getShearY(), transform.getScaleY(),
+						transform.getTranslateX(), transform.getTranslateY()),
+				"(InitialTransformParametersFileName \"NoInitialTransform\")",
+				"(HowToCombineTransforms \"Compose\")",
+				"(FixedImageDimension 2)",
+				"(MovingImageDimension 2)",
+				"(FixedInternalImagePixelType \"float\")",
+				"(MovingInternalImagePixelType \"float\")",
+				"(Size " + width + " " + height + ")",
+				"(Index 0 0)",
+				"(Spacing 1 1)",
+				"(Origin 0 0)",
+				"(Direction 1 0 0 1)",
+				"(UseDirectionCosines \"true\")",
+				"(CenterOfRotationPoint 0 0)",
+				"(ResampleInterpolator \"FinalBSplineInterpolator\")",
+				"(FinalBSplineInterpolationOrder 3)",
+				"(Resampler \"DefaultResampler\")",
+				"(DefaultPixelValue 0)",
+				"(ResultImageFormat \"tif\")",
+				"(ResultImagePixelType \"float\")",
+				"(CompressResultImage \"false\")"
+		};
+		for (var line : lines)
+			writer.write(line + "\n");
+	}
+
+	/**
+	 * Read transforms from a JSON array, passing each to a consumer as it is read.
+	 * @param reader
+	 * @param consumer
+	 * @throws IOException if the JSON is malformed or an entry is incomplete
+	 */
+	static void readJSON(Reader reader, Consumer<Entry> consumer) throws IOException {
+		try (var json = new JsonReader(reader)) {
+			json.beginArray();
+			while (json.hasNext()) {
+				String image = null, id = null, base = null;
+				double[] values = null;
+				json.beginObject();
+				while (json.hasNext()) {
+					String name = json.nextName();
+					if (json.peek() == JsonToken.NULL) {
+						json.nextNull();
+						continue;
+					}
+					switch (name) {
+					case "image" -> image = json.nextString();
+					case "id" -> id = json.nextString();
+					case "base" -> base = json.nextString();
+					case "transform" -> {
+						List<Double> list = new ArrayList<>();
+						json.beginArray();
+						while (json.hasNext())
+							list.add(json.nextDouble());
+						json.endArray();
+						values = list.stream().mapToDouble(Double::doubleValue).toArray();
+					}
+					default -> json.skipValue();
+					}
+				}
+				json.endObject();
+				if ((image == null && id == null) || values == null || values.length != 6)
+					throw new IOException("Each transform needs an image name or ID, and a transform (at " + json.getPath() + ")");
+				consumer.accept(new Entry(image, id, base, fromArray(values)));
+			}
+			json.endArray();
+		}
+	}
+
+	/**
+	 * Read transforms from a CSV table, passing each to a consumer as it is read.
+	 * The table must have the columns written by {@link #createCSVWriter(Writer)}, in any order; only the image name or ID is required
+	 * in addition to the transform values.
+	 * @param reader
+	 * @param consumer
+	 * @throws IOException if the header or a row is invalid
+	 */
+	static void readCSV(BufferedReader reader, Consumer<Entry> consumer) throws IOException {
+		String line = reader.readLine();
+		if (line == null)
+			return;
+		var header = splitCSV(line);
+		int[] cols = new int[CSV_HEADER.length];
+		for (int i = 0; i < CSV_HEADER.length; i++)
+			cols[i] = header.indexOf(CSV_HEADER[i]);
+		for (int i = 3; i < CSV_HEADER.length; i++) {
+			if (cols[i] < 0)
+				throw new IOException("CSV header does not contain column " + CSV_HEADER[i]);
+		}
+		if (cols[0] < 0 && cols[1] < 0)
+			throw new IOException("CSV header needs an Image or ID column");
+		int lineNumber = 1;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			if (line.isBlank())
+				continue;
+			var values = splitCSV(line);
+			double[] matrix = new double[6];
+			try {
+				for (int i = 0; i < 6; i++) {
+					String value = get(values, cols[i + 3]);
+					if (value == null)
+						throw new IOException("Missing " + CSV_HEADER[i + 3] + " on line " + lineNumber);
+					matrix[i] = Double.parseDouble(value);
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid transform on line " + lineNumber);
+			}
+			consumer.accept(new Entry(get(values, cols[0]), get(values, cols[1]), get(values, cols[2]), fromArray(matrix)));
+		}
+	}
+
+	/**
+	 * Read a single affine transform from an ITK transform file.
+	 * Affine (or matrix-offset) and 2D rigid transforms are supported; if the file contains several transforms, they are composed.
+	 * @param reader
+	 * @return
+	 * @throws IOException if the file does not contain a supported transform
+	 */
+	static AffineTransform readITK(BufferedReader reader) throws IOException {
+		String type = null;
+		double[] params = null;
+		String line;
+		List<AffineTransform> transforms = new ArrayList<>();
+		while ((line = reader.readLine()) != null) {
+			line = line.strip();
+			if (line.startsWith("Transform:")) {
+				type = line.substring("Transform:".length()).strip();
+			} else if (line.startsWith("Parameters:")) {
+				params = parseNumbers(line.substring("Parameters:".length()));
+			} else if (line.startsWith("FixedParameters:")) {
+				double[] fixed = parseNumbers(line.substring("FixedParameters:".length()));
+				transforms.add(createITKTransform(type, params, fixed));
+				type = null;
+				params = null;
+			}
+		}
+		if (type != null && params != null)
+			transforms.add(createITKTransform(type, params, new double[2]));
+		if (transforms.isEmpty())
+			throw new IOException("No transform found");
+		// Composite transforms apply the last transform in the file first
+		var result = transforms.get(0);
+		for (int i = 1; i < transforms.size(); i++)
+			result.concatenate(transforms.get(i));
+		return result;
+	}
+
+	private static AffineTransform createITKTransform(String type, double[] params, double[] fixed) throws IOException {
+		if (type == null || params == null)
+			throw new IOException("Incomplete ITK transform");
+		double cx = fixed.length >= 2 ? fixed[0] : 0;
+		double cy = fixed.length >= 2 ? fixed[1] : 0;
+		if ((type.startsWith("AffineTransform_") || type.startsWith("MatrixOffsetTransformBase_")) && type.endsWith("_2_2") && params.length == 6)
+			return createCenteredTransform(params[0], params[1], params[2], params[3], params[4], params[5], cx, cy);
+		if ((type.startsWith("Euler2DTransform_") || type.startsWith("Rigid2DTransform_")) && params.length == 3) {
+			double cos = Math.cos(params[0]), sin = Math.sin(params[0]);
+			return createCenteredTransform(cos, -sin, sin, cos, params[1], params[2], cx, cy);
+		}
+		throw new IOException("Unsupported ITK transform: " + type + " with " + params.length + " parameters");
+	}
+
+	/**
+	 * Read a single affine transform from an elastix transform parameter file.
+	 * Affine and Euler transforms are supported; initial transforms referenced by the file are ignored.
+	 * @param reader
+	 * @return
+	 * @throws IOException if the file does not contain a supported transform
+	 */
+	static AffineTransform readElastix(BufferedReader reader) throws IOException {
+		String type = null;
+		double[] params = null;
+		double[] center = {0, 0};
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.strip();
+			if (!line.startsWith("(") || !line.endsWith(")"))
+				continue;
+			line = line.substring(1, line.length()-1).strip();
+			int ind = line.indexOf(' ');
+			if (ind < 0)
+				continue;
+			String key = line.substring(0, ind);
+			String value = line.substring(ind + 1).strip();
+			switch (key) {
+			case "Transform" -> type = value.replace("\"", "");
+			case "TransformParameters" -> params = parseNumbers(value);
+			case "CenterOfRotationPoint" -> center = parseNumbers(value);
+			case "InitialTransformParametersFileName" -> {
+				if (!value.contains("NoInitialTransform"))
+					throw new IOException("Initial transforms are not supported: " + value);
+			}
+			default -> {}
+			}
+		}
+		if (type == null || params == null)
+			throw new IOException("No transform found");
+		if (type.equals("AffineTransform") && params.length == 6)
+			return createCenteredTransform(params[0], params[1], params[2], params[3], params[4], params[5], center[0], center[1]);
+		if (type.equals("EulerTransform") && params.length == 3) {
+			double cos = Math.cos(params[0]), sin = Math.sin(params[0]);
+			return createCenteredTransform(cos, -sin, sin, cos, params[1], params[2], center[0], center[1]);
+		}
+		throw new IOException("Unsupported elastix transform: " + type + " with " + params.length + " parameters");
+	}
+
+	/**
+	 * Create the transform x' = A(x - c) + t + c, as used by ITK and elastix.
+	 */
+	private static AffineTransform createCenteredTransform(double a00, double a01, double a10, double a11, double tx, double ty, double cx, double cy) {
+		return new AffineTransform(a00, a10, a01, a11,
+				tx + cx - (a00 * cx + a01 * cy),
+				ty + cy - (a10 * cx + a11 * cy));
+	}
+
+	/**
+	 * Get a transform stored in the metadata of a project entry.
+	 * @param entry
+	 * @return the transform, or null if none is stored (or it cannot be parsed)
+	 */
+	static AffineTransform getStoredTransform(ProjectImageEntry<?> entry) {
+		String value = entry.getMetadataValue(METADATA_KEY);
+		if (value == null)
+			return null;
+		try {
+			double[] values = parseNumbers(value.replace(",", " "));
+			return values.length == 6 ? fromArray(values) : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the name of the base image for a transform stored in the metadata of a project entry.
+	 * @param entry
+	 * @return the base image name, or null if unknown
+	 */
+	static String getStoredBase(ProjectImageEntry<?> entry) {
+		return entry.getMetadataValue(METADATA_BASE_KEY);
+	}
+
+	/**
+	 * Store a transform in the metadata of a project entry.
+	 * The project needs to be synchronized afterwards for this to be saved.
+	 * @param entry
+	 * @param transform
+	 * @param base name of the base image, or null if unknown (in which case any previously stored base is removed)
+	 */
+	static void setStoredTransform(ProjectImageEntry<?> entry, AffineTransform transform, String base) {
+		var sb = new StringBuilder();
+		for (double v : toArray(transform)) {
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append(v);
+		}
+		entry.putMetadataValue(METADATA_KEY, sb.toString());
+		if (base != null)
+			entry.putMetadataValue(METADATA_BASE_KEY, base);
+		else
+			entry.removeMetadataValue(METADATA_BASE_KEY);
+	}
+
+	/**
+	 * Get the transform coefficients in the order mxx, mxy, tx, myx, myy, ty.
+	 */
+	private static double[] toArray(AffineTransform transform) {
+		return new double[] {
+				transform.getScaleX(), transform.getShearX(), transform.getTranslateX(),
+				transform.getShearY(), transform.getScaleY(), transform.getTranslateY()
+		};
+	}
+
+	private static AffineTransform fromArray(double[] values) {
+		return new AffineTransform(values[0], values[3], values[1], values[4], values[2], values[5]);
+	}
+
+	private static double[] parseNumbers(String text) throws IOException {
+		var tokens = text.strip().split("\\s+");
+		double[] values = new double[tokens.length];
+		try {
+			for (int i = 0; i < tokens.length; i++)
+				values[i] = Double.parseDouble(tokens[i]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Unable to parse numbers from " + text);
+		}
+		return values;
+	}
+
+	private static String get(List<String> values, int col) {
+		if (col < 0 || col >= values.size())
+			return null;
+		var value = values.get(col);
+		return value.isEmpty() ? null : value;
+	}
+
+	private static String escape(String value) {
+		if (value == null)
+			return "";
+		if (value.contains(CSV_DELIMITER) || value.contains("\"") || value.contains("\n"))
+			return "\"" + value.replace("\"", "\"\"") + "\"";
+		return value;
+	}
+
+	/**
+	 * Split a line of CSV, handling quoted values.
+	 */
+	private static List<String> splitCSV(String line) {
+		List<String> values = new ArrayList<>();
+		var sb = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"') {
+					if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+						sb.append('"');
+						i++;
+					} else
+						quoted = false;
+				} else
+					sb.append(c);
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == CSV_DELIMITER.charAt(0)) {
+				values.add(sb.toString());
+				sb.setLength(0);
+			} else
+				sb.append(c);
+		}
+		values.add(sb.toString());
+		return values;
+	}
+
+	/**
+	 * Writer for a sequence of transforms.
+	 */
+	interface EntryWriter extends AutoCloseable {
+
+		/**
+		 * Write one transform.
+		 * @param entry
+		 * @throws IOException
+		 */
+		void write(Entry entry) throws IOException;
+
+		/**
+		 * Finish writing; this does not close the underlying writer.
+		 */
+		@Override
+		void close() throws IOException;
+
+	}
+
+}
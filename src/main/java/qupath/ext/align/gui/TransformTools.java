@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.javacpp.indexer.Indexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import javafx.scene.transform.Affine;
+
+/**
+ * Static helpers to convert between the different representations of an affine transform
+ * used during alignment (JavaFX {@link Affine}, AWT {@link AffineTransform} and 2x3 OpenCV {@link Mat}).
+ * <p>
+ * All transforms map coordinates in the base image to coordinates in the overlay image.
+ */
+class TransformTools {
+
+	private TransformTools() {}
+
+	/**
+	 * Create an {@link AffineTransform} with the same values as a JavaFX {@link Affine}.
+	 * @param affine
+	 * @return
+	 */
+	static AffineTransform toAffineTransform(Affine affine) {
+		return new AffineTransform(
+				affine.getMxx(),
+				affine.getMyx(),
+				affine.getMxy(),
+				affine.getMyy(),
+				affine.getTx(),
+				affine.getTy()
+				);
+	}
+
+	/**
+	 * Set the values of a JavaFX {@link Affine} from an {@link AffineTransform}.
+	 * @param transform
+	 * @param affine
+	 */
+	static void setAffine(AffineTransform transform, Affine affine) {
+		affine.setToTransform(
+				transform.getScaleX(),
+				transform.getShearX(),
+				transform.getTranslateX(),
+				transform.getShearY(),
+				transform.getScaleY(),
+				transform.getTranslateY()
+				);
+	}
+
+	/**
+	 * Create a 2x3 floating point Mat from an {@link AffineTransform}.
+	 * @param transform
+	 * @return
+	 */
+	static Mat toMat(AffineTransform transform) {
+		Mat mat = new Mat(2, 3, opencv_core.CV_32F);
+		try (FloatIndexer indexer = mat.createIndexer()) {
+			indexer.put(0, 0, (float)transform.getScaleX());
+			indexer.put(0, 1, (float)transform.getShearX());
+			indexer.put(0, 2, (float)transform.getTranslateX());
+			indexer.put(1, 0, (float)transform.getShearY());
+			indexer.put(1, 1, (float)transform.getScaleY());
+			indexer.put(1, 2, (float)transform.getTranslateY());
+		}
+		return mat;
+	}
+
+	/**
+	 * Create an {@link AffineTransform} from the contents of a 2x3 Mat.
+	 * @param mat
+	 * @return
+	 */
+	static AffineTransform toAffineTransform(Mat mat) {
+		try (Indexer indexer = mat.createIndexer()) {
+			return new AffineTransform(
+					indexer.getDouble(0, 0),
+					indexer.getDouble(1, 0),
+					indexer.getDouble(0, 1),
+					indexer.getDouble(1, 1),
+					indexer.getDouble(0, 2),
+					indexer.getDouble(1, 2)
+					);
+		}
+	}
+
+	/**
+	 * Convert a transform between full-resolution coordinates into the equivalent transform
+	 * between pixel coordinates of two regions, each read at the specified downsample.
+	 * @param transform transform between full-resolution base and overlay coordinates
+	 * @param downsample downsample at which both regions are read
+	 * @param baseX x-coordinate of the base region origin, at full resolution
+	 * @param baseY y-coordinate of the base region origin, at full resolution
+	 * @param overlayX x-coordinate of the overlay region origin, at full resolution
+	 * @param overlayY y-coordinate of the overlay region origin, at full resolution
+	 * @return
+	 * @see #fromRegionTransform(AffineTransform, double, double, double, double, double)
+	 */
+	static AffineTransform toRegionTransform(AffineTransform transform, double downsample, double baseX, double baseY, double overlayX, double overlayY) {
+		var result = new AffineTransform();
+		result.scale(1.0/downsample, 1.0/downsample);
+		result.translate(-overlayX, -overlayY);
+		result.concatenate(transform);
+		result.translate(baseX, baseY);
+		result.scale(downsample, downsample);
+		return result;
+	}
+
+	/**
+	 * Inverse of {@link #toRegionTransform(AffineTransform, double, double, double, double, double)}.
+	 * @param regionTransform transform between base and overlay region pixel coordinates
+	 * @param downsample downsample at which both regions were read
+	 * @param baseX x-coordinate of the base region origin, at full resolution
+	 * @param baseY y-coordinate of the base region origin, at full resolution
+	 * @param overlayX x-coordinate of the overlay region origin, at full resolution
+	 * @param overlayY y-coordinate of the overlay region origin, at full resolution
+	 * @return
+	 */
+	static AffineTransform fromRegionTransform(AffineTransform regionTransform, double downsample, double baseX, double baseY, double overlayX, double overlayY) {
+		var result = new AffineTransform();
+		result.translate(overlayX, overlayY);
+		result.scale(downsample, downsample);
+		result.concatenate(regionTransform);
+		result.scale(1.0/downsample, 1.0/downsample);
+		result.translate(-baseX, -baseY);
+		return result;
+	}
+
+}
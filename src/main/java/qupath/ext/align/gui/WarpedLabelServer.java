@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import qupath.lib.analysis.images.ContourTracing;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassTools;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Image server that warps a label image (e.g. pixel classifier predictions or a label mask) into the coordinates of an
+ * aligned image, using nearest neighbour interpolation so that label values are preserved.
+ * <p>
+ * Tiles are warped on request, reading only the corresponding region of the source for each tile,
+ * so memory use is bounded by the tile cache rather than the image size.
+ */
+class WarpedLabelServer extends AbstractTileableImageServer {
+
+	private final ImageServer<BufferedImage> source;
+	private final AffineTransform transform;
+	private final ImageServerMetadata metadata;
+	private final String id = UUID.randomUUID().toString();
+
+	/**
+	 * Constructor.
+	 * @param source the label image to warp
+	 * @param target the image whose coordinates should be used for the output; this defines the size, levels, planes and pixel calibration,
+	 *               while the channels, pixel type and classification labels are those of the source
+	 * @param transform transform from target to source pixel coordinates, at full resolution
+	 */
+	WarpedLabelServer(ImageServer<BufferedImage> source, ImageServer<BufferedImage> target, AffineTransform transform) {
+		this.source = source;
+		this.transform = new AffineTransform(transform);
+		var sourceMetadata = source.getMetadata();
+		this.metadata = new ImageServerMetadata.Builder(target.getMetadata())
+				.name("Warped " + sourceMetadata.getName())
+				.rgb(sourceMetadata.isRGB())
+				.pixelType(sourceMetadata.getPixelType())
+				.channels(sourceMetadata.getChannels())
+				.channelType(sourceMetadata.getChannelType())
+				.classificationLabels(sourceMetadata.getClassificationLabels())
+				.preferredTileSize(512, 512)
+				.build();
+	}
+
+	@Override
+	public Collection<URI> getURIs() {
+		return source.getURIs();
+	}
+
+	@Override
+	public String getServerType() {
+		return "Warped label server";
+	}
+
+	@Override
+	public ImageServerMetadata getOriginalMetadata() {
+		return metadata;
+	}
+
+	@Override
+	protected ServerBuilder<BufferedImage> createServerBuilder() {
+		// The server depends on a transform and (often) a classifier, so can't be recreated from a project
+		return null;
+	}
+
+	@Override
+	protected String createID() {
+		return getClass().getName() + ": " + source.getPath() + " " + transform + " " + id;
+	}
+
+	@Override
+	protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+		var request = tileRequest.getRegionRequest();
+		double downsample = request.getDownsample();
+		int width = tileRequest.getTileWidth();
+		int height = tileRequest.getTileHeight();
+
+		var requestSource = getSourceRequest(request, transform, source);
+		boolean isEmpty = requestSource == null;
+		// If there is no overlap, read a minimal region anyway to create a compatible (empty) image
+		var imgSource = source.readRegion(isEmpty ?
+				RegionRequest.createInstance(source.getPath(), downsample, 0, 0, 1, 1,
+						Math.min(request.getZ(), source.nZSlices() - 1), Math.min(request.getT(), source.nTimepoints() - 1)) :
+				requestSource);
+		var rasterSource = imgSource.getRaster();
+		WritableRaster raster = rasterSource.createCompatibleWritableRaster(width, height);
+		var colorModel = imgSource.getColorModel();
+		var img = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+		if (isEmpty)
+			return img;
+
+		// Map the centre of each output pixel to the source region, stepping incrementally along each row
+		int sx = requestSource.getX();
+		int sy = requestSource.getY();
+		int sw = rasterSource.getWidth();
+		int sh = rasterSource.getHeight();
+		// Moving one output pixel along a row moves (m00, m10) source pixels, since both use the same downsample
+		double dxCol = transform.getScaleX();
+		double dyCol = transform.getShearY();
+		double[] p = new double[2];
+		Object pixel = null;
+		for (int y = 0; y < height; y++) {
+			p[0] = request.getMinX() + 0.5 * downsample;
+			p[1] = request.getMinY() + (y + 0.5) * downsample;
+			transform.transform(p, 0, p, 0, 1);
+			// Position in source region pixels
+			double px = (p[0] - sx) / downsample;
+			double py = (p[1] - sy) / downsample;
+			for (int x = 0; x < width; x++) {
+				int ix = (int)Math.floor(px);
+				int iy = (int)Math.floor(py);
+				if (ix >= 0 && iy >= 0 && ix < sw && iy < sh) {
+					pixel = rasterSource.getDataElements(ix, iy, pixel);
+					raster.setDataElements(x, y, pixel);
+				}
+				px += dxCol;
+				py += dyCol;
+			}
+		}
+		return img;
+	}
+
+	/**
+	 * Get the region of a source image needed to resample a target region.
+	 * The transformed bounds are expanded by one pixel (at the request downsample) to allow for rounding, and clipped to the source image.
+	 * @param request region in target coordinates
+	 * @param transform transform from target to source pixel coordinates, at full resolution
+	 * @param source the source image
+	 * @return the source region at the same downsample and plane (clamped to the source dimensions), or null if the region doesn't overlap the source
+	 */
+	static RegionRequest getSourceRequest(RegionRequest request, AffineTransform transform, ImageServer<BufferedImage> source) {
+		double[] corners = {
+				request.getMinX(), request.getMinY(), request.getMaxX(), request.getMinY(),
+				request.getMaxX(), request.getMaxY(), request.getMinX(), request.getMaxY()
+		};
+		transform.transform(corners, 0, corners, 0, 4);
+		double margin = request.getDownsample();
+		int x = (int)Math.max(0, Math.floor(Math.min(Math.min(corners[0], corners[2]), Math.min(corners[4], corners[6])) - margin));
+		int y = (int)Math.max(0, Math.floor(Math.min(Math.min(corners[1], corners[3]), Math.min(corners[5], corners[7])) - margin));
+		int x2 = (int)Math.min(source.getWidth(), Math.ceil(Math.max(Math.max(corners[0], corners[2]), Math.max(corners[4], corners[6])) + margin));
+		int y2 = (int)Math.min(source.getHeight(), Math.ceil(Math.max(Math.max(corners[1], corners[3]), Math.max(corners[5], corners[7])) + margin));
+		if (x2 <= x || y2 <= y)
+			return null;
+		int z = Math.min(request.getZ(), source.nZSlices() - 1);
+		int t = Math.min(request.getT(), source.nTimepoints() - 1);
+		return RegionRequest.createInstance(source.getPath(), request.getDownsample(), x, y, x2 - x, y2 - y, z, t);
+	}
+
+	/**
+	 * Trace the labels as annotations, assigning classifications from the server metadata where available.
+	 * Tracing is performed tile by tile, so the full image is never read at once.
+	 * If the server has no classification labels, all non-zero pixels are traced as a single annotation.
+	 * @param downsample the downsample at which to trace the labels
+	 * @return the annotations
+	 * @throws IOException
+	 */
+	List<PathObject> traceAnnotations(double downsample) throws IOException {
+		var region = RegionRequest.createInstance(this, downsample);
+		List<PathObject> annotations = new ArrayList<>();
+		var labels = getMetadata().getClassificationLabels();
+		if (labels.isEmpty()) {
+			annotations.addAll(ContourTracing.createAnnotations(this, region, null,
+					ContourTracing.ChannelThreshold.createAbove(0, 0.5)));
+			return annotations;
+		}
+		for (var entry : labels.entrySet()) {
+			var pathClass = entry.getValue();
+			if (pathClass == null || pathClass == PathClass.NULL_CLASS || PathClassTools.isIgnoredClass(pathClass))
+				continue;
+			int label = entry.getKey();
+			for (var annotation : ContourTracing.createAnnotations(this, region, null, ContourTracing.ChannelThreshold.create(0, label, label))) {
+				annotation.setPathClass(pathClass);
+				annotations.add(annotation);
+			}
+		}
+		return annotations;
+	}
+
+}
@@ -0,0 +1,51 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.awt.geom.AffineTransform;
+
+/**
+ * Assertions for comparing affine transforms in tests.
+ */
+class AffineAssertions {
+
+	private AffineAssertions() {}
+
+	/**
+	 * Assert that two transforms have the same matrix, within a tolerance for each element.
+	 * @param expected
+	 * @param actual
+	 * @param delta maximum difference for each element
+	 */
+	static void assertTransformEquals(AffineTransform expected, AffineTransform actual, double delta) {
+		assertNotNull(actual, "Transform is null");
+		double[] matExpected = new double[6];
+		double[] matActual = new double[6];
+		expected.getMatrix(matExpected);
+		actual.getMatrix(matActual);
+		assertArrayEquals(matExpected, matActual, delta, () -> "Expected " + expected + " but got " + actual);
+	}
+
+}
@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.TileRequest;
+
+/**
+ * A pyramidal, tiled ImageServer backed by an in-memory RGB image.
+ * <p>
+ * Tiles for lower resolution levels are created by resampling the full-resolution image, so that reads
+ * behave as they would for a whole slide image with native pyramid levels.
+ * Regions can be marked as missing, in which case they are returned as white - as when tiles fail to be scanned.
+ */
+class SyntheticImageServer extends AbstractTileableImageServer {
+
+	private final String id = UUID.randomUUID().toString();
+	private final BufferedImage img;
+	private final List<Rectangle> missingRegions;
+	private final ImageServerMetadata originalMetadata;
+
+	/**
+	 * Constructor.
+	 * @param name image name
+	 * @param img full-resolution RGB image
+	 * @param pixelSizeMicrons pixel size in microns, or NaN if the image should be uncalibrated
+	 * @param missingRegions regions (in full-resolution coordinates) that should be returned as white; may be empty
+	 * @param downsamples downsamples for the pyramid levels, starting with 1
+	 */
+	SyntheticImageServer(String name, BufferedImage img, double pixelSizeMicrons, Collection<Rectangle> missingRegions, double... downsamples) {
+		this.img = img;
+		this.missingRegions = List.copyOf(missingRegions);
+		var builder = new ImageServerMetadata.Builder()
+				.name(name)
+				.width(img.getWidth())
+				.height(img.getHeight())
+				.rgb(true)
+				.pixelType(PixelType.UINT8)
+				.channels(ImageChannel.getDefaultRGBChannels())
+				.preferredTileSize(512, 512)
+				.levelsFromDownsamples(downsamples.length == 0 ? new double[] {1.0} : downsamples);
+		if (Double.isFinite(pixelSizeMicrons))
+			builder.pixelSizeMicrons(pixelSizeMicrons, pixelSizeMicrons);
+		this.originalMetadata = builder.build();
+	}
+
+	@Override
+	protected BufferedImage readTile(TileRequest tileRequest) {
+		int width = tileRequest.getTileWidth();
+		int height = tileRequest.getTileHeight();
+		double downsample = tileRequest.getDownsample();
+		var tile = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		var g2d = tile.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+		g2d.scale(1.0 / downsample, 1.0 / downsample);
+		g2d.translate(-tileRequest.getImageX(), -tileRequest.getImageY());
+		g2d.drawImage(img, 0, 0, null);
+		g2d.setColor(Color.WHITE);
+		var bounds = new Rectangle(tileRequest.getImageX(), tileRequest.getImageY(), tileRequest.getImageWidth(), tileRequest.getImageHeight());
+		for (var missing : missingRegions) {
+			if (missing.intersects(bounds))
+				g2d.fill(missing);
+		}
+		g2d.dispose();
+		return tile;
+	}
+
+	@Override
+	public Collection<URI> getURIs() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public String getServerType() {
+		return "Synthetic";
+	}
+
+	@Override
+	public ImageServerMetadata getOriginalMetadata() {
+		return originalMetadata;
+	}
+
+	@Override
+	protected ServerBuilder<BufferedImage> createServerBuilder() {
+		return null;
+	}
+
+	@Override
+	protected String createID() {
+		return getClass().getName() + ": " + originalMetadata.getName() + " (" + id + ")";
+	}
+
+}
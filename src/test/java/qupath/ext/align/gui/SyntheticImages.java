@@ -0,0 +1,238 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import java.awt.Color;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Create synthetic images and ROIs for benchmarking and registration checks.
+ * <p>
+ * Everything is generated from a seed, so that repeated runs use identical data.
+ */
+class SyntheticImages {
+
+	private SyntheticImages() {
+		throw new AssertionError("Cannot instantiate this class");
+	}
+
+	/**
+	 * Create an RGB image with a tissue-like texture: overlapping pink blobs containing smaller purple 'nuclei',
+	 * on a white background.
+	 * @param width
+	 * @param height
+	 * @param seed
+	 * @return
+	 */
+	static BufferedImage createTissue(int width, int height, long seed) {
+		var rng = new Random(seed);
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		var g2d = img.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g2d.setColor(Color.WHITE);
+		g2d.fillRect(0, 0, width, height);
+
+		double scale = Math.min(width, height);
+		int nBlobs = 40;
+		for (int i = 0; i < nBlobs; i++) {
+			double r = scale * (0.03 + rng.nextDouble() * 0.12);
+			double x = width * (0.1 + rng.nextDouble() * 0.8);
+			double y = height * (0.1 + rng.nextDouble() * 0.8);
+			g2d.setColor(new Color(200 + rng.nextInt(40), 120 + rng.nextInt(60), 170 + rng.nextInt(50), 160));
+			g2d.fill(new Ellipse2D.Double(x - r, y - r * (0.5 + rng.nextDouble()), 2 * r, 2 * r * (0.5 + rng.nextDouble())));
+		}
+
+		int nNuclei = (int)(width * (long)height / 400);
+		double rNucleus = Math.max(1.5, scale / 500);
+		for (int i = 0; i < nNuclei; i++) {
+			double x = rng.nextDouble() * width;
+			double y = rng.nextDouble() * height;
+			if ((img.getRGB((int)x, (int)y) & 0xFFFFFF) == 0xFFFFFF)
+				continue;
+			g2d.setColor(new Color(60 + rng.nextInt(40), 40 + rng.nextInt(40), 120 + rng.nextInt(50)));
+			double r = rNucleus * (0.7 + rng.nextDouble() * 0.6);
+			g2d.fill(new Ellipse2D.Double(x - r, y - r, 2 * r, 2 * r));
+		}
+		g2d.dispose();
+		return img;
+	}
+
+	/**
+	 * Create an overlay image from a base image, given the transform from base to overlay coordinates
+	 * (i.e. the transform that alignment should recover).
+	 * @param img the base image
+	 * @param baseToOverlay transform from base to overlay pixel coordinates
+	 * @param width width of the overlay image
+	 * @param height height of the overlay image
+	 * @return
+	 */
+	static BufferedImage transform(BufferedImage img, AffineTransform baseToOverlay, int width, int height) {
+		var imgOutput = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		var g2d = imgOutput.createGraphics();
+		g2d.setColor(Color.WHITE);
+		g2d.fillRect(0, 0, width, height);
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g2d.drawImage(img, baseToOverlay, null);
+		g2d.dispose();
+		return imgOutput;
+	}
+
+	/**
+	 * Add Gaussian noise to an RGB image, in-place.
+	 * @param img
+	 * @param sigma standard deviation of the noise, in 8-bit units
+	 * @param seed
+	 */
+	static void addNoise(BufferedImage img, double sigma, long seed) {
+		var rng = new Random(seed);
+		int width = img.getWidth();
+		int[] row = new int[width];
+		for (int y = 0; y < img.getHeight(); y++) {
+			img.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++) {
+				int v = row[x];
+				int r = clip(((v >> 16) & 0xFF) + rng.nextGaussian() * sigma);
+				int g = clip(((v >> 8) & 0xFF) + rng.nextGaussian() * sigma);
+				int b = clip((v & 0xFF) + rng.nextGaussian() * sigma);
+				row[x] = (r << 16) | (g << 8) | b;
+			}
+			img.setRGB(0, y, width, 1, row, 0, width);
+		}
+	}
+
+	/**
+	 * Simulate a change in staining by scaling the optical density of each channel, in-place.
+	 * White pixels are unchanged.
+	 * @param img
+	 * @param scaleRed optical density scale for the red channel
+	 * @param scaleGreen optical density scale for the green channel
+	 * @param scaleBlue optical density scale for the blue channel
+	 */
+	static void shiftStain(BufferedImage img, double scaleRed, double scaleGreen, double scaleBlue) {
+		int[] lutRed = createODScaleLUT(scaleRed);
+		int[] lutGreen = createODScaleLUT(scaleGreen);
+		int[] lutBlue = createODScaleLUT(scaleBlue);
+		int width = img.getWidth();
+		int[] row = new int[width];
+		for (int y = 0; y < img.getHeight(); y++) {
+			img.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++) {
+				int v = row[x];
+				row[x] = (lutRed[(v >> 16) & 0xFF] << 16) | (lutGreen[(v >> 8) & 0xFF] << 8) | lutBlue[v & 0xFF];
+			}
+			img.setRGB(0, y, width, 1, row, 0, width);
+		}
+	}
+
+	private static int[] createODScaleLUT(double scale) {
+		int[] lut = new int[256];
+		for (int i = 0; i < 256; i++)
+			lut[i] = clip(255 * Math.pow(Math.max(i, 1) / 255.0, scale));
+		return lut;
+	}
+
+	private static int clip(double value) {
+		return (int)Math.max(0, Math.min(255, Math.round(value)));
+	}
+
+	/**
+	 * Wrap an image as an ImageServer with the specified pixel size.
+	 * @param name
+	 * @param img
+	 * @param pixelSizeMicrons pixel size in microns, or NaN if the server should be uncalibrated
+	 * @return
+	 */
+	static ImageServer<BufferedImage> createServer(String name, BufferedImage img, double pixelSizeMicrons) {
+		var server = new WrappedBufferedImageServer(name, img);
+		if (Double.isFinite(pixelSizeMicrons)) {
+			server.setMetadata(new ImageServerMetadata.Builder(server.getMetadata())
+					.pixelSizeMicrons(pixelSizeMicrons, pixelSizeMicrons)
+					.build());
+		}
+		return server;
+	}
+
+	/**
+	 * Create a star-shaped polygon ROI with the specified number of vertices.
+	 * @param nVertices
+	 * @param cx
+	 * @param cy
+	 * @param radius
+	 * @param seed
+	 * @return
+	 */
+	static ROI createPolygon(int nVertices, double cx, double cy, double radius, long seed) {
+		var rng = new Random(seed);
+		double[] x = new double[nVertices];
+		double[] y = new double[nVertices];
+		for (int i = 0; i < nVertices; i++) {
+			double theta = 2 * Math.PI * i / nVertices;
+			double r = radius * (0.8 + 0.2 * rng.nextDouble());
+			x[i] = cx + r * Math.cos(theta);
+			y[i] = cy + r * Math.sin(theta);
+		}
+		return ROIs.createPolygonROI(x, y, ImagePlane.getDefaultPlane());
+	}
+
+	/**
+	 * Create a list of random points within a rectangle.
+	 * @param nPoints
+	 * @param width
+	 * @param height
+	 * @param seed
+	 * @return
+	 */
+	static List<Point2> createPoints(int nPoints, double width, double height, long seed) {
+		var rng = new Random(seed);
+		List<Point2> points = new ArrayList<>(nPoints);
+		for (int i = 0; i < nPoints; i++)
+			points.add(new Point2(rng.nextDouble() * width, rng.nextDouble() * height));
+		return points;
+	}
+
+	/**
+	 * Create a points ROI containing random points within a rectangle.
+	 * @param nPoints
+	 * @param width
+	 * @param height
+	 * @param seed
+	 * @return
+	 */
+	static ROI createPointsROI(int nPoints, double width, double height, long seed) {
+		return ROIs.createPointsROI(createPoints(nPoints, width, height, seed), ImagePlane.getDefaultPlane());
+	}
+
+}
@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static qupath.ext.align.gui.AffineAssertions.assertTransformEquals;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.ext.align.gui.ImageAlignmentPane.RegistrationType;
+
+@SuppressWarnings("javadoc")
+public class TestAffineLeastSquares {
+
+	private static final double EPSILON = 1e-8;
+
+	@Test
+	public void testAffine() {
+		var truth = new AffineTransform(1.02, 0.03, -0.05, 0.97, 12.5, -7.25);
+		// Results should not depend on the origin, which only improves numerical stability
+		for (var origin : new double[][] {{0, 0}, {1000, 2000}}) {
+			var lsq = new AffineLeastSquares(origin[0], origin[1]);
+			addGrid(lsq, truth, 1000, 2000, 100, 1);
+			assertEquals(25, lsq.size());
+			assertTransformEquals(truth, lsq.solve(RegistrationType.AFFINE), EPSILON);
+		}
+	}
+
+	@Test
+	public void testRigid() {
+		var truth = AffineTransform.getRotateInstance(Math.toRadians(10), 500, 300);
+		truth.preConcatenate(AffineTransform.getTranslateInstance(-20, 15));
+		var lsq = new AffineLeastSquares(500, 300);
+		addGrid(lsq, truth, 400, 200, 50, 1);
+		assertTransformEquals(truth, lsq.solve(RegistrationType.RIGID), EPSILON);
+	}
+
+	@Test
+	public void testRigidWithScale() {
+		// Rigid fits keep a uniform scale, e.g. for images with different pixel sizes
+		var truth = AffineTransform.getTranslateInstance(40, -30);
+		truth.rotate(Math.toRadians(-25));
+		truth.scale(0.5, 0.5);
+		var lsq = new AffineLeastSquares(100, 100);
+		addGrid(lsq, truth, 0, 0, 50, 1);
+		var transform = lsq.solve(RegistrationType.RIGID);
+		assertTransformEquals(truth, transform, EPSILON);
+		assertEquals(0.25, transform.getDeterminant(), EPSILON);
+	}
+
+	@Test
+	public void testRigidOfAnisotropicScale() {
+		// A rigid fit to an anisotropic scaling should find an intermediate uniform scale, with no rotation or shearing
+		var truth = AffineTransform.getScaleInstance(2, 1);
+		var lsq = new AffineLeastSquares(0, 0);
+		addGrid(lsq, truth, -100, -100, 50, 1);
+		var transform = lsq.solve(RegistrationType.RIGID);
+		assertEquals(1.5, transform.getScaleX(), EPSILON);
+		assertEquals(1.5, transform.getScaleY(), EPSILON);
+		assertEquals(0, transform.getShearX(), EPSILON);
+		assertEquals(0, transform.getShearY(), EPSILON);
+	}
+
+	@Test
+	public void testWeightsAndRemoval() {
+		var truth = new AffineTransform(0.9, 0.1, 0.2, 1.1, 5, 6);
+		var lsq = new AffineLeastSquares(0, 0);
+		addGrid(lsq, truth, 0, 0, 10, 2);
+		// Adding and then removing an outlier should restore the exact solution
+		lsq.add(15, 25, 1000, -1000, 3);
+		assertEquals(26, lsq.size());
+		lsq.add(15, 25, 1000, -1000, -3);
+		assertEquals(25, lsq.size());
+		assertTransformEquals(truth, lsq.solve(RegistrationType.AFFINE), EPSILON);
+	}
+
+	@Test
+	public void testDegenerate() {
+		var lsq = new AffineLeastSquares(0, 0);
+		assertNull(lsq.solve(RegistrationType.RIGID));
+		assertNull(lsq.solve(RegistrationType.AFFINE));
+
+		lsq.add(0, 0, 1, 1, 1);
+		assertNull(lsq.solve(RegistrationType.RIGID));
+		lsq.add(10, 0, 11, 1, 1);
+		assertTransformEquals(AffineTransform.getTranslateInstance(1, 1), lsq.solve(RegistrationType.RIGID), EPSILON);
+		assertNull(lsq.solve(RegistrationType.AFFINE));
+
+		// Collinear points can't determine an affine transform
+		lsq.add(20, 0, 21, 1, 1);
+		assertNull(lsq.solve(RegistrationType.AFFINE));
+	}
+
+	/**
+	 * Add a 5x5 grid of exact correspondences.
+	 */
+	private static void addGrid(AffineLeastSquares lsq, AffineTransform transform, double x0, double y0, double spacing, double weight) {
+		var p = new Point2D.Double();
+		for (int y = 0; y < 5; y++) {
+			for (int x = 0; x < 5; x++) {
+				p.setLocation(x0 + x * spacing, y0 + y * spacing);
+				var q = transform.transform(p, null);
+				lsq.add(p.getX(), p.getY(), q.getX(), q.getY(), weight);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static qupath.ext.align.gui.AffineAssertions.assertTransformEquals;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.ext.align.gui.SectionChain.PairwiseResult;
+
+@SuppressWarnings("javadoc")
+public class TestGroupwiseSolver {
+
+	private static final double WIDTH = 1000;
+	private static final double HEIGHT = 800;
+
+	private static final double EPSILON = 1e-6;
+
+	@Test
+	public void testConsistentPairs() throws NoninvertibleTransformException {
+		var truth = createTransforms();
+		// Adjacent and skip-one pairs that agree exactly should give the true transforms,
+		// whatever the initial estimate
+		var pairs = createPairs(truth, 2);
+		var solver = new GroupwiseSolver(WIDTH, HEIGHT);
+		var transforms = solver.solve(truth.size(), pairs, 0, null);
+		assertEquals(truth.size(), transforms.size());
+		for (int i = 0; i < truth.size(); i++)
+			assertTransformEquals(truth.get(i), transforms.get(i), EPSILON);
+		for (var pair : pairs)
+			assertEquals(0, solver.getResidual(pair, transforms.get(pair.from()), transforms.get(pair.to())), EPSILON);
+	}
+
+	@Test
+	public void testReference() throws NoninvertibleTransformException {
+		var truth = createTransforms();
+		var pairs = createPairs(truth, 2);
+		int reference = 2;
+		var transforms = new GroupwiseSolver(WIDTH, HEIGHT).solve(truth.size(), pairs, reference, null);
+		assertTransformEquals(new AffineTransform(), transforms.get(reference), 0);
+		for (int i = 0; i < truth.size(); i++)
+			assertTransformEquals(SectionChain.relativeTransform(truth.get(reference), truth.get(i)), transforms.get(i), EPSILON);
+	}
+
+	@Test
+	public void testDisconnected() throws NoninvertibleTransformException {
+		var truth = createTransforms();
+		var pairs = new ArrayList<>(createPairs(truth, 1));
+		// Fail the last pair, so the last section can't be reached
+		var last = pairs.get(pairs.size() - 1);
+		pairs.set(pairs.size() - 1, new PairwiseResult(last.from(), last.to(), null, Double.NaN));
+		var transforms = new GroupwiseSolver(WIDTH, HEIGHT).solve(truth.size(), pairs, 0, null);
+		for (int i = 0; i < truth.size() - 1; i++)
+			assertTransformEquals(truth.get(i), transforms.get(i), EPSILON);
+		assertNull(transforms.get(truth.size() - 1));
+	}
+
+	@Test
+	public void testInconsistentPairs() throws NoninvertibleTransformException {
+		var truth = createTransforms().subList(0, 3);
+		var pairs = new ArrayList<>(createPairs(truth, 1));
+		// Add a skip-one pair with an error in translation
+		double error = 6;
+		var skip = SectionChain.relativeTransform(truth.get(0), truth.get(2));
+		skip.preConcatenate(AffineTransform.getTranslateInstance(error, 0));
+		var pairSkip = new PairwiseResult(0, 2, skip, 1.0);
+		pairs.add(pairSkip);
+		var solver = new GroupwiseSolver(WIDTH, HEIGHT);
+		var transforms = solver.solve(truth.size(), pairs, 0, null);
+		// The error should be shared between all pairs, rather than left entirely in one
+		for (var pair : pairs) {
+			double residual = solver.getResidual(pair, transforms.get(pair.from()), transforms.get(pair.to()));
+			assertTrue(residual > 0 && residual < error, "Residual " + residual + " should be between 0 and " + error);
+		}
+	}
+
+	/**
+	 * Create transforms from the first section to each of 5 sections, with a small drift between each.
+	 */
+	private static List<AffineTransform> createTransforms() {
+		List<AffineTransform> transforms = new ArrayList<>();
+		var transform = new AffineTransform();
+		transforms.add(new AffineTransform(transform));
+		for (int i = 1; i < 5; i++) {
+			var step = AffineTransform.getRotateInstance(Math.toRadians(i), WIDTH / 2, HEIGHT / 2);
+			step.translate(3 * i, -2 * i);
+			step.scale(1 + i * 0.01, 1 - i * 0.005);
+			transform.preConcatenate(step);
+			transforms.add(new AffineTransform(transform));
+		}
+		return transforms;
+	}
+
+	/**
+	 * Create exact pairwise results between all sections within a maximum step of one another.
+	 */
+	private static List<PairwiseResult> createPairs(List<AffineTransform> fromReference, int maxStep) throws NoninvertibleTransformException {
+		List<PairwiseResult> pairs = new ArrayList<>();
+		for (int step = 1; step <= maxStep; step++) {
+			for (int i = 0; i + step < fromReference.size(); i++)
+				pairs.add(new PairwiseResult(i, i + step, SectionChain.relativeTransform(fromReference.get(i), fromReference.get(i + step)), 1.0));
+		}
+		return pairs;
+	}
+
+}
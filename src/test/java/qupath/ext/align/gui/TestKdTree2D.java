@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestKdTree2D {
+
+	@Test
+	public void testRandomPoints() {
+		var rng = new Random(1);
+		int n = 1000;
+		double[] xy = new double[n * 2];
+		for (int i = 0; i < xy.length; i++)
+			xy[i] = rng.nextDouble() * 1000;
+		double[] copy = xy.clone();
+		var tree = new KdTree2D(xy, n);
+		assertEquals(n, tree.size());
+		assertArrayEquals(copy, xy, "Input coordinates should not be modified");
+
+		double[] result = new double[2];
+		for (int i = 0; i < 500; i++) {
+			// Include queries outside the bounds of the points
+			double x = rng.nextDouble() * 1200 - 100;
+			double y = rng.nextDouble() * 1200 - 100;
+			tree.nearest(x, y, result);
+			double[] expected = nearestBruteForce(xy, n, x, y);
+			assertEquals(expected[0], result[0]);
+			assertEquals(expected[1], result[1], 1e-9);
+		}
+	}
+
+	@Test
+	public void testExactMatches() {
+		var rng = new Random(2);
+		int n = 257;
+		double[] xy = new double[n * 2];
+		for (int i = 0; i < xy.length; i++)
+			xy[i] = rng.nextDouble() * 100;
+		var tree = new KdTree2D(xy, n);
+		double[] result = new double[2];
+		for (int i = 0; i < n; i++) {
+			tree.nearest(xy[i*2], xy[i*2+1], result);
+			assertEquals(i, (int)result[0]);
+			assertEquals(0.0, result[1]);
+		}
+	}
+
+	@Test
+	public void testRepeatedCoordinates() {
+		// Points on an integer grid share many coordinates, which makes partitioning harder;
+		// the nearest point may not be unique, so only the distance is checked
+		int side = 20;
+		int n = side * side;
+		double[] xy = new double[n * 2];
+		for (int i = 0; i < n; i++) {
+			xy[i*2] = i % side;
+			xy[i*2+1] = i / side;
+		}
+		var tree = new KdTree2D(xy, n);
+		var rng = new Random(3);
+		double[] result = new double[2];
+		for (int i = 0; i < 500; i++) {
+			double x = rng.nextInt(side * 4) / 4.0;
+			double y = rng.nextInt(side * 4) / 4.0;
+			tree.nearest(x, y, result);
+			double[] expected = nearestBruteForce(xy, n, x, y);
+			assertEquals(expected[1], result[1], 1e-12);
+			int ind = (int)result[0];
+			double dx = xy[ind*2] - x, dy = xy[ind*2+1] - y;
+			assertEquals(result[1], dx*dx + dy*dy, 1e-12);
+		}
+	}
+
+	@Test
+	public void testEmpty() {
+		var tree = new KdTree2D(new double[0], 0);
+		double[] result = new double[2];
+		tree.nearest(1, 2, result);
+		assertEquals(-1, result[0]);
+		assertEquals(Double.POSITIVE_INFINITY, result[1]);
+	}
+
+	private static double[] nearestBruteForce(double[] xy, int n, double x, double y) {
+		double[] result = {-1, Double.POSITIVE_INFINITY};
+		for (int i = 0; i < n; i++) {
+			double dx = xy[i*2] - x, dy = xy[i*2+1] - y;
+			double dist2 = dx*dx + dy*dy;
+			if (dist2 < result[1]) {
+				result[0] = i;
+				result[1] = dist2;
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,145 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.ext.align.gui.ImageAlignmentPane.RegistrationType;
+import qupath.lib.geom.Point2;
+
+@SuppressWarnings("javadoc")
+public class TestPointSetAligner {
+
+	@Test
+	public void testPartialOverlap() {
+		// Landmarks in the overlay only cover the left part of the base image, and include some that aren't in the base,
+		// so the centroids of the point sets differ by hundreds of pixels
+		var rng = new Random(1);
+		var truth = AffineTransform.getTranslateInstance(50, -30);
+		truth.rotate(Math.toRadians(2), 500, 500);
+		List<Point2> pointsBase = new ArrayList<>();
+		List<Point2> pointsOverlay = new ArrayList<>();
+		double[] p = new double[2];
+		for (int i = 0; i < 40; i++) {
+			p[0] = rng.nextDouble() * 1000;
+			p[1] = rng.nextDouble() * 1000;
+			pointsBase.add(new Point2(p[0], p[1]));
+			if (p[0] < 500) {
+				truth.transform(p, 0, p, 0, 1);
+				pointsOverlay.add(new Point2(p[0], p[1]));
+			}
+		}
+		for (int i = 0; i < 5; i++)
+			pointsOverlay.add(new Point2(-500 - rng.nextDouble() * 200, rng.nextDouble() * 1000));
+		Collections.shuffle(pointsOverlay, rng);
+
+		// Start close to the correct transform, as after manual alignment
+		var initial = new AffineTransform(truth);
+		initial.preConcatenate(AffineTransform.getTranslateInstance(8, -6));
+		var transform = new PointSetAligner(RegistrationType.RIGID).align(pointsBase, pointsOverlay, initial);
+		assertNotNull(transform);
+		double error = maxError(truth, transform, pointsBase.stream().filter(b -> b.getX() < 500).toList());
+		assertTrue(error < 0.01, "Maximum error " + error + " pixels");
+	}
+
+	@Test
+	public void testDetectionsPartialOverlap() {
+		// Detections from two stains covering offset regions, with localization error and cells missing from either image
+		var rng = new Random(2);
+		double size = 4000;
+		var truth = AffineTransform.getTranslateInstance(-120, 80);
+		truth.rotate(Math.toRadians(-1.5), size / 2, size / 2);
+		truth.scale(1.02, 0.99);
+		int n = 3000;
+		double[] xyBase = new double[n * 2];
+		double[] xyOverlay = new double[n * 2];
+		int nBase = 0, nOverlay = 0;
+		double[] p = new double[2];
+		for (int i = 0; i < n; i++) {
+			p[0] = rng.nextDouble() * size;
+			p[1] = rng.nextDouble() * size;
+			boolean inBase = p[0] < size * 0.7 && rng.nextDouble() > 0.1;
+			boolean inOverlay = p[0] > size * 0.3 && rng.nextDouble() > 0.1;
+			if (inBase) {
+				xyBase[nBase*2] = p[0];
+				xyBase[nBase*2+1] = p[1];
+				nBase++;
+			}
+			if (inOverlay) {
+				truth.transform(p, 0, p, 0, 1);
+				xyOverlay[nOverlay*2] = p[0] + rng.nextGaussian();
+				xyOverlay[nOverlay*2+1] = p[1] + rng.nextGaussian();
+				nOverlay++;
+			}
+		}
+
+		// Refine a transform that is a few pixels out
+		var initial = new AffineTransform(truth);
+		initial.preConcatenate(AffineTransform.getRotateInstance(Math.toRadians(0.2), size / 2, size / 2));
+		initial.preConcatenate(AffineTransform.getTranslateInstance(6, -4));
+		double initialError = maxError(truth, initial, List.of(new Point2(size * 0.3, 0), new Point2(size * 0.7, size)));
+		var transform = new PointSetAligner(RegistrationType.AFFINE).align(xyBase, nBase, xyOverlay, nOverlay, initial);
+		assertNotNull(transform);
+		// Check the error within the overlapping region
+		var corners = List.of(new Point2(size * 0.3, 0), new Point2(size * 0.7, 0), new Point2(size * 0.3, size), new Point2(size * 0.7, size));
+		double error = maxError(truth, transform, corners);
+		assertTrue(error < 1.0, "Maximum error " + error + " pixels (initial " + initialError + ")");
+	}
+
+	@Test
+	public void testNoInitialTransform() {
+		// Without an initial transform, the centroids are matched first
+		var rng = new Random(3);
+		var truth = AffineTransform.getTranslateInstance(400, -250);
+		List<Point2> pointsBase = new ArrayList<>();
+		List<Point2> pointsOverlay = new ArrayList<>();
+		for (int i = 0; i < 30; i++) {
+			double x = rng.nextDouble() * 1000, y = rng.nextDouble() * 1000;
+			pointsBase.add(new Point2(x, y));
+			pointsOverlay.add(new Point2(x + truth.getTranslateX(), y + truth.getTranslateY()));
+		}
+		Collections.shuffle(pointsOverlay, rng);
+		var transform = new PointSetAligner(RegistrationType.RIGID).align(pointsBase, pointsOverlay, null);
+		assertNotNull(transform);
+		double error = maxError(truth, transform, pointsBase);
+		assertTrue(error < 0.01, "Maximum error " + error + " pixels");
+	}
+
+	private static double maxError(AffineTransform truth, AffineTransform transform, List<Point2> points) {
+		double[] xy = new double[points.size() * 2];
+		for (int i = 0; i < points.size(); i++) {
+			xy[i*2] = points.get(i).getX();
+			xy[i*2+1] = points.get(i).getY();
+		}
+		return PointSetAligner.maxDisplacement(truth, transform, xy, points.size());
+	}
+
+}
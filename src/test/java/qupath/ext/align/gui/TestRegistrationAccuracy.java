@@ -0,0 +1,394 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.scene.transform.Affine;
+import qupath.ext.align.gui.ImageAlignmentPane.AlignmentMethod;
+import qupath.ext.align.gui.ImageAlignmentPane.RegistrationType;
+import qupath.lib.geom.Point2;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Check that alignment recovers known transforms from synthetic images, within accuracy and time budgets.
+ * <p>
+ * Synthetic pyramidal images are created from a tissue-like texture; the overlay is the same texture
+ * warped by a known affine transform, optionally with noise, a change in staining and missing tiles.
+ * Every {@link AlignmentMethod} and {@link RegistrationType} is run for each scenario, and the
+ * target registration error (TRE) is measured on a grid of points across the base image.
+ * <p>
+ * These tests are slower than the others, and are tagged {@code registration} so they can be excluded.
+ * Options are read from system properties:
+ * <ul>
+ *   <li>{@code registration.size}: image width and height, in pixels (default 4096)</li>
+ *   <li>{@code registration.pixelSize}: full-resolution pixel size, in microns (default 0.5)</li>
+ *   <li>{@code registration.requestedPixelSize}: pixel size used for registration, in microns (default 4)</li>
+ *   <li>{@code registration.maxTRE}: maximum mean TRE, in microns (default twice the requested pixel size)</li>
+ *   <li>{@code registration.maxSeconds}: maximum time for each case, in seconds (default 30)</li>
+ *   <li>{@code registration.seed}: random seed (default 1)</li>
+ * </ul>
+ */
+@Tag("registration")
+public class TestRegistrationAccuracy {
+
+	private static final Logger logger = LoggerFactory.getLogger(TestRegistrationAccuracy.class);
+
+	/**
+	 * Number of points in each dimension used to measure TRE.
+	 */
+	private static final int TRE_GRID_SIZE = 10;
+
+	/**
+	 * Number of landmarks for point annotation alignment.
+	 */
+	private static final int N_LANDMARKS = 20;
+
+	/**
+	 * Number of area annotations for area annotation alignment.
+	 */
+	private static final int N_AREAS = 6;
+
+	/**
+	 * Number of cell detections for detection centroid alignment.
+	 */
+	private static final int N_CELLS = 5000;
+
+	/**
+	 * Maximum mean TRE for detection centroid alignment, in full-resolution pixels.
+	 * Detection alignment only refines an existing alignment, so this is checked against a much lower
+	 * error than that of the initial transform.
+	 */
+	private static final double MAX_REFINEMENT_TRE_PIXELS = 2.0;
+
+	private static final int size = Integer.getInteger("registration.size", 4096);
+	private static final double pixelSize = Double.parseDouble(System.getProperty("registration.pixelSize", "0.5"));
+	private static final double requestedPixelSize = Double.parseDouble(System.getProperty("registration.requestedPixelSize", "4"));
+	private static final double maxTRE = Double.parseDouble(System.getProperty("registration.maxTRE", Double.toString(requestedPixelSize * 2)));
+	private static final double maxSeconds = Double.parseDouble(System.getProperty("registration.maxSeconds", "30"));
+	private static final long seed = Long.getLong("registration.seed", 1L);
+
+	record Scenario(String name, double noiseSigma, boolean stainShift, boolean missingTiles) {
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+	}
+
+	private static BufferedImage imgBase;
+	private static ImageServer<BufferedImage> serverBase;
+	private static final Map<String, ImageServer<BufferedImage>> overlayServers = new ConcurrentHashMap<>();
+
+	@BeforeAll
+	public static void createBase() {
+		System.setProperty("java.awt.headless", "true");
+		imgBase = SyntheticImages.createTissue(size, size, seed);
+		serverBase = new SyntheticImageServer("Base", imgBase, pixelSize, Collections.emptyList(), 1, 4, 16);
+	}
+
+	static Stream<Arguments> provideCases() {
+		var scenarios = List.of(
+				new Scenario("clean", 0, false, false),
+				new Scenario("noise", 12, false, false),
+				new Scenario("stain-shift", 0, true, false),
+				new Scenario("missing-tiles", 0, false, true),
+				new Scenario("combined", 12, true, true)
+				);
+		List<Arguments> cases = new ArrayList<>();
+		for (var scenario : scenarios) {
+			for (var type : RegistrationType.values()) {
+				for (var method : AlignmentMethod.values())
+					cases.add(Arguments.of(scenario, type, method));
+			}
+		}
+		return cases.stream();
+	}
+
+	@ParameterizedTest(name = "{0} {1} {2}")
+	@MethodSource("provideCases")
+	public void testRegistration(Scenario scenario, RegistrationType type, AlignmentMethod method) throws Exception {
+		var truth = createTransform(type);
+		var serverOverlay = overlayServers.computeIfAbsent(scenario.name() + "-" + type, k -> createOverlayServer(truth, scenario));
+
+		var initial = method == AlignmentMethod.DETECTIONS ? createRefinementTransform(truth) : createInitialTransform(truth);
+		double initialTRE = computeTRE(truth, initial)[0];
+		var affine = new Affine();
+		TransformTools.setAffine(initial, affine);
+
+		long startTime = System.nanoTime();
+		var transform = runCase(method, type, serverBase, serverOverlay, truth, affine);
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		assertNotNull(transform, "Registration failed");
+
+		double[] tre = computeTRE(truth, transform);
+		logger.info(String.format("%-14s %-38s %-16s initial TRE %8.2f, mean TRE %8.2f, max TRE %8.2f (microns), time %6.2f s",
+				scenario, method, type, initialTRE, tre[0], tre[1], seconds));
+		double tolerance = method == AlignmentMethod.DETECTIONS ? MAX_REFINEMENT_TRE_PIXELS * pixelSize : maxTRE;
+		assertTrue(tre[0] <= tolerance, () -> String.format("Mean TRE %.2f > %.2f microns (initial %.2f)", tre[0], tolerance, initialTRE));
+		assertTrue(seconds <= maxSeconds, () -> String.format("Time %.1f > %.1f s", seconds, maxSeconds));
+	}
+
+	/**
+	 * Create a ground truth transform from base to overlay pixel coordinates.
+	 * Rigid registration is checked against a rigid transform, affine registration against a transform with scaling and shearing.
+	 */
+	private static AffineTransform createTransform(RegistrationType type) {
+		double c = size / 2.0;
+		var transform = AffineTransform.getTranslateInstance(size * 0.015, -size * 0.01);
+		transform.rotate(Math.toRadians(3), c, c);
+		if (type == RegistrationType.AFFINE) {
+			transform.translate(c, c);
+			transform.scale(1.03, 0.98);
+			transform.shear(0.02, 0);
+			transform.translate(-c, -c);
+		}
+		return transform;
+	}
+
+	/**
+	 * Create an initial transform as a user might after coarse interactive alignment:
+	 * the image centres correspond, but the rotation and scaling are unknown.
+	 */
+	private static AffineTransform createInitialTransform(AffineTransform truth) {
+		var centre = new Point2D.Double(size / 2.0, size / 2.0);
+		var centreOverlay = truth.transform(centre, null);
+		return AffineTransform.getTranslateInstance(centreOverlay.getX() - centre.getX(), centreOverlay.getY() - centre.getY());
+	}
+
+	/**
+	 * Create an initial transform close to the ground truth, as after alignment using another method.
+	 * Detection alignment can only refine an existing alignment, since cells are too similar to one another
+	 * to recover large rotations: with the coarse initial transform used for the other methods, points near
+	 * the image edges are further from their true positions than from their neighbours.
+	 */
+	private static AffineTransform createRefinementTransform(AffineTransform truth) {
+		var initial = new AffineTransform(truth);
+		initial.preConcatenate(AffineTransform.getRotateInstance(Math.toRadians(0.3), size / 2.0, size / 2.0));
+		initial.preConcatenate(AffineTransform.getTranslateInstance(5, -5));
+		return initial;
+	}
+
+	private static ImageServer<BufferedImage> createOverlayServer(AffineTransform truth, Scenario scenario) {
+		var img = SyntheticImages.transform(imgBase, truth, size, size);
+		if (scenario.stainShift())
+			SyntheticImages.shiftStain(img, 1.4, 0.8, 1.1);
+		if (scenario.noiseSigma() > 0)
+			SyntheticImages.addNoise(img, scenario.noiseSigma(), seed + 1);
+		var missing = scenario.missingTiles() ? createMissingRegions() : List.<Rectangle>of();
+		return new SyntheticImageServer("Overlay", img, pixelSize, missing, 1, 4, 16);
+	}
+
+	/**
+	 * Create missing regions, aligned to the tile grid of the overlay server.
+	 */
+	private static List<Rectangle> createMissingRegions() {
+		var rng = new Random(seed + 2);
+		int tileSize = 512;
+		int nTiles = size / tileSize;
+		List<Rectangle> missing = new ArrayList<>();
+		for (int i = 0; i < Math.max(1, nTiles * nTiles / 16); i++)
+			missing.add(new Rectangle(rng.nextInt(nTiles) * tileSize, rng.nextInt(nTiles) * tileSize, tileSize, tileSize));
+		return missing;
+	}
+
+	/**
+	 * Run a single registration, starting from the transform in the affine.
+	 * @return the estimated transform, or null if registration failed
+	 */
+	private static AffineTransform runCase(AlignmentMethod method, RegistrationType type,
+			ImageServer<BufferedImage> serverBase, ImageServer<BufferedImage> serverOverlay, AffineTransform truth, Affine affine) throws Exception {
+		boolean success = switch (method) {
+		case INTENSITY, MUTUAL_INFORMATION -> {
+			var preprocessor = RegistrationPreprocessor.getDefault();
+			yield ImageAlignmentPane.autoAlign(serverBase, serverOverlay, preprocessor, preprocessor,
+					method, type, affine, RegistrationResolution.pixelSize(requestedPixelSize), null) != null;
+		}
+		case AREA_ANNOTATIONS -> {
+			var imageDataBase = new ImageData<>(serverBase);
+			var imageDataOverlay = new ImageData<>(serverOverlay);
+			addAreaAnnotations(imageDataBase, imageDataOverlay, truth);
+			yield ImageAlignmentPane.alignAreaAnnotations(imageDataBase, imageDataOverlay, type, affine,
+					RegistrationResolution.pixelSize(requestedPixelSize), ImagePlane.getDefaultPlane(), true, null) != null;
+		}
+		case AREA_CONTOURS -> {
+			var imageDataBase = new ImageData<>(serverBase);
+			var imageDataOverlay = new ImageData<>(serverOverlay);
+			addAreaAnnotations(imageDataBase, imageDataOverlay, truth);
+			var transform = new ContourAligner(type).align(imageDataBase.getHierarchy().getAnnotationObjects(),
+					imageDataOverlay.getHierarchy().getAnnotationObjects(), TransformTools.toAffineTransform(affine), ImagePlane.getDefaultPlane());
+			if (transform != null)
+				TransformTools.setAffine(transform, affine);
+			yield transform != null;
+		}
+		case POINT_ANNOTATIONS -> {
+			List<Point2> pointsBase = new ArrayList<>();
+			List<Point2> pointsOverlay = new ArrayList<>();
+			createLandmarks(truth, pointsBase, pointsOverlay);
+			yield ImageAlignmentPane.alignPoints(pointsBase, pointsOverlay, type, affine);
+		}
+		case DETECTIONS -> {
+			var imageDataBase = new ImageData<>(serverBase);
+			var imageDataOverlay = new ImageData<>(serverOverlay);
+			addDetections(imageDataBase, imageDataOverlay, truth);
+			var centroidsBase = DetectionCentroids.fromHierarchy(imageDataBase.getHierarchy()).getCoordinates(ImagePlane.getDefaultPlane());
+			var centroidsOverlay = DetectionCentroids.fromHierarchy(imageDataOverlay.getHierarchy()).getCoordinates(ImagePlane.getDefaultPlane());
+			var transform = new PointSetAligner(type).align(centroidsBase, centroidsBase.length / 2, centroidsOverlay, centroidsOverlay.length / 2, TransformTools.toAffineTransform(affine));
+			if (transform != null)
+				TransformTools.setAffine(transform, affine);
+			yield transform != null;
+		}
+		case POINT_SETS -> {
+			List<Point2> pointsBase = new ArrayList<>();
+			List<Point2> pointsOverlay = new ArrayList<>();
+			createLandmarks(truth, pointsBase, pointsOverlay);
+			// Remove correspondences: drop some landmarks from each image and shuffle the overlay
+			var rng = new Random(seed + 5);
+			pointsBase.remove(0);
+			pointsOverlay.remove(pointsOverlay.size() - 1);
+			Collections.shuffle(pointsOverlay, rng);
+			var transform = new PointSetAligner(type).align(pointsBase, pointsOverlay, TransformTools.toAffineTransform(affine));
+			if (transform != null)
+				TransformTools.setAffine(transform, affine);
+			yield transform != null;
+		}
+		};
+		return success ? TransformTools.toAffineTransform(affine) : null;
+	}
+
+	/**
+	 * Add classified polygons to the base image, and the same polygons warped by the ground truth transform to the overlay.
+	 */
+	private static void addAreaAnnotations(ImageData<BufferedImage> imageDataBase, ImageData<BufferedImage> imageDataOverlay, AffineTransform truth) {
+		var rng = new Random(seed + 3);
+		List<PathObject> annotationsBase = new ArrayList<>();
+		List<PathObject> annotationsOverlay = new ArrayList<>();
+		for (int i = 0; i < N_AREAS; i++) {
+			double radius = size * (0.05 + rng.nextDouble() * 0.1);
+			double cx = size * (0.2 + rng.nextDouble() * 0.6);
+			double cy = size * (0.2 + rng.nextDouble() * 0.6);
+			var roi = SyntheticImages.createPolygon(24, cx, cy, radius, rng.nextLong());
+			var pathClass = PathClass.fromString("Class " + (i % 3));
+			annotationsBase.add(PathObjects.createAnnotationObject(roi, pathClass));
+			annotationsOverlay.add(PathObjects.createAnnotationObject(ImageServerOverlay.transformROI(roi, truth), pathClass));
+		}
+		imageDataBase.getHierarchy().addObjects(annotationsBase);
+		imageDataOverlay.getHierarchy().addObjects(annotationsOverlay);
+	}
+
+	/**
+	 * Add cell detections to the base image, and the same cells warped by the ground truth transform to the overlay.
+	 * Some cells are only detected in one image, and centroids have a small localization error.
+	 */
+	private static void addDetections(ImageData<BufferedImage> imageDataBase, ImageData<BufferedImage> imageDataOverlay, AffineTransform truth) {
+		var rng = new Random(seed + 6);
+		double radius = 4;
+		double localizationError = 1.5;
+		double missingProbability = 0.1;
+		List<PathObject> detectionsBase = new ArrayList<>();
+		List<PathObject> detectionsOverlay = new ArrayList<>();
+		var p = new Point2D.Double();
+		for (int i = 0; i < N_CELLS; i++) {
+			p.setLocation(size * rng.nextDouble(), size * rng.nextDouble());
+			if (rng.nextDouble() >= missingProbability)
+				detectionsBase.add(PathObjects.createDetectionObject(
+						ROIs.createEllipseROI(p.getX() - radius, p.getY() - radius, radius * 2, radius * 2, ImagePlane.getDefaultPlane())));
+			truth.transform(p, p);
+			if (rng.nextDouble() >= missingProbability) {
+				double x = p.getX() + rng.nextGaussian() * localizationError;
+				double y = p.getY() + rng.nextGaussian() * localizationError;
+				detectionsOverlay.add(PathObjects.createDetectionObject(
+						ROIs.createEllipseROI(x - radius, y - radius, radius * 2, radius * 2, ImagePlane.getDefaultPlane())));
+			}
+		}
+		imageDataBase.getHierarchy().addObjects(detectionsBase);
+		imageDataOverlay.getHierarchy().addObjects(detectionsOverlay);
+	}
+
+	/**
+	 * Create corresponding landmarks, with a small localization error in the overlay.
+	 */
+	private static void createLandmarks(AffineTransform truth, List<Point2> pointsBase, List<Point2> pointsOverlay) {
+		var rng = new Random(seed + 4);
+		double localizationError = 2.0;
+		var p = new Point2D.Double();
+		for (int i = 0; i < N_LANDMARKS; i++) {
+			p.setLocation(size * (0.1 + rng.nextDouble() * 0.8), size * (0.1 + rng.nextDouble() * 0.8));
+			pointsBase.add(new Point2(p.getX(), p.getY()));
+			truth.transform(p, p);
+			pointsOverlay.add(new Point2(p.getX() + rng.nextGaussian() * localizationError, p.getY() + rng.nextGaussian() * localizationError));
+		}
+	}
+
+	/**
+	 * Compute the mean and maximum target registration error (in microns) on a regular grid of points.
+	 */
+	private static double[] computeTRE(AffineTransform truth, AffineTransform estimate) {
+		var p = new Point2D.Double();
+		var pTruth = new Point2D.Double();
+		var pEstimate = new Point2D.Double();
+		double sum = 0;
+		double max = 0;
+		int n = 0;
+		for (int y = 0; y < TRE_GRID_SIZE; y++) {
+			for (int x = 0; x < TRE_GRID_SIZE; x++) {
+				p.setLocation((x + 0.5) * size / TRE_GRID_SIZE, (y + 0.5) * size / TRE_GRID_SIZE);
+				truth.transform(p, pTruth);
+				estimate.transform(p, pEstimate);
+				double error = pTruth.distance(pEstimate) * pixelSize;
+				sum += error;
+				max = Math.max(max, error);
+				n++;
+			}
+		}
+		return new double[] {sum / n, max};
+	}
+
+}
@@ -0,0 +1,52 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestRegistrationResolution {
+
+	@Test
+	public void testSnapToLevel() {
+		double[] levels = {1, 4, 16, 64};
+		// Close to a level
+		assertEquals(16, RegistrationResolution.snapToLevel(14, 1, levels));
+		assertEquals(16, RegistrationResolution.snapToLevel(18, 1, levels));
+		// Too far from any level
+		assertEquals(8, RegistrationResolution.snapToLevel(8, 1, levels));
+		// Levels below the minimum downsample exceed the budget
+		assertEquals(4.5, RegistrationResolution.snapToLevel(4.5, 4.5, levels));
+	}
+
+	@Test
+	public void testCommonLevels() {
+		double[] base = {1, 4, 16, 64};
+		assertArrayEquals(new double[] {1, 4, 16}, RegistrationResolution.getCommonLevels(base, new double[] {1, 2, 4.0001, 8, 16}));
+		assertArrayEquals(new double[] {1}, RegistrationResolution.getCommonLevels(base, new double[] {1, 3, 9, 27}));
+		assertArrayEquals(base, RegistrationResolution.getCommonLevels(base, base));
+	}
+
+}
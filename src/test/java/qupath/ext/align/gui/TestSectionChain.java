@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static qupath.ext.align.gui.AffineAssertions.assertTransformEquals;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.ext.align.gui.SectionChain.PairwiseResult;
+
+@SuppressWarnings("javadoc")
+public class TestSectionChain {
+
+	private static final double EPSILON = 1e-9;
+
+	@Test
+	public void testComposeFromFirst() throws NoninvertibleTransformException {
+		var adjacent = createAdjacent();
+		var transforms = SectionChain.composeFromReference(adjacent, 0);
+		assertEquals(adjacent.size() + 1, transforms.size());
+		assertTransformEquals(new AffineTransform(), transforms.get(0), 0);
+		// T(0 -> 3) = T(2 -> 3) * T(1 -> 2) * T(0 -> 1)
+		var expected = new AffineTransform(adjacent.get(2).transform());
+		expected.concatenate(adjacent.get(1).transform());
+		expected.concatenate(adjacent.get(0).transform());
+		assertTransformEquals(expected, transforms.get(3), EPSILON);
+		// Points should map consistently along the chain
+		for (int i = 0; i < adjacent.size(); i++)
+			assertTransformEquals(adjacent.get(i).transform(), SectionChain.relativeTransform(transforms.get(i), transforms.get(i + 1)), EPSILON);
+	}
+
+	@Test
+	public void testComposeFromMiddle() throws NoninvertibleTransformException {
+		var adjacent = createAdjacent();
+		int reference = 2;
+		var transforms = SectionChain.composeFromReference(adjacent, reference);
+		assertTransformEquals(new AffineTransform(), transforms.get(reference), 0);
+		// Sections before the reference use inverse transforms
+		assertTransformEquals(adjacent.get(1).transform().createInverse(), transforms.get(1), EPSILON);
+		assertTransformEquals(adjacent.get(2).transform(), transforms.get(3), EPSILON);
+		for (int i = 0; i < adjacent.size(); i++)
+			assertTransformEquals(adjacent.get(i).transform(), SectionChain.relativeTransform(transforms.get(i), transforms.get(i + 1)), EPSILON);
+	}
+
+	@Test
+	public void testComposeWithFailure() throws NoninvertibleTransformException {
+		var adjacent = new ArrayList<>(createAdjacent());
+		adjacent.set(1, new PairwiseResult(1, 2, null, Double.NaN));
+		var transforms = SectionChain.composeFromReference(adjacent, 0);
+		assertTransformEquals(adjacent.get(0).transform(), transforms.get(1), EPSILON);
+		// Sections beyond the failed pair can't be reached
+		assertNull(transforms.get(2));
+		assertNull(transforms.get(3));
+
+		transforms = SectionChain.composeFromReference(adjacent, 3);
+		assertTransformEquals(adjacent.get(2).transform().createInverse(), transforms.get(2), EPSILON);
+		assertNull(transforms.get(1));
+		assertNull(transforms.get(0));
+	}
+
+	@Test
+	public void testAdjacentRoundTrip() throws NoninvertibleTransformException {
+		var fromReference = SectionChain.composeFromReference(createAdjacent(), 0);
+		var adjacent = SectionChain.toAdjacent(fromReference);
+		List<PairwiseResult> pairs = new ArrayList<>();
+		for (int i = 0; i < adjacent.size(); i++)
+			pairs.add(new PairwiseResult(i, i + 1, adjacent.get(i), 1.0));
+		var transforms = SectionChain.composeFromReference(pairs, 0);
+		for (int i = 0; i < fromReference.size(); i++)
+			assertTransformEquals(fromReference.get(i), transforms.get(i), EPSILON);
+	}
+
+	/**
+	 * Create results for registering each of 4 sections to the next.
+	 */
+	private static List<PairwiseResult> createAdjacent() {
+		List<PairwiseResult> adjacent = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			var transform = AffineTransform.getRotateInstance(Math.toRadians(2 + i), 100, 50);
+			transform.translate(10 * (i + 1), -5);
+			transform.scale(1.01, 0.99);
+			adjacent.add(new PairwiseResult(i, i + 1, transform, 0.9));
+		}
+		return adjacent;
+	}
+
+}
@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static qupath.ext.align.gui.AffineAssertions.assertTransformEquals;
+
+import java.awt.geom.AffineTransform;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.ext.align.gui.TransformIO.Entry;
+import qupath.ext.align.gui.TransformIO.Format;
+
+@SuppressWarnings("javadoc")
+public class TestTransformIO {
+
+	private static final double EPSILON = 1e-9;
+
+	private static final AffineTransform TRANSFORM = new AffineTransform(1.01, -0.02, 0.03, 0.98, 125.5, -64.25);
+
+	@Test
+	public void testJSON() throws IOException {
+		var entries = createEntries();
+		var writer = new StringWriter();
+		try (var entryWriter = TransformIO.createJSONWriter(writer)) {
+			for (var entry : entries)
+				entryWriter.write(entry);
+		}
+		List<Entry> read = new ArrayList<>();
+		TransformIO.readJSON(new StringReader(writer.toString()), read::add);
+		assertEquals(entries, read);
+	}
+
+	@Test
+	public void testJSONInvalid() {
+		// Missing transform
+		assertThrows(IOException.class, () -> TransformIO.readJSON(new StringReader("[{\"image\": \"a\"}]"), e -> {}));
+		// Too few values
+		assertThrows(IOException.class, () -> TransformIO.readJSON(new StringReader("[{\"image\": \"a\", \"transform\": [1, 0, 0]}]"), e -> {}));
+		// No image name or ID
+		assertThrows(IOException.class, () -> TransformIO.readJSON(new StringReader("[{\"transform\": [1, 0, 0, 0, 1, 0]}]"), e -> {}));
+	}
+
+	@Test
+	public void testCSV() throws IOException {
+		var entries = createEntries();
+		var writer = new StringWriter();
+		try (var entryWriter = TransformIO.createCSVWriter(writer)) {
+			for (var entry : entries)
+				entryWriter.write(entry);
+		}
+		List<Entry> read = new ArrayList<>();
+		TransformIO.readCSV(new BufferedReader(new StringReader(writer.toString())), read::add);
+		assertEquals(entries, read);
+	}
+
+	@Test
+	public void testCSVColumns() throws IOException {
+		// Columns may be in any order, and the ID and base image are optional
+		String csv = "ty,tx,myy,myx,mxy,mxx,Image\n"
+				+ "-64.25,125.5,0.98,-0.02,0.03,1.01,Image 1\n"
+				+ "\n";
+		List<Entry> read = new ArrayList<>();
+		TransformIO.readCSV(new BufferedReader(new StringReader(csv)), read::add);
+		assertEquals(List.of(new Entry("Image 1", null, null, TRANSFORM)), read);
+
+		assertThrows(IOException.class, () -> TransformIO.readCSV(new BufferedReader(new StringReader("Image,mxx,mxy,tx,myx,myy\n")), e -> {}));
+		assertThrows(IOException.class, () -> TransformIO.readCSV(new BufferedReader(new StringReader("mxx,mxy,tx,myx,myy,ty\n")), e -> {}));
+		assertThrows(IOException.class, () -> TransformIO.readCSV(new BufferedReader(new StringReader(
+				"Image,mxx,mxy,tx,myx,myy,ty\na,1,0,0,0,1,x\n")), e -> {}));
+	}
+
+	@Test
+	public void testITK() throws IOException {
+		var writer = new StringWriter();
+		TransformIO.writeITK(writer, TRANSFORM);
+		var transform = TransformIO.readITK(new BufferedReader(new StringReader(writer.toString())));
+		assertEquals(TRANSFORM, transform);
+	}
+
+	@Test
+	public void testITKCentered() throws IOException {
+		// Rotation of 10 degrees about (100, 50), followed by a translation of (5, -3)
+		double angle = Math.toRadians(10);
+		String itk = "#Insight Transform File V1.0\n"
+				+ "#Transform 0\n"
+				+ "Transform: Euler2DTransform_double_2_2\n"
+				+ "Parameters: " + angle + " 5 -3\n"
+				+ "FixedParameters: 100 50\n";
+		var expected = AffineTransform.getTranslateInstance(5, -3);
+		expected.rotate(angle, 100, 50);
+		assertTransformEquals(expected, TransformIO.readITK(new BufferedReader(new StringReader(itk))), EPSILON);
+	}
+
+	@Test
+	public void testITKComposite() throws IOException {
+		// The last transform in the file is applied first: translate, then scale
+		String itk = "#Insight Transform File V1.0\n"
+				+ "#Transform 0\n"
+				+ "Transform: AffineTransform_double_2_2\n"
+				+ "Parameters: 2 0 0 2 0 0\n"
+				+ "FixedParameters: 0 0\n"
+				+ "#Transform 1\n"
+				+ "Transform: AffineTransform_double_2_2\n"
+				+ "Parameters: 1 0 0 1 5 0\n"
+				+ "FixedParameters: 0 0\n";
+		var transform = TransformIO.readITK(new BufferedReader(new StringReader(itk)));
+		var expected = AffineTransform.getScaleInstance(2, 2);
+		expected.translate(5, 0);
+		assertTransformEquals(expected, transform, EPSILON);
+	}
+
+	@Test
+	public void testITKInvalid() {
+		assertThrows(IOException.class, () -> TransformIO.readITK(new BufferedReader(new StringReader("#Insight Transform File V1.0\n"))));
+		assertThrows(IOException.class, () -> TransformIO.readITK(new BufferedReader(new StringReader(
+				"Transform: BSplineTransform_double_2_2\nParameters: 1 2 3\nFixedParameters: 0 0\n"))));
+	}
+
+	@Test
+	public void testElastix() throws IOException {
+		var writer = new StringWriter();
+		TransformIO.writeElastix(writer, TRANSFORM, 2000, 1000);
+		var transform = TransformIO.readElastix(new BufferedReader(new StringReader(writer.toString())));
+		assertEquals(TRANSFORM, transform);
+	}
+
+	@Test
+	public void testElastixCentered() throws IOException {
+		double angle = Math.toRadians(-5);
+		String elastix = "(Transform \"EulerTransform\")\n"
+				+ "(NumberOfParameters 3)\n"
+				+ "(TransformParameters " + angle + " 2.5 7)\n"
+				+ "(InitialTransformParametersFileName \"NoInitialTransform\")\n"
+				+ "(CenterOfRotationPoint 500 250)\n";
+		var expected = AffineTransform.getTranslateInstance(2.5, 7);
+		expected.rotate(angle, 500, 250);
+		assertTransformEquals(expected, TransformIO.readElastix(new BufferedReader(new StringReader(elastix))), EPSILON);
+	}
+
+	@Test
+	public void testElastixInvalid() {
+		// Initial transforms would need to be read from another file
+		assertThrows(IOException.class, () -> TransformIO.readElastix(new BufferedReader(new StringReader(
+				"(Transform \"AffineTransform\")\n(TransformParameters 1 0 0 1 0 0)\n(InitialTransformParametersFileName \"other.txt\")\n"))));
+		assertThrows(IOException.class, () -> TransformIO.readElastix(new BufferedReader(new StringReader("(Transform \"AffineTransform\")\n"))));
+	}
+
+	@Test
+	public void testFileNames() {
+		for (var format : Format.values()) {
+			assertEquals("Image 1.svs", format.getImageName(format.getFileName("Image 1.svs")));
+			// Characters that aren't allowed in file names are replaced
+			assertEquals("a_b_c", format.getImageName(format.getFileName("a/b:c")));
+		}
+	}
+
+	private static List<Entry> createEntries() {
+		var translation = AffineTransform.getTranslateInstance(-10, 20.5);
+		return List.of(
+				new Entry("Image 1.svs", "1", "Base.svs", TRANSFORM),
+				new Entry("Image, \"quoted\"", null, null, translation),
+				new Entry("Image 3", "3", null, new AffineTransform())
+				);
+	}
+
+}
@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.align.gui;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.ImageServerMetadata.ChannelType;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestWarpedLabelServer {
+
+	@Test
+	public void testUncalibratedTargetMultiPlaneSource() throws IOException {
+		var labels = Map.of(1, PathClass.fromString("Tumor"));
+		var source = new LabelServer(new ImageServerMetadata.Builder()
+				.name("Labels")
+				.width(400)
+				.height(400)
+				.sizeZ(3)
+				.zSpacingMicrons(2.0)
+				.pixelSizeMicrons(0.5, 0.5)
+				.rgb(false)
+				.pixelType(PixelType.UINT8)
+				.channels(ImageChannel.getDefaultChannelList(1))
+				.channelType(ChannelType.CLASSIFICATION)
+				.classificationLabels(labels)
+				.levelsFromDownsamples(1.0)
+				.build(), 200);
+		var target = new SyntheticImageServer("Target", new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB),
+				Double.NaN, Collections.emptyList(), 1.0, 2.0);
+
+		var server = new WarpedLabelServer(source, target, AffineTransform.getTranslateInstance(50, 0));
+
+		// Geometry and calibration come from the target
+		assertEquals(300, server.getWidth());
+		assertEquals(200, server.getHeight());
+		assertFalse(server.getPixelCalibration().hasPixelSizeMicrons());
+		assertFalse(server.getPixelCalibration().hasZSpacingMicrons());
+		assertEquals(1, server.nZSlices());
+		assertEquals(1, server.nTimepoints());
+		assertEquals(2, server.nResolutions());
+
+		// Pixel values and their meaning come from the source
+		assertFalse(server.isRGB());
+		assertEquals(PixelType.UINT8, server.getPixelType());
+		assertEquals(1, server.nChannels());
+		assertEquals(ChannelType.CLASSIFICATION, server.getMetadata().getChannelType());
+		assertEquals(labels, server.getMetadata().getClassificationLabels());
+
+		var raster = server.readRegion(RegionRequest.createInstance(server.getPath(), 1.0, 0, 0, 300, 200)).getRaster();
+		assertEquals(1, raster.getSample(100, 100, 0));
+		assertEquals(0, raster.getSample(200, 100, 0));
+	}
+
+	/**
+	 * Label image that is 1 to the left of a boundary and 0 elsewhere, on every plane.
+	 */
+	private static class LabelServer extends AbstractTileableImageServer {
+
+		private final ImageServerMetadata metadata;
+		private final int boundaryX;
+		private final String id = UUID.randomUUID().toString();
+
+		LabelServer(ImageServerMetadata metadata, int boundaryX) {
+			this.metadata = metadata;
+			this.boundaryX = boundaryX;
+		}
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) {
+			var img = new BufferedImage(tileRequest.getTileWidth(), tileRequest.getTileHeight(), BufferedImage.TYPE_BYTE_GRAY);
+			var raster = img.getRaster();
+			double downsample = tileRequest.getDownsample();
+			for (int y = 0; y < raster.getHeight(); y++) {
+				for (int x = 0; x < raster.getWidth(); x++) {
+					if (tileRequest.getImageX() + (x + 0.5) * downsample < boundaryX)
+						raster.setSample(x, y, 0, 1);
+				}
+			}
+			return img;
+		}
+
+		@Override
+		public Collection<URI> getURIs() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public String getServerType() {
+			return "Labels";
+		}
+
+		@Override
+		public ImageServerMetadata getOriginalMetadata() {
+			return metadata;
+		}
+
+		@Override
+		protected ServerBuilder<BufferedImage> createServerBuilder() {
+			return null;
+		}
+
+		@Override
+		protected String createID() {
+			return "Labels: " + id;
+		}
+
+	}
+
+}